@@ -81,6 +81,7 @@ public final class Constants {
     public static final String EXTRA_PREFIX = PACKAGE_NAME + ".";
 
     public static final int TEMPFILE_TTL = 24 * 60 * 60 * 1000; // 1 day
+    public static final long TEMPFILE_QUOTA = 256 * 1024 * 1024; // 256 MiB
 
     // the maximal length of plaintext to read in encrypt/decrypt text activities
     public static final int TEXT_LENGTH_LIMIT = 1024 * 50;
@@ -129,6 +130,8 @@ public final class Constants {
         public static final String EXPERIMENTAL_ENABLE_KEYBASE = "experimentalEnableKeybase";
         public static final String EXPERIMENTAL_SMARTPGP_VERIFY_AUTHORITY = "smartpgp_authorities_pref";
         public static final String EXPERIMENTAL_SMARTPGP_AUTHORITIES = "smartpgp_authorities";
+        // device calibration, written by the benchmark operation
+        public static final String CALIBRATION_PROFILE = "calibrationProfile";
 
         public static final class Theme {
             public static final String LIGHT = "light";
@@ -28,9 +28,11 @@ import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Environment;
 import android.support.annotation.Nullable;
+import android.support.v4.content.ContextCompat;
 import android.widget.Toast;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
@@ -42,6 +44,7 @@ import org.sufficientlysecure.keychain.util.PRNGFixes;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.network.TlsCertificatePinning;
 
+import java.io.File;
 import java.security.Security;
 import java.util.HashMap;
 
@@ -97,6 +100,11 @@ public class KeychainApplication extends Application {
         brandGlowEffect(getApplicationContext(),
                 FormattingUtils.getColorFromAttr(getApplicationContext(), R.attr.colorPrimary));
 
+        // large operation logs are spilled separately for each of our processes, outside of
+        // storage that is included in backups
+        OperationLog.setSpillDirectory(new File(ContextCompat.getNoBackupFilesDir(this),
+                "log_spill" + File.separator + android.os.Process.myPid()));
+
         // Add OpenKeychain account to Android to link contacts with keys and keyserver sync
         createAccountIfNecessary(this);
 
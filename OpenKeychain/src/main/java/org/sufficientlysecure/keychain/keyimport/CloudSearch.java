@@ -18,26 +18,76 @@
 package org.sufficientlysecure.keychain.keyimport;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import org.sufficientlysecure.keychain.util.Preferences;
 
-import java.net.Proxy;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Search two or more types of server for online keys.
+ *
+ * All sources are searched in parallel on a shared, bounded executor. Results
+ * are merged into the result list as soon as a source reports them, and can be
+ * observed while the search is running through a CloudSearchListener. Each
+ * source has its own deadline, a source that misses it is cancelled while the
+ * results of all other sources are kept.
  */
 public class CloudSearch {
 
-    private final static long SECONDS = 1000;
+    private static final int MAX_THREADS = 4;
+    /** Interval in which a waiting search checks for cancellation */
+    private static final long CANCEL_POLL_MILLIS = 100;
+
+    private static final ThreadPoolExecutor sSearchExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        // a new thread is started for each source up to MAX_THREADS, idle threads are stopped again
+        sSearchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public interface CloudSearchListener {
+        /**
+         * Called whenever a new result was merged into the result list. This is called from
+         * the threads performing the search, while holding the lock on the result list, so
+         * implementations should return quickly and copy what they need.
+         *
+         * @param results all results merged so far, only valid for the duration of the call
+         */
+        void onSearchResultsUpdated(List<ImportKeysListEntry> results);
+    }
 
     public static ArrayList<ImportKeysListEntry> search(
             @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull final ParcelableProxy proxy)
             throws Keyserver.CloudSearchFailureException {
+        return search(query, cloudPrefs, proxy, null, null);
+    }
+
+    /**
+     * @param listener  notified about intermediate results, may be null
+     * @param cancelled if set to true, the search is stopped and the results so far are returned
+     */
+    public static ArrayList<ImportKeysListEntry> search(
+            @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull final ParcelableProxy proxy,
+            @Nullable final CloudSearchListener listener, @Nullable final AtomicBoolean cancelled)
+            throws Keyserver.CloudSearchFailureException {
 
         final ArrayList<Keyserver> servers = new ArrayList<>();
         // it's a Vector for sync, multiple threads might report problems
@@ -53,47 +103,75 @@ public class CloudSearch {
             servers.add(new FacebookKeyserver());
         }
 
-        int numberOfServers = servers.size();
-        final ImportKeysList results = new ImportKeysList(numberOfServers);
-
-        if (numberOfServers > 0) {
-            ArrayList<Thread> searchThreads = new ArrayList<>();
-            for (final Keyserver keyserver : servers) {
-                Runnable r = new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            results.addAll(keyserver.search(query, proxy));
-                        } catch (Keyserver.CloudSearchFailureException e) {
-                            problems.add(e);
-                        }
-                        results.finishedAdding(); // notifies if all searchers done
+        if (servers.isEmpty()) {
+            throw new Keyserver.QueryNoEnabledSourceException();
+        }
+
+        final ImportKeysList results = new ImportKeysList(servers.size());
+        final Keyserver.SearchListener resultListener = new Keyserver.SearchListener() {
+            @Override
+            public boolean onSearchResult(ImportKeysListEntry entry) {
+                if (isCancelled(cancelled) || Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+
+                synchronized (results) {
+                    results.add(entry);
+                    if (listener != null) {
+                        listener.onSearchResultsUpdated(Collections.unmodifiableList(results));
                     }
-                };
-                Thread searchThread = new Thread(r);
-                searchThreads.add(searchThread);
-                searchThread.start();
+                }
+                return true;
             }
+        };
 
-            // wait for either all the searches to come back, or 10 seconds. If using proxy, wait 30 seconds.
-            synchronized (results) {
-                try {
-                    results.wait((proxy.getProxy() == Proxy.NO_PROXY ? 30 : 10) * SECONDS);
-                    for (Thread thread : searchThreads) {
-                        // kill threads that haven't returned yet
-                        thread.interrupt();
+        ExecutorCompletionService<Keyserver> searchCompletionService =
+                new ExecutorCompletionService<>(sSearchExecutor);
+        HashMap<Future<Keyserver>, SourceSearch> pendingSearches = new HashMap<>();
+
+        for (Keyserver keyserver : servers) {
+            SourceSearch search = new SourceSearch(keyserver, keyserver.getSearchTimeoutMillis(proxy),
+                    query, proxy, resultListener, results, problems);
+            pendingSearches.put(searchCompletionService.submit(search), search);
+        }
+
+        // wait until all sources are done, missed their deadline, or the search is cancelled
+        try {
+            while (!pendingSearches.isEmpty() && !isCancelled(cancelled)) {
+                long now = System.currentTimeMillis();
+                long nextDeadline = Long.MAX_VALUE;
+
+                Iterator<Entry<Future<Keyserver>, SourceSearch>> it = pendingSearches.entrySet().iterator();
+                while (it.hasNext()) {
+                    Entry<Future<Keyserver>, SourceSearch> pending = it.next();
+                    SourceSearch search = pending.getValue();
+                    long deadline = search.getDeadline();
+                    if (deadline <= now) {
+                        cancelSearch(pending.getKey(), search);
+                        problems.add(new Keyserver.QueryFailedException("Search on "
+                                + search.mKeyserver.getClass().getSimpleName() + " did not complete in time."));
+                        it.remove();
+                    } else {
+                        nextDeadline = Math.min(nextDeadline, deadline);
                     }
-                } catch (InterruptedException ignored) {
                 }
-            }
+                if (pendingSearches.isEmpty()) {
+                    break;
+                }
 
-            if (results.outstandingSuppliers() > 0) {
-                String message = "Launched " + servers.size() + " cloud searchers, but " +
-                        results.outstandingSuppliers() + "failed to complete.";
-                problems.add(new Keyserver.QueryFailedException(message));
+                Future<Keyserver> done = searchCompletionService.poll(
+                        Math.min(CANCEL_POLL_MILLIS, nextDeadline - now), TimeUnit.MILLISECONDS);
+                if (done != null) {
+                    pendingSearches.remove(done);
+                }
             }
-        } else {
-            problems.add(new Keyserver.QueryNoEnabledSourceException());
+        } catch (InterruptedException e) {
+            Log.d(Constants.TAG, "Cloud search interrupted");
+        }
+
+        // cancel anything that's left over, in case the search was cancelled or interrupted
+        for (Entry<Future<Keyserver>, SourceSearch> pending : pendingSearches.entrySet()) {
+            cancelSearch(pending.getKey(), pending.getValue());
         }
 
         if (!problems.isEmpty()) {
@@ -102,11 +180,81 @@ public class CloudSearch {
             }
 
             // only throw exception if we didn’t get any results
-            if (results.isEmpty()) {
-                throw problems.get(0);
+            synchronized (results) {
+                if (results.isEmpty()) {
+                    throw problems.get(0);
+                }
+            }
+        }
+
+        // searchers that were cancelled may still be adding, so return a consistent copy
+        synchronized (results) {
+            return new ArrayList<>(results);
+        }
+    }
+
+    /** A search that was cancelled before it started never runs, so it is finished here. */
+    private static void cancelSearch(Future<Keyserver> future, SourceSearch search) {
+        future.cancel(true);
+        search.finish();
+    }
+
+    /**
+     * The search on a single source. Its deadline counts from when it starts running, so
+     * time spent waiting for a free thread doesn't count against it.
+     */
+    private static class SourceSearch implements Callable<Keyserver> {
+        final Keyserver mKeyserver;
+        private final long mTimeoutMillis;
+        private final String mQuery;
+        private final ParcelableProxy mProxy;
+        private final Keyserver.SearchListener mListener;
+        private final ImportKeysList mResults;
+        private final Vector<Keyserver.CloudSearchFailureException> mProblems;
+
+        private volatile long mStartTime;
+        private final AtomicBoolean mFinished = new AtomicBoolean(false);
+
+        SourceSearch(Keyserver keyserver, long timeoutMillis, String query, ParcelableProxy proxy,
+                Keyserver.SearchListener listener, ImportKeysList results,
+                Vector<Keyserver.CloudSearchFailureException> problems) {
+            mKeyserver = keyserver;
+            mTimeoutMillis = timeoutMillis;
+            mQuery = query;
+            mProxy = proxy;
+            mListener = listener;
+            mResults = results;
+            mProblems = problems;
+        }
+
+        @Override
+        public Keyserver call() {
+            mStartTime = System.currentTimeMillis();
+            try {
+                mKeyserver.search(mQuery, mProxy, mListener);
+            } catch (Keyserver.CloudSearchFailureException e) {
+                mProblems.add(e);
+            } finally {
+                finish();
             }
+            return mKeyserver;
         }
 
-        return results;
+        /** Returns the deadline of this search, or Long.MAX_VALUE if it hasn't started yet. */
+        long getDeadline() {
+            long startTime = mStartTime;
+            return startTime == 0 ? Long.MAX_VALUE : startTime + mTimeoutMillis;
+        }
+
+        /** Signs this source off from the result list, only the first call has an effect. */
+        void finish() {
+            if (mFinished.compareAndSet(false, true)) {
+                mResults.finishedAdding();
+            }
+        }
+    }
+
+    private static boolean isCancelled(AtomicBoolean cancelled) {
+        return cancelled != null && cancelled.get();
     }
 }
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/** Incremental parser for machine readable HKP indexes.
+ *
+ * The index is consumed line by line from a Reader, so the response never has
+ * to be held in memory as a whole. Each key is handed to a SearchListener as
+ * soon as its last uid line has been read. Parsing stops early once the
+ * listener declines further results, the maximum number of results is
+ * reached, or the parsing thread is interrupted.
+ *
+ * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">
+ * 5.2. Machine Readable Indexes</a>
+ * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
+ */
+public class HkpIndexParser {
+
+    /**
+     * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
+     * <ul>
+     * <li>%<b>keyid</b>% = this is either the fingerprint or the key ID of the key.
+     * Either the 16-digit or 8-digit key IDs are acceptable, but obviously the fingerprint is best.
+     * </li>
+     * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
+     * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
+     * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
+     * <li>%<b>creationdate</b>% = creation date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+     * seconds since 1/1/1970 UTC time)</li>
+     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+     * seconds since 1/1/1970 UTC time)</li>
+     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
+     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
+     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of the
+     * detail.
+     * <ul>
+     * <li>r == revoked</li>
+     * <li>d == disabled</li>
+     * <li>e == expired</li>
+     * </ul>
+     * </li>
+     * </ul>
+     */
+    public static final Pattern PUB_LINE = Pattern
+            .compile("pub:([0-9a-fA-F]+):([0-9]+):([0-9]+):([0-9]+):([0-9]*):([rde]*)",
+                    Pattern.CASE_INSENSITIVE);
+
+    /**
+     * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
+     * <ul>
+     * <li>%<b>escaped uid string</b>% = the user ID string, with HTTP %-escaping for anything that
+     * isn't 7-bit safe as well as for the ":" character.  Any other characters may be escaped, as
+     * desired.</li>
+     * <li>%<b>creationdate</b>% = creation date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+     * seconds since 1/1/1970 UTC time)</li>
+     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+     * seconds since 1/1/1970 UTC time)</li>
+     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
+     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
+     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of
+     * the detail.
+     * <ul>
+     * <li>r == revoked</li>
+     * <li>d == disabled</li>
+     * <li>e == expired</li>
+     * </ul>
+     * </li>
+     * </ul>
+     */
+    public static final Pattern UID_LINE = Pattern
+            .compile("uid:([^:]*):([0-9]+):([0-9]*):([rde]*)",
+                    Pattern.CASE_INSENSITIVE);
+
+    private final ParcelableHkpKeyserver mKeyserver;
+    private final String mQuery;
+    private final Keyserver.SearchListener mListener;
+    private final int mMaxResults;
+
+    private ImportKeysListEntry mCurrentEntry;
+    private ArrayList<String> mCurrentUserIds;
+    private int mResultCount;
+    private boolean mStopped;
+
+    /**
+     * @param keyserver  keyserver to set as source of all parsed entries
+     * @param query      query to set on all parsed entries
+     * @param listener   receives all parsed entries, in order
+     * @param maxResults maximum number of entries to deliver before parsing is stopped
+     */
+    public HkpIndexParser(ParcelableHkpKeyserver keyserver, String query,
+                          Keyserver.SearchListener listener, int maxResults) {
+        mKeyserver = keyserver;
+        mQuery = query;
+        mListener = listener;
+        mMaxResults = maxResults;
+    }
+
+    /** Parses the index from the given reader, until it is exhausted or parsing is stopped.
+     *
+     * @return true if the complete index was parsed, false if parsing was stopped early
+     */
+    public boolean parse(BufferedReader reader) throws IOException {
+        String line;
+        while (!mStopped && (line = reader.readLine()) != null) {
+            if (Thread.currentThread().isInterrupted()) {
+                Log.d(Constants.TAG, "Interrupted while parsing index, stopping");
+                mStopped = true;
+                break;
+            }
+
+            line = line.trim();
+
+            Matcher pubMatcher = PUB_LINE.matcher(line);
+            if (pubMatcher.lookingAt()) {
+                finishEntry();
+                if (mStopped) {
+                    break;
+                }
+                startEntry(pubMatcher);
+                continue;
+            }
+
+            Matcher uidMatcher = UID_LINE.matcher(line);
+            if (uidMatcher.lookingAt()) {
+                addUserId(uidMatcher);
+            }
+
+            // anything else, such as the info line, is ignored
+        }
+
+        if (!mStopped) {
+            finishEntry();
+        }
+
+        return !mStopped;
+    }
+
+    public int getResultCount() {
+        return mResultCount;
+    }
+
+    private void startEntry(Matcher matcher) {
+        // if this key turns out to be invalid, its uid lines are skipped until the next key
+        mCurrentEntry = null;
+        mCurrentUserIds = null;
+
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setQuery(mQuery);
+
+        // group 1 contains the full fingerprint (v4) or the long key id if available
+        // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
+        String fingerprintOrKeyId = matcher.group(1).toLowerCase(Locale.ENGLISH);
+        if (fingerprintOrKeyId.length() == 40) {
+            entry.setFingerprintHex(fingerprintOrKeyId);
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
+                    - 16, fingerprintOrKeyId.length()));
+        } else if (fingerprintOrKeyId.length() == 16) {
+            // set key id only
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId);
+        } else {
+            Log.e(Constants.TAG, "Wrong length for fingerprint/long key id.");
+            // skip this key
+            return;
+        }
+
+        try {
+            int bitSize = Integer.parseInt(matcher.group(3));
+            entry.setBitStrength(bitSize);
+            int algorithmId = Integer.decode(matcher.group(2));
+            entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
+
+            long creationDate = Long.parseLong(matcher.group(4));
+            GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            calendar.setTimeInMillis(creationDate * 1000);
+            entry.setDate(calendar.getTime());
+
+            entry.setRevoked(matcher.group(6).contains("r"));
+            boolean expired = matcher.group(6).contains("e");
+
+            // It may be expired even without flag, thus check expiration date
+            String expiration;
+            if (!expired && !(expiration = matcher.group(5)).isEmpty()) {
+                long expirationDate = Long.parseLong(expiration);
+                TimeZone timeZoneUTC = TimeZone.getTimeZone("UTC");
+                GregorianCalendar expirationCalendar = new GregorianCalendar(timeZoneUTC);
+                expirationCalendar.setTimeInMillis(expirationDate * 1000);
+                expired = new GregorianCalendar(timeZoneUTC).compareTo(expirationCalendar) >= 0;
+            }
+            entry.setExpired(expired);
+        } catch (NumberFormatException e) {
+            Log.e(Constants.TAG, "Conversation for bit size, algorithm, creation or expiry date failed.", e);
+            // skip this key
+            return;
+        }
+
+        mCurrentEntry = entry;
+        mCurrentUserIds = new ArrayList<>();
+    }
+
+    private void addUserId(Matcher matcher) {
+        if (mCurrentEntry == null) {
+            return;
+        }
+
+        String tmp = matcher.group(1).trim();
+        if (tmp.contains("%")) {
+            if (tmp.contains("%%")) {
+                // The server encodes a percent sign as %%, so it is swapped out with its
+                // urlencoded counterpart to prevent errors
+                tmp = tmp.replace("%%", "%25");
+            }
+            try {
+                // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
+                tmp = URLDecoder.decode(tmp, "UTF8");
+            } catch (UnsupportedEncodingException ignored) {
+                // will never happen, because "UTF8" is supported
+            } catch (IllegalArgumentException e) {
+                Log.e(Constants.TAG, "User ID encoding broken", e);
+                // skip this user id
+                return;
+            }
+        }
+        mCurrentUserIds.add(tmp);
+    }
+
+    private void finishEntry() {
+        ImportKeysListEntry entry = mCurrentEntry;
+        mCurrentEntry = null;
+
+        // keys without any (valid) user id are skipped
+        if (entry == null || mCurrentUserIds.isEmpty()) {
+            return;
+        }
+
+        entry.setUserIds(mCurrentUserIds);
+        entry.setPrimaryUserId(mCurrentUserIds.get(0));
+        entry.setKeyserver(mKeyserver);
+
+        mResultCount += 1;
+        boolean continueSearch = mListener.onSearchResult(entry);
+        if (!continueSearch) {
+            mStopped = true;
+        } else if (mResultCount >= mMaxResults) {
+            Log.d(Constants.TAG, "Reached maximum of " + mMaxResults + " results, stopping");
+            mStopped = true;
+        }
+    }
+
+}
@@ -76,6 +76,20 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         this.mParcelableKeyRing = parcelableKeyRing;
     }
 
+    /**
+     * Returns a deep copy of this entry, which is not affected by later merges into this one.
+     */
+    public ImportKeysListEntry copy() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
     public boolean hasSameKeyAs(ImportKeysListEntry other) {
         if (mFingerprintHex == null || other == null) {
             return false;
@@ -23,6 +23,7 @@ import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.Proxy;
 import java.util.List;
 
 public abstract class Keyserver {
@@ -74,9 +75,41 @@ public abstract class Keyserver {
         private static final long serialVersionUID = -507574859137295530L;
     }
 
+    /**
+     * Receives search results one by one, as they become available.
+     */
+    public interface SearchListener {
+        /**
+         * @return true to continue the search, false to cancel it early
+         */
+        boolean onSearchResult(ImportKeysListEntry entry);
+    }
+
     public abstract List<ImportKeysListEntry> search(String query, ParcelableProxy proxy)
             throws QueryFailedException, QueryNeedsRepairException;
 
+    /**
+     * Searches like search(String, ParcelableProxy), but passes each result to the listener as
+     * soon as it is available. Implementations which can parse results incrementally should
+     * override this, by default results are passed on after the complete search finished.
+     */
+    public void search(String query, ParcelableProxy proxy, SearchListener listener)
+            throws QueryFailedException, QueryNeedsRepairException {
+        for (ImportKeysListEntry entry : search(query, proxy)) {
+            if (!listener.onSearchResult(entry)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the time a search on this keyserver may take before it is cancelled. Searches through
+     * a proxy, such as Tor, get more time, since they are expected to be a lot slower.
+     */
+    public long getSearchTimeoutMillis(ParcelableProxy proxy) {
+        return proxy.getProxy() == Proxy.NO_PROXY ? 10 * 1000 : 30 * 1000;
+    }
+
     public abstract String get(String keyIdHex, ParcelableProxy proxy) throws QueryFailedException;
 
     public abstract void add(String armoredKey, ParcelableProxy proxy) throws AddKeyException;
@@ -18,6 +18,9 @@
 package org.sufficientlysecure.keychain.keyimport.processing;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.content.AsyncTaskLoader;
 
@@ -36,10 +39,16 @@ import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.network.orbot.OrbotHelper;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ImportKeysListCloudLoader
         extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
 
+    /** Minimum interval between two deliveries of intermediate search results */
+    private static final long PARTIAL_RESULT_INTERVAL_MILLIS = 200;
+
     private Context mContext;
     private CloudLoaderState mState;
     private ParcelableProxy mParcelableProxy;
@@ -47,6 +56,11 @@ public class ImportKeysListCloudLoader
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile AtomicBoolean mCancelled;
+    /** Written by the search threads of all sources, so only changed by compareAndSet */
+    private final AtomicLong mLastPartialDelivery = new AtomicLong();
+
     /**
      * Searches a keyserver as specified in cloudPrefs, using an explicit proxy if passed
      *
@@ -67,6 +81,9 @@ public class ImportKeysListCloudLoader
 
     @Override
     public AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> loadInBackground() {
+        mCancelled = new AtomicBoolean(false);
+        mLastPartialDelivery.set(0);
+        mEntryList = new ArrayList<>();
         mEntryListWrapper = new AsyncTaskResultWrapper<>(mEntryList, null);
 
         if (mState.mServerQuery == null) {
@@ -82,12 +99,60 @@ public class ImportKeysListCloudLoader
         }
 
         // Now we have all the data needed to build the parcelable key ring for this key
-        for (ImportKeysListEntry e : mEntryList) {
+        setParcelableKeyRings(mEntryList);
+
+        return mEntryListWrapper;
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+
+        // stops the running search, the results found so far are returned
+        AtomicBoolean cancelled = mCancelled;
+        if (cancelled != null) {
+            cancelled.set(true);
+        }
+    }
+
+    private static void setParcelableKeyRings(ArrayList<ImportKeysListEntry> entries) {
+        for (ImportKeysListEntry e : entries) {
             e.setParcelableKeyRing(new ParcelableKeyRing(e.getFingerprintHex(), e.getKeyIdHex(),
                     e.getKeybaseName(), e.getFbUsername()));
         }
+    }
 
-        return mEntryListWrapper;
+    /**
+     * Delivers intermediate search results on the main thread, at most once per
+     * PARTIAL_RESULT_INTERVAL_MILLIS. The final result is delivered as usual once the
+     * search is complete.
+     */
+    private void onPartialResult(List<ImportKeysListEntry> results) {
+        long now = SystemClock.elapsedRealtime();
+        long lastDelivery = mLastPartialDelivery.get();
+        if (now - lastDelivery < PARTIAL_RESULT_INTERVAL_MILLIS
+                || !mLastPartialDelivery.compareAndSet(lastDelivery, now)) {
+            return;
+        }
+
+        // entries in the snapshot may still be merged with later results, so work on copies
+        final ArrayList<ImportKeysListEntry> partialList = new ArrayList<>();
+        for (ImportKeysListEntry entry : results) {
+            partialList.add(entry.copy());
+        }
+        setParcelableKeyRings(partialList);
+
+        final AtomicBoolean cancelled = mCancelled;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isStarted() || cancelled.get()) {
+                    return;
+                }
+                GetKeyResult partialResult = new GetKeyResult(GetKeyResult.RESULT_OK, null);
+                deliverResult(new AsyncTaskResultWrapper<>(partialList, partialResult));
+            }
+        });
     }
 
     @Override
@@ -136,11 +201,22 @@ public class ImportKeysListCloudLoader
             proxy = mParcelableProxy;
         }
 
+        // a fingerprint search must be checked as a whole, so there are no intermediate results
+        CloudSearch.CloudSearchListener listener = enforceFingerprint ? null :
+                new CloudSearch.CloudSearchListener() {
+                    @Override
+                    public void onSearchResultsUpdated(List<ImportKeysListEntry> results) {
+                        onPartialResult(results);
+                    }
+                };
+
         try {
             ArrayList<ImportKeysListEntry> searchResult = CloudSearch.search(
                     mState.mServerQuery,
                     mState.mCloudPrefs,
-                    proxy
+                    proxy,
+                    listener,
+                    mCancelled
             );
 
             mEntryList.clear();
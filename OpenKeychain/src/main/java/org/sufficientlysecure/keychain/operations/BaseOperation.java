@@ -30,6 +30,7 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.provider.ProviderHelper.NotFoundException;
 import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.OperationTimings;
 import org.sufficientlysecure.keychain.util.Passphrase;
 
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -82,6 +83,22 @@ public abstract class BaseOperation <T extends Parcelable> implements Passphrase
     @NonNull
     public abstract OperationResult execute(T input, CryptoInputParcel cryptoInput);
 
+    /** Executes this operation like execute(), and attaches the timings of the
+     * operation and its phases to the returned result.
+     */
+    @NonNull
+    public OperationResult executeTimed(T input, CryptoInputParcel cryptoInput) {
+        OperationTimings timings = OperationTimings.begin(getClass().getSimpleName());
+        OperationResult result;
+        try {
+            result = execute(input, cryptoInput);
+        } finally {
+            timings.finish();
+        }
+        result.setTimings(timings);
+        return result;
+    }
+
     public void updateProgress(@StringRes int message, int current, int total) {
         if (mProgressable != null) {
             mProgressable.setProgress(message, current, total);
@@ -20,6 +20,10 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Date;
 import java.util.Random;
 
 import android.content.Context;
@@ -29,18 +33,25 @@ import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.bcpg.S2K;
 import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
 import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPUtil;
 import org.bouncycastle.openpgp.operator.PBEDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.PGPDataEncryptor;
 import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.CalibrationProfile;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpResources;
 import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
 import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
@@ -51,11 +62,31 @@ import org.sufficientlysecure.keychain.service.BenchmarkInputParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 
 public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
 
+    /** Minimum total time spent on each s2k calibration measurement */
+    private static final long CALIBRATION_MIN_NANOS = 200L * 1000 * 1000;
+    private static final int[] CALIBRATION_HASH_ALGORITHMS = new int[] {
+            HashAlgorithmTags.SHA1, HashAlgorithmTags.SHA256, HashAlgorithmTags.SHA512
+    };
+    /** Message size for the small message benchmark, typical for messages sent through the API */
+    private static final int SMALL_MESSAGE_SIZE = 1024;
+
+    /** Discards all output, for measuring throughput only */
+    private static final OutputStream DISCARD_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) {
+        }
+    };
+
     public BenchmarkOperation(Context context, ProviderHelper providerHelper, Progressable
             progressable) {
         super(context, providerHelper, progressable);
@@ -152,8 +183,145 @@ public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
         log.add(LogType.MSG_BENCH_ENC_TIME_AVG, 1, String.format("%.2f", encryptionTime/1000.0));
         log.add(LogType.MSG_BENCH_DEC_TIME_AVG, 1, String.format("%.2f", decryptionTime/1000.0));
 
+        CalibrationProfile profile;
+        try {
+            benchmarkSmallMessages(log, 1);
+            profile = calibrate(buf, log, 1);
+        } catch (PGPException | IOException e) {
+            Log.e(Constants.TAG, "internal error during calibration", e);
+            log.add(LogType.MSG_INTERNAL_ERROR, 0);
+            return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+        }
+        Preferences.getPreferences(mContext).setCalibrationProfile(profile);
+        log.add(LogType.MSG_BENCH_PROFILE_SAVED, 1);
+
         log.add(LogType.MSG_BENCH_SUCCESS, 0);
         return new BenchmarkResult(BenchmarkResult.RESULT_OK, log);
     }
 
+    /** Measures the throughput of the S2K function used for secret key protection,
+     * as well as the raw throughput of our preferred ciphers and common hashes.
+     */
+    private CalibrationProfile calibrate(byte[] buf, OperationLog log, int indent)
+            throws PGPException, IOException {
+        CalibrationProfile profile = new CalibrationProfile();
+
+        PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
+
+        // s2k, exactly as it is used to protect our secret keys
+        {
+            PBEDataDecryptorFactory decryptorFactory = new JcePBEDataDecryptorFactoryBuilder(
+                    digestCalcProvider).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
+                    "".toCharArray());
+            S2K s2k = new S2K(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO,
+                    new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT);
+
+            long bytes = 0, nanos = 0;
+            do {
+                long startTime = System.nanoTime();
+                decryptorFactory.makeKeyFromPassPhrase(
+                        PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, s2k);
+                nanos += System.nanoTime() - startTime;
+                bytes += CalibrationProfile.s2kCountToBytes(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT);
+            } while (nanos < CALIBRATION_MIN_NANOS);
+
+            long throughput = toBytesPerMilli(bytes, nanos);
+            profile.setS2kThroughput(throughput);
+            log.add(LogType.MSG_BENCH_S2K_THROUGHPUT, indent, Long.toString(throughput));
+        }
+
+        for (int hashAlgorithm : CALIBRATION_HASH_ALGORITHMS) {
+            OutputStream digestOut = digestCalcProvider.get(hashAlgorithm).getOutputStream();
+
+            long startTime = System.nanoTime();
+            digestOut.write(buf);
+            long throughput = toBytesPerMilli(buf.length, System.nanoTime() - startTime);
+
+            profile.setHashThroughput(hashAlgorithm, throughput);
+            log.add(LogType.MSG_BENCH_HASH_THROUGHPUT, indent,
+                    PGPUtil.getDigestName(hashAlgorithm), Long.toString(throughput));
+        }
+
+        SecureRandom random = new SecureRandom();
+        for (int symmetricAlgorithm : PgpSecurityConstants.PREFERRED_SYMMETRIC_ALGORITHMS) {
+            PGPDataEncryptor encryptor = new JcePGPDataEncryptorBuilder(symmetricAlgorithm)
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                    .build(PGPUtil.makeRandomKey(symmetricAlgorithm, random));
+            // discard output, we are only interested in the cipher itself
+            OutputStream cipherOut = encryptor.getOutputStream(DISCARD_OUTPUT);
+
+            long startTime = System.nanoTime();
+            cipherOut.write(buf);
+            long throughput = toBytesPerMilli(buf.length, System.nanoTime() - startTime);
+
+            profile.setCipherThroughput(symmetricAlgorithm, throughput);
+            log.add(LogType.MSG_BENCH_CIPHER_THROUGHPUT, indent,
+                    PGPUtil.getSymmetricCipherName(symmetricAlgorithm), Long.toString(throughput));
+        }
+
+        log.add(LogType.MSG_BENCH_S2K_CALIBRATED, indent,
+                Integer.toString(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_TARGET_MILLIS),
+                Integer.toString(profile.getS2kCountForTargetMillis(
+                        PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_TARGET_MILLIS)));
+
+        return profile;
+    }
+
+    /** Measures how many small messages can be encrypted per second, with encryptor builders
+     * and buffers set up for each message as they used to be, and with the reused ones from
+     * PgpResources. For small messages, this setup dominates the cost of the cipher itself.
+     */
+    private void benchmarkSmallMessages(OperationLog log, int indent) throws PGPException, IOException {
+        int algorithm = PgpSecurityConstants.DEFAULT_SYMMETRIC_ALGORITHM;
+        byte[] message = new byte[SMALL_MESSAGE_SIZE];
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(message);
+
+        long freshCount = 0, freshNanos = 0;
+        do {
+            long startTime = System.nanoTime();
+            JcePGPDataEncryptorBuilder builder = new JcePGPDataEncryptorBuilder(algorithm)
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                    .setWithIntegrityPacket(true);
+            encryptSmallMessage(builder, new byte[PgpResources.BUFFER_SIZE], message, algorithm, random);
+            freshNanos += System.nanoTime() - startTime;
+            freshCount += 1;
+        } while (freshNanos < CALIBRATION_MIN_NANOS);
+
+        long reusedCount = 0, reusedNanos = 0;
+        do {
+            long startTime = System.nanoTime();
+            JcePGPDataEncryptorBuilder builder = PgpResources.getDataEncryptorBuilder(algorithm, true);
+            byte[] buffer = PgpResources.acquireBuffer();
+            try {
+                encryptSmallMessage(builder, buffer, message, algorithm, random);
+            } finally {
+                PgpResources.releaseBuffer(buffer);
+            }
+            reusedNanos += System.nanoTime() - startTime;
+            reusedCount += 1;
+        } while (reusedNanos < CALIBRATION_MIN_NANOS);
+
+        log.add(LogType.MSG_BENCH_SMALL_MESSAGES, indent, Integer.toString(SMALL_MESSAGE_SIZE),
+                Long.toString(freshCount * 1000000000L / freshNanos),
+                Long.toString(reusedCount * 1000000000L / reusedNanos));
+    }
+
+    private static void encryptSmallMessage(JcePGPDataEncryptorBuilder builder, byte[] buffer,
+            byte[] message, int algorithm, SecureRandom random) throws PGPException, IOException {
+        PGPDataEncryptor encryptor = builder.build(PGPUtil.makeRandomKey(algorithm, random));
+        OutputStream cipherOut = encryptor.getOutputStream(DISCARD_OUTPUT);
+
+        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalGen.open(cipherOut, PGPLiteralData.BINARY, "", new Date(), buffer);
+        literalOut.write(message);
+        literalGen.close();
+        cipherOut.close();
+    }
+
+    private static long toBytesPerMilli(long bytes, long nanos) {
+        return Math.max(1, bytes * 1000000L / Math.max(1, nanos));
+    }
+
 }
@@ -33,6 +33,7 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 
@@ -56,7 +57,8 @@ public class ChangeUnlockOperation extends BaseOperation<ChangeUnlockParcel> {
         PgpEditKeyResult modifyResult;
         {
             PgpKeyOperation keyOperations =
-                    new PgpKeyOperation(new ProgressScaler(mProgressable, 0, 70, 100));
+                    new PgpKeyOperation(new ProgressScaler(mProgressable, 0, 70, 100), null,
+                            Preferences.getPreferences(mContext).getCalibrationProfile());
 
             try {
                     log.add(OperationResult.LogType.MSG_ED_FETCHING, 1,
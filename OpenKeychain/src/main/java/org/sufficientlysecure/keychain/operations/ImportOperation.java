@@ -32,6 +32,7 @@ import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogLevel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
@@ -46,6 +47,7 @@ import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.util.IteratorWithSize;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OperationTimings;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import org.sufficientlysecure.keychain.util.Preferences;
@@ -83,6 +85,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
     private static final int MAX_THREADS = 10;
+    /** Number of keys above which the debug entries of an import are not captured in its log */
+    private static final int LARGE_IMPORT_KEY_COUNT = 100;
 
     public static final String CACHE_FILE_NAME = "key_import.pcl";
 
@@ -204,10 +208,10 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                             if (entry.mExpectedFingerprint != null) {
                                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
                                         entry.mExpectedFingerprint.substring(24));
-                                data = keyServer.get("0x" + entry.mExpectedFingerprint, proxy).getBytes();
+                                data = fetchKey(keyServer, "0x" + entry.mExpectedFingerprint, proxy);
                             } else {
                                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
-                                data = keyServer.get(entry.mKeyIdHex, proxy).getBytes();
+                                data = fetchKey(keyServer, entry.mKeyIdHex, proxy);
                             }
                             key = UncachedKeyRing.decodeFromData(data);
                             if (key != null) {
@@ -230,7 +234,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
                         try {
                             log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
-                            byte[] data = keybaseServer.get(entry.mKeybaseName, proxy).getBytes();
+                            byte[] data = fetchKey(keybaseServer, entry.mKeybaseName, proxy);
                             UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
 
                             if (keybaseKey != null) {
@@ -268,7 +272,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
                         try {
                             log.add(LogType.MSG_IMPORT_FETCH_FACEBOOK, 2, entry.mFbUsername);
-                            byte[] data = facebookServer.get(entry.mFbUsername, proxy).getBytes();
+                            byte[] data = fetchKey(facebookServer, entry.mFbUsername, proxy);
                             UncachedKeyRing facebookKey = UncachedKeyRing.decodeFromData(data);
 
                             if (facebookKey != null) {
@@ -427,6 +431,18 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         return result;
     }
 
+    private static byte[] fetchKey(Keyserver keyserver, String id, ParcelableProxy proxy)
+            throws Keyserver.QueryFailedException {
+        OperationTimings.Phase phase = OperationTimings.startPhase(OperationTimings.PHASE_KEYSERVER_FETCH);
+        byte[] data = null;
+        try {
+            data = keyserver.get(id, proxy).getBytes();
+            return data;
+        } finally {
+            phase.end(data != null ? data.length : 0);
+        }
+    }
+
     @NonNull
     @Override
     public ImportKeyResult execute(ImportKeyringParcel importInput, CryptoInputParcel cryptoInput) {
@@ -474,6 +490,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                 new LinkedBlockingQueue<Runnable>());
         ExecutorCompletionService<ImportKeyResult> importCompletionService =
                 new ExecutorCompletionService<>(importExecutor);
+        final OperationTimings timings = OperationTimings.getCurrent();
 
         while (keyListIterator.hasNext()) { // submit all key rings to be imported
 
@@ -492,8 +509,13 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                     list.add(pkRing);
                     ProgressScaler ignoreProgressable = new ProgressScaler();
 
-                    return serialKeyRingImport(list.iterator(), 1, keyServer, ignoreProgressable,
-                            proxy, skipSave);
+                    OperationTimings previous = OperationTimings.attach(timings);
+                    try {
+                        return serialKeyRingImport(list.iterator(), 1, keyServer, ignoreProgressable,
+                                proxy, skipSave);
+                    } finally {
+                        OperationTimings.detach(previous);
+                    }
                 }
             };
 
@@ -548,6 +570,11 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         public KeyImportAccumulator(int totalKeys, Progressable externalProgressable) {
             mTotalKeys = totalKeys;
             mProgressable = externalProgressable;
+            if (totalKeys > LARGE_IMPORT_KEY_COUNT) {
+                // debug entries of thousands of keys would only bloat the log
+                mImportLog.setMinimumLevel(LogLevel.INFO);
+                mImportLog.setSpillToDisk(true);
+            }
             if (mProgressable != null) {
                 mProgressable.setProgress(0, totalKeys);
             }
@@ -625,6 +652,8 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                 masterKeyIds[i] = mImportedMasterKeyIds.get(i);
             }
 
+            // the result is read on the main thread, it must not touch the disk there
+            mImportLog.unspill();
             ImportKeyResult result = new ImportKeyResult(mResultType, mImportLog, mNewKeys,
                     mUpdatedKeys, mBadKeys, mSecret, masterKeyIds);
 
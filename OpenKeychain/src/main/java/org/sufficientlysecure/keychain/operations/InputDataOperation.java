@@ -24,10 +24,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.ClipDescription;
 import android.content.Context;
 import android.net.Uri;
+import android.os.Parcel;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
@@ -54,7 +62,12 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.SecurityTokenDecryptOperationsBuilder;
 import org.sufficientlysecure.keychain.util.CharsetVerifier;
+import org.sufficientlysecure.keychain.util.OperationTimings;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 
 /** This operation deals with input data, trying to determine its type as it goes.
@@ -66,15 +79,36 @@ import org.sufficientlysecure.keychain.util.CharsetVerifier;
  * - encrypted multipart/signed mime data
  * - multipart/signed mime data (WIP)
  *
+ * Batches of inputs are processed concurrently, see executeBatch.
+ *
  */
 public class InputDataOperation extends BaseOperation<InputDataParcel> {
 
+    /** Maximum number of inputs of a batch processed at the same time */
+    private static final int MAX_BATCH_THREADS = 4;
+
     private final byte[] buf = new byte[256];
 
+    private BatchResultListener mBatchResultListener;
+
+    public interface BatchResultListener {
+        /** Called from a worker thread for each input of a batch, as soon as it is done. */
+        void onBatchResult(Uri inputUri, InputDataResult result);
+    }
+
     public InputDataOperation(Context context, ProviderHelper providerHelper, Progressable progressable) {
         super(context, providerHelper, progressable);
     }
 
+    public InputDataOperation(Context context, ProviderHelper providerHelper,
+            Progressable progressable, AtomicBoolean cancelled) {
+        super(context, providerHelper, progressable, cancelled);
+    }
+
+    public void setBatchResultListener(BatchResultListener batchResultListener) {
+        mBatchResultListener = batchResultListener;
+    }
+
     Uri mSignedDataUri;
     DecryptVerifyResult mSignedDataResult;
 
@@ -82,6 +116,10 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
     @Override
     public InputDataResult execute(InputDataParcel input, final CryptoInputParcel cryptoInput) {
 
+        if (input.getBatchInputUris() != null) {
+            return executeBatch(input, cryptoInput);
+        }
+
         final OperationLog log = new OperationLog();
 
         log.add(LogType.MSG_DATA, 0);
@@ -440,4 +478,209 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
 
     }
 
+    /** Processes all inputs of a batch, reporting the result for each input to the
+     * BatchResultListener as soon as it is available.
+     *
+     * The first input is processed on its own, and reports its progress as the first part of
+     * the batch's progress, the other inputs count as they finish. If it requires input such
+     * as a passphrase, the whole batch is returned as pending, and the
+     * batch is restarted once with the supplied crypto input, which is then used for all
+     * inputs. The remaining inputs are processed concurrently, each with its own operation
+     * instance since operations keep per-input state, and its own copy of the crypto input. Inputs which require different crypto
+     * input than the first one are reported as pending individually, to be processed on
+     * their own. If the first input needs the security token, the session keys of all inputs
+     * are requested at once, see collectSecurityTokenDecryptInput.
+     *
+     * The returned result only summarizes the batch.
+     */
+    @NonNull
+    private InputDataResult executeBatch(final InputDataParcel input, final CryptoInputParcel cryptoInput) {
+
+        OperationLog log = new OperationLog();
+
+        final ArrayList<Uri> inputUris = input.getBatchInputUris();
+        log.add(LogType.MSG_DATA_BATCH, 0, inputUris.size());
+
+        int total = inputUris.size();
+        ProgressScaler firstProgress = new ProgressScaler(mProgressable, 0, 100 / total, 100);
+        InputDataResult firstResult = executeBatchItem(input, inputUris.get(0), cryptoInput, firstProgress);
+        if (firstResult.isPending()) {
+            RequiredInputParcel requiredInput = firstResult.getRequiredInputParcel();
+            if (requiredInput != null && inputUris.size() > 1
+                    && requiredInput.mType == RequiredInputType.SECURITY_TOKEN_DECRYPT) {
+                return collectSecurityTokenDecryptInput(input, cryptoInput, firstResult, log);
+            }
+            return new InputDataResult(log, firstResult);
+        }
+        deliverBatchResult(inputUris.get(0), firstResult);
+
+        int failed = firstResult.success() ? 0 : 1;
+
+        final OperationTimings timings = OperationTimings.getCurrent();
+        ExecutorService executor = newBatchExecutor();
+        try {
+            CompletionService<Boolean> completionService = new ExecutorCompletionService<>(executor);
+            for (int i = 1; i < total; i++) {
+                final Uri inputUri = inputUris.get(i);
+                final CryptoInputParcel itemCryptoInput = copyCryptoInput(cryptoInput);
+                completionService.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        if (checkCancelled()) {
+                            return false;
+                        }
+                        InputDataResult result = executeBatchItem(input, inputUri, itemCryptoInput, timings);
+                        deliverBatchResult(inputUri, result);
+                        return result.success();
+                    }
+                });
+            }
+
+            for (int i = 1; i < total; i++) {
+                if (!completionService.take().get()) {
+                    failed += 1;
+                }
+                if (mProgressable != null) {
+                    mProgressable.setProgress((i + 1) * 100 / total, 100);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+            return new InputDataResult(InputDataResult.RESULT_CANCELLED, log);
+        } catch (ExecutionException e) {
+            // processing of a single input doesn't throw, so this is a bug
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (checkCancelled()) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+            return new InputDataResult(InputDataResult.RESULT_CANCELLED, log);
+        }
+
+        log.add(LogType.MSG_DATA_BATCH_OK, 1, total, failed);
+        return new InputDataResult(InputDataResult.RESULT_OK, log);
+
+    }
+
+    /** Runs the remaining inputs of a batch whose first input needs the security token, up to
+     * the point where they need it as well. The returned pending result asks for the session
+     * keys of all of them, so they are decrypted in a single token session, and the batch is
+     * restarted with all session keys in the crypto input.
+     *
+     * Inputs which don't need the token are finished and reported right away. Inputs which
+     * need other input are not reported, and come up again when the batch is restarted.
+     */
+    @NonNull
+    private InputDataResult collectSecurityTokenDecryptInput(final InputDataParcel input,
+            final CryptoInputParcel cryptoInput, InputDataResult firstResult, OperationLog log) {
+
+        RequiredInputParcel firstRequiredInput = firstResult.getRequiredInputParcel();
+        SecurityTokenDecryptOperationsBuilder builder = new SecurityTokenDecryptOperationsBuilder(
+                firstRequiredInput.getMasterKeyId(), firstRequiredInput.getSubKeyId());
+        builder.addAll(firstRequiredInput);
+
+        final ArrayList<Uri> inputUris = input.getBatchInputUris();
+        int total = inputUris.size();
+        int collected = 1;
+
+        final OperationTimings timings = OperationTimings.getCurrent();
+        ExecutorService executor = newBatchExecutor();
+        try {
+            CompletionService<RequiredInputParcel> completionService = new ExecutorCompletionService<>(executor);
+            for (int i = 1; i < total; i++) {
+                final Uri inputUri = inputUris.get(i);
+                final CryptoInputParcel itemCryptoInput = copyCryptoInput(cryptoInput);
+                completionService.submit(new Callable<RequiredInputParcel>() {
+                    @Override
+                    public RequiredInputParcel call() {
+                        if (checkCancelled()) {
+                            return null;
+                        }
+                        InputDataResult result = executeBatchItem(input, inputUri, itemCryptoInput, timings);
+                        if (result.isPending()) {
+                            return result.getRequiredInputParcel();
+                        }
+                        deliverBatchResult(inputUri, result);
+                        return null;
+                    }
+                });
+            }
+
+            for (int i = 1; i < total; i++) {
+                RequiredInputParcel requiredInput = completionService.take().get();
+                if (requiredInput != null && builder.canAdd(requiredInput)) {
+                    builder.addAll(requiredInput);
+                    collected += 1;
+                }
+            }
+        } catch (InterruptedException e) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+            return new InputDataResult(InputDataResult.RESULT_CANCELLED, log);
+        } catch (ExecutionException e) {
+            // processing of a single input doesn't throw, so this is a bug
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (checkCancelled()) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+            return new InputDataResult(InputDataResult.RESULT_CANCELLED, log);
+        }
+
+        log.add(LogType.MSG_DATA_BATCH_SECURITY_TOKEN, 1, collected);
+        return new InputDataResult(log, builder.build(), firstResult.mCryptoInputParcel);
+    }
+
+    /** Decryption adds to the crypto data of its crypto input, and to the session key cache of
+     * its passphrase, neither of which is thread safe. So each input of a batch gets its own
+     * copy, made after the first input is done so session keys cached by it are included.
+     */
+    private static CryptoInputParcel copyCryptoInput(CryptoInputParcel cryptoInput) {
+        if (cryptoInput == null) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            cryptoInput.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return CryptoInputParcel.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static ExecutorService newBatchExecutor() {
+        int threads = Math.min(MAX_BATCH_THREADS,
+                Math.max(1, Runtime.getRuntime().availableProcessors()));
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    private InputDataResult executeBatchItem(InputDataParcel batchInput, Uri inputUri,
+            CryptoInputParcel cryptoInput, Progressable progressable) {
+        // ProviderHelper keeps a per-operation log, so it can't be shared either
+        InputDataOperation op = new InputDataOperation(
+                mContext, new ProviderHelper(mContext), progressable, mCancelled);
+        return op.execute(batchInput.forBatchItem(inputUri), cryptoInput);
+    }
+
+    /** Processes an input of the batch on a worker thread, as part of the batch's timings. */
+    private InputDataResult executeBatchItem(InputDataParcel batchInput, Uri inputUri,
+            CryptoInputParcel cryptoInput, OperationTimings timings) {
+        OperationTimings previous = OperationTimings.attach(timings);
+        try {
+            return executeBatchItem(batchInput, inputUri, cryptoInput, (Progressable) null);
+        } finally {
+            OperationTimings.detach(previous);
+        }
+    }
+
+    private void deliverBatchResult(Uri inputUri, InputDataResult result) {
+        if (mBatchResultListener != null) {
+            mBatchResultListener.onBatchResult(inputUri, result);
+        }
+    }
+
 }
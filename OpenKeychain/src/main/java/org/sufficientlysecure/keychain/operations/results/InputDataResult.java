@@ -25,6 +25,8 @@ import android.os.Parcel;
 import android.support.annotation.NonNull;
 
 import org.openintents.openpgp.OpenPgpMetadata;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 
 
 public class InputDataResult extends InputPendingResult {
@@ -40,6 +42,14 @@ public class InputDataResult extends InputPendingResult {
         mMetadata = null;
     }
 
+    public InputDataResult(@NonNull OperationLog log, RequiredInputParcel requiredInput,
+            CryptoInputParcel cryptoInputParcel) {
+        super(log, requiredInput, cryptoInputParcel);
+        mOutputUris = null;
+        mDecryptVerifyResult = null;
+        mMetadata = null;
+    }
+
     public InputDataResult(int result, OperationLog log) {
         super(result, log);
         mOutputUris = null;
@@ -29,18 +29,44 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.ui.LogDisplayActivity;
 import org.sufficientlysecure.keychain.ui.LogDisplayFragment;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.ActionListener;
 import org.sufficientlysecure.keychain.ui.util.Notify.Showable;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
-import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OperationTimings;
 import org.sufficientlysecure.keychain.util.ParcelableCache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
 
 /**
  * Represent the result of an operation.
@@ -81,6 +107,9 @@ public abstract class OperationResult implements Parcelable {
     /// A list of log entries tied to the operation result.
     protected OperationLog mLog;
 
+    /// Timings of the operation and its phases, if it was executed with timing enabled.
+    private OperationTimings mTimings;
+
     public OperationResult(int result, OperationLog log) {
         mResult = result;
         mLog = log;
@@ -90,6 +119,7 @@ public abstract class OperationResult implements Parcelable {
         mResult = source.readInt();
         // get log out of cache based on UUID from source
         mLog = logCache.readFromParcelAndGetFromCache(source);
+        mTimings = source.readParcelable(OperationTimings.class.getClassLoader());
     }
 
     public int getResult() {
@@ -104,6 +134,14 @@ public abstract class OperationResult implements Parcelable {
         return (mResult & RESULT_CANCELLED) == RESULT_CANCELLED;
     }
 
+    public OperationTimings getTimings() {
+        return mTimings;
+    }
+
+    public void setTimings(OperationTimings timings) {
+        mTimings = timings;
+    }
+
     public OperationLog getLog() {
         SubLogEntryParcel singleSubLog = mLog.getSubResultIfSingle();
         if (singleSubLog != null) {
@@ -123,7 +161,6 @@ public abstract class OperationResult implements Parcelable {
             mType = type;
             mParameters = parameters;
             mIndent = indent;
-            Log.v(Constants.TAG, "log: " + this);
         }
 
         /** Clones this LogEntryParcel, adding extra indent. Note that the parameter array is NOT cloned! */
@@ -206,8 +243,6 @@ public abstract class OperationResult implements Parcelable {
         public SubLogEntryParcel(@NonNull OperationResult subResult, LogType type, int indent, Object... parameters) {
             super(type, indent, parameters);
             mSubResult = subResult;
-
-            Log.v(Constants.TAG, "log: " + this);
         }
 
         public SubLogEntryParcel(Parcel source) {
@@ -336,13 +371,12 @@ public abstract class OperationResult implements Parcelable {
         // import public
         MSG_IP(LogLevel.START, R.string.msg_ip),
         MSG_IP_APPLY_BATCH (LogLevel.DEBUG, R.string.msg_ip_apply_batch),
+        MSG_IP_APPLY_REWRITE (LogLevel.WARN, R.string.msg_ip_apply_rewrite),
         MSG_IP_BAD_TYPE_SECRET (LogLevel.WARN, R.string.msg_ip_bad_type_secret),
-        MSG_IP_DELETE_OLD_FAIL (LogLevel.DEBUG, R.string.msg_ip_delete_old_fail),
-        MSG_IP_DELETE_OLD_OK (LogLevel.DEBUG, R.string.msg_ip_delete_old_ok),
+        MSG_IP_DIFF (LogLevel.DEBUG, R.string.msg_ip_diff),
         MSG_IP_ENCODE_FAIL (LogLevel.DEBUG, R.string.msg_ip_encode_fail),
         MSG_IP_ERROR_IO_EXC (LogLevel.ERROR, R.string.msg_ip_error_io_exc),
         MSG_IP_ERROR_OP_EXC (LogLevel.ERROR, R.string.msg_ip_error_op_exc),
-        MSG_IP_ERROR_REMOTE_EX (LogLevel.ERROR, R.string.msg_ip_error_remote_ex),
         MSG_IP_FINGERPRINT_ERROR (LogLevel.ERROR, R.string.msg_ip_fingerprint_error),
         MSG_IP_FINGERPRINT_OK (LogLevel.INFO, R.string.msg_ip_fingerprint_ok),
         MSG_IP_INSERT_KEYRING (LogLevel.DEBUG, R.string.msg_ip_insert_keyring),
@@ -723,6 +757,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_ASYMMETRIC (LogLevel.INFO, R.string.msg_pse_asymmetric),
         MSG_PSE_COMPRESSING (LogLevel.DEBUG, R.string.msg_pse_compressing),
         MSG_PSE_ENCRYPTING (LogLevel.DEBUG, R.string.msg_pse_encrypting),
+        MSG_PSE_ESTIMATE (LogLevel.DEBUG, R.string.msg_pse_estimate),
         MSG_PSE_ERROR_BAD_PASSPHRASE (LogLevel.ERROR, R.string.msg_pse_error_bad_passphrase),
         MSG_PSE_ERROR_IO (LogLevel.ERROR, R.string.msg_pse_error_io),
         MSG_PSE_ERROR_SIGN_KEY(LogLevel.ERROR, R.string.msg_pse_error_sign_key),
@@ -739,6 +774,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_OK (LogLevel.OK, R.string.msg_pse_ok),
         MSG_PSE_PENDING_NFC (LogLevel.INFO, R.string.msg_pse_pending_nfc),
         MSG_PSE_PENDING_PASSPHRASE (LogLevel.INFO, R.string.msg_pse_pending_passphrase),
+        MSG_PSE_PIPELINED (LogLevel.DEBUG, R.string.msg_pse_pipelined),
         MSG_PSE (LogLevel.DEBUG, R.string.msg_pse),
         MSG_PSE_SIGNING (LogLevel.DEBUG, R.string.msg_pse_signing),
         MSG_PSE_SIGNING_CLEARTEXT (LogLevel.DEBUG, R.string.msg_pse_signing_cleartext),
@@ -851,6 +887,9 @@ public abstract class OperationResult implements Parcelable {
 
         // InputData Operation
         MSG_DATA (LogLevel.START, R.string.msg_data),
+        MSG_DATA_BATCH (LogLevel.START, R.string.msg_data_batch),
+        MSG_DATA_BATCH_OK (LogLevel.OK, R.string.msg_data_batch_ok),
+        MSG_DATA_BATCH_SECURITY_TOKEN (LogLevel.INFO, R.string.msg_data_batch_security_token),
         MSG_DATA_OPENPGP (LogLevel.DEBUG, R.string.msg_data_openpgp),
         MSG_DATA_ERROR_IO (LogLevel.ERROR, R.string.msg_data_error_io),
         MSG_DATA_DETACHED (LogLevel.INFO, R.string.msg_data_detached),
@@ -904,6 +943,12 @@ public abstract class OperationResult implements Parcelable {
         MSG_BENCH_DEC_TIME_AVG (LogLevel.INFO, R.string.msg_bench_enc_time_avg),
         MSG_BENCH_S2K_FOR_IT (LogLevel.DEBUG, R.string.msg_bench_s2k_for_it),
         MSG_BENCH_S2K_100MS_ITS (LogLevel.INFO, R.string.msg_bench_s2k_100ms_its),
+        MSG_BENCH_S2K_THROUGHPUT (LogLevel.DEBUG, R.string.msg_bench_s2k_throughput),
+        MSG_BENCH_HASH_THROUGHPUT (LogLevel.DEBUG, R.string.msg_bench_hash_throughput),
+        MSG_BENCH_CIPHER_THROUGHPUT (LogLevel.DEBUG, R.string.msg_bench_cipher_throughput),
+        MSG_BENCH_S2K_CALIBRATED (LogLevel.INFO, R.string.msg_bench_s2k_calibrated),
+        MSG_BENCH_SMALL_MESSAGES (LogLevel.INFO, R.string.msg_bench_small_messages),
+        MSG_BENCH_PROFILE_SAVED (LogLevel.INFO, R.string.msg_bench_profile_saved),
         MSG_BENCH_SUCCESS (LogLevel.OK, R.string.msg_bench_success),
 
         ;
@@ -944,35 +989,197 @@ public abstract class OperationResult implements Parcelable {
         dest.writeInt(mResult);
         // cache log and write UUID to dest
         logCache.cacheAndWriteToParcel(mLog, dest);
+        dest.writeParcelable(mTimings, 0);
+    }
+
+    /** A key id as log parameter, which is only formatted as hex string when the log is displayed. */
+    public static class LogKeyId implements Serializable {
+        private static final long serialVersionUID = 6043875187618352731L;
+
+        private final long mKeyId;
+
+        public LogKeyId(long keyId) {
+            mKeyId = keyId;
+        }
+
+        @Override
+        public String toString() {
+            return KeyFormattingUtils.convertKeyIdToHex(mKeyId);
+        }
     }
 
+    /** A log of an operation.
+     *
+     * Entries are stored in compact form, in chunks of primitive arrays rather
+     * than as one LogEntryParcel object each. LogEntryParcel objects are only
+     * created when entries are read. Entries below the minimum LogLevel of the
+     * log are dropped when they are added.
+     *
+     * Very large logs, for example of an import of thousands of keys, can be
+     * allowed to spill with setSpillToDisk(). Full chunks beyond
+     * MAX_IN_MEMORY_CHUNKS are then written to files in the spill directory,
+     * if one was set with setSpillDirectory(), and loaded back one at a time
+     * when they are read. Before such a log leaves its operation, unspill()
+     * must be called to load it back into memory, since results are shown in
+     * the UI without being parcelled, and must not be read from disk on the
+     * main thread.
+     *
+     * Spill files are encrypted with a key that is only kept in memory, so
+     * they can't be read once the process is gone. They are deleted when the
+     * log is cleared or garbage collected, and at the latest when the spill
+     * directory is set again on the next start.
+     */
     public static class OperationLog implements Iterable<LogEntryParcel> {
 
-        private final List<LogEntryParcel> mParcels = new ArrayList<>();
+        private static final int CHUNK_SIZE = 512;
+        private static final int MAX_IN_MEMORY_CHUNKS = 32;
+
+        private static File sSpillDirectory;
+
+        private final ArrayList<LogChunk> mChunks = new ArrayList<>();
+        private int mSize;
+        private int mInMemoryChunks;
+        private LogLevel mMinimumLevel = LogLevel.DEBUG;
+        private boolean mSpillToDisk;
+
+        /** Sets the directory to spill large logs to, and removes stale files left there. */
+        public static void setSpillDirectory(File spillDirectory) {
+            if (spillDirectory != null && (spillDirectory.isDirectory() || spillDirectory.mkdirs())) {
+                File[] staleFiles = spillDirectory.listFiles();
+                if (staleFiles != null) {
+                    for (File staleFile : staleFiles) {
+                        // noinspection ResultOfMethodCallIgnored
+                        staleFile.delete();
+                    }
+                }
+                sSpillDirectory = spillDirectory;
+            } else {
+                sSpillDirectory = null;
+            }
+        }
+
+        /** Allows full chunks of this log to be spilled to disk, see class description. */
+        public void setSpillToDisk(boolean spillToDisk) {
+            mSpillToDisk = spillToDisk;
+        }
+
+        /** Loads all spilled chunks back into memory, deletes their files, and
+         * stops spilling. Reading this log never touches the disk afterwards.
+         */
+        public void unspill() {
+            mSpillToDisk = false;
+            for (LogChunk chunk : mChunks) {
+                chunk.load();
+                chunk.delete();
+            }
+            mInMemoryChunks = mChunks.size();
+        }
+
+        /** Entries with a level below the minimum level are not captured. This
+         * only applies to DEBUG, INFO and WARN, entries which mark the start or
+         * the outcome of an operation are always captured.
+         */
+        public void setMinimumLevel(LogLevel minimumLevel) {
+            mMinimumLevel = minimumLevel;
+        }
 
         /// Simple convenience method
         public void add(LogType type, int indent, Object... parameters) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, parameters));
+            addEntry(type, indent, parameters, null);
         }
 
         public void add(LogType type, int indent) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, (Object[]) null));
+            addEntry(type, indent, null, null);
         }
 
         public void add(OperationResult subResult, int indent) {
             OperationLog subLog = subResult.getLog();
-            mParcels.add(new SubLogEntryParcel(subResult, subLog.getFirst().mType, indent, subLog.getFirst().mParameters));
+            LogEntryParcel first = subLog.getFirst();
+            addEntry(first.mType, indent, first.mParameters, subResult);
         }
 
         public void addByMerge(OperationResult subResult, int indent) {
             OperationLog subLog = subResult.getLog();
             for (LogEntryParcel entry : subLog) {
-                mParcels.add(new LogEntryParcel(entry, indent));
+                addEntry(entry, indent);
+            }
+        }
+
+        private void addEntry(LogEntryParcel entry, int extraIndent) {
+            OperationResult subResult = entry instanceof SubLogEntryParcel
+                    ? ((SubLogEntryParcel) entry).getSubResult() : null;
+            addEntry(entry.mType, entry.mIndent + extraIndent, entry.mParameters, subResult);
+        }
+
+        private void addEntry(LogType type, int indent, Object[] parameters, OperationResult subResult) {
+            if (subResult == null && type.mLevel.ordinal() < mMinimumLevel.ordinal()
+                    && type.mLevel.ordinal() <= LogLevel.WARN.ordinal()) {
+                return;
+            }
+            if (Constants.DEBUG) {
+                Log.v(Constants.TAG, "log: " + type + " " + Arrays.toString(parameters));
+            }
+
+            LogChunk chunk = mChunks.isEmpty() ? null : mChunks.get(mChunks.size() - 1);
+            if (chunk == null || chunk.isFull()) {
+                chunk = new LogChunk();
+                mChunks.add(chunk);
+                mInMemoryChunks += 1;
+                spillIfNecessary();
             }
+            chunk.add(type, indent, parameters, subResult);
+            mSize += 1;
+        }
+
+        private void spillIfNecessary() {
+            if (!mSpillToDisk || sSpillDirectory == null || mInMemoryChunks <= MAX_IN_MEMORY_CHUNKS) {
+                return;
+            }
+            LogChunk.deleteUnreachableSpillFiles();
+            // the last chunk is still being written to, the first ones are read most often
+            for (int i = 1; i < mChunks.size() - 1 && mInMemoryChunks > MAX_IN_MEMORY_CHUNKS; i++) {
+                LogChunk chunk = mChunks.get(i);
+                if (chunk.isInMemory() && chunk.spill(sSpillDirectory)) {
+                    mInMemoryChunks -= 1;
+                }
+            }
+        }
+
+        private LogChunk getChunk(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+            }
+            LogChunk chunk = mChunks.get(index / CHUNK_SIZE);
+            if (!chunk.isInMemory()) {
+                // only keep a single spilled chunk loaded at a time
+                for (LogChunk other : mChunks) {
+                    if (other != chunk) {
+                        other.unload();
+                    }
+                }
+                chunk.load();
+            }
+            return chunk;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public LogEntryParcel get(int index) {
+            return getChunk(index).get(index % CHUNK_SIZE);
+        }
+
+        public LogType getType(int index) {
+            return getChunk(index).getType(index % CHUNK_SIZE);
+        }
+
+        public int getIndent(int index) {
+            return getChunk(index).getIndent(index % CHUNK_SIZE);
         }
 
         public SubLogEntryParcel getSubResultIfSingle() {
-            if (mParcels.size() != 1) {
+            if (mSize != 1) {
                 return null;
             }
             LogEntryParcel first = getFirst();
@@ -983,12 +1190,17 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public void clear() {
-            mParcels.clear();
+            for (LogChunk chunk : mChunks) {
+                chunk.delete();
+            }
+            mChunks.clear();
+            mSize = 0;
+            mInMemoryChunks = 0;
         }
 
         public boolean containsType(LogType type) {
-            for(LogEntryParcel entry : new IterableIterator<>(mParcels.iterator())) {
-                if (entry.mType == type) {
+            for (int i = 0; i < mSize; i++) {
+                if (getType(i) == type) {
                     return true;
                 }
             }
@@ -996,8 +1208,9 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public boolean containsWarnings() {
-            for(LogEntryParcel entry : new IterableIterator<>(mParcels.iterator())) {
-                if (entry.mType.mLevel == LogLevel.WARN || entry.mType.mLevel == LogLevel.ERROR) {
+            for (int i = 0; i < mSize; i++) {
+                LogLevel level = getType(i).mLevel;
+                if (level == LogLevel.WARN || level == LogLevel.ERROR) {
                     return true;
                 }
             }
@@ -1005,29 +1218,42 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public void addAll(List<LogEntryParcel> parcels) {
-            mParcels.addAll(parcels);
+            for (LogEntryParcel entry : parcels) {
+                addEntry(entry, 0);
+            }
         }
 
+        /** Returns a read-only view of this log. Entries are created on access. */
         public List<LogEntryParcel> toList() {
-            return mParcels;
+            return new AbstractList<LogEntryParcel>() {
+                @Override
+                public LogEntryParcel get(int location) {
+                    return OperationLog.this.get(location);
+                }
+
+                @Override
+                public int size() {
+                    return mSize;
+                }
+            };
         }
 
         public boolean isEmpty() {
-            return mParcels.isEmpty();
+            return mSize == 0;
         }
 
         public LogEntryParcel getFirst() {
-            if (mParcels.isEmpty()) {
+            if (mSize == 0) {
                 return null;
             }
-            return mParcels.get(0);
+            return get(0);
         }
 
         public LogEntryParcel getLast() {
-            if (mParcels.isEmpty()) {
+            if (mSize == 0) {
                 return null;
             }
-            LogEntryParcel last = mParcels.get(mParcels.size() -1);
+            LogEntryParcel last = get(mSize - 1);
             if (last instanceof SubLogEntryParcel) {
                 return ((SubLogEntryParcel) last).getSubResult().getLog().getLast();
             }
@@ -1036,7 +1262,7 @@ public abstract class OperationResult implements Parcelable {
 
         @Override
         public Iterator<LogEntryParcel> iterator() {
-            return mParcels.iterator();
+            return toList().iterator();
         }
 
         /**
@@ -1059,4 +1285,191 @@ public abstract class OperationResult implements Parcelable {
 
     }
 
+    /** A chunk of log entries. Type and indent of each entry are packed into a single int. */
+    private static class LogChunk {
+        private static final LogType[] LOG_TYPES = LogType.values();
+
+        private static final String SPILL_CIPHER = "AES/CTR/NoPadding";
+        private static final int SPILL_IV_LENGTH = 16;
+        /** Spill files are only readable for as long as this process lives. */
+        private static SecretKey sSpillKey;
+
+        /** Spill files of chunks that are garbage collected without being deleted end up here. */
+        private static final ReferenceQueue<LogChunk> sCollectedChunks = new ReferenceQueue<>();
+        private static final Set<SpillFileReference> sSpillFileReferences =
+                Collections.synchronizedSet(new HashSet<SpillFileReference>());
+
+        private int[] mPacked = new int[OperationLog.CHUNK_SIZE];
+        private Object[][] mParameters = new Object[OperationLog.CHUNK_SIZE][];
+        // sub results are rare, and are never spilled
+        private OperationResult[] mSubResults;
+        private int mCount;
+        private File mSpillFile;
+        private SpillFileReference mSpillFileReference;
+
+        boolean isFull() {
+            return mCount == OperationLog.CHUNK_SIZE;
+        }
+
+        boolean isInMemory() {
+            return mPacked != null;
+        }
+
+        void add(LogType type, int indent, Object[] parameters, OperationResult subResult) {
+            mPacked[mCount] = (type.ordinal() << 16) | (indent & 0xffff);
+            mParameters[mCount] = parameters;
+            if (subResult != null) {
+                if (mSubResults == null) {
+                    mSubResults = new OperationResult[OperationLog.CHUNK_SIZE];
+                }
+                mSubResults[mCount] = subResult;
+            }
+            mCount += 1;
+        }
+
+        LogType getType(int index) {
+            return LOG_TYPES[mPacked[index] >>> 16];
+        }
+
+        int getIndent(int index) {
+            return mPacked[index] & 0xffff;
+        }
+
+        LogEntryParcel get(int index) {
+            OperationResult subResult = mSubResults != null ? mSubResults[index] : null;
+            if (subResult != null) {
+                return new SubLogEntryParcel(subResult, getType(index), getIndent(index), mParameters[index]);
+            }
+            return new LogEntryParcel(getType(index), getIndent(index), mParameters[index]);
+        }
+
+        boolean spill(File spillDirectory) {
+            File spillFile = null;
+            ObjectOutputStream out = null;
+            try {
+                spillFile = File.createTempFile("log", ".chunk", spillDirectory);
+                byte[] iv = new byte[SPILL_IV_LENGTH];
+                new SecureRandom().nextBytes(iv);
+                Cipher cipher = Cipher.getInstance(SPILL_CIPHER);
+                cipher.init(Cipher.ENCRYPT_MODE, getSpillKey(), new IvParameterSpec(iv));
+
+                FileOutputStream fileOut = new FileOutputStream(spillFile);
+                fileOut.write(iv);
+                out = new ObjectOutputStream(new BufferedOutputStream(new CipherOutputStream(fileOut, cipher)));
+                out.writeObject(mPacked);
+                out.writeObject(mParameters);
+                out.close();
+                out = null;
+
+                mSpillFile = spillFile;
+                mSpillFileReference = new SpillFileReference(this, spillFile);
+                sSpillFileReferences.add(mSpillFileReference);
+                unload();
+                return true;
+            } catch (GeneralSecurityException e) {
+                Log.e(Constants.TAG, "could not encrypt log chunk, keeping it in memory", e);
+                if (spillFile != null) {
+                    // noinspection ResultOfMethodCallIgnored
+                    spillFile.delete();
+                }
+                return false;
+            } catch (IOException e) {
+                // this happens if there is no space left, or a parameter isn't serializable
+                Log.e(Constants.TAG, "could not spill log chunk, keeping it in memory", e);
+                if (spillFile != null) {
+                    // noinspection ResultOfMethodCallIgnored
+                    spillFile.delete();
+                }
+                return false;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+
+        void load() {
+            if (mPacked != null) {
+                return;
+            }
+            ObjectInputStream in = null;
+            try {
+                FileInputStream fileIn = new FileInputStream(mSpillFile);
+                byte[] iv = new byte[SPILL_IV_LENGTH];
+                if (fileIn.read(iv) != SPILL_IV_LENGTH) {
+                    fileIn.close();
+                    throw new IOException("spilled log chunk is truncated");
+                }
+                Cipher cipher = Cipher.getInstance(SPILL_CIPHER);
+                cipher.init(Cipher.DECRYPT_MODE, getSpillKey(), new IvParameterSpec(iv));
+
+                in = new ObjectInputStream(new BufferedInputStream(new CipherInputStream(fileIn, cipher)));
+                int[] packed = (int[]) in.readObject();
+                mParameters = (Object[][]) in.readObject();
+                mPacked = packed;
+            } catch (IOException | ClassNotFoundException | GeneralSecurityException e) {
+                // this should never happen, we wrote the file ourselves
+                throw new IllegalStateException("could not read spilled log chunk", e);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+
+        void unload() {
+            if (mSpillFile != null) {
+                mPacked = null;
+                mParameters = null;
+            }
+        }
+
+        void delete() {
+            if (mSpillFile != null) {
+                sSpillFileReferences.remove(mSpillFileReference);
+                mSpillFileReference = null;
+                // noinspection ResultOfMethodCallIgnored
+                mSpillFile.delete();
+                mSpillFile = null;
+            }
+        }
+
+        private static synchronized SecretKey getSpillKey() throws GeneralSecurityException {
+            if (sSpillKey == null) {
+                KeyGenerator generator = KeyGenerator.getInstance("AES");
+                generator.init(128, new SecureRandom());
+                sSpillKey = generator.generateKey();
+            }
+            return sSpillKey;
+        }
+
+        /** Deletes the spill files of chunks of logs which were never cleared. */
+        static void deleteUnreachableSpillFiles() {
+            Reference<? extends LogChunk> reference;
+            while ((reference = sCollectedChunks.poll()) != null) {
+                SpillFileReference spillFileReference = (SpillFileReference) reference;
+                sSpillFileReferences.remove(spillFileReference);
+                // noinspection ResultOfMethodCallIgnored
+                spillFileReference.mSpillFile.delete();
+            }
+        }
+
+        private static class SpillFileReference extends PhantomReference<LogChunk> {
+            final File mSpillFile;
+
+            SpillFileReference(LogChunk chunk, File spillFile) {
+                super(chunk, sCollectedChunks);
+                mSpillFile = spillFile;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+
+/** Device specific throughput measurements, as obtained by the BenchmarkOperation.
+ *
+ * A profile holds the measured throughput of the iterated and salted S2K
+ * function which is used to protect our secret keys, as well as the raw
+ * throughput of symmetric ciphers and hash functions per algorithm. All
+ * throughput values are stored in bytes per millisecond.
+ *
+ * The profile is used for two things: PgpKeyOperation picks an S2K count
+ * which makes unlocking a key take about SECRET_KEY_ENCRYPTOR_S2K_TARGET_MILLIS
+ * on this device, and PgpSignEncryptOperation estimates the duration of an
+ * operation for progress reporting.
+ *
+ * Note that no android specific stuff should be done here, persistence is
+ * handled by the Preferences class through encode() and decode().
+ */
+public class CalibrationProfile {
+
+    private static final int PROFILE_VERSION = 1;
+
+    private long mS2kBytesPerMilli;
+    private final HashMap<Integer, Long> mCipherBytesPerMilli = new HashMap<>();
+    private final HashMap<Integer, Long> mHashBytesPerMilli = new HashMap<>();
+
+    public CalibrationProfile() {
+    }
+
+    public void setS2kThroughput(long bytesPerMilli) {
+        mS2kBytesPerMilli = bytesPerMilli;
+    }
+
+    public void setCipherThroughput(int symmetricAlgorithm, long bytesPerMilli) {
+        mCipherBytesPerMilli.put(symmetricAlgorithm, bytesPerMilli);
+    }
+
+    public void setHashThroughput(int hashAlgorithm, long bytesPerMilli) {
+        mHashBytesPerMilli.put(hashAlgorithm, bytesPerMilli);
+    }
+
+    public boolean isCalibrated() {
+        return mS2kBytesPerMilli > 0;
+    }
+
+    /** Returns the number of bytes hashed by an iterated S2K with the given
+     * coded count, see RFC 4880, Section 3.7.1.3.
+     */
+    public static long s2kCountToBytes(int s2kCount) {
+        return ((long) 16 + (s2kCount & 15)) << ((s2kCount >> 4) + 6);
+    }
+
+    /** Returns the smallest coded S2K count which takes at least targetMillis
+     * on this device. The result is never weaker than the static default
+     * SECRET_KEY_ENCRYPTOR_S2K_COUNT, so an uncalibrated or very slow device
+     * will always get the default.
+     */
+    public int getS2kCountForTargetMillis(long targetMillis) {
+        int minimum = PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT;
+        if (mS2kBytesPerMilli <= 0) {
+            return minimum;
+        }
+
+        long targetBytes = targetMillis * mS2kBytesPerMilli;
+        for (int s2kCount = minimum; s2kCount < 0xff; s2kCount++) {
+            if (s2kCountToBytes(s2kCount) >= targetBytes) {
+                return s2kCount;
+            }
+        }
+        return 0xff;
+    }
+
+    /** Estimates the time in milliseconds required to process the given number
+     * of bytes with the specified algorithms. Either algorithm may be null, if it
+     * is not used in the operation. Returns -1 if no estimate can be given.
+     */
+    public long estimateMillis(Integer symmetricAlgorithm, Integer hashAlgorithm, long bytes) {
+        if (bytes <= 0) {
+            return -1;
+        }
+
+        double millis = 0;
+        if (symmetricAlgorithm != null) {
+            Long throughput = mCipherBytesPerMilli.get(symmetricAlgorithm);
+            if (throughput == null || throughput <= 0) {
+                return -1;
+            }
+            millis += (double) bytes / throughput;
+        }
+        if (hashAlgorithm != null) {
+            Long throughput = mHashBytesPerMilli.get(hashAlgorithm);
+            if (throughput == null || throughput <= 0) {
+                return -1;
+            }
+            millis += (double) bytes / throughput;
+        }
+
+        return symmetricAlgorithm == null && hashAlgorithm == null ? -1 : (long) Math.ceil(millis);
+    }
+
+    /** Encodes this profile into a String, suitable for storage in a SharedPreference. */
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(PROFILE_VERSION).append(';').append(mS2kBytesPerMilli);
+        for (Entry<Integer, Long> entry : mCipherBytesPerMilli.entrySet()) {
+            builder.append(";c").append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        for (Entry<Integer, Long> entry : mHashBytesPerMilli.entrySet()) {
+            builder.append(";h").append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /** Decodes a profile as encoded by encode(). Returns an empty profile, which
+     * falls back to the static defaults, if the data is missing, malformed, or
+     * was written by an incompatible version.
+     */
+    public static CalibrationProfile decode(String encoded) {
+        if (encoded == null || encoded.isEmpty()) {
+            return new CalibrationProfile();
+        }
+
+        try {
+            String[] parts = encoded.split(";");
+            if (parts.length < 2 || Integer.parseInt(parts[0]) != PROFILE_VERSION) {
+                return new CalibrationProfile();
+            }
+
+            CalibrationProfile profile = new CalibrationProfile();
+            profile.mS2kBytesPerMilli = Long.parseLong(parts[1]);
+            for (int i = 2; i < parts.length; i++) {
+                String part = parts[i];
+                int separator = part.indexOf('=');
+                int algorithm = Integer.parseInt(part.substring(1, separator));
+                long throughput = Long.parseLong(part.substring(separator + 1));
+                switch (part.charAt(0)) {
+                    case 'c':
+                        profile.mCipherBytesPerMilli.put(algorithm, throughput);
+                        break;
+                    case 'h':
+                        profile.mHashBytesPerMilli.put(algorithm, throughput);
+                        break;
+                    default:
+                        return new CalibrationProfile();
+                }
+            }
+            return profile;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return new CalibrationProfile();
+        }
+    }
+
+}
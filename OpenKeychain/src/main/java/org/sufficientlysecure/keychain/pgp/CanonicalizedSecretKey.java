@@ -50,6 +50,7 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OperationTimings;
 import org.sufficientlysecure.keychain.util.Passphrase;
 
 
@@ -188,7 +189,12 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
                 PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
                         Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.getCharArray());
                 // this operation is EXPENSIVE, so we cache its result in the passed Passphrase object!
-                sessionKey = keyDecryptor.makeKeyFromPassPhrase(keyEncryptionAlgorithm, s2k);
+                OperationTimings.Phase phase = OperationTimings.startPhase(OperationTimings.PHASE_S2K);
+                try {
+                    sessionKey = keyDecryptor.makeKeyFromPassPhrase(keyEncryptionAlgorithm, s2k);
+                } finally {
+                    phase.end(s2k != null && s2k.getType() == S2K.SALTED_AND_ITERATED ? s2k.getIterationCount() : 0);
+                }
                 passphrase.addCachedSessionKeyForParameters(keyEncryptionAlgorithm, s2k, sessionKey);
             }
 
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.math.BigInteger;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+
+import org.bouncycastle.jce.spec.ElGamalParameterSpec;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Primes;
+
+
+/** Generates raw key material for new keys, in parallel across all cores.
+ *
+ * Generation of large RSA, DSA or ElGamal keys takes seconds, and keys of a
+ * key ring are independent of each other. PgpKeyOperation therefore submits
+ * all keys of a key ring to this generator at once, and only waits for them
+ * when it needs a key pair to build the key ring.
+ *
+ * Additionally, key material for expected key types can be pregenerated, for
+ * example while the user is still entering name and passphrase for a new key.
+ * Pregenerated key material is only ever held in memory, and each key pair is
+ * handed out at most once. It is dropped by clearPool() when it's no longer
+ * expected to be used, and after POOL_TIME_TO_LIVE_MILLIS at the latest.
+ */
+public class KeyMaterialGenerator {
+
+    /** Maximum number of pregenerated key pairs held per key type */
+    private static final int MAX_POOL_SIZE_PER_TYPE = 3;
+    /** Time after which pregenerated key material is dropped, if it wasn't used */
+    private static final long POOL_TIME_TO_LIVE_MILLIS = 10 * 60 * 1000;
+
+    private static final ExecutorService sExecutor;
+    static {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "KeyMaterialGenerator");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        sExecutor = executor;
+    }
+
+    /** Pregenerated or pregenerating key pairs, by key type. */
+    private static final HashMap<String, LinkedList<PooledKeyPair>> sPool = new HashMap<>();
+
+    /** Starts generation of key material for the given key in the background. If key
+     * material of this type was pregenerated, it is used instead.
+     */
+    public static Future<KeyPair> submit(SubkeyAdd add) {
+        Future<KeyPair> pregenerated = takeFromPool(add);
+        if (pregenerated != null) {
+            Log.d(Constants.TAG, "Using pregenerated key material for " + getKeyType(add));
+            return pregenerated;
+        }
+
+        FutureTask<KeyPair> task = createTask(add);
+        sExecutor.execute(task);
+        return task;
+    }
+
+    /** Pregenerates key material for the given keys, so a key ring with these keys can
+     * be created without waiting for key generation. Keys which are already being
+     * pregenerated are counted, so calling this repeatedly for the same keys is cheap.
+     */
+    public static void pregenerate(List<SubkeyAdd> keys) {
+        HashMap<String, Integer> requested = new HashMap<>();
+        for (SubkeyAdd add : keys) {
+            String type = getKeyType(add);
+            Integer count = requested.get(type);
+            requested.put(type, count == null ? 1 : count + 1);
+        }
+
+        synchronized (sPool) {
+            dropExpired();
+            for (SubkeyAdd add : keys) {
+                String type = getKeyType(add);
+                LinkedList<PooledKeyPair> pool = getPool(type);
+                int wanted = Math.min(requested.get(type), MAX_POOL_SIZE_PER_TYPE);
+                if (pool.size() < wanted) {
+                    FutureTask<KeyPair> task = createTask(add);
+                    pool.add(new PooledKeyPair(task));
+                    sExecutor.execute(task);
+                }
+            }
+        }
+    }
+
+    /** Drops all pregenerated key material. Key material which is still being generated
+     * is cancelled.
+     */
+    public static void clearPool() {
+        synchronized (sPool) {
+            for (LinkedList<PooledKeyPair> pool : sPool.values()) {
+                for (PooledKeyPair pooled : pool) {
+                    pooled.mFuture.cancel(true);
+                }
+            }
+            sPool.clear();
+        }
+    }
+
+    private static void dropExpired() {
+        long now = SystemClock.elapsedRealtime();
+        for (LinkedList<PooledKeyPair> pool : sPool.values()) {
+            Iterator<PooledKeyPair> it = pool.iterator();
+            while (it.hasNext()) {
+                PooledKeyPair pooled = it.next();
+                if (now - pooled.mCreated > POOL_TIME_TO_LIVE_MILLIS) {
+                    pooled.mFuture.cancel(true);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static Future<KeyPair> takeFromPool(SubkeyAdd add) {
+        synchronized (sPool) {
+            dropExpired();
+            LinkedList<PooledKeyPair> pool = sPool.get(getKeyType(add));
+            if (pool == null || pool.isEmpty()) {
+                return null;
+            }
+            // prefer key material that is already done
+            for (PooledKeyPair pooled : pool) {
+                if (pooled.mFuture.isDone()) {
+                    pool.remove(pooled);
+                    return pooled.mFuture;
+                }
+            }
+            return pool.removeFirst().mFuture;
+        }
+    }
+
+    private static LinkedList<PooledKeyPair> getPool(String type) {
+        LinkedList<PooledKeyPair> pool = sPool.get(type);
+        if (pool == null) {
+            pool = new LinkedList<>();
+            sPool.put(type, pool);
+        }
+        return pool;
+    }
+
+    private static class PooledKeyPair {
+        final Future<KeyPair> mFuture;
+        final long mCreated;
+
+        PooledKeyPair(Future<KeyPair> future) {
+            mFuture = future;
+            mCreated = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static FutureTask<KeyPair> createTask(final SubkeyAdd add) {
+        return new FutureTask<>(new Callable<KeyPair>() {
+            @Override
+            public KeyPair call() throws Exception {
+                return generateKeyPair(add);
+            }
+        });
+    }
+
+    /** Key material depends only on algorithm and size or curve, not on flags or expiry. */
+    private static String getKeyType(SubkeyAdd add) {
+        if (add.mAlgorithm == Algorithm.ECDSA || add.mAlgorithm == Algorithm.ECDH) {
+            return add.mAlgorithm + ":" + add.mCurve;
+        }
+        return add.mAlgorithm + ":" + add.mKeySize;
+    }
+
+    /** Generates key material for the given key, synchronously. Parameters must have been
+     * checked for validity before calling this method.
+     */
+    static KeyPair generateKeyPair(SubkeyAdd add) throws NoSuchAlgorithmException {
+        try {
+            KeyPairGenerator keyGen;
+            switch (add.mAlgorithm) {
+                case DSA: {
+                    keyGen = KeyPairGenerator.getInstance("DSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    keyGen.initialize(add.mKeySize, new SecureRandom());
+                    break;
+                }
+
+                case ELGAMAL: {
+                    keyGen = KeyPairGenerator.getInstance("ElGamal", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    BigInteger p = Primes.getBestPrime(add.mKeySize);
+                    BigInteger g = new BigInteger("2");
+
+                    ElGamalParameterSpec elParams = new ElGamalParameterSpec(p, g);
+
+                    keyGen.initialize(elParams);
+                    break;
+                }
+
+                case RSA: {
+                    keyGen = KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    keyGen.initialize(add.mKeySize, new SecureRandom());
+                    break;
+                }
+
+                case ECDSA: {
+                    keyGen = KeyPairGenerator.getInstance("ECDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    keyGen.initialize(getEccParameterSpec(add.mCurve), new SecureRandom());
+                    break;
+                }
+
+                case ECDH: {
+                    keyGen = KeyPairGenerator.getInstance("ECDH", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    keyGen.initialize(getEccParameterSpec(add.mCurve), new SecureRandom());
+                    break;
+                }
+
+                default: {
+                    throw new NoSuchAlgorithmException("unknown algorithm " + add.mAlgorithm);
+                }
+            }
+
+            return keyGen.generateKeyPair();
+
+        } catch (NoSuchProviderException | InvalidAlgorithmParameterException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ECGenParameterSpec getEccParameterSpec(Curve curve) {
+        switch (curve) {
+            case NIST_P256: return new ECGenParameterSpec("P-256");
+            case NIST_P384: return new ECGenParameterSpec("P-384");
+            case NIST_P521: return new ECGenParameterSpec("P-521");
+
+            // @see SaveKeyringParcel
+            // case BRAINPOOL_P256: return new ECGenParameterSpec("brainpoolp256r1");
+            // case BRAINPOOL_P384: return new ECGenParameterSpec("brainpoolp384r1");
+            // case BRAINPOOL_P512: return new ECGenParameterSpec("brainpoolp512r1");
+        }
+        throw new RuntimeException("Invalid choice! (can't happen)");
+    }
+
+}
@@ -52,9 +52,7 @@ import org.bouncycastle.openpgp.PGPSignatureList;
 import org.bouncycastle.openpgp.PGPUtil;
 import org.bouncycastle.openpgp.jcajce.JcaSkipMarkerPGPObjectFactory;
 import org.bouncycastle.openpgp.operator.PBEDataDecryptorFactory;
-import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
 import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory;
-import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
 import org.bouncycastle.util.encoders.DecoderException;
 import org.openintents.openpgp.OpenPgpDecryptionResult;
@@ -443,7 +441,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         long wholeSize = inputData.getSize() - inputData.getStreamPosition();
         boolean sizeIsKnown = inputData.getSize() != InputData.UNKNOWN_FILESIZE && wholeSize > 0;
         int length;
-        byte[] buffer = new byte[8192];
+        byte[] buffer = PgpResources.acquireSmallBuffer();
         byte[] firstBytes = new byte[48];
         CharsetVerifier charsetVerifier = new CharsetVerifier(buffer, mimeType, charset);
 
@@ -451,35 +449,39 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         long nextProgressTime = 0L;
         int lastReportedProgress = 1;
-        while ((length = dataIn.read(buffer)) > 0) {
-            // Log.d(Constants.TAG, "read bytes: " + length);
-            if (out != null) {
-                out.write(buffer, 0, length);
-            }
-
-            // update signature buffer if signature is also present
-            signatureChecker.updateSignatureData(buffer, 0, length);
+        try {
+            while ((length = dataIn.read(buffer)) > 0) {
+                // Log.d(Constants.TAG, "read bytes: " + length);
+                if (out != null) {
+                    out.write(buffer, 0, length);
+                }
 
-            charsetVerifier.readBytesFromBuffer(0, length);
+                // update signature buffer if signature is also present
+                signatureChecker.updateSignatureData(buffer, 0, length);
 
-            // note down first couple of bytes for "magic bytes" file type detection
-            if (alreadyWritten == 0) {
-                System.arraycopy(buffer, 0, firstBytes, 0, length > firstBytes.length ? firstBytes.length : length);
-            }
+                charsetVerifier.readBytesFromBuffer(0, length);
 
-            alreadyWritten += length;
-            if (sizeIsKnown && nextProgressTime < System.currentTimeMillis()) {
-                long progress = 100 * inputData.getStreamPosition() / wholeSize;
-                // stop at 100% for wrong file sizes...
-                if (progress > 100) {
-                    progress = 100;
+                // note down first couple of bytes for "magic bytes" file type detection
+                if (alreadyWritten == 0) {
+                    System.arraycopy(buffer, 0, firstBytes, 0, length > firstBytes.length ? firstBytes.length : length);
                 }
-                if (progress > lastReportedProgress) {
-                    updateProgress((int) progress, 100);
-                    lastReportedProgress = (int) progress;
-                    nextProgressTime = System.currentTimeMillis() + PROGRESS_STRIDE_MILLISECONDS;
+
+                alreadyWritten += length;
+                if (sizeIsKnown && nextProgressTime < System.currentTimeMillis()) {
+                    long progress = 100 * inputData.getStreamPosition() / wholeSize;
+                    // stop at 100% for wrong file sizes...
+                    if (progress > 100) {
+                        progress = 100;
+                    }
+                    if (progress > lastReportedProgress) {
+                        updateProgress((int) progress, 100);
+                        lastReportedProgress = (int) progress;
+                        nextProgressTime = System.currentTimeMillis() + PROGRESS_STRIDE_MILLISECONDS;
+                    }
                 }
             }
+        } finally {
+            PgpResources.releaseBuffer(buffer);
         }
 
         if (signatureChecker.isInitialized()) {
@@ -741,10 +743,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         // we made sure above one of these two would be true
         if (symmetricPacketFound) {
-            PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
-                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
             PBEDataDecryptorFactory decryptorFactory = new JcePBEDataDecryptorFactoryBuilder(
-                    digestCalcProvider).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
+                    PgpResources.getDigestCalculatorProvider()).setProvider(PgpResources.getProvider()).build(
                     passphrase.getCharArray());
 
             try {
@@ -945,25 +945,29 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             long alreadyWritten = 0;
             long wholeSize = inputData.getSize() - inputData.getStreamPosition();
             int length;
-            byte[] buffer = new byte[1 << 16];
+            byte[] buffer = PgpResources.acquireBuffer();
             InputStream in = inputData.getInputStream();
-            while ((length = in.read(buffer)) > 0) {
-                if (out != null) {
-                    out.write(buffer, 0, length);
-                }
+            try {
+                while ((length = in.read(buffer)) > 0) {
+                    if (out != null) {
+                        out.write(buffer, 0, length);
+                    }
 
-                // update signature buffer if signature is also present
-                signatureChecker.updateSignatureData(buffer, 0, length);
+                    // update signature buffer if signature is also present
+                    signatureChecker.updateSignatureData(buffer, 0, length);
 
-                alreadyWritten += length;
-                if (wholeSize > 0) {
-                    long progress = 100 * alreadyWritten / wholeSize;
-                    // stop at 100% for wrong file sizes...
-                    if (progress > 100) {
-                        progress = 100;
+                    alreadyWritten += length;
+                    if (wholeSize > 0) {
+                        long progress = 100 * alreadyWritten / wholeSize;
+                        // stop at 100% for wrong file sizes...
+                        if (progress > 100) {
+                            progress = 100;
+                        }
+                        progressScaler.setProgress((int) progress, 100);
                     }
-                    progressScaler.setProgress((int) progress, 100);
                 }
+            } finally {
+                PgpResources.releaseBuffer(buffer);
             }
 
             updateProgress(R.string.progress_verifying_signature, 90, 100);
@@ -20,19 +20,18 @@ package org.sufficientlysecure.keychain.pgp;
 
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.KeyPairGenerator;
+import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.SecureRandom;
 import java.security.SignatureException;
-import java.security.spec.ECGenParameterSpec;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
@@ -44,7 +43,6 @@ import org.bouncycastle.bcpg.S2K;
 import org.bouncycastle.bcpg.sig.Features;
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.bcpg.sig.RevocationReasonTags;
-import org.bouncycastle.jce.spec.ElGamalParameterSpec;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPKeyFlags;
 import org.bouncycastle.openpgp.PGPKeyPair;
@@ -79,7 +77,6 @@ import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
-import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
@@ -89,7 +86,6 @@ import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
-import org.sufficientlysecure.keychain.util.Primes;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 /**
@@ -105,6 +101,9 @@ public class PgpKeyOperation {
 
     private Stack<Progressable> mProgress;
     private AtomicBoolean mCancelled;
+    private int mS2kCount = PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT;
+    /** Key material being generated in parallel, by the SubkeyAdd it is generated for */
+    private IdentityHashMap<SubkeyAdd, Future<KeyPair>> mPendingKeyPairs = new IdentityHashMap<>();
 
     public PgpKeyOperation(Progressable progress) {
         super();
@@ -119,6 +118,15 @@ public class PgpKeyOperation {
         mCancelled = cancelled;
     }
 
+    /** Uses the S2K count which reaches SECRET_KEY_ENCRYPTOR_S2K_TARGET_MILLIS on
+     * the calibrated device for all secret keys encrypted by this operation.
+     */
+    public PgpKeyOperation(Progressable progress, AtomicBoolean cancelled, CalibrationProfile calibration) {
+        this(progress, cancelled);
+        mS2kCount = calibration.getS2kCountForTargetMillis(
+                PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_TARGET_MILLIS);
+    }
+
     private boolean checkCancelled() {
         return mCancelled != null && mCancelled.get();
     }
@@ -147,18 +155,54 @@ public class PgpKeyOperation {
         mProgress.peek().setProgress(message, current, 100);
     }
 
-    private ECGenParameterSpec getEccParameterSpec(Curve curve) {
-        switch (curve) {
-            case NIST_P256: return new ECGenParameterSpec("P-256");
-            case NIST_P384: return new ECGenParameterSpec("P-384");
-            case NIST_P521: return new ECGenParameterSpec("P-521");
+    /** Starts generation of key material for the given key in the background, if its
+     * parameters are sane. createKey will pick up the generated key pair later on.
+     */
+    private void prepareKeyPair(SubkeyAdd add) {
+        if (mPendingKeyPairs.containsKey(add)) {
+            return;
+        }
+        if (add.mAlgorithm == Algorithm.ECDH || add.mAlgorithm == Algorithm.ECDSA) {
+            if (add.mCurve == null) {
+                return;
+            }
+        } else if (add.mKeySize == null || add.mKeySize < 2048) {
+            return;
+        }
+        mPendingKeyPairs.put(add, KeyMaterialGenerator.submit(add));
+    }
+
+    private void prepareKeyPairs(List<SubkeyAdd> adds) {
+        for (SubkeyAdd add : adds) {
+            prepareKeyPair(add);
+        }
+    }
+
+    /** Discards key material which was generated but not used, e.g. because of an error. */
+    private void cancelPendingKeyPairs() {
+        for (Future<KeyPair> pending : mPendingKeyPairs.values()) {
+            pending.cancel(true);
+        }
+        mPendingKeyPairs.clear();
+    }
 
-            // @see SaveKeyringParcel
-            // case BRAINPOOL_P256: return new ECGenParameterSpec("brainpoolp256r1");
-            // case BRAINPOOL_P384: return new ECGenParameterSpec("brainpoolp384r1");
-            // case BRAINPOOL_P512: return new ECGenParameterSpec("brainpoolp512r1");
+    private KeyPair obtainKeyPair(SubkeyAdd add) throws NoSuchAlgorithmException, InterruptedException {
+        Future<KeyPair> pending = mPendingKeyPairs.remove(add);
+        if (pending == null) {
+            pending = KeyMaterialGenerator.submit(add);
+        }
+        try {
+            return pending.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
         }
-        throw new RuntimeException("Invalid choice! (can't happen)");
     }
 
     /** Creates new secret key. */
@@ -183,7 +227,6 @@ public class PgpKeyOperation {
             }
 
             int algorithm;
-            KeyPairGenerator keyGen;
 
             switch (add.mAlgorithm) {
                 case DSA: {
@@ -192,8 +235,6 @@ public class PgpKeyOperation {
                         return null;
                     }
                     progress(R.string.progress_generating_dsa, 30);
-                    keyGen = KeyPairGenerator.getInstance("DSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    keyGen.initialize(add.mKeySize, new SecureRandom());
                     algorithm = PGPPublicKey.DSA;
                     break;
                 }
@@ -204,22 +245,12 @@ public class PgpKeyOperation {
                         return null;
                     }
                     progress(R.string.progress_generating_elgamal, 30);
-                    keyGen = KeyPairGenerator.getInstance("ElGamal", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    BigInteger p = Primes.getBestPrime(add.mKeySize);
-                    BigInteger g = new BigInteger("2");
-
-                    ElGamalParameterSpec elParams = new ElGamalParameterSpec(p, g);
-
-                    keyGen.initialize(elParams);
                     algorithm = PGPPublicKey.ELGAMAL_ENCRYPT;
                     break;
                 }
 
                 case RSA: {
                     progress(R.string.progress_generating_rsa, 30);
-                    keyGen = KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    keyGen.initialize(add.mKeySize, new SecureRandom());
-
                     algorithm = PGPPublicKey.RSA_GENERAL;
                     break;
                 }
@@ -230,10 +261,6 @@ public class PgpKeyOperation {
                         return null;
                     }
                     progress(R.string.progress_generating_ecdsa, 30);
-                    ECGenParameterSpec ecParamSpec = getEccParameterSpec(add.mCurve);
-                    keyGen = KeyPairGenerator.getInstance("ECDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    keyGen.initialize(ecParamSpec, new SecureRandom());
-
                     algorithm = PGPPublicKey.ECDSA;
                     break;
                 }
@@ -245,10 +272,6 @@ public class PgpKeyOperation {
                         return null;
                     }
                     progress(R.string.progress_generating_ecdh, 30);
-                    ECGenParameterSpec ecParamSpec = getEccParameterSpec(add.mCurve);
-                    keyGen = KeyPairGenerator.getInstance("ECDH", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    keyGen.initialize(ecParamSpec, new SecureRandom());
-
                     algorithm = PGPPublicKey.ECDH;
                     break;
                 }
@@ -259,14 +282,16 @@ public class PgpKeyOperation {
                 }
             }
 
-            // build new key pair
-            return new JcaPGPKeyPair(algorithm, keyGen.generateKeyPair(), creationTime);
+            // build new key pair, from key material which is usually already being generated
+            return new JcaPGPKeyPair(algorithm, obtainKeyPair(add), creationTime);
 
-        } catch(NoSuchProviderException | InvalidAlgorithmParameterException e) {
-            throw new RuntimeException(e);
         } catch(NoSuchAlgorithmException e) {
             log.add(LogType.MSG_CR_ERROR_UNKNOWN_ALGO, indent);
             return null;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.add(LogType.MSG_OPERATION_CANCELLED, indent);
+            return null;
         } catch(PGPException e) {
             Log.e(Constants.TAG, "internal pgp error", e);
             log.add(LogType.MSG_CR_ERROR_INTERNAL_PGP, indent);
@@ -306,6 +331,10 @@ public class PgpKeyOperation {
                 return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
             }
 
+            // generate key material for all keys of the new key ring in parallel
+            prepareKeyPair(add);
+            prepareKeyPairs(saveParcel.mAddSubKeys);
+
             Date creationTime = new Date();
 
             subProgressPush(10, 30);
@@ -324,7 +353,7 @@ public class PgpKeyOperation {
                     .build().get(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
             PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
                     PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO,
-                    encryptorHashCalc, PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
+                    encryptorHashCalc, mS2kCount)
                     .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build("".toCharArray());
 
             PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
@@ -346,6 +375,8 @@ public class PgpKeyOperation {
         } catch (IOException e) {
             Log.e(Constants.TAG, "io error encoding key", e);
             return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
+        } finally {
+            cancelPendingKeyPairs();
         }
 
     }
@@ -490,7 +521,11 @@ public class PgpKeyOperation {
         Date expiryTime = wsKR.getPublicKey().getExpiryTime();
         long masterKeyExpiry = expiryTime != null ? expiryTime.getTime() / 1000 : 0L;
 
-        return internal(sKR, masterSecretKey, masterKeyFlags, masterKeyExpiry, cryptoInput, saveParcel, log, indent);
+        try {
+            return internal(sKR, masterSecretKey, masterKeyFlags, masterKeyExpiry, cryptoInput, saveParcel, log, indent);
+        } finally {
+            cancelPendingKeyPairs();
+        }
 
     }
 
@@ -541,6 +576,11 @@ public class PgpKeyOperation {
                 return new PgpEditKeyResult(PgpEditKeyResult.RESULT_CANCELLED, log, null);
             }
 
+            // start generating new subkeys early, they are picked up in step 5
+            if (!isDivertToCard(masterSecretKey)) {
+                prepareKeyPairs(saveParcel.mAddSubKeys);
+            }
+
             { // work on master secret key
 
                 PGPPublicKey modifiedPublicKey = masterPublicKey;
@@ -1034,7 +1074,7 @@ public class PgpKeyOperation {
                             .build().get(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
                     PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
                             PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, encryptorHashCalc,
-                            PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
+                            mS2kCount)
                             .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
                                     cryptoInput.getPassphrase().getCharArray());
 
@@ -1289,7 +1329,7 @@ public class PgpKeyOperation {
         return false;
     }
 
-    private static PGPSecretKeyRing applyNewPassphrase(
+    private PGPSecretKeyRing applyNewPassphrase(
             PGPSecretKeyRing sKR,
             PGPPublicKey masterPublicKey,
             Passphrase passphrase,
@@ -1303,7 +1343,7 @@ public class PgpKeyOperation {
         // Build key encryptor based on new passphrase
         PBESecretKeyEncryptor keyEncryptorNew = new JcePBESecretKeyEncryptorBuilder(
                 PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, encryptorHashCalc,
-                PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
+                mS2kCount)
                 .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(newPassphrase.getCharArray());
         boolean keysModified = false;
 
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+import android.util.SparseArray;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.sufficientlysecure.keychain.Constants;
+
+
+/** Reusable resources for sign/encrypt and decrypt/verify operations.
+ *
+ * For small messages, setting up an operation costs more than the actual
+ * cryptography: every operation allocated several 64 KiB buffers, and looked
+ * up the JCA provider by name for each builder it created.
+ *
+ * Buffers are pooled per thread, so they are never shared between concurrent
+ * operations, and are wiped when they are released since they hold plaintext.
+ * The builders and factories handed out here carry no per-message state, so
+ * they are shared between all threads.
+ */
+public class PgpResources {
+
+    public static final int BUFFER_SIZE = 1 << 16;
+    /** For data which is processed in smaller chunks, e.g. for charset detection */
+    public static final int SMALL_BUFFER_SIZE = 8192;
+    /** Maximum number of buffers pooled per thread and size, an operation uses up to three at once */
+    private static final int MAX_POOLED_BUFFERS = 3;
+
+    private static final ThreadLocal<ArrayDeque<byte[]>> sBuffers = new BufferPool();
+    private static final ThreadLocal<ArrayDeque<byte[]>> sSmallBuffers = new BufferPool();
+
+    private static Provider sProvider;
+    private static JcaPGPContentVerifierBuilderProvider sContentVerifierBuilderProvider;
+    private static PGPDigestCalculatorProvider sDigestCalculatorProvider;
+    /** Data encryptor builders, by algorithm and integrity protection */
+    private static final SparseArray<JcePGPDataEncryptorBuilder> sDataEncryptorBuilders = new SparseArray<>();
+
+    /** Returns the registered BouncyCastle provider, which is only looked up once. */
+    public static synchronized Provider getProvider() {
+        if (sProvider == null) {
+            sProvider = Security.getProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            if (sProvider == null) {
+                throw new IllegalStateException("BouncyCastle provider is not registered!");
+            }
+        }
+        return sProvider;
+    }
+
+    /** Returns a buffer of BUFFER_SIZE bytes. It must be released by the same thread. */
+    public static byte[] acquireBuffer() {
+        byte[] buffer = sBuffers.get().pollFirst();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    /** Returns a buffer of SMALL_BUFFER_SIZE bytes. It must be released by the same thread. */
+    public static byte[] acquireSmallBuffer() {
+        byte[] buffer = sSmallBuffers.get().pollFirst();
+        return buffer != null ? buffer : new byte[SMALL_BUFFER_SIZE];
+    }
+
+    public static void releaseBuffer(byte[] buffer) {
+        Arrays.fill(buffer, (byte) 0);
+        ArrayDeque<byte[]> buffers = buffer.length == SMALL_BUFFER_SIZE ? sSmallBuffers.get() : sBuffers.get();
+        if (buffers.size() < MAX_POOLED_BUFFERS) {
+            buffers.addFirst(buffer);
+        }
+    }
+
+    public static void releaseBuffers(List<byte[]> buffers) {
+        for (byte[] buffer : buffers) {
+            releaseBuffer(buffer);
+        }
+        buffers.clear();
+    }
+
+    public static synchronized JcePGPDataEncryptorBuilder getDataEncryptorBuilder(
+            int algorithm, boolean withIntegrityPacket) {
+        int key = (algorithm << 1) | (withIntegrityPacket ? 1 : 0);
+        JcePGPDataEncryptorBuilder builder = sDataEncryptorBuilders.get(key);
+        if (builder == null) {
+            // set a SecureRandom explicitly, the builder would otherwise lazily create one when first used
+            builder = new JcePGPDataEncryptorBuilder(algorithm)
+                    .setProvider(getProvider())
+                    .setSecureRandom(new SecureRandom())
+                    .setWithIntegrityPacket(withIntegrityPacket);
+            sDataEncryptorBuilders.put(key, builder);
+        }
+        return builder;
+    }
+
+    public static synchronized PGPContentVerifierBuilderProvider getContentVerifierBuilderProvider() {
+        if (sContentVerifierBuilderProvider == null) {
+            sContentVerifierBuilderProvider = new JcaPGPContentVerifierBuilderProvider()
+                    .setProvider(getProvider());
+        }
+        return sContentVerifierBuilderProvider;
+    }
+
+    public static synchronized PGPDigestCalculatorProvider getDigestCalculatorProvider() throws PGPException {
+        if (sDigestCalculatorProvider == null) {
+            sDigestCalculatorProvider = new JcaPGPDigestCalculatorProviderBuilder()
+                    .setProvider(getProvider()).build();
+        }
+        return sDigestCalculatorProvider;
+    }
+
+    private static class BufferPool extends ThreadLocal<ArrayDeque<byte[]>> {
+        @Override
+        protected ArrayDeque<byte[]> initialValue() {
+            return new ArrayDeque<>(MAX_POOLED_BUFFERS);
+        }
+    }
+
+}
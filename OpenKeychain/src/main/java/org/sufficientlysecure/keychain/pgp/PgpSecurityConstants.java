@@ -250,6 +250,14 @@ public class PgpSecurityConstants {
      * Yahoo's End-to-End: 96=0x60 (65536 iterations) (https://github.com/yahoo/end-to-end/blob/master/src/javascript/crypto/e2e/openpgp/keyring.js)
      */
     public static final int SECRET_KEY_ENCRYPTOR_S2K_COUNT = 0x90;
+    /**
+     * Target time for a single secret key unlock, if a calibration profile is available.
+     * The S2K count is then raised so unlocking takes about this long on the device,
+     * but it is never lowered below SECRET_KEY_ENCRYPTOR_S2K_COUNT.
+     *
+     * @see CalibrationProfile#getS2kCountForTargetMillis(long)
+     */
+    public static final int SECRET_KEY_ENCRYPTOR_S2K_TARGET_MILLIS = 250;
     public static final int SECRET_KEY_ENCRYPTOR_HASH_ALGO = HashAlgorithmTags.SHA512;
     public static final int SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO = SymmetricKeyAlgorithmTags.AES_256;
     public static final int SECRET_KEY_BINDING_SIGNATURE_HASH_ALGO = HashAlgorithmTags.SHA512;
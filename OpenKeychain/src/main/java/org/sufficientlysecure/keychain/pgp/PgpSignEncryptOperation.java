@@ -22,6 +22,7 @@ package org.sufficientlysecure.keychain.pgp;
 import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 
 import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.bcpg.BCPGOutputStream;
@@ -43,8 +44,8 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult.LogTyp
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.RecipientKeyCache.RecipientKeys;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
@@ -53,6 +54,7 @@ import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.io.BufferedInputStream;
@@ -67,9 +69,10 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Set;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -88,6 +91,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputParcel> {
 
+    /** Minimum input size to run hashing, compression and encryption on separate threads */
+    private static final long PIPELINE_MIN_SIZE = 4 * 1024 * 1024;
+
+    // ONLY TO BE USED FOR TESTING!! pipelines large inputs even on a single core
+    @VisibleForTesting
+    static boolean sForcePipelineForTesting = false;
+
     private static byte[] NEW_LINE;
 
     static {
@@ -310,6 +320,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
         /* Initialize PGPEncryptedDataGenerator for later usage */
         PGPEncryptedDataGenerator cPk = null;
+        Integer symmetricAlgorithm = null;
         if (enableEncryption) {
 
             // Use requested encryption algo
@@ -317,10 +328,9 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
             if (algo == PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.USE_DEFAULT) {
                 algo = PgpSecurityConstants.DEFAULT_SYMMETRIC_ALGORITHM;
             }
+            symmetricAlgorithm = algo;
             JcePGPDataEncryptorBuilder encryptorBuilder =
-                    new JcePGPDataEncryptorBuilder(algo)
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
-                            .setWithIntegrityPacket(data.isIntegrityProtected());
+                    PgpResources.getDataEncryptorBuilder(algo, data.isIntegrityProtected());
 
             cPk = new PGPEncryptedDataGenerator(encryptorBuilder);
 
@@ -335,18 +345,17 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
 
                 // Asymmetric encryption
+                RecipientKeyCache recipientKeyCache = RecipientKeyCache.getInstance(mContext);
                 for (long id : data.getEncryptionMasterKeyIds()) {
                     try {
-                        CanonicalizedPublicKeyRing keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                                KeyRings.buildUnifiedKeyRingUri(id));
-                        Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
-                        for (Long subKeyId : encryptSubKeyIds) {
-                            CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
+                        RecipientKeys recipientKeys = recipientKeyCache.getRecipientKeys(mProviderHelper, id);
+                        CanonicalizedPublicKeyRing keyRing = recipientKeys.mKeyRing;
+                        for (CanonicalizedPublicKey key : recipientKeys.mEncryptKeys) {
                             cPk.addMethod(key.getPubKeyEncryptionGenerator(data.isHiddenRecipients()));
                             log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
-                                    KeyFormattingUtils.convertKeyIdToHex(subKeyId));
+                                    KeyFormattingUtils.convertKeyIdToHex(key.getKeyId()));
                         }
-                        if (encryptSubKeyIds.isEmpty()) {
+                        if (recipientKeys.mEncryptKeys.isEmpty()) {
                             log.add(LogType.MSG_PSE_KEY_WARN, indent + 1,
                                     KeyFormattingUtils.convertKeyIdToHex(id));
                             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
@@ -381,6 +390,17 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
             }
         }
 
+        // estimate operation time from the device's calibration profile, if there is one
+        if (inputData.getSize() > 0) {
+            CalibrationProfile calibration = Preferences.getPreferences(mContext).getCalibrationProfile();
+            long estimatedTime = calibration.estimateMillis(symmetricAlgorithm,
+                    enableSignature ? data.getSignatureHashAlgorithm() : null, inputData.getSize());
+            if (estimatedTime >= 0) {
+                log.add(LogType.MSG_PSE_ESTIMATE, indent, Long.toString(inputData.getSize()),
+                        String.format("%.2f", estimatedTime / 1000.0));
+            }
+        }
+
         ProgressScaler progressScaler =
                 new ProgressScaler(mProgressable, 8, 95, 100);
         PGPCompressedDataGenerator compressGen = null;
@@ -394,6 +414,12 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
         long opTime, startTime = System.currentTimeMillis();
 
+        // pooled buffers, released once all streams are closed
+        ArrayList<byte[]> buffers = new ArrayList<>();
+        // stages running on their own threads, for large inputs
+        PipelinedOutputStream encryptStage = null;
+        PipelinedOutputStream hashStage = null;
+
         try {
 
             if (enableEncryption) {
@@ -406,7 +432,33 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 );
                 indent += 1;
 
-                encryptionOut = cPk.open(out, new byte[1 << 16]);
+                encryptionOut = cPk.open(out, acquireBuffer(buffers));
+
+                OutputStream plainOut = encryptionOut;
+                if (isPipelineWorthwhile(inputData)) {
+                    log.add(LogType.MSG_PSE_PIPELINED, indent);
+
+                    // encryption and armoring run on one thread, compression on this one
+                    final OutputStream cipherOut = encryptionOut;
+                    encryptStage = new PipelinedOutputStream("encrypt", new PipelinedOutputStream.Sink() {
+                        @Override
+                        public void write(byte[] buffer, int offset, int length) throws IOException {
+                            cipherOut.write(buffer, offset, length);
+                        }
+                    });
+                    plainOut = encryptStage;
+
+                    // hashing for the signature runs on another thread
+                    if (enableSignature) {
+                        final PGPSignatureGenerator hashingGenerator = signatureGenerator;
+                        hashStage = new PipelinedOutputStream("hash", new PipelinedOutputStream.Sink() {
+                            @Override
+                            public void write(byte[] buffer, int offset, int length) {
+                                hashingGenerator.update(buffer, offset, length);
+                            }
+                        });
+                    }
+                }
 
                 if (enableCompression) {
                     log.add(LogType.MSG_PSE_COMPRESSING, indent);
@@ -417,9 +469,9 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                         algo = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
                     }
                     compressGen = new PGPCompressedDataGenerator(algo);
-                    bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
+                    bcpgOut = new BCPGOutputStream(compressGen.open(plainOut));
                 } else {
-                    bcpgOut = new BCPGOutputStream(encryptionOut);
+                    bcpgOut = new BCPGOutputStream(plainOut);
                 }
 
                 if (enableSignature) {
@@ -434,17 +486,19 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                     literalDataFormatTag = PGPLiteralData.BINARY;
                 }
                 pOut = literalGen.open(bcpgOut, literalDataFormatTag,
-                        inputData.getOriginalFilename(), new Date(), new byte[1 << 16]);
+                        inputData.getOriginalFilename(), new Date(), acquireBuffer(buffers));
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
+                byte[] buffer = acquireBuffer(buffers);
                 InputStream in = new BufferedInputStream(inputData.getInputStream());
                 while ((length = in.read(buffer)) > 0) {
                     pOut.write(buffer, 0, length);
 
                     // update signature buffer if signature is requested
-                    if (enableSignature) {
+                    if (hashStage != null) {
+                        hashStage.write(buffer, 0, length);
+                    } else if (enableSignature) {
                         signatureGenerator.update(buffer, 0, length);
                     }
 
@@ -455,6 +509,10 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                     }
                 }
 
+                // wait for hashing to finish before the signature is generated
+                if (hashStage != null) {
+                    hashStage.close();
+                }
                 literalGen.close();
                 indent -= 1;
 
@@ -516,7 +574,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
+                byte[] buffer = acquireBuffer(buffers);
                 while ((length = in.read(buffer)) > 0) {
                     // no output stream is written, no changed to original data!
 
@@ -556,11 +614,11 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
                 pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY,
                         inputData.getOriginalFilename(), new Date(),
-                        new byte[1 << 16]);
+                        acquireBuffer(buffers));
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
+                byte[] buffer = acquireBuffer(buffers);
                 while ((length = in.read(buffer)) > 0) {
                     pOut.write(buffer, 0, length);
 
@@ -605,6 +663,10 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 if (compressGen != null) {
                     compressGen.close();
                 }
+                // wait for the encryption stage to process all remaining data
+                if (encryptStage != null) {
+                    encryptStage.close();
+                }
 
                 encryptionOut.close();
             }
@@ -636,6 +698,17 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         } catch (IOException e) {
             log.add(LogType.MSG_PSE_ERROR_IO, indent);
             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        } finally {
+            // no-ops if the stages were closed regularly. otherwise, e.g. when returning for
+            // security token interaction, this waits for the stage threads to terminate, so
+            // no buffer is released while a stage may still write to it
+            if (hashStage != null) {
+                hashStage.abort();
+            }
+            if (encryptStage != null) {
+                encryptStage.abort();
+            }
+            PgpResources.releaseBuffers(buffers);
         }
 
         updateProgress(R.string.progress_done, 100, 100);
@@ -662,6 +735,18 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         return result;
     }
 
+    /** Pipelining only pays off for large inputs, and if there is more than one core to run on. */
+    private static boolean isPipelineWorthwhile(InputData inputData) {
+        return inputData.getSize() >= PIPELINE_MIN_SIZE
+                && (sForcePipelineForTesting || Runtime.getRuntime().availableProcessors() > 1);
+    }
+
+    private static byte[] acquireBuffer(List<byte[]> acquired) {
+        byte[] buffer = PgpResources.acquireBuffer();
+        acquired.add(buffer);
+        return buffer;
+    }
+
     /**
      * Remove whitespaces on line endings
      */
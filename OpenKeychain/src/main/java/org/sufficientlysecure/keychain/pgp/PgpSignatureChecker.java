@@ -32,7 +32,6 @@ import org.bouncycastle.openpgp.PGPOnePassSignature;
 import org.bouncycastle.openpgp.PGPOnePassSignatureList;
 import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.PGPSignatureList;
-import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
@@ -78,10 +77,7 @@ class PgpSignatureChecker {
             // key found in our database!
             signatureResultBuilder.initValid(signingKey);
 
-            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                    new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-            signature.init(contentVerifierBuilderProvider, signingKey.getPublicKey());
+            signature.init(PgpResources.getContentVerifierBuilderProvider(), signingKey.getPublicKey());
             checkKeySecurity(log, indent);
 
 
@@ -113,10 +109,7 @@ class PgpSignatureChecker {
             // key found in our database!
             signatureResultBuilder.initValid(signingKey);
 
-            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                    new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-            onePassSignature.init(contentVerifierBuilderProvider, signingKey.getPublicKey());
+            onePassSignature.init(PgpResources.getContentVerifierBuilderProvider(), signingKey.getPublicKey());
 
             checkKeySecurity(log, indent);
 
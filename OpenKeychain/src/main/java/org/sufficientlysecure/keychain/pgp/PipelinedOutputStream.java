@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.support.annotation.NonNull;
+
+
+/** An OutputStream which hands all data written to it to a sink on its own thread.
+ *
+ * This is used to run the stages of a sign/encrypt operation, which would
+ * otherwise all run on a single core, on separate threads. Data is passed in
+ * chunks from a fixed set, so a stage that falls behind blocks the stages
+ * before it rather than buffering without bound. The order of data is
+ * retained, so the sink receives exactly the bytes written to this stream.
+ *
+ * An exception thrown by the sink is rethrown on the next write or on close.
+ * The stream must either be closed, which waits for the sink to process all
+ * data, or aborted.
+ */
+class PipelinedOutputStream extends OutputStream {
+
+    static final int CHUNK_SIZE = PgpResources.BUFFER_SIZE;
+    /** Number of chunks per stage, which bounds memory use to CHUNK_COUNT * CHUNK_SIZE */
+    private static final int CHUNK_COUNT = 4;
+
+    private static final Chunk END_OF_STREAM = new Chunk(0);
+
+    interface Sink {
+        void write(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private final Sink mSink;
+    private final Thread mThread;
+    private final BlockingQueue<Chunk> mFreeChunks = new ArrayBlockingQueue<>(CHUNK_COUNT);
+    private final BlockingQueue<Chunk> mFilledChunks = new LinkedBlockingQueue<>();
+
+    private volatile Throwable mException;
+    private volatile boolean mAborted;
+    private boolean mClosed;
+    private boolean mFinished;
+    private Chunk mCurrentChunk;
+
+    PipelinedOutputStream(String name, Sink sink) {
+        mSink = sink;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            mFreeChunks.add(new Chunk(CHUNK_SIZE));
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processChunks();
+            }
+        }, name);
+        mThread.start();
+    }
+
+    private void processChunks() {
+        try {
+            while (true) {
+                Chunk chunk = mFilledChunks.take();
+                if (chunk == END_OF_STREAM) {
+                    return;
+                }
+                // after an error, keep returning chunks so the writing side never blocks
+                if (mException == null && !mAborted) {
+                    try {
+                        mSink.write(chunk.mData, 0, chunk.mLength);
+                    } catch (IOException | RuntimeException e) {
+                        mException = e;
+                    }
+                }
+                chunk.mLength = 0;
+                mFreeChunks.add(chunk);
+            }
+        } catch (InterruptedException e) {
+            mException = e;
+        } finally {
+            wipeChunks();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        if (mClosed) {
+            throw new IOException("stream is closed");
+        }
+        while (len > 0) {
+            checkException();
+            if (mCurrentChunk == null) {
+                mCurrentChunk = takeFreeChunk();
+            }
+            int count = Math.min(len, CHUNK_SIZE - mCurrentChunk.mLength);
+            System.arraycopy(b, off, mCurrentChunk.mData, mCurrentChunk.mLength, count);
+            mCurrentChunk.mLength += count;
+            off += count;
+            len -= count;
+
+            if (mCurrentChunk.mLength == CHUNK_SIZE) {
+                mFilledChunks.add(mCurrentChunk);
+                mCurrentChunk = null;
+            }
+        }
+    }
+
+    /** Waits until the sink has processed all data written so far, and closes this stream.
+     * This does not close the sink.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        if (mCurrentChunk != null && mCurrentChunk.mLength > 0) {
+            mFilledChunks.add(mCurrentChunk);
+        }
+        mCurrentChunk = null;
+        mFilledChunks.add(END_OF_STREAM);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            abort();
+            throw new InterruptedIOException();
+        }
+        mFinished = true;
+        checkException();
+    }
+
+    /** Stops processing, for cleanup after an error. The sink is interrupted rather than waited
+     * for, but the stage thread has terminated and all chunks are wiped when this returns, so
+     * resources shared with the sink may be released afterwards. Does nothing if the stream
+     * was closed regularly.
+     */
+    void abort() {
+        if (mAborted || mFinished) {
+            return;
+        }
+        mAborted = true;
+        mClosed = true;
+        wipeFilledChunks();
+        mFilledChunks.add(END_OF_STREAM);
+        mThread.interrupt();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mFinished = true;
+
+        // the stage thread wiped the chunks it returned, the rest were never handed to it
+        wipeFilledChunks();
+        if (mCurrentChunk != null) {
+            wipe(mCurrentChunk);
+            mCurrentChunk = null;
+        }
+    }
+
+    private Chunk takeFreeChunk() throws IOException {
+        try {
+            return mFreeChunks.take();
+        } catch (InterruptedException e) {
+            abort();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void checkException() throws IOException {
+        Throwable exception = mException;
+        if (exception instanceof IOException) {
+            throw (IOException) exception;
+        }
+        if (exception != null) {
+            throw new IOException("error in pipelined stage", exception);
+        }
+    }
+
+    /** Chunks may hold plaintext, so they are wiped once the sink is done with them. */
+    private void wipeChunks() {
+        for (Chunk chunk : mFreeChunks) {
+            wipe(chunk);
+        }
+    }
+
+    private void wipeFilledChunks() {
+        Chunk chunk;
+        while ((chunk = mFilledChunks.poll()) != null) {
+            wipe(chunk);
+        }
+    }
+
+    private static void wipe(Chunk chunk) {
+        Arrays.fill(chunk.mData, (byte) 0);
+        chunk.mLength = 0;
+    }
+
+    private static class Chunk {
+        final byte[] mData;
+        int mLength;
+
+        Chunk(int size) {
+            mData = new byte[size];
+        }
+    }
+
+}
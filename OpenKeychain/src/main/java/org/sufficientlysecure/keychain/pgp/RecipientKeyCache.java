@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.ProviderHelper.NotFoundException;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.LruCache;
+
+
+/** Per-process cache of recipient resolutions and prepared encryption keys.
+ *
+ * Clients sending to the same recipients over and over, e.g. on mailing
+ * lists, would otherwise have the same emails looked up and the same key
+ * rings loaded and parsed for every single message. This caches the key ids
+ * resolved for a set of emails, and for each key ring the valid encryption
+ * subkeys.
+ *
+ * Entries expire after a short time, since validity of keys depends on the
+ * current time. Everything is dropped whenever anything below the key rings
+ * uri changes, which includes imports, updates, and deletions.
+ */
+public class RecipientKeyCache {
+
+    public static final long CACHE_TTL_MILLIS = 60 * 1000;
+    private static final int MAX_EMAIL_SETS = 32;
+    private static final int MAX_KEY_RINGS = 128;
+
+    private static RecipientKeyCache sInstance;
+
+    private final Context mContext;
+    private final Object mLock = new Object();
+    /** Incremented on each invalidation, so results loaded concurrently are not cached. */
+    private int mGeneration;
+    private final LruCache<String, EmailResolution> mEmailResolutions = new LruCache<>(MAX_EMAIL_SETS);
+    private final LruCache<Long, RecipientKeys> mRecipientKeys = new LruCache<>(MAX_KEY_RINGS);
+
+    public static synchronized RecipientKeyCache getInstance(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        // the instance is bound to the content resolver it observes
+        if (sInstance == null || sInstance.mContext != applicationContext) {
+            final RecipientKeyCache instance = new RecipientKeyCache(applicationContext);
+            applicationContext.getContentResolver().registerContentObserver(
+                    KeyRings.CONTENT_URI, true, new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            instance.invalidate();
+                        }
+                    });
+            sInstance = instance;
+        }
+        return sInstance;
+    }
+
+    private RecipientKeyCache(Context context) {
+        mContext = context;
+    }
+
+    public void invalidate() {
+        synchronized (mLock) {
+            Log.d(Constants.TAG, "Invalidating recipient key cache");
+            mGeneration++;
+            mEmailResolutions.clear();
+            mRecipientKeys.clear();
+        }
+    }
+
+    /** Returns a token to pass to the put methods, which must be obtained before loading. */
+    public int getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /** Returns the cached resolution for this set of emails, or null if not cached. */
+    public EmailResolution getEmailResolution(Collection<String> emails) {
+        String key = getEmailSetKey(emails);
+        synchronized (mLock) {
+            EmailResolution resolution = mEmailResolutions.get(key);
+            if (resolution != null && resolution.isExpired()) {
+                mEmailResolutions.remove(key);
+                return null;
+            }
+            return resolution;
+        }
+    }
+
+    public void putEmailResolution(Collection<String> emails, EmailResolution resolution, int generation) {
+        String key = getEmailSetKey(emails);
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mEmailResolutions.put(key, resolution);
+            }
+        }
+    }
+
+    /** Returns the key ring and its valid encryption subkeys, from cache or loaded from the database. */
+    RecipientKeys getRecipientKeys(ProviderHelper providerHelper, long masterKeyId) throws NotFoundException {
+        synchronized (mLock) {
+            RecipientKeys recipientKeys = mRecipientKeys.get(masterKeyId);
+            if (recipientKeys != null && !recipientKeys.isExpired()) {
+                return recipientKeys;
+            }
+        }
+
+        int generation = getGeneration();
+        CanonicalizedPublicKeyRing keyRing = providerHelper.getCanonicalizedPublicKeyRing(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId));
+        ArrayList<CanonicalizedPublicKey> encryptKeys = new ArrayList<>();
+        for (long subKeyId : keyRing.getEncryptIds()) {
+            encryptKeys.add(keyRing.getPublicKey(subKeyId));
+        }
+        RecipientKeys recipientKeys = new RecipientKeys(keyRing, encryptKeys);
+
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mRecipientKeys.put(masterKeyId, recipientKeys);
+            }
+        }
+        return recipientKeys;
+    }
+
+    /** Emails are matched case-insensitively, and order doesn't matter. */
+    private static String getEmailSetKey(Collection<String> emails) {
+        ArrayList<String> normalized = new ArrayList<>(emails.size());
+        for (String email : emails) {
+            normalized.add(email.toLowerCase(Locale.ENGLISH));
+        }
+        Collections.sort(normalized);
+        return TextUtils.join(",", normalized);
+    }
+
+    public static class EmailResolution {
+        private final long mCreationTime = SystemClock.elapsedRealtime();
+        private final Set<Long> mKeyIds;
+        private final List<String> mMissingEmails;
+        private final List<String> mDuplicateEmails;
+
+        public EmailResolution(Set<Long> keyIds, List<String> missingEmails, List<String> duplicateEmails) {
+            mKeyIds = Collections.unmodifiableSet(new HashSet<>(keyIds));
+            mMissingEmails = Collections.unmodifiableList(new ArrayList<>(missingEmails));
+            mDuplicateEmails = Collections.unmodifiableList(new ArrayList<>(duplicateEmails));
+        }
+
+        public Set<Long> getKeyIds() {
+            return mKeyIds;
+        }
+
+        public List<String> getMissingEmails() {
+            return mMissingEmails;
+        }
+
+        public List<String> getDuplicateEmails() {
+            return mDuplicateEmails;
+        }
+
+        boolean isExpired() {
+            return SystemClock.elapsedRealtime() - mCreationTime > CACHE_TTL_MILLIS;
+        }
+    }
+
+    static class RecipientKeys {
+        private final long mCreationTime = SystemClock.elapsedRealtime();
+        final CanonicalizedPublicKeyRing mKeyRing;
+        final List<CanonicalizedPublicKey> mEncryptKeys;
+
+        RecipientKeys(CanonicalizedPublicKeyRing keyRing, List<CanonicalizedPublicKey> encryptKeys) {
+            mKeyRing = keyRing;
+            mEncryptKeys = Collections.unmodifiableList(encryptKeys);
+        }
+
+        boolean isExpired() {
+            return SystemClock.elapsedRealtime() - mCreationTime > CACHE_TTL_MILLIS;
+        }
+    }
+
+}
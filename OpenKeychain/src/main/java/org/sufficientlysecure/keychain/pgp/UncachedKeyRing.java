@@ -61,12 +61,13 @@ import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogKeyId;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
-import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OperationTimings;
 import org.sufficientlysecure.keychain.util.Utf8Util;
 
 /** Wrapper around PGPKeyRing class, to be constructed from bytes.
@@ -329,11 +330,20 @@ public class UncachedKeyRing {
      * @return A canonicalized key, or null on fatal error (log will include a message in this case)
      *
      */
-    @SuppressWarnings("ConstantConditions")
     public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport) {
+        OperationTimings.Phase phase = OperationTimings.startPhase(OperationTimings.PHASE_CANONICALIZE);
+        try {
+            return canonicalizeInternal(log, indent, forExport);
+        } finally {
+            phase.end();
+        }
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    private CanonicalizedKeyRing canonicalizeInternal(OperationLog log, int indent, boolean forExport) {
 
         log.add(isSecret() ? LogType.MSG_KC_SECRET : LogType.MSG_KC_PUBLIC,
-                indent, KeyFormattingUtils.convertKeyIdToHex(getMasterKeyId()));
+                indent, new LogKeyId(getMasterKeyId()));
         indent += 1;
 
         // do not accept v3 keys
@@ -361,7 +371,7 @@ public class UncachedKeyRing {
 
         {
             log.add(LogType.MSG_KC_MASTER,
-                    indent, KeyFormattingUtils.convertKeyIdToHex(masterKey.getKeyID()));
+                    indent, new LogKeyId(masterKey.getKeyID()));
             indent += 1;
 
             PGPPublicKey modified = masterKey;
@@ -548,7 +558,7 @@ public class UncachedKeyRing {
                             // never mind any further for public keys, but remove them from secret ones
                             if (isSecret()) {
                                 log.add(LogType.MSG_KC_UID_FOREIGN,
-                                        indent, KeyFormattingUtils.convertKeyIdToHex(certId));
+                                        indent, new LogKeyId(certId));
                                 modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
                                 badCerts += 1;
                             }
@@ -713,7 +723,7 @@ public class UncachedKeyRing {
                                 // never mind any further for public keys, but remove them from secret ones
                                 if (isSecret()) {
                                     log.add(LogType.MSG_KC_UAT_FOREIGN,
-                                            indent, KeyFormattingUtils.convertKeyIdToHex(certId));
+                                            indent, new LogKeyId(certId));
                                     modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
                                     badCerts += 1;
                                 }
@@ -825,7 +835,7 @@ public class UncachedKeyRing {
             // Make sure this is not a duplicate, avoid undefined behavior!
             if (knownIds.contains(key.getKeyID())) {
                 log.add(LogType.MSG_KC_ERROR_DUP_KEY, indent,
-                        KeyFormattingUtils.convertKeyIdToHex(key.getKeyID()));
+                        new LogKeyId(key.getKeyID()));
                 return null;
             }
             // Add the key id to known
@@ -837,7 +847,7 @@ public class UncachedKeyRing {
             }
 
             log.add(LogType.MSG_KC_SUB,
-                    indent, KeyFormattingUtils.convertKeyIdToHex(key.getKeyID()));
+                    indent, new LogKeyId(key.getKeyID()));
             indent += 1;
 
             if (Arrays.binarySearch(KNOWN_ALGORITHMS, key.getAlgorithm()) < 0) {
@@ -1019,7 +1029,7 @@ public class UncachedKeyRing {
                 ring = removeSubKey(ring, key);
 
                 log.add(LogType.MSG_KC_SUB_NO_CERT,
-                        indent, KeyFormattingUtils.convertKeyIdToHex(key.getKeyID()));
+                        indent, new LogKeyId(key.getKeyID()));
                 indent -= 1;
                 continue;
             }
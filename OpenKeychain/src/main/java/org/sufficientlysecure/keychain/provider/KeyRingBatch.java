@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.ArrayList;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.Bundle;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+
+
+/** Row writes for a single keyring, which KeychainProvider applies in one transaction.
+ *
+ * This is the bulk alternative to a list of ContentProviderOperations for
+ * saving keyrings. The whole batch is handed to the provider in a single
+ * call, which binds each row to a compiled statement that is reused for
+ * all rows of the same shape, instead of dispatching every row by uri.
+ *
+ * Rows are identified by the values of their key columns within the
+ * keyring, the master key id is set by the provider. The batch is passed
+ * as a Bundle, so this also works from processes other than the provider's.
+ *
+ * Updates, deletes and checks roll back the whole batch unless they find
+ * exactly one row, so a batch made from rows which changed in the meantime
+ * is never applied.
+ */
+class KeyRingBatch {
+
+    static final String METHOD_APPLY = "apply_key_ring_batch";
+    static final String RESULT_SUCCESS = "success";
+
+    static final int TYPE_INSERT = 0;
+    static final int TYPE_UPDATE = 1;
+    static final int TYPE_DELETE = 2;
+    static final int TYPE_CHECK = 3;
+    static final int TYPE_DELETE_ALL = 4;
+    static final int TYPE_UPSERT = 5;
+
+    private static final String EXTRA_MASTER_KEY_ID = "master_key_id";
+    private static final String EXTRA_TYPES = "types";
+    private static final String EXTRA_TABLES = "tables";
+    private static final String EXTRA_KEYS = "keys";
+    private static final String EXTRA_VALUES = "values";
+
+    private final long mMasterKeyId;
+    private final ArrayList<Integer> mTypes;
+    private final ArrayList<String> mTables;
+    private final ArrayList<ContentValues> mKeys;
+    private final ArrayList<ContentValues> mValues;
+
+    KeyRingBatch(long masterKeyId) {
+        mMasterKeyId = masterKeyId;
+        mTypes = new ArrayList<>();
+        mTables = new ArrayList<>();
+        mKeys = new ArrayList<>();
+        mValues = new ArrayList<>();
+    }
+
+    private KeyRingBatch(long masterKeyId, ArrayList<Integer> types, ArrayList<String> tables,
+            ArrayList<ContentValues> keys, ArrayList<ContentValues> values) {
+        mMasterKeyId = masterKeyId;
+        mTypes = types;
+        mTables = tables;
+        mKeys = keys;
+        mValues = values;
+    }
+
+    void insert(String table, ContentValues values) {
+        add(TYPE_INSERT, table, new ContentValues(), values);
+    }
+
+    /** Updates the row identified by keyValues with the given values. */
+    void update(String table, ContentValues keyValues, ContentValues values) {
+        add(TYPE_UPDATE, table, keyValues, values);
+    }
+
+    /** Deletes the row identified by keyValues. */
+    void delete(String table, ContentValues keyValues) {
+        add(TYPE_DELETE, table, keyValues, new ContentValues());
+    }
+
+    /** Writes nothing, but rolls back the batch unless the row identified by keyValues exists. */
+    void check(String table, ContentValues keyValues) {
+        add(TYPE_CHECK, table, keyValues, new ContentValues());
+    }
+
+    /** Deletes all rows of the keyring in this table, however many there are. */
+    void deleteAll(String table) {
+        add(TYPE_DELETE_ALL, table, new ContentValues(), new ContentValues());
+    }
+
+    /** Updates the only row of the keyring in this table, or inserts it if there is none. */
+    void upsert(String table, ContentValues values) {
+        add(TYPE_UPSERT, table, new ContentValues(), values);
+    }
+
+    void addAll(KeyRingBatch batch) {
+        mTypes.addAll(batch.mTypes);
+        mTables.addAll(batch.mTables);
+        mKeys.addAll(batch.mKeys);
+        mValues.addAll(batch.mValues);
+    }
+
+    private void add(int type, String table, ContentValues keyValues, ContentValues values) {
+        mTypes.add(type);
+        mTables.add(table);
+        mKeys.add(keyValues);
+        mValues.add(values);
+    }
+
+    long getMasterKeyId() {
+        return mMasterKeyId;
+    }
+
+    int size() {
+        return mTypes.size();
+    }
+
+    int getType(int i) {
+        return mTypes.get(i);
+    }
+
+    String getTable(int i) {
+        return mTables.get(i);
+    }
+
+    ContentValues getKeyValues(int i) {
+        return mKeys.get(i);
+    }
+
+    ContentValues getValues(int i) {
+        return mValues.get(i);
+    }
+
+    /** Applies this batch in a single transaction. Returns false if it was rolled back. */
+    boolean apply(ContentResolver contentResolver) {
+        if (size() == 0) {
+            return true;
+        }
+        Bundle result = contentResolver.call(KeyRingData.buildPublicKeyRingUri(mMasterKeyId),
+                METHOD_APPLY, null, toBundle());
+        return result != null && result.getBoolean(RESULT_SUCCESS);
+    }
+
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLong(EXTRA_MASTER_KEY_ID, mMasterKeyId);
+        bundle.putIntegerArrayList(EXTRA_TYPES, mTypes);
+        bundle.putStringArrayList(EXTRA_TABLES, mTables);
+        bundle.putParcelableArrayList(EXTRA_KEYS, mKeys);
+        bundle.putParcelableArrayList(EXTRA_VALUES, mValues);
+        return bundle;
+    }
+
+    static KeyRingBatch fromBundle(Bundle bundle) {
+        bundle.setClassLoader(KeyRingBatch.class.getClassLoader());
+        ArrayList<Integer> types = bundle.getIntegerArrayList(EXTRA_TYPES);
+        ArrayList<String> tables = bundle.getStringArrayList(EXTRA_TABLES);
+        ArrayList<ContentValues> keys = bundle.getParcelableArrayList(EXTRA_KEYS);
+        ArrayList<ContentValues> values = bundle.getParcelableArrayList(EXTRA_VALUES);
+        if (!bundle.containsKey(EXTRA_MASTER_KEY_ID) || types == null || tables == null || keys == null
+                || values == null || tables.size() != types.size() || keys.size() != types.size()
+                || values.size() != types.size()) {
+            throw new IllegalArgumentException("Malformed keyring batch!");
+        }
+        return new KeyRingBatch(bundle.getLong(EXTRA_MASTER_KEY_ID), types, tables, keys, values);
+    }
+
+}
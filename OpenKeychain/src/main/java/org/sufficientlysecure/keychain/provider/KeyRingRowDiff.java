@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+
+/** Turns the stored rows of a keyring in one table into a given set of rows.
+ *
+ * The stored rows are read when this object is created. Each row added is
+ * then compared to the stored row with the same key: unchanged rows are
+ * skipped, changed rows are updated in place, and rows which were not
+ * stored are inserted. Stored rows which are not added again are deleted.
+ * Writes are only collected in batches here, they are applied by the caller.
+ *
+ * If the stored rows change before the writes are applied, the caller can
+ * instead write all added rows, after deleting those of the keyring.
+ */
+class KeyRingRowDiff {
+
+    private final String mTable;
+    private final String[] mKeyColumns;
+    private final String[] mColumns;
+    private final HashMap<String, ContentValues> mStoredRows = new HashMap<>();
+
+    private final KeyRingBatch mUpserts;
+    private final KeyRingBatch mDeletes;
+    private final KeyRingBatch mRows;
+
+    int mInserted, mUpdated, mDeleted, mUnchanged;
+
+    /**
+     * @param rowsUri uri which queries the stored rows of the keyring, as stored in table
+     * @param keyColumns columns which identify a row within the keyring
+     * @param columns all other columns, which are compared and updated
+     */
+    KeyRingRowDiff(ContentResolver contentResolver, long masterKeyId, Uri rowsUri, String table,
+            String[] keyColumns, String[] columns) {
+        mTable = table;
+        mKeyColumns = keyColumns;
+        mColumns = columns;
+        mUpserts = new KeyRingBatch(masterKeyId);
+        mDeletes = new KeyRingBatch(masterKeyId);
+        mRows = new KeyRingBatch(masterKeyId);
+
+        String[] projection = new String[keyColumns.length + columns.length];
+        System.arraycopy(keyColumns, 0, projection, 0, keyColumns.length);
+        System.arraycopy(columns, 0, projection, keyColumns.length, columns.length);
+
+        Cursor cursor = contentResolver.query(rowsUri, projection, null, null, null);
+        try {
+            if (cursor != null) while (cursor.moveToNext()) {
+                ContentValues row = readRow(cursor, projection);
+                mStoredRows.put(getRowKey(row), row);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /** Adds a row of the new state. */
+    void addRow(ContentValues values) {
+        mRows.insert(mTable, values);
+
+        String rowKey = getRowKey(values);
+        ContentValues stored = mStoredRows.remove(rowKey);
+        if (stored == null) {
+            mUpserts.insert(mTable, values);
+            mInserted += 1;
+            return;
+        }
+
+        ContentValues changed = new ContentValues();
+        for (String column : mColumns) {
+            Object value = values.get(column);
+            if (!valueEquals(value, stored.get(column))) {
+                putValue(changed, column, value);
+            }
+        }
+        if (changed.size() == 0) {
+            mUnchanged += 1;
+            return;
+        }
+
+        mUpserts.update(mTable, getKeyValues(values), changed);
+        mUpdated += 1;
+    }
+
+    /** Writes which insert or update added rows, in the order the rows were added. */
+    KeyRingBatch getUpserts() {
+        return mUpserts;
+    }
+
+    /** Writes which delete all stored rows that were not added. Call after all rows are added. */
+    KeyRingBatch getDeletes() {
+        if (mDeletes.size() == 0) {
+            for (ContentValues stored : mStoredRows.values()) {
+                mDeletes.delete(mTable, getKeyValues(stored));
+            }
+            mDeleted = mDeletes.size();
+        }
+        return mDeletes;
+    }
+
+    /** Writes which insert all added rows, regardless of what is stored. */
+    KeyRingBatch getRows() {
+        return mRows;
+    }
+
+    private String getRowKey(ContentValues values) {
+        String[] key = new String[mKeyColumns.length];
+        for (int i = 0; i < mKeyColumns.length; i++) {
+            key[i] = values.getAsString(mKeyColumns[i]);
+        }
+        return Arrays.toString(key);
+    }
+
+    private ContentValues getKeyValues(ContentValues values) {
+        ContentValues keyValues = new ContentValues(mKeyColumns.length);
+        for (String column : mKeyColumns) {
+            putValue(keyValues, column, values.get(column));
+        }
+        return keyValues;
+    }
+
+    private static ContentValues readRow(Cursor cursor, String[] projection) {
+        ContentValues row = new ContentValues(projection.length);
+        for (int i = 0; i < projection.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    row.putNull(projection[i]);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row.put(projection[i], cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row.put(projection[i], cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row.put(projection[i], cursor.getBlob(i));
+                    break;
+                default:
+                    row.put(projection[i], cursor.getString(i));
+                    break;
+            }
+        }
+        return row;
+    }
+
+    /** Compares a value as put into ContentValues with one read from the database, where
+     * booleans and all integer types are stored as INTEGER.
+     */
+    private static boolean valueEquals(Object value, Object stored) {
+        if (value instanceof Boolean) {
+            value = (Boolean) value ? 1L : 0L;
+        }
+        if (value instanceof Number && stored instanceof Number) {
+            return ((Number) value).longValue() == ((Number) stored).longValue();
+        }
+        if (value instanceof byte[] && stored instanceof byte[]) {
+            return Arrays.equals((byte[]) value, (byte[]) stored);
+        }
+        return value == null ? stored == null : value.equals(stored);
+    }
+
+    private static void putValue(ContentValues values, String column, Object value) {
+        if (value == null) {
+            values.putNull(column);
+        } else if (value instanceof Boolean) {
+            values.put(column, (Boolean) value);
+        } else if (value instanceof Integer) {
+            values.put(column, (Integer) value);
+        } else if (value instanceof Long) {
+            values.put(column, (Long) value);
+        } else if (value instanceof byte[]) {
+            values.put(column, (byte[]) value);
+        } else {
+            values.put(column, value.toString());
+        }
+    }
+
+}
@@ -18,8 +18,13 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 
 import org.sufficientlysecure.keychain.Constants;
 
@@ -30,6 +35,11 @@ public class KeychainContract {
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
     }
 
+    interface KeyRingBlobsColumns {
+        String BLOB_HASH = "blob_hash"; // hex encoded sha-256 of the blob
+        String BLOB_DATA = "blob_data";
+    }
+
     interface KeysColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String RANK = "rank";
@@ -55,6 +65,7 @@ public class KeychainContract {
     interface UpdatedKeysColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String LAST_UPDATED = "last_updated"; // time since epoch in seconds
+        String NEXT_UPDATE = "next_update"; // time since epoch in seconds
     }
 
     interface UserPacketsColumns {
@@ -109,6 +120,7 @@ public class KeychainContract {
     public static final String BASE_UPDATED_KEYS = "updated_keys";
 
     public static final String PATH_UNIFIED = "unified";
+    public static final String PATH_DUE = "due";
 
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
@@ -118,6 +130,7 @@ public class KeychainContract {
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
     public static final String PATH_USER_IDS = "user_ids";
+    public static final String PATH_USER_PACKETS = "user_packets";
     public static final String PATH_LINKED_IDS = "linked_ids";
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
@@ -140,6 +153,8 @@ public class KeychainContract {
         public static final String HAS_DUPLICATE_USER_ID = "has_duplicate_user_id";
         public static final String PUBKEY_DATA = "pubkey_data";
         public static final String PRIVKEY_DATA = "privkey_data";
+        /** Only for find by email queries: the emails of the key which matched, separated by commas */
+        public static final String MATCHED_EMAILS = "matched_emails";
 
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_KEY_RINGS).build();
@@ -180,6 +195,11 @@ public class KeychainContract {
                     .appendPath(PATH_BY_EMAIL).appendPath(email).build();
         }
 
+        /** Finds key rings with any of the given emails, in a single query. */
+        public static Uri buildUnifiedKeyRingsFindByEmailsUri(Collection<String> emails) {
+            return buildUnifiedKeyRingsFindByEmailUri(TextUtils.join(",", emails));
+        }
+
         public static Uri buildUnifiedKeyRingsFindByUserIdUri(String query) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
                     .appendPath(PATH_BY_USER_ID).appendPath(query).build();
@@ -261,6 +281,33 @@ public class KeychainContract {
                 = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.updated_keys";
         public static final String CONTENT_ITEM_TYPE
                 = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.provider.updated_keys";
+
+        /** Time since last update after which a key should be updated again, in s */
+        public static final long KEY_UPDATE_LIMIT =
+                Constants.DEBUG_KEYSERVER_SYNC ? 1 : TimeUnit.DAYS.toSeconds(7);
+        // random delay added to KEY_UPDATE_LIMIT, so keys updated together are not all due together, in s
+        private static final long KEY_UPDATE_JITTER =
+                Constants.DEBUG_KEYSERVER_SYNC ? 1 : TimeUnit.DAYS.toSeconds(1);
+        private static final Random sRandom = new Random();
+
+        /** Only for due keys queries: the fingerprint of the master key */
+        public static final String FINGERPRINT = KeysColumns.FINGERPRINT;
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /** Builds an uri for all keys which are due for an update at the given time, in seconds.
+         * This includes keys which were never updated. Keys are ordered by when they became due.
+         */
+        public static Uri buildDueKeysUri(long time, int limit) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_DUE).appendPath(Long.toString(time))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit)).build();
+        }
+
+        /**
+         * @return time at which a key updated at the given time is due again, in s
+         */
+        public static long getNextUpdateTime(long lastUpdated) {
+            return lastUpdated + KEY_UPDATE_LIMIT + (long) (sRandom.nextDouble() * KEY_UPDATE_JITTER);
+        }
     }
 
     public static class UserPackets implements UserPacketsColumns, BaseColumns {
@@ -296,6 +343,11 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1)).appendPath(PATH_LINKED_IDS).build();
         }
 
+        /** All user packets of a keyring as stored, including user attributes. */
+        public static Uri buildUserPacketsUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).appendPath(PATH_USER_PACKETS).build();
+        }
+
     }
 
     public static class ApiApps implements ApiAppsColumns, BaseColumns {
@@ -391,6 +443,12 @@ public class KeychainContract {
                     .appendPath(PATH_CERTS).build();
         }
 
+        /** All certificates of a keyring as stored, including those of user attributes. */
+        public static Uri buildUserPacketCertsUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_USER_PACKETS).appendPath(PATH_CERTS).build();
+        }
+
         public static Uri buildLinkedIdCertsUri(Uri uri, int rank) {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1))
                     .appendPath(PATH_LINKED_IDS).appendPath(Integer.toString(rank))
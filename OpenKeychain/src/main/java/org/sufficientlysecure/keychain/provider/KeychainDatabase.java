@@ -18,13 +18,16 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.provider.BaseColumns;
 
+import org.bouncycastle.util.encoders.Hex;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
@@ -32,8 +35,10 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAccounts
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAllowedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingBlobsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
@@ -43,6 +48,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * SQLite Datatypes (from http://www.sqlite.org/datatype3.html)
@@ -54,13 +61,19 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 19;
+    private static final int DATABASE_VERSION = 22;
+    /** WAL pages after which a checkpoint is done. Above the default of 1000, so bulk imports
+     * are interrupted by checkpoints less often. */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 2000;
+    /** Size the WAL file is truncated to after a checkpoint, so it doesn't stay at its peak. */
+    private static final int WAL_JOURNAL_SIZE_LIMIT = 4 * 1024 * 1024;
     static Boolean apgHack = false;
     private Context mContext;
 
     public interface Tables {
         String KEY_RINGS_PUBLIC = "keyrings_public";
         String KEY_RINGS_SECRET = "keyrings_secret";
+        String KEY_RING_BLOBS = "keyring_blobs";
         String KEYS = "keys";
         String UPDATED_KEYS = "updated_keys";
         String USER_PACKETS = "user_packets";
@@ -70,12 +83,46 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String API_ALLOWED_KEYS = "api_allowed_keys";
     }
 
+    /* Public keyring blobs are kept apart from keyrings_public, so that table only holds a few
+     * bytes per key and scanning or joining it doesn't page in whole keyrings. Blobs are
+     * addressed by their hash, identical keyrings are stored only once.
+     */
     private static final String CREATE_KEYRINGS_PUBLIC =
             "CREATE TABLE IF NOT EXISTS keyrings_public ("
                 + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
-                + KeyRingsColumns.KEY_RING_DATA + " BLOB"
+                + KeyRingBlobsColumns.BLOB_HASH + " TEXT"
+            + ")";
+
+    private static final String CREATE_KEYRING_BLOBS =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_RING_BLOBS + " ("
+                + KeyRingBlobsColumns.BLOB_HASH + " TEXT PRIMARY KEY,"
+                + KeyRingBlobsColumns.BLOB_DATA + " BLOB"
             + ")";
 
+    private static final String CREATE_KEYRINGS_PUBLIC_BY_BLOB_HASH =
+            "CREATE INDEX IF NOT EXISTS keyrings_public_by_blob_hash ON keyrings_public ("
+                + KeyRingBlobsColumns.BLOB_HASH + ")";
+
+    /* Remove a blob once no keyring references it anymore. */
+    private static final String CREATE_DELETE_UNUSED_BLOBS_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS delete_unused_keyring_blobs AFTER DELETE ON keyrings_public "
+                + "WHEN NOT EXISTS (SELECT 1 FROM keyrings_public WHERE "
+                    + KeyRingBlobsColumns.BLOB_HASH + " = OLD." + KeyRingBlobsColumns.BLOB_HASH + ") "
+            + "BEGIN "
+                + "DELETE FROM " + Tables.KEY_RING_BLOBS + " WHERE "
+                    + KeyRingBlobsColumns.BLOB_HASH + " = OLD." + KeyRingBlobsColumns.BLOB_HASH + "; "
+            + "END";
+
+    private static final String CREATE_UPDATE_UNUSED_BLOBS_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS update_unused_keyring_blobs "
+                + "AFTER UPDATE OF " + KeyRingBlobsColumns.BLOB_HASH + " ON keyrings_public "
+                + "WHEN NOT EXISTS (SELECT 1 FROM keyrings_public WHERE "
+                    + KeyRingBlobsColumns.BLOB_HASH + " = OLD." + KeyRingBlobsColumns.BLOB_HASH + ") "
+            + "BEGIN "
+                + "DELETE FROM " + Tables.KEY_RING_BLOBS + " WHERE "
+                    + KeyRingBlobsColumns.BLOB_HASH + " = OLD." + KeyRingBlobsColumns.BLOB_HASH + "; "
+            + "END";
+
     private static final String CREATE_KEYRINGS_SECRET =
             "CREATE TABLE IF NOT EXISTS keyrings_secret ("
                     + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
@@ -154,6 +201,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             "CREATE TABLE IF NOT EXISTS " + Tables.UPDATED_KEYS + " ("
                     + UpdatedKeysColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
                     + UpdatedKeysColumns.LAST_UPDATED + " INTEGER, "
+                    + UpdatedKeysColumns.NEXT_UPDATE + " INTEGER, "
                     + "FOREIGN KEY(" + UpdatedKeysColumns.MASTER_KEY_ID + ") REFERENCES "
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
                     + ")";
@@ -197,6 +245,10 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
 
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+
         // make sure this is only done once, on the first instance!
         boolean iAmIt = false;
         synchronized (KeychainDatabase.class) {
@@ -216,6 +268,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         Log.w(Constants.TAG, "Creating database...");
 
         db.execSQL(CREATE_KEYRINGS_PUBLIC);
+        db.execSQL(CREATE_KEYRING_BLOBS);
         db.execSQL(CREATE_KEYRINGS_SECRET);
         db.execSQL(CREATE_KEYS);
         db.execSQL(CREATE_USER_PACKETS);
@@ -230,6 +283,11 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserPacketsColumns.USER_ID + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX verified_certs ON certs ("
                 + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
+        db.execSQL("CREATE INDEX updated_keys_by_next_update ON updated_keys ("
+                + UpdatedKeysColumns.NEXT_UPDATE + ");");
+        db.execSQL(CREATE_KEYRINGS_PUBLIC_BY_BLOB_HASH);
+        db.execSQL(CREATE_DELETE_UNUSED_BLOBS_TRIGGER);
+        db.execSQL(CREATE_UPDATE_UNUSED_BLOBS_TRIGGER);
 
     }
 
@@ -239,6 +297,30 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         if (!db.isReadOnly()) {
             // Enable foreign key constraints
             db.execSQL("PRAGMA foreign_keys=ON;");
+            configureWriteAheadLogging(db);
+        }
+    }
+
+    /**
+     * With write-ahead logging, readers like the key list or API lookups are not blocked while
+     * an import writes, and SQLiteDatabase keeps a pool of connections for concurrent reads.
+     */
+    private static void configureWriteAheadLogging(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.enableWriteAheadLogging()) {
+            Log.w(Constants.TAG, "Could not enable write-ahead logging");
+            return;
+        }
+        // these return a row, so they can't go through execSQL
+        queryPragma(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES + ";");
+        queryPragma(db, "PRAGMA journal_size_limit=" + WAL_JOURNAL_SIZE_LIMIT + ";");
+    }
+
+    private static void queryPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
         }
     }
 
@@ -315,16 +397,35 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             case 15:
                 db.execSQL("CREATE INDEX uids_by_name ON user_packets (name COLLATE NOCASE)");
                 db.execSQL("CREATE INDEX uids_by_email ON user_packets (email COLLATE NOCASE)");
-                if (oldVersion == 14) {
-                    // no consolidate necessary
-                    return;
-                }
             case 16:
                 // splitUserId changed: Execute consolidate for new parsing of name, email
             case 17:
                 // splitUserId changed: Execute consolidate for new parsing of name, email
             case 18:
                 db.execSQL("ALTER TABLE keys ADD COLUMN is_secure INTEGER");
+            case 19:
+                // per-key schedule for keyserver sync, keys updated before are due as they were
+                db.execSQL("ALTER TABLE updated_keys ADD COLUMN next_update INTEGER");
+                db.execSQL("UPDATE updated_keys SET next_update = last_updated + "
+                        + UpdatedKeys.KEY_UPDATE_LIMIT);
+                db.execSQL("CREATE INDEX updated_keys_by_next_update ON updated_keys ("
+                        + UpdatedKeysColumns.NEXT_UPDATE + ");");
+            case 20:
+                // move public keyring blobs out of keyrings_public
+                db.execSQL(CREATE_KEYRING_BLOBS);
+                db.execSQL("ALTER TABLE keyrings_public ADD COLUMN blob_hash TEXT");
+                migrateKeyRingBlobs(db);
+                db.execSQL(CREATE_KEYRINGS_PUBLIC_BY_BLOB_HASH);
+                db.execSQL(CREATE_DELETE_UNUSED_BLOBS_TRIGGER);
+            case 21:
+                // keyrings are now updated in place
+                db.execSQL(CREATE_UPDATE_UNUSED_BLOBS_TRIGGER);
+        }
+
+        // returning from inside the switch would skip the migrations of all later versions
+        if (oldVersion >= 19) {
+            // no consolidate necessary
+            return;
         }
 
         // always do consolidate after upgrade
@@ -334,6 +435,43 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         mContext.getApplicationContext().startActivity(consolidateIntent);
     }
 
+    /** Moves each blob from keyrings_public into keyring_blobs. The old key_ring_data column
+     * can't be dropped in SQLite, so it is set to NULL instead. */
+    private static void migrateKeyRingBlobs(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.KEY_RINGS_PUBLIC, new String[] {
+                KeyRingsColumns.MASTER_KEY_ID, KeyRingsColumns.KEY_RING_DATA
+        }, KeyRingsColumns.KEY_RING_DATA + " IS NOT NULL", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                long masterKeyId = cursor.getLong(0);
+                byte[] blob = cursor.getBlob(1);
+                String blobHash = getBlobHash(blob);
+
+                ContentValues blobValues = new ContentValues();
+                blobValues.put(KeyRingBlobsColumns.BLOB_HASH, blobHash);
+                blobValues.put(KeyRingBlobsColumns.BLOB_DATA, blob);
+                db.insertWithOnConflict(Tables.KEY_RING_BLOBS, null, blobValues, SQLiteDatabase.CONFLICT_IGNORE);
+
+                ContentValues values = new ContentValues();
+                values.put(KeyRingBlobsColumns.BLOB_HASH, blobHash);
+                values.putNull(KeyRingsColumns.KEY_RING_DATA);
+                db.update(Tables.KEY_RINGS_PUBLIC, values, KeyRingsColumns.MASTER_KEY_ID + " = ?",
+                        new String[] { Long.toString(masterKeyId) });
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Returns the key under which a keyring blob is stored in keyring_blobs. */
+    static String getBlobHash(byte[] blob) {
+        try {
+            return Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(blob));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        }
+    }
+
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // Downgrade is ok for the debug version, makes it easier to work with branches
@@ -20,14 +20,20 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
@@ -37,6 +43,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingBlobsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
@@ -46,9 +53,12 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColu
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class KeychainProvider extends ContentProvider {
@@ -67,6 +77,8 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
     private static final int KEY_RING_LINKED_IDS = 207;
     private static final int KEY_RING_LINKED_ID_CERTS = 208;
+    private static final int KEY_RING_USER_PACKETS = 209;
+    private static final int KEY_RING_USER_PACKET_CERTS = 210;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
@@ -80,6 +92,7 @@ public class KeychainProvider extends ContentProvider {
 
     private static final int UPDATED_KEYS = 500;
     private static final int UPDATED_KEYS_SPECIFIC = 501;
+    private static final int UPDATED_KEYS_DUE = 502;
 
     protected UriMatcher mUriMatcher;
 
@@ -146,6 +159,8 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/user_packets
+         * key_rings/_/user_packets/certs
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
@@ -176,6 +191,13 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_USER_PACKETS,
+                KEY_RING_USER_PACKETS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_USER_PACKETS + "/"
+                        + KeychainContract.PATH_CERTS,
+                KEY_RING_USER_PACKET_CERTS);
 
         /**
          * API apps
@@ -206,11 +228,15 @@ public class KeychainProvider extends ContentProvider {
          */
         matcher.addURI(authority, KeychainContract.BASE_UPDATED_KEYS, UPDATED_KEYS);
         matcher.addURI(authority, KeychainContract.BASE_UPDATED_KEYS + "/*", UPDATED_KEYS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_UPDATED_KEYS + "/"
+                + KeychainContract.PATH_DUE + "/*", UPDATED_KEYS_DUE);
 
         return matcher;
     }
 
     private KeychainDatabase mKeychainDatabase;
+    /** Uris to notify once the batch being applied on this thread is committed */
+    private final ThreadLocal<HashSet<Uri>> mPendingNotifications = new ThreadLocal<>();
 
     /**
      * {@inheritDoc}
@@ -241,6 +267,7 @@ public class KeychainProvider extends ContentProvider {
                 return Keys.CONTENT_TYPE;
 
             case KEY_RING_USER_IDS:
+            case KEY_RING_USER_PACKETS:
                 return UserPackets.CONTENT_TYPE;
 
             case KEY_RING_SECRET:
@@ -250,6 +277,8 @@ public class KeychainProvider extends ContentProvider {
                 return UpdatedKeys.CONTENT_TYPE;
             case UPDATED_KEYS_SPECIFIC:
                 return UpdatedKeys.CONTENT_ITEM_TYPE;
+            case UPDATED_KEYS_DUE:
+                return UpdatedKeys.CONTENT_TYPE;
 
             case API_APPS:
                 return ApiApps.CONTENT_TYPE;
@@ -284,7 +313,7 @@ public class KeychainProvider extends ContentProvider {
         int match = mUriMatcher.match(uri);
 
         // all query() parameters, for good measure
-        String groupBy = null, having = null;
+        String groupBy = null, having = null, limit = null;
 
         switch (match) {
             case KEY_RING_UNIFIED:
@@ -324,7 +353,7 @@ public class KeychainProvider extends ContentProvider {
                                 + ")) AS " + KeyRings.HAS_DUPLICATE_USER_ID);
                 projectionMap.put(KeyRings.VERIFIED, Tables.CERTS + "." + Certs.VERIFIED);
                 projectionMap.put(KeyRings.PUBKEY_DATA,
-                        Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.KEY_RING_DATA
+                        Tables.KEY_RING_BLOBS + "." + KeyRingBlobsColumns.BLOB_DATA
                                 + " AS " + KeyRings.PUBKEY_DATA);
                 projectionMap.put(KeyRings.PRIVKEY_DATA,
                         Tables.KEY_RINGS_SECRET + "." + KeyRingData.KEY_RING_DATA
@@ -372,6 +401,11 @@ public class KeychainProvider extends ContentProvider {
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
                                     + Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.MASTER_KEY_ID
+                                + ")"
+                            + " INNER JOIN " + Tables.KEY_RING_BLOBS + " ON ("
+                                    + Tables.KEY_RINGS_PUBLIC + "." + KeyRingBlobsColumns.BLOB_HASH
+                                + " = "
+                                    + Tables.KEY_RING_BLOBS + "." + KeyRingBlobsColumns.BLOB_HASH
                                 + ")" : "")
                         + (plist.contains(KeyRings.PRIVKEY_DATA) || plist.contains(KeyRings.HAS_ANY_SECRET) ?
                             " LEFT JOIN " + Tables.KEY_RINGS_SECRET + " ON ("
@@ -477,6 +511,17 @@ public class KeychainProvider extends ContentProvider {
                                             + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                         + " AND (" + emailWhere + ")"
                                 + ")");
+                            if (match == KEY_RINGS_FIND_BY_EMAIL) {
+                                // which of the queried emails matched, to resolve several emails in one query
+                                projectionMap.put(KeyRings.MATCHED_EMAILS, "(SELECT GROUP_CONCAT("
+                                        + "tmp." + UserPackets.EMAIL + ", ',')"
+                                        + " FROM " + Tables.USER_PACKETS + " AS tmp"
+                                        + " WHERE tmp." + UserPackets.MASTER_KEY_ID
+                                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                            + " AND (" + emailWhere + ")"
+                                        + ") AS " + KeyRings.MATCHED_EMAILS);
+                                qb.setProjectionMap(projectionMap);
+                            }
                         } else {
                             // TODO better way to do this?
                             Log.e(Constants.TAG, "Malformed find by email query!");
@@ -580,11 +625,27 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RING_PUBLIC: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(KeyRingData._ID, Tables.KEY_RINGS_PUBLIC + ".oid AS _id");
-                projectionMap.put(KeyRingData.MASTER_KEY_ID, KeyRingData.MASTER_KEY_ID);
-                projectionMap.put(KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingData.MASTER_KEY_ID,
+                        Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.MASTER_KEY_ID
+                                + " AS " + KeyRingData.MASTER_KEY_ID);
+                projectionMap.put(KeyRingData.KEY_RING_DATA,
+                        Tables.KEY_RING_BLOBS + "." + KeyRingBlobsColumns.BLOB_DATA
+                                + " AS " + KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingBlobsColumns.BLOB_HASH,
+                        Tables.KEY_RINGS_PUBLIC + "." + KeyRingBlobsColumns.BLOB_HASH
+                                + " AS " + KeyRingBlobsColumns.BLOB_HASH);
                 qb.setProjectionMap(projectionMap);
 
-                qb.setTables(Tables.KEY_RINGS_PUBLIC);
+                // only load blobs if they are actually requested
+                if (projection == null || Arrays.asList(projection).contains(KeyRingData.KEY_RING_DATA)) {
+                    qb.setTables(Tables.KEY_RINGS_PUBLIC + " INNER JOIN " + Tables.KEY_RING_BLOBS + " ON ("
+                            + Tables.KEY_RINGS_PUBLIC + "." + KeyRingBlobsColumns.BLOB_HASH
+                            + " = "
+                            + Tables.KEY_RING_BLOBS + "." + KeyRingBlobsColumns.BLOB_HASH
+                            + ")");
+                } else {
+                    qb.setTables(Tables.KEY_RINGS_PUBLIC);
+                }
 
                 if(match == KEY_RING_PUBLIC) {
                     qb.appendWhere(KeyRings.MASTER_KEY_ID + " = ");
@@ -668,6 +729,20 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            // rows exactly as stored, for ProviderHelper to compare them against a keyring
+            case KEY_RING_USER_PACKETS: {
+                qb.setTables(Tables.USER_PACKETS);
+                qb.appendWhere(UserPackets.MASTER_KEY_ID + " = ");
+                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                break;
+            }
+            case KEY_RING_USER_PACKET_CERTS: {
+                qb.setTables(Tables.CERTS);
+                qb.appendWhere(Certs.MASTER_KEY_ID + " = ");
+                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                break;
+            }
+
             case UPDATED_KEYS:
             case UPDATED_KEYS_SPECIFIC: {
                 HashMap<String, String> projectionMap = new HashMap<>();
@@ -684,6 +759,41 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case UPDATED_KEYS_DUE: {
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(UpdatedKeys.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
+                projectionMap.put(UpdatedKeys.FINGERPRINT, Tables.KEYS + "." + Keys.FINGERPRINT);
+                projectionMap.put(UpdatedKeys.LAST_UPDATED, Tables.UPDATED_KEYS + "."
+                        + UpdatedKeys.LAST_UPDATED);
+                projectionMap.put(UpdatedKeys.NEXT_UPDATE, Tables.UPDATED_KEYS + "."
+                        + UpdatedKeys.NEXT_UPDATE);
+                qb.setProjectionMap(projectionMap);
+
+                // keys which were never updated have no entry, and are due immediately
+                qb.setTables(Tables.KEYS + " LEFT JOIN " + Tables.UPDATED_KEYS + " ON ("
+                        + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = "
+                        + Tables.UPDATED_KEYS + "." + UpdatedKeys.MASTER_KEY_ID + ")");
+                try {
+                    String time = Long.valueOf(uri.getPathSegments().get(2)).toString();
+                    qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0"
+                            + " AND (" + Tables.UPDATED_KEYS + "." + UpdatedKeys.NEXT_UPDATE + " IS NULL"
+                            + " OR " + Tables.UPDATED_KEYS + "." + UpdatedKeys.NEXT_UPDATE + " <= " + time + ")");
+                } catch (NumberFormatException e) {
+                    Log.e(Constants.TAG, "Malformed due keys query!", e);
+                    qb.appendWhere("0");
+                }
+
+                String limitParameter = uri.getQueryParameter(UpdatedKeys.QUERY_PARAMETER_LIMIT);
+                if (limitParameter != null) {
+                    limit = Integer.toString(Integer.parseInt(limitParameter));
+                }
+                if (TextUtils.isEmpty(sortOrder)) {
+                    // null sorts first, so keys which were never updated come first
+                    sortOrder = Tables.UPDATED_KEYS + "." + UpdatedKeys.NEXT_UPDATE + " ASC";
+                }
+                break;
+            }
+
             case API_APPS: {
                 qb.setTables(Tables.API_APPS);
 
@@ -736,7 +846,7 @@ public class KeychainProvider extends ContentProvider {
 
         SQLiteDatabase db = getDb().getReadableDatabase();
 
-        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy);
+        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy, limit);
         if (cursor != null) {
             // Tell the cursor what uri to watch, so it knows when its source data changes
             cursor.setNotificationUri(getContext().getContentResolver(), uri);
@@ -793,12 +903,13 @@ public class KeychainProvider extends ContentProvider {
 
             switch (match) {
                 case KEY_RING_PUBLIC: {
-                    db.insertOrThrow(Tables.KEY_RINGS_PUBLIC, null, values);
+                    insertPublicKeyRing(db, values);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
                     break;
                 }
                 case KEY_RING_SECRET: {
-                    db.insertOrThrow(Tables.KEY_RINGS_SECRET, null, values);
+                    // the public keyring is updated in place, so there may be an old secret keyring
+                    db.replaceOrThrow(Tables.KEY_RINGS_SECRET, null, values);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
                     break;
                 }
@@ -808,16 +919,7 @@ public class KeychainProvider extends ContentProvider {
                     break;
                 }
                 case KEY_RING_USER_IDS: {
-                    // iff TYPE is null, user_id MUST be null as well
-                    if (!(values.get(UserPacketsColumns.TYPE) == null
-                            ? (values.get(UserPacketsColumns.USER_ID) != null && values.get(UserPacketsColumns.ATTRIBUTE_DATA) == null)
-                            : (values.get(UserPacketsColumns.ATTRIBUTE_DATA) != null && values.get(UserPacketsColumns.USER_ID) == null)
-                    )) {
-                        throw new AssertionError("Incorrect type for user packet! This is a bug!");
-                    }
-                    if (((Number) values.get(UserPacketsColumns.RANK)).intValue() == 0 && values.get(UserPacketsColumns.USER_ID) == null) {
-                        throw new AssertionError("Rank 0 user packet must be a user id!");
-                    }
+                    checkUserPacketValues(values);
                     db.insertOrThrow(Tables.USER_PACKETS, null, values);
                     keyId = values.getAsLong(UserPackets.MASTER_KEY_ID);
                     break;
@@ -868,7 +970,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
@@ -877,6 +979,50 @@ public class KeychainProvider extends ContentProvider {
         return rowUri;
     }
 
+    private static void checkUserPacketValues(ContentValues values) {
+        // iff TYPE is null, user_id MUST be null as well
+        if (!(values.get(UserPacketsColumns.TYPE) == null
+                ? (values.get(UserPacketsColumns.USER_ID) != null && values.get(UserPacketsColumns.ATTRIBUTE_DATA) == null)
+                : (values.get(UserPacketsColumns.ATTRIBUTE_DATA) != null && values.get(UserPacketsColumns.USER_ID) == null)
+        )) {
+            throw new AssertionError("Incorrect type for user packet! This is a bug!");
+        }
+        if (((Number) values.get(UserPacketsColumns.RANK)).intValue() == 0 && values.get(UserPacketsColumns.USER_ID) == null) {
+            throw new AssertionError("Rank 0 user packet must be a user id!");
+        }
+    }
+
+    /** The keyring blob goes into keyring_blobs, keyed by its hash, and keyrings_public only
+     * references it. Blobs which are no longer referenced are deleted by a trigger.
+     */
+    private void insertPublicKeyRing(SQLiteDatabase db, ContentValues values) {
+        db.beginTransactionNonExclusive();
+        try {
+            db.insertOrThrow(Tables.KEY_RINGS_PUBLIC, null, storeKeyRingBlob(db, values));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Stores the keyring blob of these values in keyring_blobs, unless it is already there, and
+     * returns a copy of the values which references it by hash instead.
+     */
+    private static ContentValues storeKeyRingBlob(SQLiteDatabase db, ContentValues values) {
+        ContentValues keyRingValues = new ContentValues(values);
+        byte[] blob = keyRingValues.getAsByteArray(KeyRingData.KEY_RING_DATA);
+        keyRingValues.remove(KeyRingData.KEY_RING_DATA);
+        if (blob != null) {
+            String blobHash = KeychainDatabase.getBlobHash(blob);
+            ContentValues blobValues = new ContentValues();
+            blobValues.put(KeyRingBlobsColumns.BLOB_HASH, blobHash);
+            blobValues.put(KeyRingBlobsColumns.BLOB_DATA, blob);
+            db.insertWithOnConflict(Tables.KEY_RING_BLOBS, null, blobValues, SQLiteDatabase.CONFLICT_IGNORE);
+            keyRingValues.put(KeyRingBlobsColumns.BLOB_HASH, blobHash);
+        }
+        return keyRingValues;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -938,7 +1084,7 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -986,7 +1132,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on update! Entry already existing?", e);
@@ -1039,4 +1185,222 @@ public class KeychainProvider extends ContentProvider {
         return ApiAllowedKeys.PACKAGE_NAME + "=" + packageName + andSelection;
     }
 
+    /**
+     * Applies all operations in a single transaction, so a keyring is replaced atomically and
+     * with a single commit instead of one per row. Readers are not blocked meanwhile, since the
+     * database uses write-ahead logging. Changes are notified once, after the commit.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        HashSet<Uri> notifications = new HashSet<>();
+        mPendingNotifications.set(notifications);
+        boolean success = false;
+        db.beginTransactionNonExclusive();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            success = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mPendingNotifications.remove();
+            if (success) {
+                for (Uri uri : notifications) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a {@link KeyRingBatch}, which is how ProviderHelper saves keyrings. All rows are
+     * written in a single transaction, with statements compiled once per table and shape of row.
+     * <p/>
+     * A batch which is out of date is rolled back and reported as not successful. A malformed
+     * batch is rolled back as well, but throws an IllegalArgumentException, which is passed on
+     * to the caller: batches are only built by KeyRingBatch, so this is a bug, not a condition
+     * to be handled at runtime.
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (!KeyRingBatch.METHOD_APPLY.equals(method) || extras == null) {
+            return super.call(method, arg, extras);
+        }
+
+        KeyRingBatch batch = KeyRingBatch.fromBundle(extras);
+        Bundle result = new Bundle();
+        try {
+            applyKeyRingBatch(batch);
+            result.putBoolean(KeyRingBatch.RESULT_SUCCESS, true);
+            notifyChange(KeyRings.buildGenericKeyRingUri(batch.getMasterKeyId()));
+        } catch (SQLException e) {
+            // exceptions of this type can't be passed back to other processes
+            Log.e(Constants.TAG, "Error applying keyring batch, rolled back", e);
+            result.putBoolean(KeyRingBatch.RESULT_SUCCESS, false);
+        }
+        return result;
+    }
+
+    private void applyKeyRingBatch(KeyRingBatch batch) {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        HashMap<String, SQLiteStatement> statements = new HashMap<>();
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                String table = batch.getTable(i);
+                if (!Tables.KEY_RINGS_PUBLIC.equals(table) && !Tables.KEYS.equals(table)
+                        && !Tables.USER_PACKETS.equals(table) && !Tables.CERTS.equals(table)) {
+                    throw new IllegalArgumentException("Unknown table in keyring batch: " + table);
+                }
+
+                ContentValues keyValues = batch.getKeyValues(i);
+                ContentValues values = batch.getValues(i);
+                if (values.containsKey(KeyRingData.MASTER_KEY_ID)) {
+                    values = new ContentValues(values);
+                    values.remove(KeyRingData.MASTER_KEY_ID);
+                }
+                if (Tables.KEY_RINGS_PUBLIC.equals(table)) {
+                    values = storeKeyRingBlob(db, values);
+                }
+
+                switch (batch.getType(i)) {
+                    case KeyRingBatch.TYPE_INSERT: {
+                        if (Tables.USER_PACKETS.equals(table)) {
+                            checkUserPacketValues(values);
+                        }
+                        // certs are replaced, keeping only the latest signature as in insert()
+                        String conflict = Tables.CERTS.equals(table) ? " OR REPLACE" : "";
+                        SQLiteStatement statement = getBatchStatement(db, statements,
+                                "INSERT" + conflict + " INTO " + table, batch.getMasterKeyId(), values, null);
+                        statement.executeInsert();
+                        break;
+                    }
+                    case KeyRingBatch.TYPE_UPDATE: {
+                        if (values.size() == 0) {
+                            break;
+                        }
+                        SQLiteStatement statement = getBatchStatement(db, statements,
+                                "UPDATE " + table, batch.getMasterKeyId(), values, keyValues);
+                        checkSingleRow(statement.executeUpdateDelete(), table);
+                        break;
+                    }
+                    case KeyRingBatch.TYPE_DELETE: {
+                        SQLiteStatement statement = getBatchStatement(db, statements,
+                                "DELETE FROM " + table, batch.getMasterKeyId(), values, keyValues);
+                        checkSingleRow(statement.executeUpdateDelete(), table);
+                        break;
+                    }
+                    case KeyRingBatch.TYPE_CHECK: {
+                        SQLiteStatement statement = getBatchStatement(db, statements,
+                                "SELECT COUNT(*) FROM " + table, batch.getMasterKeyId(), values, keyValues);
+                        checkSingleRow((int) statement.simpleQueryForLong(), table);
+                        break;
+                    }
+                    case KeyRingBatch.TYPE_DELETE_ALL: {
+                        SQLiteStatement statement = getBatchStatement(db, statements,
+                                "DELETE FROM " + table, batch.getMasterKeyId(), values, keyValues);
+                        statement.executeUpdateDelete();
+                        break;
+                    }
+                    case KeyRingBatch.TYPE_UPSERT: {
+                        SQLiteStatement statement = getBatchStatement(db, statements,
+                                "UPDATE " + table, batch.getMasterKeyId(), values, keyValues);
+                        if (statement.executeUpdateDelete() == 0) {
+                            statement = getBatchStatement(db, statements,
+                                    "INSERT INTO " + table, batch.getMasterKeyId(), values, null);
+                            statement.executeInsert();
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IllegalArgumentException("Unknown write in keyring batch!");
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
+    }
+
+    /** Each update, delete or check of a batch targets one row that was stored when the batch was
+     * made. If the row is gone or ambiguous, the batch is out of date and must not be applied.
+     */
+    private static void checkSingleRow(int count, String table) {
+        if (count != 1) {
+            throw new SQLException("Keyring batch expected one row in " + table + ", found " + count);
+        }
+    }
+
+    /** Returns a compiled statement for this kind of write and these columns, with all values
+     * bound. Statements are cached in the given map, so rows of the same shape reuse them.
+     * Inserts are made into, and updates or deletes limited to, the keyring of masterKeyId.
+     */
+    private static SQLiteStatement getBatchStatement(SQLiteDatabase db, HashMap<String, SQLiteStatement> statements,
+            String prefix, long masterKeyId, ContentValues values, ContentValues keyValues) {
+        ArrayList<String> columns = new ArrayList<>(values.keySet());
+        Collections.sort(columns);
+        ArrayList<String> keyColumns = new ArrayList<>();
+        if (keyValues != null) {
+            keyColumns.addAll(keyValues.keySet());
+            Collections.sort(keyColumns);
+        }
+
+        StringBuilder sql = new StringBuilder(prefix);
+        if (keyValues == null) {
+            sql.append(" (");
+            for (String column : columns) {
+                sql.append(column).append(", ");
+            }
+            sql.append(KeyRingData.MASTER_KEY_ID).append(") VALUES (");
+            for (int i = 0; i < columns.size(); i++) {
+                sql.append("?, ");
+            }
+            sql.append("?)");
+        } else {
+            if (!columns.isEmpty()) {
+                sql.append(" SET ").append(TextUtils.join(" = ?, ", columns)).append(" = ?");
+            }
+            sql.append(" WHERE ");
+            for (String column : keyColumns) {
+                sql.append(column).append(" = ? AND ");
+            }
+            sql.append(KeyRingData.MASTER_KEY_ID).append(" = ?");
+        }
+
+        String sqlString = sql.toString();
+        SQLiteStatement statement = statements.get(sqlString);
+        if (statement == null) {
+            statement = db.compileStatement(sqlString);
+            statements.put(sqlString, statement);
+        }
+
+        statement.clearBindings();
+        int index = 1;
+        for (String column : columns) {
+            DatabaseUtils.bindObjectToProgram(statement, index++, values.get(column));
+        }
+        for (String column : keyColumns) {
+            DatabaseUtils.bindObjectToProgram(statement, index++, keyValues.get(column));
+        }
+        statement.bindLong(index, masterKeyId);
+        return statement;
+    }
+
+    private void notifyChange(Uri uri) {
+        HashSet<Uri> notifications = mPendingNotifications.get();
+        if (notifications != null) {
+            notifications.add(uri);
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
 }
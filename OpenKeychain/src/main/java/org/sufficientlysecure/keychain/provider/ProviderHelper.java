@@ -19,14 +19,11 @@
 package org.sufficientlysecure.keychain.provider;
 
 
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.v4.util.LongSparseArray;
 
@@ -37,6 +34,7 @@ import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.ImportOperation;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogKeyId;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
@@ -55,15 +53,18 @@ import org.sufficientlysecure.keychain.pgp.WrappedUserAttribute;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingBlobsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.IteratorWithSize;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OperationTimings;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressFixedScaler;
@@ -213,36 +214,54 @@ public class ProviderHelper {
         return getGenericData(KeyRings.buildUnifiedKeyRingUri(masterKeyId), proj, types);
     }
 
-    private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
-        Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[]{
-                KeyRings.MASTER_KEY_ID,
-                // we pick from cache only information that is not easily available from keyrings
-                KeyRings.HAS_ANY_SECRET, KeyRings.VERIFIED,
-                // and of course, ring data
-                KeyRings.PUBKEY_DATA
-        }, KeyRings.HAS_ANY_SECRET + " = 1", null, null);
+    /** Master keys of all our secret keys, for verification of certificates issued by them.
+     *
+     * Only the ids are queried up front. The keyring of a trusted key is loaded once a
+     * certificate by it is actually found, which for most imported keys is never.
+     */
+    private class TrustedMasterKeys {
+        // a null value means the key has not been loaded yet
+        private final LongSparseArray<CanonicalizedPublicKey> mKeys = new LongSparseArray<>();
 
-        try {
-            LongSparseArray<CanonicalizedPublicKey> result = new LongSparseArray<>();
-
-            if (cursor != null && cursor.moveToFirst()) do {
-                long masterKeyId = cursor.getLong(0);
-                int verified = cursor.getInt(2);
-                byte[] blob = cursor.getBlob(3);
-                if (blob != null) {
-                    result.put(masterKeyId,
-                            new CanonicalizedPublicKeyRing(blob, verified).getPublicKey());
+        TrustedMasterKeys() {
+            Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[]{
+                    KeyRings.MASTER_KEY_ID
+            }, KeyRings.HAS_ANY_SECRET + " = 1", null, null);
+
+            try {
+                if (cursor != null && cursor.moveToFirst()) do {
+                    mKeys.put(cursor.getLong(0), null);
+                } while (cursor.moveToNext());
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
                 }
-            } while (cursor.moveToNext());
+            }
+        }
 
-            return result;
+        int size() {
+            return mKeys.size();
+        }
 
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        /** Returns the public master key for this id, or null if it is not a trusted key. */
+        CanonicalizedPublicKey get(long masterKeyId) {
+            int index = mKeys.indexOfKey(masterKeyId);
+            if (index < 0) {
+                return null;
+            }
+            CanonicalizedPublicKey key = mKeys.valueAt(index);
+            if (key == null) {
+                try {
+                    key = getCanonicalizedPublicKeyRing(masterKeyId).getPublicKey();
+                } catch (NotFoundException e) {
+                    // deleted in the meantime
+                    mKeys.removeAt(index);
+                    return null;
+                }
+                mKeys.setValueAt(index, key);
             }
+            return key;
         }
-
     }
 
     public long getMasterKeyId(long subKeyId) throws NotFoundException {
@@ -354,9 +373,10 @@ public class ProviderHelper {
     /**
      * Saves an UncachedKeyRing of the public variant into the db.
      * <p/>
-     * This method will not delete all previous data for this masterKeyId from the database prior
-     * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
-     * and need to be saved externally to be preserved past the operation.
+     * The rows stored for this masterKeyId are compared against the keyring, and only those
+     * which differ are inserted, updated or deleted, all in a single transaction. If the stored
+     * keyring changes before that transaction, all of its rows are replaced instead. Secret keyrings
+     * are left as they are, and need to be saved externally to update their secret key info.
      */
     @SuppressWarnings("unchecked")
     private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
@@ -368,40 +388,78 @@ public class ProviderHelper {
         long masterKeyId = keyRing.getMasterKeyId();
         UncachedPublicKey masterKey = keyRing.getPublicKey();
 
-        ArrayList<ContentProviderOperation> operations;
+        KeyRingBatch batch = new KeyRingBatch(masterKeyId);
+        KeyRingRowDiff keysDiff, userPacketsDiff, certsDiff;
+        // there is one keyring row per master key id, its blob hash is only used to make sure
+        // it is still the one the stored rows were read with
+        ContentValues storedKeyRing = new ContentValues();
+        byte[] encoded;
         try {
 
             log(LogType.MSG_IP_PREPARE);
             mIndent += 1;
 
-            // save all keys and userIds included in keyRing object in database
-            operations = new ArrayList<>();
+            // read what is stored for this keyring, so only changed rows need to be written. the
+            // blob hash is read first: if another process saves this keyring before the rows are
+            // read, the batch below doesn't find the hash and is not applied.
+            String storedBlobHash = null;
+            boolean alreadyStored;
+            {
+                Cursor cursor = mContentResolver.query(KeyRingData.buildPublicKeyRingUri(masterKeyId),
+                        new String[] { KeyRingBlobsColumns.BLOB_HASH }, null, null, null);
+                try {
+                    alreadyStored = cursor != null && cursor.moveToFirst();
+                    if (alreadyStored) {
+                        storedBlobHash = cursor.getString(0);
+                        storedKeyRing.put(KeyRingBlobsColumns.BLOB_HASH, storedBlobHash);
+                    }
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+            keysDiff = new KeyRingRowDiff(mContentResolver, masterKeyId, Keys.buildKeysUri(masterKeyId),
+                    Tables.KEYS, KEYS_DIFF_KEY_COLUMNS, KEYS_DIFF_COLUMNS);
+            userPacketsDiff = new KeyRingRowDiff(mContentResolver, masterKeyId,
+                    UserPackets.buildUserPacketsUri(masterKeyId), Tables.USER_PACKETS,
+                    USER_PACKETS_DIFF_KEY_COLUMNS, USER_PACKETS_DIFF_COLUMNS);
+            certsDiff = new KeyRingRowDiff(mContentResolver, masterKeyId, Certs.buildUserPacketCertsUri(masterKeyId),
+                    Tables.CERTS, CERTS_DIFF_KEY_COLUMNS, CERTS_DIFF_COLUMNS);
+
+            if (alreadyStored) {
+                result |= SaveKeyringResult.UPDATED;
+            }
 
             log(LogType.MSG_IP_INSERT_KEYRING);
             { // insert keyring
-                ContentValues values = new ContentValues();
-                values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
                 try {
-                    values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+                    encoded = keyRing.getEncoded();
                 } catch (IOException e) {
                     log(LogType.MSG_IP_ENCODE_FAIL);
                     return SaveKeyringResult.RESULT_ERROR;
                 }
 
-                Uri uri = KeyRingData.buildPublicKeyRingUri(masterKeyId);
-                operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+                if (!alreadyStored) {
+                    ContentValues values = new ContentValues();
+                    values.put(KeyRingData.KEY_RING_DATA, encoded);
+                    batch.insert(Tables.KEY_RINGS_PUBLIC, values);
+                } else if (!KeychainDatabase.getBlobHash(encoded).equals(storedBlobHash)) {
+                    ContentValues values = new ContentValues();
+                    values.put(KeyRingData.KEY_RING_DATA, encoded);
+                    batch.update(Tables.KEY_RINGS_PUBLIC, storedKeyRing, values);
+                }
             }
 
             log(LogType.MSG_IP_INSERT_SUBKEYS);
             progress.setProgress(LogType.MSG_IP_INSERT_SUBKEYS.getMsgId(), 40, 100);
             mIndent += 1;
             { // insert subkeys
-                Uri uri = Keys.buildKeysUri(masterKeyId);
                 int rank = 0;
                 for (CanonicalizedPublicKey key : keyRing.publicKeyIterator()) {
                     long keyId = key.getKeyId();
                     log(keyId == masterKeyId ? LogType.MSG_IP_MASTER : LogType.MSG_IP_SUBKEY,
-                            KeyFormattingUtils.convertKeyIdToHex(keyId)
+                            new LogKeyId(keyId)
                     );
                     mIndent += 1;
 
@@ -454,7 +512,7 @@ public class ProviderHelper {
                         }
                     }
 
-                    operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+                    keysDiff.addRow(values);
                     ++rank;
                     mIndent -= 1;
                 }
@@ -462,7 +520,7 @@ public class ProviderHelper {
             mIndent -= 1;
 
             // get a list of owned secret keys, for verification filtering
-            LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
+            TrustedMasterKeys trustedKeys = new TrustedMasterKeys();
 
             // classify and order user ids. primary are moved to the front, revoked to the back,
             // otherwise the order in the keyfile is preserved.
@@ -508,13 +566,13 @@ public class ProviderHelper {
                     }
 
                     // do we have a trusted key for this?
-                    if (trustedKeys.indexOfKey(certId) < 0) {
+                    CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+                    if (trustedKey == null) {
                         unknownCerts += 1;
                         continue;
                     }
 
                     // verify signatures from known private keys
-                    CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
 
                     try {
                         cert.init(trustedKey);
@@ -549,7 +607,7 @@ public class ProviderHelper {
 
                     } catch (PgpGeneralException e) {
                         log(LogType.MSG_IP_UID_CERT_ERROR,
-                                KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
+                                new LogKeyId(cert.getKeyId()));
                     }
 
                 }
@@ -608,13 +666,13 @@ public class ProviderHelper {
                     }
 
                     // do we have a trusted key for this?
-                    if (trustedKeys.indexOfKey(certId) < 0) {
+                    CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+                    if (trustedKey == null) {
                         unknownCerts += 1;
                         continue;
                     }
 
                     // verify signatures from known private keys
-                    CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
 
                     try {
                         cert.init(trustedKey);
@@ -649,7 +707,7 @@ public class ProviderHelper {
 
                     } catch (PgpGeneralException e) {
                         log(LogType.MSG_IP_UAT_CERT_ERROR,
-                                KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
+                                new LogKeyId(cert.getKeyId()));
                     }
 
                 }
@@ -670,10 +728,10 @@ public class ProviderHelper {
             // iterate and put into db
             for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
                 UserPacketItem item = uids.get(userIdRank);
-                operations.add(buildUserIdOperations(masterKeyId, item, userIdRank));
+                userPacketsDiff.addRow(buildUserIdValues(masterKeyId, item, userIdRank));
 
                 if (item.selfRevocation != null) {
-                    operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfRevocation,
+                    certsDiff.addRow(buildCertValues(masterKeyId, userIdRank, item.selfRevocation,
                             Certs.VERIFIED_SELF));
                     // don't bother with trusted certs if the uid is revoked, anyways
                     continue;
@@ -683,7 +741,7 @@ public class ProviderHelper {
                     throw new AssertionError("User ids MUST be self-certified at this point!!");
                 }
 
-                operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfCert,
+                certsDiff.addRow(buildCertValues(masterKeyId, userIdRank, item.selfCert,
                         selfCertsAreTrusted ? Certs.VERIFIED_SECRET : Certs.VERIFIED_SELF));
 
                 // iterate over signatures
@@ -695,7 +753,7 @@ public class ProviderHelper {
                         continue;
                     }
                     // otherwise, build database operation
-                    operations.add(buildCertOperations(
+                    certsDiff.addRow(buildCertValues(
                             masterKeyId, userIdRank, sig, Certs.VERIFIED_SECRET));
                 }
             }
@@ -708,65 +766,64 @@ public class ProviderHelper {
             mIndent -= 1;
         }
 
-        // before deleting key, retrieve it's last updated time
-        final int INDEX_MASTER_KEY_ID = 0;
-        final int INDEX_LAST_UPDATED = 1;
-        Cursor lastUpdatedCursor = mContentResolver.query(
-                UpdatedKeys.CONTENT_URI,
-                new String[]{
-                        UpdatedKeys.MASTER_KEY_ID,
-                        UpdatedKeys.LAST_UPDATED
-                },
-                UpdatedKeys.MASTER_KEY_ID + " = ?",
-                new String[]{"" + masterKeyId},
-                null
-        );
-        if (lastUpdatedCursor.moveToNext()) {
-            // there was an entry to re-insert
-            // this operation must happen after the new key is inserted
-            ContentValues lastUpdatedEntry = new ContentValues(2);
-            lastUpdatedEntry.put(UpdatedKeys.MASTER_KEY_ID,
-                    lastUpdatedCursor.getLong(INDEX_MASTER_KEY_ID));
-            lastUpdatedEntry.put(UpdatedKeys.LAST_UPDATED,
-                    lastUpdatedCursor.getLong(INDEX_LAST_UPDATED));
-            operations.add(
-                    ContentProviderOperation
-                            .newInsert(UpdatedKeys.CONTENT_URI)
-                            .withValues(lastUpdatedEntry)
-                            .build()
-            );
+        // old certs are deleted before their user packets, new user packets inserted before their certs
+        KeyRingBatch rows = new KeyRingBatch(masterKeyId);
+        rows.addAll(keysDiff.getUpserts());
+        rows.addAll(keysDiff.getDeletes());
+        rows.addAll(certsDiff.getDeletes());
+        rows.addAll(userPacketsDiff.getDeletes());
+        rows.addAll(userPacketsDiff.getUpserts());
+        rows.addAll(certsDiff.getUpserts());
+        if (batch.size() == 0 && rows.size() > 0) {
+            // the keyring is unchanged, but its rows must still be written over the ones read
+            batch.check(Tables.KEY_RINGS_PUBLIC, storedKeyRing);
         }
-        lastUpdatedCursor.close();
-
-        try {
-            // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-            int deleted = mContentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
-                log(LogType.MSG_IP_DELETE_OLD_OK);
-                result |= SaveKeyringResult.UPDATED;
-            } else {
-                log(LogType.MSG_IP_DELETE_OLD_FAIL);
+        batch.addAll(rows);
+
+        log(LogType.MSG_IP_DIFF,
+                keysDiff.mInserted + userPacketsDiff.mInserted + certsDiff.mInserted,
+                keysDiff.mUpdated + userPacketsDiff.mUpdated + certsDiff.mUpdated,
+                keysDiff.mDeleted + userPacketsDiff.mDeleted + certsDiff.mDeleted,
+                keysDiff.mUnchanged + userPacketsDiff.mUnchanged + certsDiff.mUnchanged);
+
+        log(LogType.MSG_IP_APPLY_BATCH);
+        progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+        if (!batch.apply(mContentResolver)) {
+            // the stored keyring changed since it was read, most likely saved from another
+            // process. replace all of its rows instead, which doesn't depend on what is stored.
+            log(LogType.MSG_IP_APPLY_REWRITE);
+            if (!getRewriteBatch(masterKeyId, encoded, keysDiff, userPacketsDiff, certsDiff)
+                    .apply(mContentResolver)) {
+                log(LogType.MSG_IP_ERROR_OP_EXC);
+                return SaveKeyringResult.RESULT_ERROR;
             }
+        }
 
-            log(LogType.MSG_IP_APPLY_BATCH);
-            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
-            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        log(LogType.MSG_IP_SUCCESS);
+        progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
+        return result;
 
-            log(LogType.MSG_IP_SUCCESS);
-            progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
-            return result;
+    }
 
-        } catch (RemoteException e) {
-            log(LogType.MSG_IP_ERROR_REMOTE_EX);
-            Log.e(Constants.TAG, "RemoteException during import", e);
-            return SaveKeyringResult.RESULT_ERROR;
-        } catch (OperationApplicationException e) {
-            log(LogType.MSG_IP_ERROR_OP_EXC);
-            Log.e(Constants.TAG, "OperationApplicationException during import", e);
-            return SaveKeyringResult.RESULT_ERROR;
-        }
+    /** Returns writes which replace all rows of a keyring with those added to the diffs. The
+     * keyring row itself is updated rather than replaced, since deleting it would also delete
+     * the secret keyring.
+     */
+    private static KeyRingBatch getRewriteBatch(long masterKeyId, byte[] encoded, KeyRingRowDiff keysDiff,
+            KeyRingRowDiff userPacketsDiff, KeyRingRowDiff certsDiff) {
+        KeyRingBatch batch = new KeyRingBatch(masterKeyId);
+        batch.deleteAll(Tables.CERTS);
+        batch.deleteAll(Tables.USER_PACKETS);
+        batch.deleteAll(Tables.KEYS);
+
+        ContentValues values = new ContentValues();
+        values.put(KeyRingData.KEY_RING_DATA, encoded);
+        batch.upsert(Tables.KEY_RINGS_PUBLIC, values);
 
+        batch.addAll(keysDiff.getRows());
+        batch.addAll(userPacketsDiff.getRows());
+        batch.addAll(certsDiff.getRows());
+        return batch;
     }
 
     private static class UserPacketItem implements Comparable<UserPacketItem> {
@@ -814,7 +871,7 @@ public class ProviderHelper {
     private int saveCanonicalizedSecretKeyRing(CanonicalizedSecretKeyRing keyRing) {
 
         long masterKeyId = keyRing.getMasterKeyId();
-        log(LogType.MSG_IS, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+        log(LogType.MSG_IS, new LogKeyId(masterKeyId));
         mIndent += 1;
 
         try {
@@ -860,33 +917,33 @@ public class ProviderHelper {
                         switch (mode) {
                             case PASSPHRASE:
                                 log(LogType.MSG_IS_SUBKEY_OK,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
+                                        new LogKeyId(id)
                                 );
                                 break;
                             case PASSPHRASE_EMPTY:
                                 log(LogType.MSG_IS_SUBKEY_EMPTY,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
+                                        new LogKeyId(id)
                                 );
                                 break;
                             case PIN:
                                 log(LogType.MSG_IS_SUBKEY_PIN,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
+                                        new LogKeyId(id)
                                 );
                                 break;
                             case GNU_DUMMY:
                                 log(LogType.MSG_IS_SUBKEY_STRIPPED,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
+                                        new LogKeyId(id)
                                 );
                                 break;
                             case DIVERT_TO_CARD:
                                 log(LogType.MSG_IS_SUBKEY_DIVERT,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
+                                        new LogKeyId(id)
                                 );
                                 break;
                         }
                     } else {
                         log(LogType.MSG_IS_SUBKEY_NONEXISTENT,
-                                KeyFormattingUtils.convertKeyIdToHex(id)
+                                new LogKeyId(id)
                         );
                     }
                 }
@@ -917,10 +974,22 @@ public class ProviderHelper {
                                                String expectedFingerprint,
                                                ArrayList<CanonicalizedKeyRing> canKeyRings,
                                                boolean skipSave) {
+        OperationTimings.Phase phase = OperationTimings.startPhase(OperationTimings.PHASE_DB_SAVE);
+        try {
+            return savePublicKeyRingInternal(publicRing, progress, expectedFingerprint, canKeyRings, skipSave);
+        } finally {
+            phase.end();
+        }
+    }
+
+    private SaveKeyringResult savePublicKeyRingInternal(UncachedKeyRing publicRing, Progressable progress,
+                                                        String expectedFingerprint,
+                                                        ArrayList<CanonicalizedKeyRing> canKeyRings,
+                                                        boolean skipSave) {
 
         try {
             long masterKeyId = publicRing.getMasterKeyId();
-            log(LogType.MSG_IP, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+            log(LogType.MSG_IP, new LogKeyId(masterKeyId));
             mIndent += 1;
 
             if (publicRing.isSecret()) {
@@ -1050,10 +1119,21 @@ public class ProviderHelper {
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing, Progressable progress,
                                                ArrayList<CanonicalizedKeyRing> canKeyRings,
                                                boolean skipSave) {
+        OperationTimings.Phase phase = OperationTimings.startPhase(OperationTimings.PHASE_DB_SAVE);
+        try {
+            return saveSecretKeyRingInternal(secretRing, progress, canKeyRings, skipSave);
+        } finally {
+            phase.end();
+        }
+    }
+
+    private SaveKeyringResult saveSecretKeyRingInternal(UncachedKeyRing secretRing, Progressable progress,
+                                                        ArrayList<CanonicalizedKeyRing> canKeyRings,
+                                                        boolean skipSave) {
 
         try {
             long masterKeyId = secretRing.getMasterKeyId();
-            log(LogType.MSG_IS, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+            log(LogType.MSG_IS, new LogKeyId(masterKeyId));
             mIndent += 1;
 
             if (!secretRing.isSecret()) {
@@ -1090,7 +1170,7 @@ public class ProviderHelper {
                 if (Arrays.hashCode(secretRing.getEncoded())
                         == Arrays.hashCode(oldSecretRing.getEncoded())) {
                     log(LogType.MSG_IS_SUCCESS_IDENTICAL,
-                            KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+                            new LogKeyId(masterKeyId));
                     return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
                 }
             } catch (NotFoundException e) {
@@ -1360,22 +1440,10 @@ public class ProviderHelper {
 
             // first, backup our list of updated key times
             ArrayList<ContentValues> updatedKeysValues = new ArrayList<>();
-            final int INDEX_MASTER_KEY_ID = 0;
-            final int INDEX_LAST_UPDATED = 1;
             Cursor lastUpdatedCursor = mContentResolver.query(
-                    UpdatedKeys.CONTENT_URI,
-                    new String[]{
-                            UpdatedKeys.MASTER_KEY_ID,
-                            UpdatedKeys.LAST_UPDATED
-                    },
-                    null, null, null);
+                    UpdatedKeys.CONTENT_URI, UPDATED_KEYS_PROJECTION, null, null, null);
             while (lastUpdatedCursor.moveToNext()) {
-                ContentValues values = new ContentValues();
-                values.put(UpdatedKeys.MASTER_KEY_ID,
-                        lastUpdatedCursor.getLong(INDEX_MASTER_KEY_ID));
-                values.put(UpdatedKeys.LAST_UPDATED,
-                        lastUpdatedCursor.getLong(INDEX_LAST_UPDATED));
-                updatedKeysValues.add(values);
+                updatedKeysValues.add(getUpdatedKeysValues(lastUpdatedCursor));
             }
             lastUpdatedCursor.close();
 
@@ -1484,10 +1552,10 @@ public class ProviderHelper {
     }
 
     /**
-     * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
+     * Build ContentValues of a certificate row for a keyRing
      */
-    private ContentProviderOperation
-    buildCertOperations(long masterKeyId, int rank, WrappedSignature cert, int verified)
+    private ContentValues
+    buildCertValues(long masterKeyId, int rank, WrappedSignature cert, int verified)
             throws IOException {
         ContentValues values = new ContentValues();
         values.put(Certs.MASTER_KEY_ID, masterKeyId);
@@ -1498,16 +1566,14 @@ public class ProviderHelper {
         values.put(Certs.VERIFIED, verified);
         values.put(Certs.DATA, cert.getEncoded());
 
-        Uri uri = Certs.buildCertsUri(masterKeyId);
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     /**
-     * Build ContentProviderOperation to add PublicUserIds to database corresponding to a keyRing
+     * Build ContentValues of a user packet row for a keyRing
      */
-    private ContentProviderOperation
-    buildUserIdOperations(long masterKeyId, UserPacketItem item, int rank) {
+    private ContentValues
+    buildUserIdValues(long masterKeyId, UserPacketItem item, int rank) {
         ContentValues values = new ContentValues();
         values.put(UserPackets.MASTER_KEY_ID, masterKeyId);
         values.put(UserPackets.TYPE, item.type);
@@ -1520,9 +1586,7 @@ public class ProviderHelper {
         values.put(UserPackets.IS_REVOKED, item.selfRevocation != null);
         values.put(UserPackets.RANK, rank);
 
-        Uri uri = UserPackets.buildUserIdsUri(masterKeyId);
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     private String getKeyRingAsArmoredString(byte[] data) throws IOException, PgpGeneralException {
@@ -1545,13 +1609,70 @@ public class ProviderHelper {
     }
 
     public Uri renewKeyLastUpdatedTime(long masterKeyId, long time, TimeUnit timeUnit) {
+        long lastUpdated = timeUnit.toSeconds(time);
+        ContentValues values = new ContentValues();
+        values.put(UpdatedKeys.MASTER_KEY_ID, masterKeyId);
+        values.put(UpdatedKeys.LAST_UPDATED, lastUpdated);
+        values.put(UpdatedKeys.NEXT_UPDATE, UpdatedKeys.getNextUpdateTime(lastUpdated));
+
+        return mContentResolver.insert(UpdatedKeys.CONTENT_URI, values);
+    }
+
+    /** Postpones the next keyserver update of a key, e.g. after it failed, without
+     * changing when it was last updated.
+     *
+     * @param lastUpdated time of the last update in seconds, or null if it was never updated
+     * @param nextUpdate time of the next update in seconds
+     */
+    public Uri postponeKeyUpdate(long masterKeyId, Long lastUpdated, long nextUpdate) {
         ContentValues values = new ContentValues();
         values.put(UpdatedKeys.MASTER_KEY_ID, masterKeyId);
-        values.put(UpdatedKeys.LAST_UPDATED, timeUnit.toSeconds(time));
+        values.put(UpdatedKeys.LAST_UPDATED, lastUpdated);
+        values.put(UpdatedKeys.NEXT_UPDATE, nextUpdate);
 
         return mContentResolver.insert(UpdatedKeys.CONTENT_URI, values);
     }
 
+    // rows of a keyring, as compared by saveCanonicalizedPublicKeyRing. has_secret is not part of
+    // this, it is updated by saveCanonicalizedSecretKeyRing
+    private static final String[] KEYS_DIFF_KEY_COLUMNS = new String[] { Keys.RANK };
+    private static final String[] KEYS_DIFF_COLUMNS = new String[] {
+            Keys.KEY_ID, Keys.KEY_SIZE, Keys.KEY_CURVE_OID, Keys.ALGORITHM, Keys.FINGERPRINT,
+            Keys.CAN_CERTIFY, Keys.CAN_ENCRYPT, Keys.CAN_SIGN, Keys.CAN_AUTHENTICATE,
+            Keys.IS_REVOKED, Keys.IS_SECURE, Keys.CREATION, Keys.EXPIRY
+    };
+    private static final String[] USER_PACKETS_DIFF_KEY_COLUMNS = new String[] { UserPackets.RANK };
+    private static final String[] USER_PACKETS_DIFF_COLUMNS = new String[] {
+            UserPackets.TYPE, UserPackets.USER_ID, UserPackets.NAME, UserPackets.EMAIL,
+            UserPackets.COMMENT, UserPackets.ATTRIBUTE_DATA, UserPackets.IS_PRIMARY, UserPackets.IS_REVOKED
+    };
+    private static final String[] CERTS_DIFF_KEY_COLUMNS = new String[] { Certs.RANK, Certs.KEY_ID_CERTIFIER };
+    private static final String[] CERTS_DIFF_COLUMNS = new String[] {
+            Certs.TYPE, Certs.CREATION, Certs.VERIFIED, Certs.DATA
+    };
+
+    private static final String[] UPDATED_KEYS_PROJECTION = new String[] {
+            UpdatedKeys.MASTER_KEY_ID,
+            UpdatedKeys.LAST_UPDATED,
+            UpdatedKeys.NEXT_UPDATE
+    };
+    private static final int INDEX_UPDATED_KEYS_MASTER_KEY_ID = 0;
+    private static final int INDEX_UPDATED_KEYS_LAST_UPDATED = 1;
+    private static final int INDEX_UPDATED_KEYS_NEXT_UPDATE = 2;
+
+    /** Reads an entry of UPDATED_KEYS_PROJECTION, keeping null values as they are. */
+    private static ContentValues getUpdatedKeysValues(Cursor cursor) {
+        ContentValues values = new ContentValues(3);
+        values.put(UpdatedKeys.MASTER_KEY_ID, cursor.getLong(INDEX_UPDATED_KEYS_MASTER_KEY_ID));
+        if (!cursor.isNull(INDEX_UPDATED_KEYS_LAST_UPDATED)) {
+            values.put(UpdatedKeys.LAST_UPDATED, cursor.getLong(INDEX_UPDATED_KEYS_LAST_UPDATED));
+        }
+        if (!cursor.isNull(INDEX_UPDATED_KEYS_NEXT_UPDATE)) {
+            values.put(UpdatedKeys.NEXT_UPDATE, cursor.getLong(INDEX_UPDATED_KEYS_NEXT_UPDATE));
+        }
+        return values;
+    }
+
     public ContentResolver getContentResolver() {
         return mContentResolver;
     }
@@ -28,8 +28,12 @@ import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.provider.MediaStore;
+import android.support.annotation.NonNull;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.util.DatabaseUtil;
@@ -38,7 +42,15 @@ import org.sufficientlysecure.keychain.util.Log;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,6 +72,13 @@ import java.util.regex.Pattern;
  * - http://stackoverflow.com/q/24467696
  * - http://stackoverflow.com/q/18249007
  * - Comments at http://www.blogc.at/2014/03/23/share-private-files-with-other-apps-fileprovider/
+ * <p/>
+ * Storage management:
+ * - Files are reclaimed once they haven't been accessed for TEMPFILE_TTL, and least recently
+ * accessed files first whenever the total size exceeds TEMPFILE_QUOTA
+ * - Files which are pinned, e.g. while they are displayed, are never reclaimed. Pins are
+ * reference counted and held in memory only, so they are gone when the process is.
+ * - Reclamation happens in the background after each new file, and periodically
  */
 public class TemporaryFileProvider extends ContentProvider {
 
@@ -67,15 +86,35 @@ public class TemporaryFileProvider extends ContentProvider {
     private static final String TABLE_FILES = "files";
     public static final String AUTHORITY = Constants.TEMP_FILE_PROVIDER_AUTHORITY;
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
-    private static final int DB_VERSION = 3;
+    private static final int DB_VERSION = 4;
 
     interface TemporaryFileColumns {
         String COLUMN_UUID = "id";
         String COLUMN_NAME = "name";
         String COLUMN_TIME = "time";
         String COLUMN_TYPE = "mimetype";
+        String COLUMN_ACCESS = "access";
     }
 
+    // files from before access times were recorded count as accessed when created
+    private static final String LAST_ACCESS = "COALESCE(" + TemporaryFileColumns.COLUMN_ACCESS
+            + ", " + TemporaryFileColumns.COLUMN_TIME + ")";
+
+    private static final String METHOD_PIN = "pin";
+    private static final String METHOD_UNPIN = "unpin";
+    private static final String METHOD_COMPACT = "compact";
+    private static final String METHOD_GET_STATS = "stats";
+
+    public static final String STATS_BYTES_HELD = "bytes_held";
+    public static final String STATS_FILES_HELD = "files_held";
+    public static final String STATS_FILES_PINNED = "files_pinned";
+    public static final String STATS_BYTES_RECLAIMED = "bytes_reclaimed";
+    public static final String STATS_FILES_RECLAIMED = "files_reclaimed";
+
+    private static final long COMPACTION_INTERVAL_MINUTES = 15;
+    // files which were just accessed are probably still being written, or about to be read
+    private static final long MIN_RECLAIM_AGE = 5 * 60 * 1000;
+
     private static final String TEMP_FILES_DIR = "temp";
     private static File tempFilesDir;
 
@@ -111,12 +150,36 @@ public class TemporaryFileProvider extends ContentProvider {
         return context.getContentResolver().update(uri, values, null, null);
     }
 
-    public static int cleanUp(Context context) {
-        return context.getContentResolver().delete(
-                CONTENT_URI,
-                TemporaryFileColumns.COLUMN_TIME + "< ?",
-                new String[]{Long.toString(System.currentTimeMillis() - Constants.TEMPFILE_TTL)}
-        );
+    /**
+     * Schedules reclamation of expired files, and files over quota. Returns immediately,
+     * the compaction itself runs on the provider's background thread.
+     */
+    public static void cleanUp(Context context) {
+        context.getContentResolver().call(CONTENT_URI, METHOD_COMPACT, null, null);
+    }
+
+    /**
+     * Protects a file from being reclaimed, until it is unpinned as often as it was pinned.
+     * Uris of other providers are ignored.
+     */
+    public static void pin(Context context, Uri uri) {
+        if (AUTHORITY.equals(uri.getAuthority())) {
+            context.getContentResolver().call(CONTENT_URI, METHOD_PIN, uri.getLastPathSegment(), null);
+        }
+    }
+
+    public static void unpin(Context context, Uri uri) {
+        if (AUTHORITY.equals(uri.getAuthority())) {
+            context.getContentResolver().call(CONTENT_URI, METHOD_UNPIN, uri.getLastPathSegment(), null);
+        }
+    }
+
+    /**
+     * Returns storage metrics, see the STATS_ keys. Held bytes and files are as of the last
+     * reclamation, reclaimed bytes and files are totals since the process started.
+     */
+    public static Bundle getStats(Context context) {
+        return context.getContentResolver().call(CONTENT_URI, METHOD_GET_STATS, null, null);
     }
 
     private class TemporaryStorageDatabase extends SQLiteOpenHelper {
@@ -131,7 +194,8 @@ public class TemporaryFileProvider extends ContentProvider {
                     TemporaryFileColumns.COLUMN_UUID + " TEXT PRIMARY KEY, " +
                     TemporaryFileColumns.COLUMN_NAME + " TEXT, " +
                     TemporaryFileColumns.COLUMN_TYPE + " TEXT, " +
-                    TemporaryFileColumns.COLUMN_TIME + " INTEGER" +
+                    TemporaryFileColumns.COLUMN_TIME + " INTEGER, " +
+                    TemporaryFileColumns.COLUMN_ACCESS + " INTEGER" +
                     ");");
         }
 
@@ -149,12 +213,27 @@ public class TemporaryFileProvider extends ContentProvider {
                             ");");
                 case 2:
                     db.execSQL("ALTER TABLE files ADD COLUMN " + TemporaryFileColumns.COLUMN_TYPE + " TEXT");
+                case 3:
+                    db.execSQL("ALTER TABLE files ADD COLUMN " + TemporaryFileColumns.COLUMN_ACCESS + " INTEGER");
             }
         }
     }
 
     private static TemporaryStorageDatabase db;
 
+    // pin counts by file id
+    private final HashMap<String, Integer> mPins = new HashMap<>();
+
+    private final Object mCompactionLock = new Object();
+    private final AtomicBoolean mCompactionPending = new AtomicBoolean();
+    private ScheduledExecutorService mCompactionExecutor;
+
+    // metrics, as of the last compaction
+    private long mBytesHeld;
+    private int mFilesHeld;
+    private long mBytesReclaimed;
+    private int mFilesReclaimed;
+
     private File getFile(Uri uri) throws FileNotFoundException {
         try {
             return getFile(uri.getLastPathSegment());
@@ -176,9 +255,219 @@ public class TemporaryFileProvider extends ContentProvider {
     public boolean onCreate() {
         db = new TemporaryStorageDatabase(getContext());
         tempFilesDir = new File(getContext().getCacheDir(), TEMP_FILES_DIR);
+
+        mCompactionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "TemporaryFileCompaction");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mCompactionExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        }, COMPACTION_INTERVAL_MINUTES, COMPACTION_INTERVAL_MINUTES, TimeUnit.MINUTES);
+
         return tempFilesDir.mkdirs();
     }
 
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        // call() is not covered by the write permission, so restrict it to ourselves
+        if (Binder.getCallingUid() != Process.myUid()) {
+            throw new SecurityException("Managing temporary files is not allowed!");
+        }
+
+        switch (method) {
+            case METHOD_PIN: {
+                pin(arg);
+                return null;
+            }
+            case METHOD_UNPIN: {
+                unpin(arg);
+                return null;
+            }
+            case METHOD_COMPACT: {
+                scheduleCompaction();
+                return null;
+            }
+            case METHOD_GET_STATS: {
+                return getStats();
+            }
+        }
+
+        return super.call(method, arg, extras);
+    }
+
+    private void pin(String id) {
+        // checks the id
+        getFile(id);
+        synchronized (mPins) {
+            Integer count = mPins.get(id);
+            mPins.put(id, count == null ? 1 : count + 1);
+        }
+    }
+
+    private void unpin(String id) {
+        synchronized (mPins) {
+            Integer count = mPins.get(id);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                mPins.put(id, count - 1);
+                return;
+            }
+            mPins.remove(id);
+        }
+
+        synchronized (mCompactionLock) {
+            if (mBytesHeld <= Constants.TEMPFILE_QUOTA) {
+                return;
+            }
+        }
+        scheduleCompaction();
+    }
+
+    private Bundle getStats() {
+        Bundle stats = new Bundle();
+        synchronized (mCompactionLock) {
+            stats.putLong(STATS_BYTES_HELD, mBytesHeld);
+            stats.putInt(STATS_FILES_HELD, mFilesHeld);
+            stats.putLong(STATS_BYTES_RECLAIMED, mBytesReclaimed);
+            stats.putInt(STATS_FILES_RECLAIMED, mFilesReclaimed);
+        }
+        synchronized (mPins) {
+            stats.putInt(STATS_FILES_PINNED, mPins.size());
+        }
+        return stats;
+    }
+
+    /** Schedules a compaction, unless one is scheduled already. */
+    private void scheduleCompaction() {
+        if (!mCompactionPending.compareAndSet(false, true)) {
+            return;
+        }
+        mCompactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCompactionPending.set(false);
+                compact();
+            }
+        });
+    }
+
+    /**
+     * Reclaims expired files and, least recently accessed first, files over quota. Pinned
+     * files and files accessed within MIN_RECLAIM_AGE are kept. Also removes files which
+     * have no database entry, and entries which have no file.
+     *
+     * @return the number of reclaimed files
+     */
+    private int compact() {
+        synchronized (mCompactionLock) {
+            long now = System.currentTimeMillis();
+            HashSet<String> pinned;
+            synchronized (mPins) {
+                pinned = new HashSet<>(mPins.keySet());
+            }
+
+            ArrayList<String> ids = new ArrayList<>();
+            ArrayList<Long> lastAccesses = new ArrayList<>();
+            Cursor cursor = db.getReadableDatabase().query(TABLE_FILES,
+                    new String[]{TemporaryFileColumns.COLUMN_UUID, LAST_ACCESS},
+                    null, null, null, null, LAST_ACCESS + " ASC");
+            if (cursor == null) {
+                return 0;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getString(0));
+                    lastAccesses.add(cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            int filesReclaimed = 0;
+            long bytesReclaimed = 0;
+            int filesHeld = ids.size();
+
+            // first pass: drop expired files and lost entries, and count what is left
+            long bytesHeld = 0;
+            long[] sizes = new long[ids.size()];
+            boolean[] reclaimed = new boolean[ids.size()];
+            for (int i = 0; i < ids.size(); i++) {
+                String id = ids.get(i);
+                File file = getFile(id);
+                sizes[i] = file.length();
+                long lastAccess = lastAccesses.get(i);
+
+                boolean isExpired = lastAccess < now - Constants.TEMPFILE_TTL;
+                boolean isLost = !file.exists() && lastAccess < now - MIN_RECLAIM_AGE;
+                if (!pinned.contains(id) && (isExpired || isLost)) {
+                    reclaim(id);
+                    reclaimed[i] = true;
+                    filesHeld -= 1;
+                    filesReclaimed += 1;
+                    bytesReclaimed += sizes[i];
+                } else {
+                    bytesHeld += sizes[i];
+                }
+            }
+
+            // second pass: least recently accessed first, until we are within quota
+            for (int i = 0; i < ids.size() && bytesHeld > Constants.TEMPFILE_QUOTA; i++) {
+                String id = ids.get(i);
+                if (reclaimed[i] || pinned.contains(id) || lastAccesses.get(i) >= now - MIN_RECLAIM_AGE) {
+                    continue;
+                }
+                reclaim(id);
+                filesHeld -= 1;
+                filesReclaimed += 1;
+                bytesReclaimed += sizes[i];
+                bytesHeld -= sizes[i];
+            }
+
+            // files without an entry are left over from crashes, they are never accessible
+            HashSet<String> knownIds = new HashSet<>(ids);
+            File[] files = tempFilesDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (knownIds.contains(file.getName()) || file.lastModified() >= now - MIN_RECLAIM_AGE) {
+                        continue;
+                    }
+                    long size = file.length();
+                    if (file.delete()) {
+                        filesReclaimed += 1;
+                        bytesReclaimed += size;
+                    }
+                }
+            }
+
+            mBytesHeld = bytesHeld;
+            mFilesHeld = filesHeld;
+            mBytesReclaimed += bytesReclaimed;
+            mFilesReclaimed += filesReclaimed;
+
+            Log.d(Constants.TAG, "Temporary storage: holding " + mBytesHeld + " bytes in " + mFilesHeld
+                    + " files, reclaimed " + bytesReclaimed + " bytes in " + filesReclaimed + " files ("
+                    + mBytesReclaimed + " bytes in " + mFilesReclaimed + " files total)");
+
+            return filesReclaimed;
+        }
+    }
+
+    private void reclaim(String id) {
+        getFile(id).delete();
+        db.getWritableDatabase().delete(TABLE_FILES,
+                TemporaryFileColumns.COLUMN_UUID + "=?", new String[]{id});
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         if (uri.getLastPathSegment() == null) {
@@ -250,6 +539,7 @@ public class TemporaryFileProvider extends ContentProvider {
         if (!values.containsKey(TemporaryFileColumns.COLUMN_TIME)) {
             values.put(TemporaryFileColumns.COLUMN_TIME, System.currentTimeMillis());
         }
+        values.put(TemporaryFileColumns.COLUMN_ACCESS, values.getAsLong(TemporaryFileColumns.COLUMN_TIME));
         String uuid = UUID.randomUUID().toString();
         values.put(TemporaryFileColumns.COLUMN_UUID, uuid);
         int insert = (int) db.getWritableDatabase().insert(TABLE_FILES, null, values);
@@ -263,6 +553,10 @@ public class TemporaryFileProvider extends ContentProvider {
             Log.e(Constants.TAG, "File creation failed!");
             return null;
         }
+
+        // make room for the new file early, rather than when the cache is full already
+        scheduleCompaction();
+
         return Uri.withAppendedPath(CONTENT_URI, uuid);
     }
 
@@ -304,7 +598,14 @@ public class TemporaryFileProvider extends ContentProvider {
 
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
-        return openFileHelper(uri, mode);
+        ParcelFileDescriptor fd = openFileHelper(uri, mode);
+
+        ContentValues values = new ContentValues();
+        values.put(TemporaryFileColumns.COLUMN_ACCESS, System.currentTimeMillis());
+        db.getWritableDatabase().update(TABLE_FILES, values,
+                TemporaryFileColumns.COLUMN_UUID + " = ?", new String[]{uri.getLastPathSegment()});
+
+        return fd;
     }
 
 }
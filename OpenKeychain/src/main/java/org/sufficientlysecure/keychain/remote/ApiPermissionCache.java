@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/** Per-process cache of API caller verifications and allowed keys.
+ *
+ * Verifying a caller takes a PackageManager call for its certificates and a
+ * query for the stored certificate, and looking up its allowed keys takes
+ * more queries. Clients typically issue many calls in a row, so the results
+ * are memoized by calling uid and package name.
+ *
+ * Only successful verifications are cached. Everything is dropped whenever
+ * anything below the API apps uri changes, which includes registration,
+ * changes to allowed keys, and uninstalled or replaced packages, which are
+ * signaled by PackageUninstallReceiver. Since the observer is notified
+ * through the content resolver, this works across processes.
+ */
+class ApiPermissionCache {
+
+    private static ApiPermissionCache sInstance;
+
+    private final Object mLock = new Object();
+    /** Incremented on each invalidation, so results loaded concurrently are not cached. */
+    private int mGeneration;
+    private final SparseBooleanArray mVerifiedUids = new SparseBooleanArray();
+    private final SparseArray<String[]> mPackagesForUid = new SparseArray<>();
+    private final HashMap<String, Set<Long>> mAllowedKeyIds = new HashMap<>();
+    private final HashMap<String, Set<Long>> mAccountKeyIds = new HashMap<>();
+
+    static synchronized ApiPermissionCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ApiPermissionCache();
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    ApiApps.CONTENT_URI, true, new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            sInstance.invalidate();
+                        }
+                    });
+        }
+        return sInstance;
+    }
+
+    /** Drops all cached data in this process, if there is any. */
+    static synchronized void invalidateInstance() {
+        if (sInstance != null) {
+            sInstance.invalidate();
+        }
+    }
+
+    void invalidate() {
+        synchronized (mLock) {
+            Log.d(Constants.TAG, "Invalidating api permission cache");
+            mGeneration++;
+            mVerifiedUids.clear();
+            mPackagesForUid.clear();
+            mAllowedKeyIds.clear();
+            mAccountKeyIds.clear();
+        }
+    }
+
+    /** Returns a token to pass to the put methods, which must be obtained before loading. */
+    int getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    boolean isUidVerified(int uid) {
+        synchronized (mLock) {
+            return mVerifiedUids.get(uid, false);
+        }
+    }
+
+    void putUidVerified(int uid, int generation) {
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mVerifiedUids.put(uid, true);
+            }
+        }
+    }
+
+    String[] getPackagesForUid(int uid) {
+        synchronized (mLock) {
+            return mPackagesForUid.get(uid);
+        }
+    }
+
+    void putPackagesForUid(int uid, String[] packages, int generation) {
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mPackagesForUid.put(uid, packages);
+            }
+        }
+    }
+
+    /** Returns a copy of the cached allowed key ids for the package, or null if not cached. */
+    HashSet<Long> getAllowedKeyIds(String packageName) {
+        synchronized (mLock) {
+            Set<Long> keyIds = mAllowedKeyIds.get(packageName);
+            return keyIds != null ? new HashSet<>(keyIds) : null;
+        }
+    }
+
+    void putAllowedKeyIds(String packageName, Set<Long> keyIds, int generation) {
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mAllowedKeyIds.put(packageName, new HashSet<>(keyIds));
+            }
+        }
+    }
+
+    /** Returns a copy of the cached account key ids for the package, or null if not cached. */
+    HashSet<Long> getAccountKeyIds(String packageName) {
+        synchronized (mLock) {
+            Set<Long> keyIds = mAccountKeyIds.get(packageName);
+            return keyIds != null ? new HashSet<>(keyIds) : null;
+        }
+    }
+
+    void putAccountKeyIds(String packageName, Set<Long> keyIds, int generation) {
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mAccountKeyIds.put(packageName, new HashSet<>(keyIds));
+            }
+        }
+    }
+
+}
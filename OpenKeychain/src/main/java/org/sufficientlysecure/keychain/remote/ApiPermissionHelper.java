@@ -21,6 +21,8 @@ package org.sufficientlysecure.keychain.remote;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import android.annotation.SuppressLint;
 import android.app.PendingIntent;
@@ -39,6 +41,8 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.util.Log;
 
 
@@ -49,12 +53,14 @@ public class ApiPermissionHelper {
 
     private final Context mContext;
     private final ApiDataAccessObject mApiDao;
+    private final ApiPermissionCache mCache;
     private PackageManager mPackageManager;
 
     public ApiPermissionHelper(Context context, ApiDataAccessObject apiDao) {
         mContext = context;
         mPackageManager = context.getPackageManager();
         mApiDao = apiDao;
+        mCache = ApiPermissionCache.getInstance(context);
     }
 
     public static class WrongPackageCertificateException extends Exception {
@@ -155,7 +161,7 @@ public class ApiPermissionHelper {
      * @return package name
      */
     protected String getCurrentCallingPackage() {
-        String[] callingPackages = mPackageManager.getPackagesForUid(Binder.getCallingUid());
+        String[] callingPackages = getPackagesForUid(Binder.getCallingUid());
 
         // NOTE: No support for sharedUserIds
         // callingPackages contains more than one entry when sharedUserId has been used
@@ -212,11 +218,17 @@ public class ApiPermissionHelper {
     private boolean isUidAllowed(int uid)
             throws WrongPackageCertificateException {
 
-        String[] callingPackages = mPackageManager.getPackagesForUid(uid);
+        if (mCache.isUidVerified(uid)) {
+            return true;
+        }
+
+        int generation = mCache.getGeneration();
+        String[] callingPackages = getPackagesForUid(uid);
 
         // is calling package allowed to use this service?
         for (String currentPkg : callingPackages) {
             if (isPackageAllowed(currentPkg)) {
+                mCache.putUidVerified(uid, generation);
                 return true;
             }
         }
@@ -225,6 +237,41 @@ public class ApiPermissionHelper {
         return false;
     }
 
+    private String[] getPackagesForUid(int uid) {
+        String[] packages = mCache.getPackagesForUid(uid);
+        if (packages == null) {
+            int generation = mCache.getGeneration();
+            packages = mPackageManager.getPackagesForUid(uid);
+            mCache.putPackagesForUid(uid, packages, generation);
+        }
+        return packages;
+    }
+
+    /**
+     * Returns the ids of all keys the package is allowed to use. If requested, this
+     * includes the keys of its (deprecated) accounts. The returned set may be modified.
+     */
+    protected HashSet<Long> getAllowedKeyIds(String packageName, boolean includeAccountKeys) {
+        int generation = mCache.getGeneration();
+
+        HashSet<Long> allowedKeyIds = mCache.getAllowedKeyIds(packageName);
+        if (allowedKeyIds == null) {
+            allowedKeyIds = mApiDao.getAllowedKeyIdsForApp(ApiAllowedKeys.buildBaseUri(packageName));
+            mCache.putAllowedKeyIds(packageName, allowedKeyIds, generation);
+        }
+
+        if (includeAccountKeys) {
+            Set<Long> accountKeyIds = mCache.getAccountKeyIds(packageName);
+            if (accountKeyIds == null) {
+                accountKeyIds = mApiDao.getAllKeyIdsForApp(ApiAccounts.buildBaseUri(packageName));
+                mCache.putAccountKeyIds(packageName, accountKeyIds, generation);
+            }
+            allowedKeyIds.addAll(accountKeyIds);
+        }
+
+        return allowedKeyIds;
+    }
+
     /**
      * Checks if packageName is a registered app for the API. Does not return true for own package!
      *
@@ -59,6 +59,7 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
 
     private UriMatcher mUriMatcher;
     private ApiPermissionHelper mApiPermissionHelper;
+    private KeychainDatabase mKeychainDatabase;
 
 
     /**
@@ -90,11 +91,14 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
     public boolean onCreate() {
         mUriMatcher = buildUriMatcher();
         mApiPermissionHelper = new ApiPermissionHelper(getContext(), new ApiDataAccessObject(this));
+        // a single instance, so its connections are reused across queries. this does not open
+        // the database yet, so it is cheap enough for onCreate
+        mKeychainDatabase = new KeychainDatabase(getContext());
         return true;
     }
 
     public KeychainDatabase getDb() {
-        return new KeychainDatabase(getContext());
+        return mKeychainDatabase;
     }
 
     /**
@@ -52,10 +52,9 @@ import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.RecipientKeyCache;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
-import org.sufficientlysecure.keychain.provider.KeychainContract;
-import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.remote.OpenPgpServiceKeyIdExtractor.KeyIdResult;
@@ -89,7 +88,6 @@ public class OpenPgpService extends Service {
 
     private ApiPermissionHelper mApiPermissionHelper;
     private ProviderHelper mProviderHelper;
-    private ApiDataAccessObject mApiDao;
     private OpenPgpServiceKeyIdExtractor mKeyIdExtractor;
     private ApiPendingIntentFactory mApiPendingIntentFactory;
 
@@ -98,10 +96,10 @@ public class OpenPgpService extends Service {
         super.onCreate();
         mApiPermissionHelper = new ApiPermissionHelper(this, new ApiDataAccessObject(this));
         mProviderHelper = new ProviderHelper(this);
-        mApiDao = new ApiDataAccessObject(this);
 
         mApiPendingIntentFactory = new ApiPendingIntentFactory(getBaseContext());
-        mKeyIdExtractor = OpenPgpServiceKeyIdExtractor.getInstance(getContentResolver(), mApiPendingIntentFactory);
+        mKeyIdExtractor = OpenPgpServiceKeyIdExtractor.getInstance(getContentResolver(),
+                RecipientKeyCache.getInstance(this), mApiPendingIntentFactory);
     }
 
     private Intent signImpl(Intent data, InputStream inputStream,
@@ -694,15 +692,8 @@ public class OpenPgpService extends Service {
 
     private HashSet<Long> getAllowedKeyIds(int targetApiVersion) {
         String currentPkg = mApiPermissionHelper.getCurrentCallingPackage();
-        HashSet<Long> allowedKeyIds = mApiDao.getAllowedKeyIdsForApp(
-                KeychainContract.ApiAllowedKeys.buildBaseUri(currentPkg));
-
-        if (targetApiVersion <= API_VERSION_HIGHEST_WITH_ACCOUNTS) {
-            allowedKeyIds.addAll(mApiDao.getAllKeyIdsForApp(
-                    ApiAccounts.buildBaseUri(currentPkg)));
-        }
-
-        return allowedKeyIds;
+        return mApiPermissionHelper.getAllowedKeyIds(currentPkg,
+                targetApiVersion <= API_VERSION_HIGHEST_WITH_ACCOUNTS);
     }
 
     /**
@@ -3,7 +3,11 @@ package org.sufficientlysecure.keychain.remote;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 import android.app.PendingIntent;
 import android.content.ContentResolver;
@@ -18,6 +22,8 @@ import org.openintents.openpgp.util.OpenPgpApi;
 import org.openintents.openpgp.util.OpenPgpUtils;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
+import org.sufficientlysecure.keychain.pgp.RecipientKeyCache;
+import org.sufficientlysecure.keychain.pgp.RecipientKeyCache.EmailResolution;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
@@ -31,8 +37,10 @@ class OpenPgpServiceKeyIdExtractor {
             KeyRings.MASTER_KEY_ID,
             KeyRings.IS_EXPIRED, // referenced in where clause!
             KeyRings.IS_REVOKED, // referenced in where clause!
+            KeyRings.MATCHED_EMAILS,
     };
     private static final int INDEX_MASTER_KEY_ID = 1;
+    private static final int INDEX_MATCHED_EMAILS = 4;
 
     // do not pre-select revoked or expired keys
     private static final String KEY_SEARCH_WHERE = Tables.KEYS + "." + KeychainContract.KeyRings.IS_REVOKED
@@ -41,15 +49,18 @@ class OpenPgpServiceKeyIdExtractor {
 
     private final ApiPendingIntentFactory apiPendingIntentFactory;
     private final ContentResolver contentResolver;
+    private final RecipientKeyCache recipientKeyCache;
 
 
-    static OpenPgpServiceKeyIdExtractor getInstance(ContentResolver contentResolver, ApiPendingIntentFactory apiPendingIntentFactory) {
-        return new OpenPgpServiceKeyIdExtractor(contentResolver, apiPendingIntentFactory);
+    static OpenPgpServiceKeyIdExtractor getInstance(ContentResolver contentResolver,
+            RecipientKeyCache recipientKeyCache, ApiPendingIntentFactory apiPendingIntentFactory) {
+        return new OpenPgpServiceKeyIdExtractor(contentResolver, recipientKeyCache, apiPendingIntentFactory);
     }
 
-    private OpenPgpServiceKeyIdExtractor(ContentResolver contentResolver,
+    private OpenPgpServiceKeyIdExtractor(ContentResolver contentResolver, RecipientKeyCache recipientKeyCache,
             ApiPendingIntentFactory apiPendingIntentFactory) {
         this.contentResolver = contentResolver;
+        this.recipientKeyCache = recipientKeyCache;
         this.apiPendingIntentFactory = apiPendingIntentFactory;
     }
 
@@ -99,40 +110,23 @@ class OpenPgpServiceKeyIdExtractor {
         ArrayList<String> missingEmails = new ArrayList<>();
         ArrayList<String> duplicateEmails = new ArrayList<>();
         if (hasUserIds) {
+            ArrayList<String> emails = new ArrayList<>();
             for (String rawUserId : encryptionUserIds) {
                 OpenPgpUtils.UserId userId = KeyRing.splitUserId(rawUserId);
-                String email = userId.email != null ? userId.email : rawUserId;
-                // try to find the key for this specific email
-                Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(email);
-                Cursor cursor = contentResolver.query(uri, KEY_SEARCH_PROJECTION, KEY_SEARCH_WHERE, null, null);
-                if (cursor == null) {
-                    throw new IllegalStateException("Internal error, received null cursor!");
-                }
-                try {
-                    // result should be one entry containing the key id
-                    if (cursor.moveToFirst()) {
-                        long id = cursor.getLong(INDEX_MASTER_KEY_ID);
-                        keyIds.add(id);
-
-                        // another entry for this email -> two keys with the same email inside user id
-                        if (!cursor.isLast()) {
-                            Log.d(Constants.TAG, "more than one user id with the same email");
-                            duplicateEmails.add(email);
-
-                            // also pre-select
-                            while (cursor.moveToNext()) {
-                                long duplicateId = cursor.getLong(INDEX_MASTER_KEY_ID);
-                                keyIds.add(duplicateId);
-                            }
-                        }
-                    } else {
-                        missingEmails.add(email);
-                        Log.d(Constants.TAG, "user id missing");
-                    }
-                } finally {
-                    cursor.close();
-                }
+                emails.add(userId.email != null ? userId.email : rawUserId);
             }
+
+            EmailResolution resolution = recipientKeyCache.getEmailResolution(emails);
+            if (resolution == null) {
+                int generation = recipientKeyCache.getGeneration();
+                resolution = resolveEmails(emails);
+                recipientKeyCache.putEmailResolution(emails, resolution, generation);
+            } else {
+                Log.d(Constants.TAG, "using cached key ids for " + emails.size() + " emails");
+            }
+            keyIds.addAll(resolution.getKeyIds());
+            missingEmails.addAll(resolution.getMissingEmails());
+            duplicateEmails.addAll(resolution.getDuplicateEmails());
         }
 
         boolean hasMissingUserIds = !missingEmails.isEmpty();
@@ -164,6 +158,64 @@ class OpenPgpServiceKeyIdExtractor {
         return new KeyIdResult(keyIds);
     }
 
+    /** Finds the keys for all emails in a single query, and sorts out which emails were
+     * missing or ambiguous based on the emails each found key matched.
+     */
+    private EmailResolution resolveEmails(ArrayList<String> emails) {
+        // emails are matched case-insensitively by the query
+        LinkedHashMap<String, String> emailsByLowerCase = new LinkedHashMap<>();
+        for (String email : emails) {
+            String lowerCaseEmail = email.toLowerCase(Locale.ENGLISH);
+            if (!emailsByLowerCase.containsKey(lowerCaseEmail)) {
+                emailsByLowerCase.put(lowerCaseEmail, email);
+            }
+        }
+
+        HashSet<Long> keyIds = new HashSet<>();
+        HashMap<String, Integer> matchCounts = new HashMap<>();
+        Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailsUri(emailsByLowerCase.values());
+        Cursor cursor = contentResolver.query(uri, KEY_SEARCH_PROJECTION, KEY_SEARCH_WHERE, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException("Internal error, received null cursor!");
+        }
+        try {
+            while (cursor.moveToNext()) {
+                keyIds.add(cursor.getLong(INDEX_MASTER_KEY_ID));
+
+                // a key may have several user ids with the same email, count each email once per key
+                String matchedEmails = cursor.getString(INDEX_MATCHED_EMAILS);
+                HashSet<String> matchedEmailsOfKey = new HashSet<>();
+                if (matchedEmails != null) {
+                    for (String matchedEmail : matchedEmails.split(",")) {
+                        matchedEmailsOfKey.add(matchedEmail.toLowerCase(Locale.ENGLISH));
+                    }
+                }
+                for (String matchedEmail : matchedEmailsOfKey) {
+                    Integer count = matchCounts.get(matchedEmail);
+                    matchCounts.put(matchedEmail, count == null ? 1 : count + 1);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ArrayList<String> missingEmails = new ArrayList<>();
+        ArrayList<String> duplicateEmails = new ArrayList<>();
+        for (Map.Entry<String, String> entry : emailsByLowerCase.entrySet()) {
+            Integer count = matchCounts.get(entry.getKey());
+            if (count == null) {
+                missingEmails.add(entry.getValue());
+                Log.d(Constants.TAG, "user id missing");
+            } else if (count > 1) {
+                // more than one key with the same email inside user id, all of them are pre-selected
+                duplicateEmails.add(entry.getValue());
+                Log.d(Constants.TAG, "more than one user id with the same email");
+            }
+        }
+
+        return new EmailResolution(keyIds, missingEmails, duplicateEmails);
+    }
+
     @NonNull
     private static long[] getUnboxedLongArray(@NonNull Collection<Long> arrayList) {
         long[] result = new long[arrayList.size()];
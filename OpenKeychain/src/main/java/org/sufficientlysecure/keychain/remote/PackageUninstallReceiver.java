@@ -11,14 +11,19 @@ public class PackageUninstallReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        Uri uri = intent.getData();
+        if (uri == null) {
+            return;
+        }
+        String packageName = uri.getEncodedSchemeSpecificPart();
+        Uri appUri = KeychainContract.ApiApps.buildByPackageNameUri(packageName);
+
+        ApiPermissionCache.invalidateInstance();
         if (Intent.ACTION_PACKAGE_FULLY_REMOVED.equals(intent.getAction())) {
-            Uri uri = intent.getData();
-            if (uri == null) {
-                return;
-            }
-            String packageName = uri.getEncodedSchemeSpecificPart();
-            Uri appUri = KeychainContract.ApiApps.buildByPackageNameUri(packageName);
             context.getContentResolver().delete(appUri, null, null);
+        } else if (Intent.ACTION_PACKAGE_REPLACED.equals(intent.getAction())) {
+            // certificates may have changed, make caller verification caches in all processes drop it
+            context.getContentResolver().notifyChange(appUri, null);
         }
     }
 }
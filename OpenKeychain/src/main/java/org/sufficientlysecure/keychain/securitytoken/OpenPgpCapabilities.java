@@ -35,8 +35,12 @@ public class OpenPgpCapabilities {
     private boolean mHasKeyImport;
 
     private int mSMAESKeySize;
-    private int mMaxCmdLen;
-    private int mMaxRspLen;
+    // limits from the extended capabilities, which only hold them before version 3.0
+    private int mCapsMaxCmdLen;
+    private int mCapsMaxRspLen;
+    // limits from the extended length information, since version 3.0
+    private int mExtendedMaxCmdLen;
+    private int mExtendedMaxRspLen;
 
     private Map<KeyType, KeyFormat> mKeyFormats;
 
@@ -59,6 +63,9 @@ public class OpenPgpCapabilities {
                 case 0x5F52:
                     mHistoricalBytes = tlv.mV;
                     break;
+                case 0x7F66:
+                    parseExtendedLengthInfo(tlv);
+                    break;
                 case 0x73:
                     parseDdo((Iso7816TLV.Iso7816CompositeTLV) tlv);
                     break;
@@ -84,6 +91,9 @@ public class OpenPgpCapabilities {
     private void parseDdo(Iso7816TLV.Iso7816CompositeTLV tlvs) {
         for (Iso7816TLV tlv : tlvs.mSubs) {
             switch (tlv.mT) {
+                case 0x7F66:
+                    parseExtendedLengthInfo(tlv);
+                    break;
                 case 0xC0:
                     parseExtendedCaps(tlv.mV);
                     break;
@@ -110,8 +120,36 @@ public class OpenPgpCapabilities {
 
         mSMAESKeySize = (v[1] == 1) ? 16 : 32;
 
-        mMaxCmdLen = (v[6] << 8) + v[7];
-        mMaxRspLen = (v[8] << 8) + v[9];
+        // since version 3.0, these bytes hold other limits and flags
+        mCapsMaxCmdLen = ((v[6] & 0xff) << 8) + (v[7] & 0xff);
+        mCapsMaxRspLen = ((v[8] & 0xff) << 8) + (v[9] & 0xff);
+    }
+
+    /** Parses DO 7F66, which holds the maximum command and response length as two integers. */
+    private void parseExtendedLengthInfo(Iso7816TLV tlv) {
+        if (!(tlv instanceof Iso7816TLV.Iso7816CompositeTLV)) {
+            return;
+        }
+        Iso7816TLV[] subs = ((Iso7816TLV.Iso7816CompositeTLV) tlv).mSubs;
+        if (subs.length < 2 || subs[0].mT != 0x02 || subs[1].mT != 0x02) {
+            return;
+        }
+        mExtendedMaxCmdLen = parseUnsigned(subs[0].mV);
+        mExtendedMaxRspLen = parseUnsigned(subs[1].mV);
+    }
+
+    private static int parseUnsigned(byte[] v) {
+        int result = 0;
+        for (byte b : v) {
+            result = (result << 8) + (b & 0xff);
+        }
+        return result;
+    }
+
+    /** @return true if the AID gives a version below 3.0, or no version is known */
+    private boolean isBeforeVersion3() {
+        // the major version is BCD encoded, in the byte after the application identifier
+        return mAid == null || mAid.length < 8 || (mAid[6] & 0xff) < 0x03;
     }
 
     public boolean isPw1ValidForMultipleSignatures() {
@@ -142,12 +180,20 @@ public class OpenPgpCapabilities {
         return mSMAESKeySize;
     }
 
+    /** @return the maximum command length, or 0 if the token does not state it */
     public int getMaxCmdLen() {
-        return mMaxCmdLen;
+        if (mExtendedMaxCmdLen > 0) {
+            return mExtendedMaxCmdLen;
+        }
+        return isBeforeVersion3() ? mCapsMaxCmdLen : 0;
     }
 
+    /** @return the maximum response length, or 0 if the token does not state it */
     public int getMaxRspLen() {
-        return mMaxRspLen;
+        if (mExtendedMaxRspLen > 0) {
+            return mExtendedMaxRspLen;
+        }
+        return isBeforeVersion3() ? mCapsMaxRspLen : 0;
     }
 
     public KeyFormat getFormatForKeyType(KeyType keyType) {
@@ -26,11 +26,16 @@ import org.bouncycastle.asn1.x9.X9ECParameters;
 import org.bouncycastle.math.ec.ECCurve;
 import org.bouncycastle.math.ec.ECPoint;
 import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.ui.SettingsSmartPGPAuthoritiesActivity;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.LruCache;
 import org.sufficientlysecure.keychain.util.Preferences;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
@@ -54,6 +59,8 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.CollectionCertStoreParameters;
 import java.security.cert.PKIXBuilderParameters;
 import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
 import java.security.cert.X509CertSelector;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.ECPrivateKey;
@@ -63,6 +70,11 @@ import java.security.spec.ECParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -100,10 +112,24 @@ class SCP11bSecureMessaging implements SecureMessaging {
 
     private static final String PROVIDER = "BC";
 
-    private static SecureRandom srand;
+    private static final int MAX_VERIFIED_CERTIFICATES = 8;
+
+    // keys are also generated in the background, so this is created eagerly
+    private static final SecureRandom srand = new SecureRandom();
     private static KeyFactory ecdhFactory;
     private static CertificateFactory certFactory;
 
+    // trust anchors from the authorities keystore, reloaded only when the keystore changes
+    private static Set<TrustAnchor> sTrustAnchors;
+    private static String sTrustAnchorsVersion;
+    // public keys of card certificates verified against the current trust anchors, by curve and certificate
+    private static final LruCache<String, VerifiedCardKey> sVerifiedCardKeys =
+            new LruCache<>(MAX_VERIFIED_CERTIFICATES);
+
+    // ephemeral key pairs generated in advance, by curve. each is handed out only once
+    private static final HashMap<String, KeyPair> sPrecomputedKeyPairs = new HashMap<>();
+    private static ExecutorService sKeyPairExecutor;
+
     private SecretKey mSEnc;
     private SecretKey mSMac;
     private SecretKey mSRMac;
@@ -191,15 +217,87 @@ class SCP11bSecureMessaging implements SecureMessaging {
                    InvalidParameterSpecException, InvalidAlgorithmParameterException {
         final KeyPairGenerator gen = KeyPairGenerator.getInstance(SCP11B_KEY_AGREEMENT_KEY_ALGO, PROVIDER);
 
-        if (srand == null) {
-            srand = new SecureRandom();
-        }
-
         gen.initialize(getAlgorithmParameterSpec(kf), srand);
 
         return gen.generateKeyPair();
     }
 
+    /**
+     * Returns an ephemeral key pair for the curve, which was generated in advance if this curve was
+     * used before, and starts generating the next one in the background. This keeps key
+     * generation out of the time the token needs to be held to the device.
+     */
+    private static KeyPair takeECDHKeyPair(final ECKeyFormat kf)
+            throws NoSuchProviderException, NoSuchAlgorithmException,
+                   InvalidParameterSpecException, InvalidAlgorithmParameterException {
+        final String curve = kf.getCurveOID().getId();
+
+        KeyPair keyPair;
+        synchronized (sPrecomputedKeyPairs) {
+            keyPair = sPrecomputedKeyPairs.remove(curve);
+            if (sKeyPairExecutor == null) {
+                sKeyPairExecutor = Executors.newSingleThreadExecutor();
+            }
+        }
+        if (keyPair == null) {
+            keyPair = generateECDHKeyPair(kf);
+        }
+
+        sKeyPairExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    KeyPair nextKeyPair = generateECDHKeyPair(kf);
+                    synchronized (sPrecomputedKeyPairs) {
+                        sPrecomputedKeyPairs.put(curve, nextKeyPair);
+                    }
+                } catch (NoSuchProviderException | NoSuchAlgorithmException
+                        | InvalidParameterSpecException | InvalidAlgorithmParameterException e) {
+                    Log.e(Constants.TAG, "failed to precompute secure messaging key pair", e);
+                }
+            }
+        });
+
+        return keyPair;
+    }
+
+    /**
+     * Drops the loaded trust anchors and all memoized card certificates. Must be called whenever
+     * the SmartPGP authorities keystore is written, see SecurityTokenHelper.
+     */
+    static synchronized void invalidateTrustAnchors() {
+        sTrustAnchors = null;
+        sTrustAnchorsVersion = null;
+        sVerifiedCardKeys.clear();
+    }
+
+    /**
+     * Returns the trust anchors of the SmartPGP authorities keystore. These are only loaded again
+     * after invalidateTrustAnchors, or if the keystore file was modified otherwise, which also
+     * drops all memoized card certificates.
+     */
+    private static synchronized Set<TrustAnchor> getTrustAnchors(final Context ctx)
+            throws KeyStoreException, InvalidAlgorithmParameterException {
+        final File keystoreFile = SettingsSmartPGPAuthoritiesActivity.getKeystoreFile(ctx);
+        final String version = keystoreFile.exists()
+                ? keystoreFile.lastModified() + ":" + keystoreFile.length() : "";
+
+        if (sTrustAnchors == null || !version.equals(sTrustAnchorsVersion)) {
+            final KeyStore ks = SettingsSmartPGPAuthoritiesActivity.readKeystore(ctx);
+
+            if (ks == null) {
+                throw new KeyStoreException("no keystore found");
+            }
+
+            // throws InvalidAlgorithmParameterException if the keystore holds no trusted certificates
+            sTrustAnchors = new PKIXParameters(ks).getTrustAnchors();
+            sTrustAnchorsVersion = version;
+            sVerifiedCardKeys.clear();
+        }
+
+        return sTrustAnchors;
+    }
+
     private static ECPublicKey verifyCertificate(final Context ctx,
                                                  final ECKeyFormat kf,
                                                  final byte[] data) throws IOException {
@@ -228,10 +326,18 @@ class SCP11bSecureMessaging implements SecureMessaging {
                 throw new IOException("incoherent card certificate/public key format");
             }
 
-            final KeyStore ks = SettingsSmartPGPAuthoritiesActivity.readKeystore(ctx);
-
-            if (ks == null) {
-                throw new KeyStoreException("no keystore found");
+            final Set<TrustAnchor> trustAnchors = getTrustAnchors(ctx);
+
+            final String verifiedKey = kf.getCurveOID().getId() + ":" + Hex.toHexString(data);
+            synchronized (SCP11bSecureMessaging.class) {
+                final VerifiedCardKey verified = sVerifiedCardKeys.get(verifiedKey);
+                if (verified != null) {
+                    if (new Date().before(verified.mNotAfter)) {
+                        return verified.mPublicKey;
+                    }
+                    // a certificate of the path expired, verify again to fail properly
+                    sVerifiedCardKeys.remove(verifiedKey);
+                }
             }
 
             final X509CertSelector targetConstraints = new X509CertSelector();
@@ -242,7 +348,7 @@ class SCP11bSecureMessaging implements SecureMessaging {
             final CollectionCertStoreParameters certStoreParams = new CollectionCertStoreParameters(al);
             final CertStore certStore = CertStore.getInstance("Collection", certStoreParams, PROVIDER);
 
-            final PKIXBuilderParameters pkixParams = new PKIXBuilderParameters(ks, targetConstraints);
+            final PKIXBuilderParameters pkixParams = new PKIXBuilderParameters(trustAnchors, targetConstraints);
             pkixParams.setRevocationEnabled(false);
             pkixParams.addCertStore(certStore);
 
@@ -251,6 +357,28 @@ class SCP11bSecureMessaging implements SecureMessaging {
             final PKIXCertPathBuilderResult result =
                     (PKIXCertPathBuilderResult) builder.build(pkixParams);
 
+            // the verification holds until the first certificate of the path expires
+            Date notAfter = cardCert.getNotAfter();
+            for (Certificate pathCert : result.getCertPath().getCertificates()) {
+                if (pathCert instanceof X509Certificate) {
+                    Date pathNotAfter = ((X509Certificate) pathCert).getNotAfter();
+                    if (pathNotAfter.before(notAfter)) {
+                        notAfter = pathNotAfter;
+                    }
+                }
+            }
+            final X509Certificate anchorCert = result.getTrustAnchor().getTrustedCert();
+            if (anchorCert != null && anchorCert.getNotAfter().before(notAfter)) {
+                notAfter = anchorCert.getNotAfter();
+            }
+
+            synchronized (SCP11bSecureMessaging.class) {
+                // only memoize if the trust anchors were not reloaded meanwhile
+                if (trustAnchors == sTrustAnchors) {
+                    sVerifiedCardKeys.put(verifiedKey, new VerifiedCardKey(cardPk, notAfter));
+                }
+            }
+
             return cardPk;
 
         } catch (CertificateException e) {
@@ -365,7 +493,7 @@ class SCP11bSecureMessaging implements SecureMessaging {
                 throw new SecureMessagingException("No key in token for secure messaging");
             }
 
-            final KeyPair ekoce = generateECDHKeyPair(eckf);
+            final KeyPair ekoce = takeECDHKeyPair(eckf);
             final ECPublicKey epkoce = (ECPublicKey)ekoce.getPublic();
             final ECPrivateKey eskoce = (ECPrivateKey)ekoce.getPrivate();
 
@@ -711,4 +839,14 @@ class SCP11bSecureMessaging implements SecureMessaging {
         }
     }
 
+    private static class VerifiedCardKey {
+        final ECPublicKey mPublicKey;
+        final Date mNotAfter;
+
+        VerifiedCardKey(ECPublicKey publicKey, Date notAfter) {
+            mPublicKey = publicKey;
+            mNotAfter = notAfter;
+        }
+    }
+
 }
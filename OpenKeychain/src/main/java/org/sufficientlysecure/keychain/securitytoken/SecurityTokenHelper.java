@@ -93,12 +93,15 @@ public class SecurityTokenHelper {
     private CardCapabilities mCardCapabilities;
     private OpenPgpCapabilities mOpenPgpCapabilities;
     private SecureMessaging mSecureMessaging;
+    /** Application related data of the current session, null if it must be read again */
+    private byte[] mApplicationRelatedData;
 
     private Passphrase mPin;
     private Passphrase mAdminPin;
     private boolean mPw1ValidatedForSignature;
     private boolean mPw1ValidatedForDecrypt; // Mode 82 does other things; consider renaming?
     private boolean mPw3Validated;
+    private int mRoundTripCount;
 
     private SecurityTokenHelper() {
     }
@@ -113,6 +116,14 @@ public class SecurityTokenHelper {
         return LazyHolder.SECURITY_TOKEN_HELPER;
     }
 
+    /**
+     * Drops cached SmartPGP trust anchors and verified card certificates, so secure messaging
+     * uses the current authorities. Call this whenever the authorities keystore is written.
+     */
+    public static void invalidateSmartPGPAuthorities() {
+        SCP11bSecureMessaging.invalidateTrustAnchors();
+    }
+
     private String getHolderName(byte[] name) {
         try {
             return (new String(name, 4, name[3])).replace('<', ' ');
@@ -180,13 +191,15 @@ public class SecurityTokenHelper {
     }
 
     /**
-     * Connect to device and select pgp applet
+     * Connect to device and select pgp applet. If the token was connected to recently, its
+     * application related data is taken from the SecurityTokenSessionCache.
      *
      * @throws IOException
      */
     public void connectToDevice(final Context ctx) throws IOException {
         // Connect on transport layer
         mCardCapabilities = new CardCapabilities();
+        mApplicationRelatedData = null;
 
         mTransport.connect();
 
@@ -199,7 +212,16 @@ public class SecurityTokenHelper {
             throw new CardException("Initialization failed!", response.getSW());
         }
 
-        mOpenPgpCapabilities = new OpenPgpCapabilities(getData(0x00, 0x6E));
+        // the AID is short, while the full application related data may need several responses
+        byte[] aid = getData(0x00, 0x4F);
+        byte[] applicationRelatedData = SecurityTokenSessionCache.getApplicationRelatedData(aid);
+        if (applicationRelatedData == null) {
+            applicationRelatedData = getData(0x00, 0x6E);
+            SecurityTokenSessionCache.putApplicationRelatedData(aid, applicationRelatedData);
+        }
+        mApplicationRelatedData = applicationRelatedData;
+
+        mOpenPgpCapabilities = new OpenPgpCapabilities(applicationRelatedData);
         mCardCapabilities = new CardCapabilities(mOpenPgpCapabilities.getHistoricalBytes());
 
         mPw1ValidatedForSignature = false;
@@ -436,6 +458,7 @@ public class SecurityTokenHelper {
 
         CommandAPDU command = new CommandAPDU(0x00, 0xDA, (dataObject & 0xFF00) >> 8, dataObject & 0xFF, data);
         ResponseAPDU response = communicate(command); // put data
+        invalidateApplicationRelatedData();
 
         if (response.getSW() != APDU_SW_SUCCESS) {
             throw new CardException("Failed to put data.", response.getSW());
@@ -549,14 +572,7 @@ public class SecurityTokenHelper {
      * @return The fingerprints of all subkeys in a contiguous byte array.
      */
     public byte[] getFingerprints() throws IOException {
-        CommandAPDU apdu = new CommandAPDU(0x00, 0xCA, 0x00, 0x6E, MAX_APDU_NE_EXT);
-        ResponseAPDU response = communicate(apdu);
-
-        if (response.getSW() != APDU_SW_SUCCESS) {
-            throw new CardException("Failed to get fingerprints", response.getSW());
-        }
-
-        Iso7816TLV[] tlvList = Iso7816TLV.readList(response.getData(), true);
+        Iso7816TLV[] tlvList = Iso7816TLV.readList(getApplicationRelatedData(), true);
         Iso7816TLV fingerPrintTlv = null;
 
         for (Iso7816TLV tlv : tlvList) {
@@ -584,9 +600,30 @@ public class SecurityTokenHelper {
     }
 
     public byte[] getAid() throws IOException {
+        if (mOpenPgpCapabilities != null && mOpenPgpCapabilities.getAid() != null) {
+            return mOpenPgpCapabilities.getAid().clone();
+        }
         return getData(0x00, 0x4F);
     }
 
+    /**
+     * Returns the application related data of the current session, which is only read from the
+     * token again after it was modified.
+     */
+    private byte[] getApplicationRelatedData() throws IOException {
+        if (mApplicationRelatedData == null) {
+            mApplicationRelatedData = getData(0x00, 0x6E);
+        }
+        return mApplicationRelatedData;
+    }
+
+    private void invalidateApplicationRelatedData() {
+        mApplicationRelatedData = null;
+        if (mOpenPgpCapabilities != null && mOpenPgpCapabilities.getAid() != null) {
+            SecurityTokenSessionCache.invalidate(mOpenPgpCapabilities.getAid());
+        }
+    }
+
     public String getUserId() throws IOException {
         return getHolderName(getData(0x00, 0x65));
     }
@@ -721,9 +758,13 @@ public class SecurityTokenHelper {
 
     /**
      * Transceives APDU
-     * Splits extended APDU into short APDUs and chains them if necessary
+     * Splits APDUs which are too long for the token into chained APDUs if necessary
      * Performs GET RESPONSE command(ISO/IEC 7816-4 par.7.6.1) on retrieving if necessary
      *
+     * The sizes of command and response data are negotiated from the card capabilities and
+     * extended capabilities of the token, so with extended length support, a large command
+     * or response such as a key import or an RSA-4096 decrypt takes a single round trip.
+     *
      * @param apdu short or extended APDU to transceive
      * @return response from the card
      * @throws IOException
@@ -738,54 +779,44 @@ public class SecurityTokenHelper {
             }
         }
 
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-
-        ResponseAPDU lastResponse = null;
         // Transmit
-        if (mCardCapabilities.hasExtended()) {
-            lastResponse = mTransport.transceive(apdu);
-        } else if (apdu.getData().length <= MAX_APDU_NC) {
-            int ne = Math.min(apdu.getNe(), MAX_APDU_NE);
-            lastResponse = mTransport.transceive(new CommandAPDU(apdu.getCLA(), apdu.getINS(),
-                    apdu.getP1(), apdu.getP2(), apdu.getData(), ne));
-        } else if (apdu.getData().length > MAX_APDU_NC && mCardCapabilities.hasChaining()) {
+        int maxCommandDataLength = getMaxCommandDataLength();
+        int ne = Math.min(apdu.getNe(), getMaxResponseLength());
+        ResponseAPDU lastResponse;
+        if (apdu.getNc() <= maxCommandDataLength) {
+            if (ne != apdu.getNe()) {
+                apdu = new CommandAPDU(apdu.getCLA(), apdu.getINS(), apdu.getP1(), apdu.getP2(), apdu.getData(), ne);
+            }
+            lastResponse = transceive(apdu);
+        } else if (mCardCapabilities.hasChaining()) {
             int offset = 0;
             byte[] data = apdu.getData();
-            int ne = Math.min(apdu.getNe(), MAX_APDU_NE);
-            while (offset < data.length) {
-                int curLen = Math.min(MAX_APDU_NC, data.length - offset);
+            do {
+                int curLen = Math.min(maxCommandDataLength, data.length - offset);
                 boolean last = offset + curLen >= data.length;
                 int cla = apdu.getCLA() + (last ? 0 : MASK_CLA_CHAINING);
 
-                lastResponse = mTransport.transceive(new CommandAPDU(cla, apdu.getINS(), apdu.getP1(),
-                        apdu.getP2(), Arrays.copyOfRange(data, offset, offset + curLen), ne));
+                lastResponse = transceive(new CommandAPDU(cla, apdu.getINS(), apdu.getP1(), apdu.getP2(),
+                        data, offset, curLen, ne));
 
                 if (!last && lastResponse.getSW() != APDU_SW_SUCCESS) {
                     throw new UsbTransportException("Failed to chain apdu");
                 }
 
                 offset += curLen;
-            }
-        }
-        if (lastResponse == null) {
+            } while (offset < data.length);
+        } else if (mCardCapabilities.hasExtended()) {
+            // no chaining, so the token has to take it in one piece if at all
+            lastResponse = transceive(apdu);
+        } else {
             throw new UsbTransportException("Can't transmit command");
         }
 
-        result.write(lastResponse.getData());
-
         // Receive
-        while (lastResponse.getSW1() == APDU_SW1_RESPONSE_AVAILABLE) {
-            // GET RESPONSE ISO/IEC 7816-4 par.7.6.1
-            CommandAPDU getResponse = new CommandAPDU(0x00, 0xC0, 0x00, 0x00, lastResponse.getSW2());
-            lastResponse = mTransport.transceive(getResponse);
-            result.write(lastResponse.getData());
+        if (lastResponse.getSW1() == APDU_SW1_RESPONSE_AVAILABLE) {
+            lastResponse = receiveRemainingResponse(lastResponse);
         }
 
-        result.write(lastResponse.getSW1());
-        result.write(lastResponse.getSW2());
-
-        lastResponse = new ResponseAPDU(result.toByteArray());
-
         if ((mSecureMessaging != null) && mSecureMessaging.isEstablished()) {
             try {
                 lastResponse = mSecureMessaging.verifyAndDecrypt(lastResponse);
@@ -798,6 +829,64 @@ public class SecurityTokenHelper {
         return lastResponse;
     }
 
+    /**
+     * Retrieves the rest of a response with GET RESPONSE, ISO/IEC 7816-4 par.7.6.1. SW2 gives
+     * the number of remaining bytes, or 0 if there are 256 or more. In the latter case, tokens
+     * with extended length support are asked for as much as they can send at once.
+     */
+    private ResponseAPDU receiveRemainingResponse(ResponseAPDU response) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(response.getNr() + getMaxResponseLength());
+        result.write(response.getBytes(), 0, response.getNr());
+
+        while (response.getSW1() == APDU_SW1_RESPONSE_AVAILABLE) {
+            int ne = response.getSW2() != 0 ? response.getSW2() : getMaxResponseLength();
+            response = transceive(new CommandAPDU(0x00, 0xC0, 0x00, 0x00, ne));
+            result.write(response.getBytes(), 0, response.getNr());
+        }
+
+        result.write(response.getSW1());
+        result.write(response.getSW2());
+
+        return new ResponseAPDU(result.toByteArray());
+    }
+
+    private ResponseAPDU transceive(CommandAPDU apdu) throws IOException {
+        mRoundTripCount += 1;
+        return mTransport.transceive(apdu);
+    }
+
+    /** Maximum length of command data the token accepts in a single APDU. Tokens state this in
+     * DO 7F66, or before version 3.0 in the extended capabilities. Otherwise, extended length
+     * allows the maximum.
+     */
+    private int getMaxCommandDataLength() {
+        if (!mCardCapabilities.hasExtended()) {
+            return MAX_APDU_NC;
+        }
+        int maxCmdLen = mOpenPgpCapabilities != null ? mOpenPgpCapabilities.getMaxCmdLen() : 0;
+        return maxCmdLen > 0 ? Math.min(maxCmdLen, MAX_APDU_NC_EXT) : MAX_APDU_NC_EXT;
+    }
+
+    /** Maximum length of response data the token returns in a single APDU. Tokens state this in
+     * DO 7F66, or before version 3.0 in the extended capabilities. Otherwise, extended length
+     * allows the maximum.
+     */
+    private int getMaxResponseLength() {
+        if (!mCardCapabilities.hasExtended()) {
+            return MAX_APDU_NE;
+        }
+        int maxRspLen = mOpenPgpCapabilities != null ? mOpenPgpCapabilities.getMaxRspLen() : 0;
+        return maxRspLen > 0 ? Math.min(maxRspLen, MAX_APDU_NE_EXT) : MAX_APDU_NE_EXT;
+    }
+
+    /**
+     * Returns the number of APDUs exchanged with tokens so far, including chained commands
+     * and GET RESPONSE. The difference before and after an operation gives its round trips.
+     */
+    public int getRoundTripCount() {
+        return mRoundTripCount;
+    }
+
     public Transport getTransport() {
         return mTransport;
     }
@@ -846,6 +935,7 @@ public class SecurityTokenHelper {
 
         CommandAPDU apdu = new CommandAPDU(0x00, 0x47, 0x80, 0x00, new byte[]{(byte) slot, 0x00}, MAX_APDU_NE_EXT);
         ResponseAPDU response = communicate(apdu);
+        invalidateApplicationRelatedData();
 
         if (response.getSW() != APDU_SW_SUCCESS) {
             throw new IOException("On-card key generation failed");
@@ -885,6 +975,7 @@ public class SecurityTokenHelper {
 
         // secure messaging must be disabled before reactivation
         clearSecureMessaging();
+        invalidateApplicationRelatedData();
 
         // reactivate token!
         // NOTE: keep the order here! First execute _both_ reactivate commands. Before checking _both_ responses
@@ -923,11 +1014,13 @@ public class SecurityTokenHelper {
         return fp;
     }
 
+    /**
+     * On persistent connections, the session including validated PINs and an established
+     * secure messaging session is kept across operations, and no reconnect is necessary.
+     */
     public boolean isPersistentConnectionAllowed() {
         return mTransport != null &&
-                mTransport.isPersistentConnectionAllowed() &&
-                (mSecureMessaging == null ||
-                        !mSecureMessaging.isEstablished());
+                mTransport.isPersistentConnectionAllowed();
     }
 
     public boolean isConnected() {
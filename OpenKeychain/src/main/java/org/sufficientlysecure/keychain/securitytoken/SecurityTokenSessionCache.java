@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.securitytoken;
+
+
+import android.os.SystemClock;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.util.LruCache;
+
+
+/** Cache of application related data, by AID of the OpenPGP application.
+ *
+ * The application related data holds capabilities, key formats and key
+ * fingerprints, and is read on every connect. With NFC, a multi-step
+ * operation connects once per tap, so this allows a reconnect to the same
+ * token to skip it and only read the AID. Entries expire after a short
+ * time, since the token may be modified elsewhere in between.
+ */
+class SecurityTokenSessionCache {
+
+    private static final long CACHE_TTL_MILLIS = 2 * 60 * 1000;
+    private static final int MAX_TOKENS = 8;
+
+    private static final LruCache<String, Entry> sEntries = new LruCache<>(MAX_TOKENS);
+
+    /** Returns the cached application related data for this AID, or null if not cached. */
+    static synchronized byte[] getApplicationRelatedData(byte[] aid) {
+        String key = Hex.toHexString(aid);
+        Entry entry = sEntries.get(key);
+        if (entry != null && SystemClock.elapsedRealtime() - entry.mCreationTime > CACHE_TTL_MILLIS) {
+            sEntries.remove(key);
+            return null;
+        }
+        return entry != null ? entry.mData : null;
+    }
+
+    static synchronized void putApplicationRelatedData(byte[] aid, byte[] data) {
+        sEntries.put(Hex.toHexString(aid), new Entry(data));
+    }
+
+    /** Must be called whenever data objects of the token are modified. */
+    static synchronized void invalidate(byte[] aid) {
+        sEntries.remove(Hex.toHexString(aid));
+    }
+
+    private static class Entry {
+        final long mCreationTime = SystemClock.elapsedRealtime();
+        final byte[] mData;
+
+        Entry(byte[] data) {
+            mData = data;
+        }
+    }
+
+}
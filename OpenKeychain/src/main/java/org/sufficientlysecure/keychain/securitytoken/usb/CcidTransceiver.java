@@ -30,6 +30,8 @@ import java.nio.ByteOrder;
 
 public class CcidTransceiver {
     private static final int TIMEOUT = 20 * 1000; // 20s
+    // before Android 9, a single bulk transfer is limited to 16 KiB
+    private static final int MAX_TRANSFER_SIZE = 16 * 1024;
 
     private byte mCounter;
     private UsbDeviceConnection mConnection;
@@ -113,12 +115,8 @@ public class CcidTransceiver {
                         0x00, 0x00},
                 payload);
 
-        int send = 0;
-        while (send < data.length) {
-            final int len = Math.min(mBulkIn.getMaxPacketSize(), data.length - send);
-            sendRaw(Arrays.copyOfRange(data, send, send + len));
-            send += len;
-        }
+        // as few bulk transfers as possible, the host controller splits them into packets
+        sendRaw(data);
     }
 
     public byte[] receive() throws UsbTransportException {
@@ -146,9 +144,15 @@ public class CcidTransceiver {
     }
 
     private void sendRaw(final byte[] data) throws UsbTransportException {
-        final int tr1 = mConnection.bulkTransfer(mBulkOut, data, data.length, TIMEOUT);
-        if (tr1 != data.length) {
-            throw new UsbTransportException("USB error - failed to transmit data " + tr1);
+        // bulkTransfer with an offset is only available since API 18, so chunks are copied
+        for (int offset = 0; offset < data.length; offset += MAX_TRANSFER_SIZE) {
+            final int length = Math.min(data.length - offset, MAX_TRANSFER_SIZE);
+            final byte[] chunk = length == data.length
+                    ? data : Arrays.copyOfRange(data, offset, offset + length);
+            final int tr1 = mConnection.bulkTransfer(mBulkOut, chunk, length, TIMEOUT);
+            if (tr1 != length) {
+                throw new UsbTransportException("USB error - failed to transmit data " + tr1);
+            }
         }
     }
 
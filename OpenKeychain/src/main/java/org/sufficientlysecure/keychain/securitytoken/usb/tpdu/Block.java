@@ -44,14 +44,20 @@ public class Block {
 
     protected Block(BlockChecksumType checksumType, byte nad, byte pcb, byte[] apdu)
             throws UsbTransportException {
+        this(checksumType, nad, pcb, apdu, 0, apdu.length);
+    }
+
+    protected Block(BlockChecksumType checksumType, byte nad, byte pcb, byte[] apdu, int offset, int length)
+            throws UsbTransportException {
         this.mChecksumType = checksumType;
-        if (apdu.length > MAX_PAYLOAD_LEN) {
+        if (length > MAX_PAYLOAD_LEN) {
             throw new UsbTransportException("APDU is too long; should be split");
         }
-        this.mData = Arrays.concatenate(
-                new byte[]{nad, pcb, (byte) apdu.length},
-                apdu,
-                new byte[mChecksumType.getLength()]);
+        this.mData = new byte[OFFSET_DATA + length + mChecksumType.getLength()];
+        this.mData[OFFSET_NAD] = nad;
+        this.mData[OFFSET_PCB] = pcb;
+        this.mData[OFFSET_LEN] = (byte) length;
+        System.arraycopy(apdu, offset, this.mData, OFFSET_DATA, length);
 
         int checksumOffset = this.mData.length - mChecksumType.getLength();
         byte[] checksum = mChecksumType.computeChecksum(this.mData, 0, checksumOffset);
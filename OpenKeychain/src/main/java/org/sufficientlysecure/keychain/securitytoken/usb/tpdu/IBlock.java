@@ -32,9 +32,14 @@ public class IBlock extends Block {
 
     public IBlock(BlockChecksumType checksumType, byte nad, byte sequence, boolean chaining,
                   byte[] apdu) throws UsbTransportException {
+        this(checksumType, nad, sequence, chaining, apdu, 0, apdu.length);
+    }
+
+    public IBlock(BlockChecksumType checksumType, byte nad, byte sequence, boolean chaining,
+                  byte[] apdu, int offset, int length) throws UsbTransportException {
         super(checksumType, nad,
                 (byte) (((sequence & 1) << BIT_SEQUENCE) | (chaining ? 1 << BIT_CHAINING : 0)),
-                apdu);
+                apdu, offset, length);
     }
 
     public byte getSequence() {
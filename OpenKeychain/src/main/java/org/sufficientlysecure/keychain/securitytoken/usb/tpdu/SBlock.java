@@ -17,11 +17,21 @@
 
 package org.sufficientlysecure.keychain.securitytoken.usb.tpdu;
 
+import org.sufficientlysecure.keychain.securitytoken.usb.UsbTransportException;
+
 public class SBlock extends Block {
     public static final byte MASK_SBLOCK = (byte) 0b11000000;
     public static final byte MASK_VALUE_SBLOCK = (byte) 0b11000000;
 
+    public static final byte PCB_IFS_REQUEST = (byte) 0b11000001;
+    public static final byte PCB_IFS_RESPONSE = (byte) 0b11100001;
+
     public SBlock(Block baseBlock) {
         super(baseBlock);
     }
+
+    public SBlock(BlockChecksumType checksumType, byte nad, byte pcb, byte[] data)
+            throws UsbTransportException {
+        super(checksumType, nad, pcb, data);
+    }
 }
@@ -17,9 +17,10 @@
 
 package org.sufficientlysecure.keychain.securitytoken.usb.tpdu;
 
+import java.io.ByteArrayOutputStream;
+
 import android.support.annotation.NonNull;
 
-import org.bouncycastle.util.Arrays;
 import org.bouncycastle.util.encoders.Hex;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.securitytoken.usb.CcidTransceiver;
@@ -45,6 +46,8 @@ public class T1TpduProtocol implements CcidTransportProtocol {
 
         // PPS all auto
         pps();
+
+        negotiateIfsd();
     }
 
     protected void pps() throws UsbTransportException {
@@ -57,6 +60,27 @@ public class T1TpduProtocol implements CcidTransportProtocol {
         Log.d(Constants.TAG, "PPS response " + Hex.toHexString(ppsResponse));
     }
 
+    /**
+     * Announces the largest block size we accept, so the token returns long responses in as
+     * few blocks as possible instead of the default of 32 bytes per block. Tokens which don't
+     * acknowledge this just keep the default.
+     */
+    protected void negotiateIfsd() throws UsbTransportException {
+        Block request = new SBlock(mChecksumType, (byte) 0, SBlock.PCB_IFS_REQUEST,
+                new byte[]{(byte) MAX_FRAME_LEN});
+
+        mTransceiver.sendXfrBlock(request.getRawData());
+
+        try {
+            Block response = getBlockFromResponse(mTransceiver.receiveRaw());
+            if (!(response instanceof SBlock) || response.getPcb() != SBlock.PCB_IFS_RESPONSE) {
+                Log.d(Constants.TAG, "IFS request not acknowledged, response " + response.toString());
+            }
+        } catch (UsbTransportException e) {
+            Log.d(Constants.TAG, "IFS request failed, keeping default block size", e);
+        }
+    }
+
     public byte[] transceive(@NonNull byte[] apdu) throws UsbTransportException {
         int start = 0;
 
@@ -70,7 +94,7 @@ public class T1TpduProtocol implements CcidTransportProtocol {
             int len = Math.min(MAX_FRAME_LEN, apdu.length - start);
 
             // Send next frame
-            Block block = newIBlock(mCounter++, hasMore, Arrays.copyOfRange(apdu, start, start + len));
+            Block block = newIBlock(mCounter++, hasMore, apdu, start, len);
 
             mTransceiver.sendXfrBlock(block.getRawData());
 
@@ -101,7 +125,12 @@ public class T1TpduProtocol implements CcidTransportProtocol {
             throw new UsbTransportException("Invalid tpdu sequence state");
 
         byte[] responseApdu = responseBlock.getApdu();
+        if (!((IBlock) responseBlock).getChaining()) {
+            return responseApdu;
+        }
 
+        ByteArrayOutputStream chainedResponse = new ByteArrayOutputStream();
+        chainedResponse.write(responseApdu, 0, responseApdu.length);
         while (((IBlock) responseBlock).getChaining()) {
             Block ackBlock = newRBlock((byte) (((IBlock) responseBlock).getSequence() + 1));
             mTransceiver.sendXfrBlock(ackBlock.getRawData());
@@ -109,14 +138,15 @@ public class T1TpduProtocol implements CcidTransportProtocol {
             responseBlock = getBlockFromResponse(mTransceiver.receiveRaw());
 
             if (responseBlock instanceof IBlock) {
-                responseApdu = Arrays.concatenate(responseApdu, responseBlock.getApdu());
+                responseApdu = responseBlock.getApdu();
+                chainedResponse.write(responseApdu, 0, responseApdu.length);
             } else {
                 Log.d(Constants.TAG, "Response block received " + responseBlock.toString());
                 throw new UsbTransportException("Response: invalid state - invalid block received");
             }
         }
 
-        return responseApdu;
+        return chainedResponse.toByteArray();
     }
 
     // Factory methods
@@ -138,6 +168,11 @@ public class T1TpduProtocol implements CcidTransportProtocol {
         return new IBlock(mChecksumType, (byte) 0, sequence, chaining, apdu);
     }
 
+    public IBlock newIBlock(byte sequence, boolean chaining, byte[] apdu, int offset, int length)
+            throws UsbTransportException {
+        return new IBlock(mChecksumType, (byte) 0, sequence, chaining, apdu, offset, length);
+    }
+
     public RBlock newRBlock(byte sequence) throws UsbTransportException {
         return new RBlock(mChecksumType, (byte) 0, sequence);
     }
@@ -17,6 +17,8 @@
 
 package org.sufficientlysecure.keychain.service;
 
+import java.util.ArrayList;
+
 import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -27,6 +29,7 @@ import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 public class InputDataParcel implements Parcelable {
 
     private Uri mInputUri;
+    private ArrayList<Uri> mBatchInputUris;
 
     private PgpDecryptVerifyInputParcel mDecryptInput;
     private boolean mMimeDecode = true; // TODO default to false
@@ -36,17 +39,54 @@ public class InputDataParcel implements Parcelable {
         mDecryptInput = decryptInput;
     }
 
+    /** Creates a batch of inputs which are processed concurrently, with the same decryption
+     * input and the same crypto input for all of them.
+     */
+    public InputDataParcel(ArrayList<Uri> batchInputUris, PgpDecryptVerifyInputParcel decryptInput) {
+        mInputUri = batchInputUris.get(0);
+        mBatchInputUris = batchInputUris;
+        mDecryptInput = decryptInput;
+    }
+
     InputDataParcel(Parcel source) {
         // we do all of those here, so the PgpSignEncryptInput class doesn't have to be parcelable
         mInputUri = source.readParcelable(getClass().getClassLoader());
         mDecryptInput = source.readParcelable(getClass().getClassLoader());
         mMimeDecode = source.readInt() != 0;
+        if (source.readInt() != 0) {
+            mBatchInputUris = source.createTypedArrayList(Uri.CREATOR);
+        }
+    }
+
+    /** Returns the input for a single item of this batch, with its own copy of the
+     * decryption input, since that is modified during the operation.
+     */
+    public InputDataParcel forBatchItem(Uri inputUri) {
+        PgpDecryptVerifyInputParcel decryptInput = null;
+        if (mDecryptInput != null) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                mDecryptInput.writeToParcel(parcel, 0);
+                parcel.setDataPosition(0);
+                decryptInput = PgpDecryptVerifyInputParcel.CREATOR.createFromParcel(parcel);
+            } finally {
+                parcel.recycle();
+            }
+        }
+        InputDataParcel result = new InputDataParcel(inputUri, decryptInput);
+        result.mMimeDecode = mMimeDecode;
+        return result;
     }
 
     public Uri getInputUri() {
         return mInputUri;
     }
 
+    /** Returns all inputs of this batch, or null if this is not a batch. */
+    public ArrayList<Uri> getBatchInputUris() {
+        return mBatchInputUris;
+    }
+
     public PgpDecryptVerifyInputParcel getDecryptInput() {
         return mDecryptInput;
     }
@@ -65,6 +105,12 @@ public class InputDataParcel implements Parcelable {
         dest.writeParcelable(mInputUri, 0);
         dest.writeParcelable(mDecryptInput, 0);
         dest.writeInt(mMimeDecode ? 1 : 0);
+        if (mBatchInputUris != null) {
+            dest.writeInt(1);
+            dest.writeTypedList(mBatchInputUris);
+        } else {
+            dest.writeInt(0);
+        }
     }
 
     public static final Creator<InputDataParcel> CREATOR = new Creator<InputDataParcel>() {
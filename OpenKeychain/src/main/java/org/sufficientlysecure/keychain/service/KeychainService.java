@@ -20,6 +20,7 @@ package org.sufficientlysecure.keychain.service;
 
 import android.app.Service;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Message;
@@ -43,6 +44,7 @@ import org.sufficientlysecure.keychain.operations.PromoteKeyOperation;
 import org.sufficientlysecure.keychain.operations.RevokeOperation;
 import org.sufficientlysecure.keychain.operations.SignEncryptOperation;
 import org.sufficientlysecure.keychain.operations.UploadOperation;
+import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
@@ -70,95 +72,147 @@ public class KeychainService extends Service implements Progressable {
 
     public static final String ACTION_CANCEL = "action_cancel";
 
-    // this attribute can possibly merged with the one above? not sure...
-    private AtomicBoolean mActionCanceled = new AtomicBoolean(false);
+    private OperationScheduler mScheduler;
 
     ThreadLocal<Messenger> mMessenger = new ThreadLocal<>();
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mScheduler = new OperationScheduler();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mScheduler.shutdown();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
     }
 
     /**
-     * This is run on the main thread, we need to spawn a runnable which runs on another thread for the actual operation
+     * This is run on the main thread, the actual operation is scheduled to run on a worker thread
      */
     @Override
     public int onStartCommand(final Intent intent, int flags, int startId) {
 
         if (intent.getAction() != null && intent.getAction().equals(ACTION_CANCEL)) {
-            mActionCanceled.set(true);
+            mScheduler.cancelAll();
             return START_NOT_STICKY;
         }
 
-        Runnable actionRunnable = new Runnable() {
-            @Override
-            public void run() {
-                // We have not been cancelled! (yet)
-                mActionCanceled.set(false);
+        Bundle extras = intent.getExtras();
 
-                Bundle extras = intent.getExtras();
+        final Messenger messenger = extras.getParcelable(EXTRA_MESSENGER);
 
+        // Input
+        final Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
+        final CryptoInputParcel cryptoInput = extras.getParcelable(EXTRA_CRYPTO_INPUT);
+
+        OperationScheduler.ScheduledOperation scheduledOperation = new OperationScheduler.ScheduledOperation() {
+            @Override
+            public void run(AtomicBoolean cancelled) {
                 // Set messenger for communication (for this particular thread)
-                mMessenger.set(extras.<Messenger>getParcelable(EXTRA_MESSENGER));
-
-                // Input
-                Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
-                CryptoInputParcel cryptoInput = extras.getParcelable(EXTRA_CRYPTO_INPUT);
-
-                // Operation
-                BaseOperation op;
-
-                // just for brevity
-                KeychainService outerThis = KeychainService.this;
-                if (inputParcel instanceof SignEncryptParcel) {
-                    op = new SignEncryptOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
-                } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
-                    op = new PgpDecryptVerifyOperation(outerThis, new ProviderHelper(outerThis), outerThis);
-                } else if (inputParcel instanceof SaveKeyringParcel) {
-                    op = new EditKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
-                } else if (inputParcel instanceof  ChangeUnlockParcel) {
-                    op = new ChangeUnlockOperation(outerThis, new ProviderHelper(outerThis), outerThis);
-                } else if (inputParcel instanceof RevokeKeyringParcel) {
-                    op = new RevokeOperation(outerThis, new ProviderHelper(outerThis), outerThis);
-                } else if (inputParcel instanceof CertifyActionsParcel) {
-                    op = new CertifyOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
-                } else if (inputParcel instanceof DeleteKeyringParcel) {
-                    op = new DeleteOperation(outerThis, new ProviderHelper(outerThis), outerThis);
-                } else if (inputParcel instanceof PromoteKeyringParcel) {
-                    op = new PromoteKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
-                } else if (inputParcel instanceof ImportKeyringParcel) {
-                    op = new ImportOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
-                } else if (inputParcel instanceof BackupKeyringParcel) {
-                    op = new BackupOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
-                } else if (inputParcel instanceof UploadKeyringParcel) {
-                    op = new UploadOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
-                } else if (inputParcel instanceof ConsolidateInputParcel) {
-                    op = new ConsolidateOperation(outerThis, new ProviderHelper(outerThis), outerThis);
-                } else if (inputParcel instanceof KeybaseVerificationParcel) {
-                    op = new KeybaseVerificationOperation(outerThis, new ProviderHelper(outerThis), outerThis);
-                } else if (inputParcel instanceof InputDataParcel) {
-                    op = new InputDataOperation(outerThis, new ProviderHelper(outerThis), outerThis);
-                } else if (inputParcel instanceof BenchmarkInputParcel) {
-                    op = new BenchmarkOperation(outerThis, new ProviderHelper(outerThis), outerThis);
-                } else {
-                    throw new AssertionError("Unrecognized input parcel in KeychainService!");
+                mMessenger.set(messenger);
+                try {
+                    BaseOperation op = createOperation(inputParcel, cancelled);
+                    if (op instanceof InputDataOperation) {
+                        setBatchResultListener((InputDataOperation) op, messenger);
+                    }
+
+                    @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
+                    OperationResult result = op.executeTimed(inputParcel, cryptoInput);
+                    sendMessageToHandler(MessageStatus.OKAY, result);
+                } finally {
+                    // worker threads are reused, don't leak the messenger into the next operation
+                    mMessenger.remove();
                 }
-
-                @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
-                OperationResult result = op.execute(inputParcel, cryptoInput);
-                sendMessageToHandler(MessageStatus.OKAY, result);
-
             }
         };
 
-        Thread actionThread = new Thread(actionRunnable);
-        actionThread.start();
+        mScheduler.schedule(inputParcel.getClass().getSimpleName(), getPriority(inputParcel), scheduledOperation);
 
         return START_NOT_STICKY;
     }
 
+    private BaseOperation createOperation(Parcelable inputParcel, AtomicBoolean cancelled) {
+        // just for brevity
+        KeychainService outerThis = KeychainService.this;
+        // note that ProviderHelper keeps a per-operation log, so it can't be shared between operations
+        if (inputParcel instanceof SignEncryptParcel) {
+            return new SignEncryptOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
+        } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
+            return new PgpDecryptVerifyOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+        } else if (inputParcel instanceof SaveKeyringParcel) {
+            return new EditKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
+        } else if (inputParcel instanceof  ChangeUnlockParcel) {
+            return new ChangeUnlockOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+        } else if (inputParcel instanceof RevokeKeyringParcel) {
+            return new RevokeOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+        } else if (inputParcel instanceof CertifyActionsParcel) {
+            return new CertifyOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
+        } else if (inputParcel instanceof DeleteKeyringParcel) {
+            return new DeleteOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+        } else if (inputParcel instanceof PromoteKeyringParcel) {
+            return new PromoteKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
+        } else if (inputParcel instanceof ImportKeyringParcel) {
+            return new ImportOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
+        } else if (inputParcel instanceof BackupKeyringParcel) {
+            return new BackupOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
+        } else if (inputParcel instanceof UploadKeyringParcel) {
+            return new UploadOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
+        } else if (inputParcel instanceof ConsolidateInputParcel) {
+            return new ConsolidateOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+        } else if (inputParcel instanceof KeybaseVerificationParcel) {
+            return new KeybaseVerificationOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+        } else if (inputParcel instanceof InputDataParcel) {
+            return new InputDataOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
+        } else if (inputParcel instanceof BenchmarkInputParcel) {
+            return new BenchmarkOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+        } else {
+            throw new AssertionError("Unrecognized input parcel in KeychainService!");
+        }
+    }
+
+    /**
+     * Imports and uploads may take a long time and are usually not awaited by the user, so they
+     * must not hold up interactive operations. Consolidation and benchmarks are maintenance work.
+     */
+    private static OperationScheduler.Priority getPriority(Parcelable inputParcel) {
+        if (inputParcel instanceof ImportKeyringParcel || inputParcel instanceof UploadKeyringParcel) {
+            return OperationScheduler.Priority.BACKGROUND;
+        } else if (inputParcel instanceof ConsolidateInputParcel || inputParcel instanceof BenchmarkInputParcel) {
+            return OperationScheduler.Priority.MAINTENANCE;
+        } else {
+            return OperationScheduler.Priority.INTERACTIVE;
+        }
+    }
+
+    /**
+     * Batch results are delivered from the batch's worker threads, so they are sent to the
+     * messenger of the operation directly instead of through the thread local.
+     */
+    private void setBatchResultListener(InputDataOperation op, final Messenger messenger) {
+        op.setBatchResultListener(new InputDataOperation.BatchResultListener() {
+            @Override
+            public void onBatchResult(Uri inputUri, InputDataResult result) {
+                Bundle data = new Bundle();
+                data.putParcelable(ServiceProgressHandler.DATA_INPUT_URI, inputUri);
+                data.putParcelable(OperationResult.EXTRA_RESULT, result);
+                sendMessageToHandler(messenger, MessageStatus.PARTIAL_RESULT, null, data);
+            }
+        });
+    }
+
     private void sendMessageToHandler(MessageStatus status, Integer arg2, Bundle data) {
+        sendMessageToHandler(mMessenger.get(), status, arg2, data);
+    }
+
+    private static void sendMessageToHandler(Messenger messenger, MessageStatus status,
+            Integer arg2, Bundle data) {
 
         Message msg = Message.obtain();
         assert msg != null;
@@ -171,7 +225,7 @@ public class KeychainService extends Service implements Progressable {
         }
 
         try {
-            mMessenger.get().send(msg);
+            messenger.send(msg);
         } catch (RemoteException e) {
             Log.w(Constants.TAG, "Exception sending message, Is handler present?", e);
         } catch (NullPointerException e) {
@@ -48,6 +48,7 @@ import org.sufficientlysecure.keychain.network.orbot.OrbotHelper;
 
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -58,9 +59,11 @@ public class KeyserverSyncAdapterService extends Service {
     public static final long SYNC_INTERVAL =
             Constants.DEBUG_KEYSERVER_SYNC
                     ? TimeUnit.MINUTES.toSeconds(1) : TimeUnit.DAYS.toSeconds(3);
-    // time since last update after which a key should be updated again, in s
-    public static final long KEY_UPDATE_LIMIT =
-            Constants.DEBUG_KEYSERVER_SYNC ? 1 : TimeUnit.DAYS.toSeconds(7);
+    // time after which a key which could not be updated is tried again, in s
+    public static final long KEY_RETRY_DELAY =
+            Constants.DEBUG_KEYSERVER_SYNC ? 1 : TimeUnit.DAYS.toSeconds(1);
+    // number of keys updated per batch, which are fetched concurrently if Tor is not used
+    public static final int SYNC_BATCH_SIZE = 8;
     // time by which a sync is postponed in case screen is on
     public static final long SYNC_POSTPONE_TIME =
             Constants.DEBUG_KEYSERVER_SYNC ? 30 * 1000 : TimeUnit.MINUTES.toMillis(5);
@@ -75,8 +78,13 @@ public class KeyserverSyncAdapterService extends Service {
     private static final String ACTION_DISMISS_NOTIFICATION = "cancel_sync";
     private static final String ACTION_START_ORBOT = "start_orbot";
     private static final String ACTION_CANCEL = "cancel";
+    // set on intents which continue a sync, as opposed to starting one
+    private static final String EXTRA_NEXT_BATCH = "next_batch";
+    // distinguishes the alarm for the next batch from the notification actions
+    private static final int REQUEST_CODE_NEXT_BATCH = 1;
 
     private AtomicBoolean mCancelled = new AtomicBoolean(false);
+    private static final Random sRandom = new Random();
 
     @Override
     public int onStartCommand(final Intent intent, int flags, final int startId) {
@@ -93,6 +101,7 @@ public class KeyserverSyncAdapterService extends Service {
         switch (intent.getAction()) {
             case ACTION_CANCEL: {
                 mCancelled.set(true);
+                cancelNextBatch();
                 return START_NOT_STICKY;
             }
             // the reason for the separation betweyeen SYNC_NOW and UPDATE_ALL is so that starting
@@ -108,6 +117,9 @@ public class KeyserverSyncAdapterService extends Service {
                 return START_NOT_STICKY;
             }
             case ACTION_UPDATE_ALL: {
+                if (!startBatch(intent, startId)) {
+                    return START_NOT_STICKY;
+                }
                 // does not check for screen on/off
                 asyncKeyUpdate(this, new CryptoInputParcel(), startId);
                 // we depend on handleUpdateResult to call stopSelf when it is no longer necessary
@@ -117,6 +129,9 @@ public class KeyserverSyncAdapterService extends Service {
             case ACTION_IGNORE_TOR: {
                 NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
                 manager.cancel(Constants.Notification.KEYSERVER_SYNC_FAIL_ORBOT);
+                if (!startBatch(intent, startId)) {
+                    return START_NOT_STICKY;
+                }
                 asyncKeyUpdate(this, new CryptoInputParcel(ParcelableProxy.getForNoProxy()),
                         startId);
                 // we depend on handleUpdateResult to call stopSelf when it is no longer necessary
@@ -170,6 +185,25 @@ public class KeyserverSyncAdapterService extends Service {
         return START_NOT_STICKY;
     }
 
+    /**
+     * A new sync clears a previous cancellation, while the next batch of a cancelled sync is
+     * dropped.
+     *
+     * @return true if the batch should be run
+     */
+    private boolean startBatch(Intent intent, int startId) {
+        if (!intent.getBooleanExtra(EXTRA_NEXT_BATCH, false)) {
+            mCancelled.set(false);
+            return true;
+        }
+        if (isUpdateCancelled()) {
+            Log.d(Constants.TAG, "Keyserver sync cancelled, dropping next batch");
+            stopSelf(startId);
+            return false;
+        }
+        return true;
+    }
+
     private class KeyserverSyncAdapter extends AbstractThreadedSyncAdapter {
 
         public KeyserverSyncAdapter() {
@@ -226,10 +260,12 @@ public class KeyserverSyncAdapterService extends Service {
      * Since we're returning START_REDELIVER_INTENT in onStartCommand, we need to remember to call
      * stopSelf(int) to prevent the Intent from being redelivered if our work is already done
      *
-     * @param result  result of keyserver sync
-     * @param startId startId provided to the onStartCommand call which resulted in this sync
+     * @param result            result of keyserver sync
+     * @param cryptoInputParcel input the sync was started with, to continue with the next batch
+     * @param startId           startId provided to the onStartCommand call which resulted in this sync
      */
-    private void handleUpdateResult(ImportKeyResult result, final int startId) {
+    private void handleUpdateResult(ImportKeyResult result, CryptoInputParcel cryptoInputParcel,
+                                    final int startId) {
         if (result.isPending()) {
             Log.d(Constants.TAG, "Orbot required for sync but not running, attempting to start");
             // result is pending due to Orbot not being started
@@ -263,13 +299,68 @@ public class KeyserverSyncAdapterService extends Service {
             // postponeSync creates a new intent, so we don't need this to be redelivered
             stopSelf(startId);
         } else {
-            Log.d(Constants.TAG, "Keyserver sync completed: Updated: " + result.mUpdatedKeys
+            Log.d(Constants.TAG, "Keyserver sync batch completed: Updated: " + result.mUpdatedKeys
                     + " Failed: " + result.mBadKeys);
-            // key sync completed successfully, we can stop
+            // progress is stored per key, so if we are killed the next batch picks up from here.
+            // without a network, remaining keys would only fail and be postponed, so we stop
+            // until the next sync
+            if (!isUpdateCancelled() && isNetworkAvailable(this) && hasKeysToUpdate(this)) {
+                scheduleNextBatch(cryptoInputParcel);
+            }
+            // key sync batch completed successfully, we can stop
             stopSelf(startId);
         }
     }
 
+    /**
+     * Continues with the next batch of keys. With Tor, batches are staggered so that each uses a
+     * new circuit, as performed by parcimonie. Relevant issue and method at:
+     * https://github.com/open-keychain/open-keychain/issues/1337
+     */
+    private void scheduleNextBatch(CryptoInputParcel cryptoInputParcel) {
+        Intent serviceIntent = getNextBatchIntent(cryptoInputParcel.getParcelableProxy() != null);
+
+        if (!isStaggeredUpdate(this, cryptoInputParcel)) {
+            startService(serviceIntent);
+            return;
+        }
+
+        int waitTime = ORBOT_CIRCUIT_TIMEOUT_SECONDS + sRandom.nextInt(1 + ORBOT_CIRCUIT_TIMEOUT_SECONDS);
+        Log.d(Constants.TAG, "Next keyserver sync batch in " + waitTime + "s");
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pi = PendingIntent.getService(this, REQUEST_CODE_NEXT_BATCH, serviceIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        alarmManager.set(
+                AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + TimeUnit.SECONDS.toMillis(waitTime),
+                pi
+        );
+    }
+
+    /**
+     * @param ignoreTor true if the sync was started without Tor, ACTION_IGNORE_TOR is the only
+     *                  way a proxy is explicitly set
+     */
+    private Intent getNextBatchIntent(boolean ignoreTor) {
+        Intent serviceIntent = new Intent(this, KeyserverSyncAdapterService.class);
+        serviceIntent.setAction(ignoreTor ? ACTION_IGNORE_TOR : ACTION_UPDATE_ALL);
+        serviceIntent.putExtra(EXTRA_NEXT_BATCH, true);
+        return serviceIntent;
+    }
+
+    /** Cancels the alarm for the next batch of a staggered sync, if one is set. */
+    private void cancelNextBatch() {
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        for (boolean ignoreTor : new boolean[] { false, true }) {
+            PendingIntent pi = PendingIntent.getService(this, REQUEST_CODE_NEXT_BATCH,
+                    getNextBatchIntent(ignoreTor), PendingIntent.FLAG_NO_CREATE);
+            if (pi != null) {
+                alarmManager.cancel(pi);
+                pi.cancel();
+            }
+        }
+    }
+
     private void postponeSync() {
         AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
         Intent serviceIntent = new Intent(this, KeyserverSyncAdapterService.class);
@@ -289,189 +380,161 @@ public class KeyserverSyncAdapterService extends Service {
             @Override
             public void run() {
                 ImportKeyResult result = updateKeysFromKeyserver(context, cryptoInputParcel);
-                handleUpdateResult(result, startId);
+                handleUpdateResult(result, cryptoInputParcel, startId);
             }
         }).start();
     }
 
+    /**
+     * Updates the next batch of keys which are due. Keys which could not be updated are postponed
+     * by KEY_RETRY_DELAY, so they don't hold up the remaining keys.
+     *
+     * @return result of the batch, which is empty if no keys are due
+     */
     private synchronized ImportKeyResult updateKeysFromKeyserver(final Context context,
                                                                  final CryptoInputParcel cryptoInputParcel) {
-        mCancelled.set(false);
-
-        ArrayList<ParcelableKeyRing> keyList = getKeysToUpdate(context);
+        // with Tor, keys are updated one at a time, see scheduleNextBatch
+        int batchSize = isStaggeredUpdate(context, cryptoInputParcel) ? 1 : SYNC_BATCH_SIZE;
+        ArrayList<DueKey> dueKeys = getKeysToUpdate(context, batchSize);
 
         if (isUpdateCancelled()) { // if we've already been cancelled
             return new ImportKeyResult(OperationResult.RESULT_CANCELLED,
                     new OperationResult.OperationLog());
         }
 
-        if (cryptoInputParcel.getParcelableProxy() == null) {
-            // no explicit proxy, retrieve from preferences. Check if we should do a staggered sync
-            if (Preferences.getPreferences(context).getParcelableProxy().isTorEnabled()) {
-                return staggeredUpdate(context, keyList, cryptoInputParcel);
-            } else {
-                return directUpdate(context, keyList, cryptoInputParcel);
-            }
-        } else {
-            return directUpdate(context, keyList, cryptoInputParcel);
+        if (!isNetworkAvailable(context)) {
+            // keys can't be updated, they stay due
+            Log.d(Constants.TAG, "Keyserver sync: no network available");
+            return new ImportKeyResult(OperationResult.RESULT_ERROR,
+                    new OperationResult.OperationLog());
         }
-    }
 
-    private ImportKeyResult directUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
-                                         CryptoInputParcel cryptoInputParcel) {
-        Log.d(Constants.TAG, "Starting normal update");
-        ImportOperation importOp = new ImportOperation(context, new ProviderHelper(context), null);
-        return importOp.execute(
-                new ImportKeyringParcel(keyList,
-                        Preferences.getPreferences(context).getPreferredKeyserver()),
-                cryptoInputParcel
-        );
-    }
+        if (dueKeys.isEmpty()) {
+            Log.d(Constants.TAG, "Keyserver sync: no keys are due");
+            return new ImportKeyResult(OperationResult.RESULT_OK,
+                    new OperationResult.OperationLog());
+        }
 
-    /**
-     * will perform a staggered update of user's keys using delays to ensure new Tor circuits, as
-     * performed by parcimonie. Relevant issue and method at:
-     * https://github.com/open-keychain/open-keychain/issues/1337
-     *
-     * @return result of the sync
-     */
-    private ImportKeyResult staggeredUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
-                                            CryptoInputParcel cryptoInputParcel) {
-        Log.d(Constants.TAG, "Starting staggered update");
-        // final int WEEK_IN_SECONDS = (int) TimeUnit.DAYS.toSeconds(7);
-        // we are limiting our randomness to ORBOT_CIRCUIT_TIMEOUT_SECONDS for now
-        final int WEEK_IN_SECONDS = 0;
-
-        ImportOperation.KeyImportAccumulator accumulator
-                = new ImportOperation.KeyImportAccumulator(keyList.size(), null);
-
-        // so that the first key can be updated without waiting. This is so that there isn't a
-        // large gap between a "Start Orbot" notification and the next key update
-        boolean first = true;
-
-        for (ParcelableKeyRing keyRing : keyList) {
-            int waitTime;
-            int staggeredTime = new Random().nextInt(1 + 2 * (WEEK_IN_SECONDS / keyList.size()));
-            if (staggeredTime >= ORBOT_CIRCUIT_TIMEOUT_SECONDS) {
-                waitTime = staggeredTime;
-            } else {
-                waitTime = ORBOT_CIRCUIT_TIMEOUT_SECONDS
-                        + new Random().nextInt(1 + ORBOT_CIRCUIT_TIMEOUT_SECONDS);
-            }
+        ArrayList<ParcelableKeyRing> keyList = new ArrayList<>();
+        for (DueKey dueKey : dueKeys) {
+            keyList.add(dueKey.mKeyRing);
+        }
 
-            if (first) {
-                waitTime = 0;
-                first = false;
-            }
+        ProviderHelper providerHelper = new ProviderHelper(context);
+        ImportKeyResult result = new ImportOperation(context, providerHelper, null, mCancelled)
+                .execute(
+                        new ImportKeyringParcel(
+                                keyList,
+                                Preferences.getPreferences(context).getPreferredKeyserver()
+                        ),
+                        cryptoInputParcel
+                );
+        if (result.isPending() || isUpdateCancelled() || !isNetworkAvailable(context)) {
+            // keys were not tried, or failed because the network went away. they stay due
+            return result;
+        }
 
-            Log.d(Constants.TAG, "Updating key with fingerprint " + keyRing.mExpectedFingerprint +
-                    " with a wait time of " + waitTime + "s");
-            try {
-                Thread.sleep(waitTime * 1000);
-            } catch (InterruptedException e) {
-                Log.e(Constants.TAG, "Exception during sleep between key updates", e);
-                // skip this one
-                continue;
-            }
-            ArrayList<ParcelableKeyRing> keyWrapper = new ArrayList<>();
-            keyWrapper.add(keyRing);
-            if (isUpdateCancelled()) {
-                return new ImportKeyResult(ImportKeyResult.RESULT_CANCELLED,
-                        new OperationResult.OperationLog());
-            }
-            ImportKeyResult result =
-                    new ImportOperation(context, new ProviderHelper(context), null, mCancelled)
-                            .execute(
-                                    new ImportKeyringParcel(
-                                            keyWrapper,
-                                            Preferences.getPreferences(context)
-                                                    .getPreferredKeyserver()
-                                    ),
-                                    cryptoInputParcel
-                            );
-            if (result.isPending()) {
-                return result;
+        // successfully updated keys were rescheduled on import
+        HashSet<Long> updatedMasterKeyIds = new HashSet<>();
+        for (long masterKeyId : result.getImportedMasterKeyIds()) {
+            updatedMasterKeyIds.add(masterKeyId);
+        }
+        long retryTime = GregorianCalendar.getInstance().getTimeInMillis() / 1000 + KEY_RETRY_DELAY;
+        for (DueKey dueKey : dueKeys) {
+            if (!updatedMasterKeyIds.contains(dueKey.mMasterKeyId)) {
+                Log.d(Constants.TAG, "Keyserver sync: Postponing {" + dueKey.mMasterKeyId + "}");
+                providerHelper.postponeKeyUpdate(dueKey.mMasterKeyId, dueKey.mLastUpdated, retryTime);
             }
-            accumulator.accumulateKeyImport(result);
         }
-        return accumulator.getConsolidatedResult();
+
+        return result;
+    }
+
+    private static boolean isStaggeredUpdate(Context context, CryptoInputParcel cryptoInputParcel) {
+        // no explicit proxy, retrieve from preferences
+        return cryptoInputParcel.getParcelableProxy() == null
+                && Preferences.getPreferences(context).getParcelableProxy().isTorEnabled();
+    }
+
+    private static boolean isNetworkAvailable(Context context) {
+        ConnectivityManager connMgr = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
     }
 
+    private static final String[] DUE_KEYS_PROJECTION = new String[] {
+            KeychainContract.UpdatedKeys.MASTER_KEY_ID,
+            KeychainContract.UpdatedKeys.FINGERPRINT,
+            KeychainContract.UpdatedKeys.LAST_UPDATED
+    };
+    private static final int INDEX_MASTER_KEY_ID = 0;
+    private static final int INDEX_FINGERPRINT = 1;
+    private static final int INDEX_LAST_UPDATED = 2;
+
     /**
-     * 1. Get keys which have been updated recently and therefore do not need to
-     * be updated now
-     * 2. Get list of all keys and filter out ones that don't need to be updated
-     * 3. Return keys to be updated
+     * Returns the keys which are due for an update, the ones that are overdue the longest first.
      *
+     * @param limit maximum number of keys to return
      * @return list of keys that require update
      */
-    private ArrayList<ParcelableKeyRing> getKeysToUpdate(Context context) {
-
-        // 1. Get keys which have been updated recently and don't need to updated now
-        final int INDEX_UPDATED_KEYS_MASTER_KEY_ID = 0;
-        final int INDEX_LAST_UPDATED = 1;
-
+    private ArrayList<DueKey> getKeysToUpdate(Context context, int limit) {
         // all time in seconds not milliseconds
         final long CURRENT_TIME = GregorianCalendar.getInstance().getTimeInMillis() / 1000;
-        Cursor updatedKeysCursor = context.getContentResolver().query(
-                KeychainContract.UpdatedKeys.CONTENT_URI,
-                new String[]{
-                        KeychainContract.UpdatedKeys.MASTER_KEY_ID,
-                        KeychainContract.UpdatedKeys.LAST_UPDATED
-                },
-                "? - " + KeychainContract.UpdatedKeys.LAST_UPDATED + " < " + KEY_UPDATE_LIMIT,
-                new String[]{"" + CURRENT_TIME},
-                null
-        );
-
-        ArrayList<Long> ignoreMasterKeyIds = new ArrayList<>();
-        while (updatedKeysCursor != null && updatedKeysCursor.moveToNext()) {
-            long masterKeyId = updatedKeysCursor.getLong(INDEX_UPDATED_KEYS_MASTER_KEY_ID);
-            Log.d(Constants.TAG, "Keyserver sync: Ignoring {" + masterKeyId + "} last updated at {"
-                    + updatedKeysCursor.getLong(INDEX_LAST_UPDATED) + "}s");
-            ignoreMasterKeyIds.add(masterKeyId);
-        }
-        if (updatedKeysCursor != null) {
-            updatedKeysCursor.close();
-        }
-
-        // 2. Make a list of public keys which should be updated
-        final int INDEX_MASTER_KEY_ID = 0;
-        final int INDEX_FINGERPRINT = 1;
         Cursor keyCursor = context.getContentResolver().query(
-                KeychainContract.KeyRings.buildUnifiedKeyRingsUri(),
-                new String[]{
-                        KeychainContract.KeyRings.MASTER_KEY_ID,
-                        KeychainContract.KeyRings.FINGERPRINT
-                },
-                null,
-                null,
-                null
-        );
+                KeychainContract.UpdatedKeys.buildDueKeysUri(CURRENT_TIME, limit),
+                DUE_KEYS_PROJECTION, null, null, null);
 
+        ArrayList<DueKey> keyList = new ArrayList<>();
         if (keyCursor == null) {
-            return new ArrayList<>();
+            return keyList;
         }
 
-        ArrayList<ParcelableKeyRing> keyList = new ArrayList<>();
         while (keyCursor.moveToNext()) {
             long keyId = keyCursor.getLong(INDEX_MASTER_KEY_ID);
-            if (ignoreMasterKeyIds.contains(keyId)) {
-                continue;
-            }
             Log.d(Constants.TAG, "Keyserver sync: Updating {" + keyId + "}");
             String fingerprint = KeyFormattingUtils
                     .convertFingerprintToHex(keyCursor.getBlob(INDEX_FINGERPRINT));
             String hexKeyId = KeyFormattingUtils
                     .convertKeyIdToHex(keyId);
+            Long lastUpdated = keyCursor.isNull(INDEX_LAST_UPDATED)
+                    ? null : keyCursor.getLong(INDEX_LAST_UPDATED);
             // we aren't updating from keybase as of now
-            keyList.add(new ParcelableKeyRing(fingerprint, hexKeyId, null, null));
+            keyList.add(new DueKey(keyId, lastUpdated,
+                    new ParcelableKeyRing(fingerprint, hexKeyId, null, null)));
         }
         keyCursor.close();
 
         return keyList;
     }
 
+    private static boolean hasKeysToUpdate(Context context) {
+        final long CURRENT_TIME = GregorianCalendar.getInstance().getTimeInMillis() / 1000;
+        Cursor keyCursor = context.getContentResolver().query(
+                KeychainContract.UpdatedKeys.buildDueKeysUri(CURRENT_TIME, 1),
+                DUE_KEYS_PROJECTION, null, null, null);
+        if (keyCursor == null) {
+            return false;
+        }
+        try {
+            return keyCursor.moveToFirst();
+        } finally {
+            keyCursor.close();
+        }
+    }
+
+    private static class DueKey {
+        final long mMasterKeyId;
+        final Long mLastUpdated;
+        final ParcelableKeyRing mKeyRing;
+
+        DueKey(long masterKeyId, Long lastUpdated, ParcelableKeyRing keyRing) {
+            mMasterKeyId = masterKeyId;
+            mLastUpdated = lastUpdated;
+            mKeyRing = keyRing;
+        }
+    }
+
     private boolean isUpdateCancelled() {
         return mCancelled.get();
     }
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/** Runs operations on a bounded pool of worker threads, ordered by priority.
+ *
+ * Operations which a user is actively waiting for are run ahead of background
+ * work such as imports or keyserver uploads, which in turn run ahead of
+ * maintenance work like consolidation. Within the same priority, operations are
+ * run in the order they were scheduled.
+ *
+ * Each operation gets its own cancellation flag, cancelAll() sets it for every
+ * operation which is queued or running. Queue latency and run time are tracked
+ * per operation type, see getMetrics().
+ */
+public class OperationScheduler {
+
+    public enum Priority {
+        INTERACTIVE, BACKGROUND, MAINTENANCE
+    }
+
+    public interface ScheduledOperation {
+        void run(AtomicBoolean cancelled);
+    }
+
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final HashSet<AtomicBoolean> mActiveCancelFlags = new HashSet<>();
+    private final HashMap<String, OperationMetrics> mMetrics = new HashMap<>();
+
+    public OperationScheduler() {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public OperationScheduler(int maxWorkers) {
+        mExecutor = new ThreadPoolExecutor(maxWorkers, maxWorkers,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Schedules an operation for execution.
+     *
+     * @param type     operation type, used as key for the collected metrics
+     * @param priority priority class of the operation
+     * @return the cancellation flag passed to the operation
+     */
+    public AtomicBoolean schedule(String type, Priority priority, ScheduledOperation operation) {
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        synchronized (mActiveCancelFlags) {
+            mActiveCancelFlags.add(cancelled);
+        }
+        synchronized (mMetrics) {
+            getMetrics(type).mQueued += 1;
+        }
+
+        // note that execute() must be used here, submit() would wrap the task in a non-comparable future
+        mExecutor.execute(new PrioritizedTask(type, priority, mSequence.getAndIncrement(), cancelled, operation));
+        return cancelled;
+    }
+
+    /** Cancels all operations which are queued or running. */
+    public void cancelAll() {
+        synchronized (mActiveCancelFlags) {
+            for (AtomicBoolean cancelled : mActiveCancelFlags) {
+                cancelled.set(true);
+            }
+        }
+    }
+
+    /** Finishes all queued operations, but does not accept new ones. */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /** Returns a snapshot of the collected metrics, by operation type. */
+    public HashMap<String, OperationMetrics> getMetrics() {
+        HashMap<String, OperationMetrics> result = new HashMap<>();
+        synchronized (mMetrics) {
+            for (String type : mMetrics.keySet()) {
+                result.put(type, new OperationMetrics(mMetrics.get(type)));
+            }
+        }
+        return result;
+    }
+
+    private OperationMetrics getMetrics(String type) {
+        synchronized (mMetrics) {
+            OperationMetrics metrics = mMetrics.get(type);
+            if (metrics == null) {
+                metrics = new OperationMetrics();
+                mMetrics.put(type, metrics);
+            }
+            return metrics;
+        }
+    }
+
+    public static class OperationMetrics {
+        int mQueued;
+        int mCompleted;
+        long mTotalWaitMillis;
+        long mMaxWaitMillis;
+        long mTotalRunMillis;
+
+        OperationMetrics() {
+        }
+
+        OperationMetrics(OperationMetrics other) {
+            mQueued = other.mQueued;
+            mCompleted = other.mCompleted;
+            mTotalWaitMillis = other.mTotalWaitMillis;
+            mMaxWaitMillis = other.mMaxWaitMillis;
+            mTotalRunMillis = other.mTotalRunMillis;
+        }
+
+        /** Number of operations currently waiting for a worker. */
+        public int getQueueDepth() {
+            return mQueued;
+        }
+
+        public int getCompletedCount() {
+            return mCompleted;
+        }
+
+        public long getAverageWaitMillis() {
+            return mCompleted == 0 ? 0 : mTotalWaitMillis / mCompleted;
+        }
+
+        public long getMaxWaitMillis() {
+            return mMaxWaitMillis;
+        }
+
+        public long getAverageRunMillis() {
+            return mCompleted == 0 ? 0 : mTotalRunMillis / mCompleted;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + mQueued + ", completed=" + mCompleted + ", avgWait=" + getAverageWaitMillis()
+                    + "ms, maxWait=" + mMaxWaitMillis + "ms, avgRun=" + getAverageRunMillis() + "ms";
+        }
+    }
+
+    private class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        final String mType;
+        final Priority mPriority;
+        final long mSequenceNumber;
+        final AtomicBoolean mCancelled;
+        final ScheduledOperation mOperation;
+        final long mScheduledTime;
+
+        PrioritizedTask(String type, Priority priority, long sequenceNumber, AtomicBoolean cancelled,
+                ScheduledOperation operation) {
+            mType = type;
+            mPriority = priority;
+            mSequenceNumber = sequenceNumber;
+            mCancelled = cancelled;
+            mOperation = operation;
+            mScheduledTime = System.currentTimeMillis();
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.currentTimeMillis();
+            long waitMillis = startTime - mScheduledTime;
+            synchronized (mMetrics) {
+                getMetrics(mType).mQueued -= 1;
+            }
+
+            try {
+                mOperation.run(mCancelled);
+            } finally {
+                synchronized (mActiveCancelFlags) {
+                    mActiveCancelFlags.remove(mCancelled);
+                }
+
+                long runMillis = System.currentTimeMillis() - startTime;
+                synchronized (mMetrics) {
+                    OperationMetrics metrics = getMetrics(mType);
+                    metrics.mCompleted += 1;
+                    metrics.mTotalWaitMillis += waitMillis;
+                    metrics.mMaxWaitMillis = Math.max(metrics.mMaxWaitMillis, waitMillis);
+                    metrics.mTotalRunMillis += runMillis;
+                }
+                Log.d(Constants.TAG, mType + " (" + mPriority + ") waited " + waitMillis
+                        + "ms, ran " + runMillis + "ms, queue depth " + mExecutor.getQueue().size());
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            int result = mPriority.compareTo(other.mPriority);
+            if (result != 0) {
+                return result;
+            }
+            return mSequenceNumber < other.mSequenceNumber ? -1 : (mSequenceNumber == other.mSequenceNumber ? 0 : 1);
+        }
+    }
+
+}
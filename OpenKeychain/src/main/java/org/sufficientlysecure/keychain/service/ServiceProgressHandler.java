@@ -39,7 +39,8 @@ public class ServiceProgressHandler extends Handler {
         OKAY,
         EXCEPTION,
         UPDATE_PROGRESS,
-        PREVENT_CANCEL;
+        PREVENT_CANCEL,
+        PARTIAL_RESULT;
 
         private static final MessageStatus[] values = values();
 
@@ -58,6 +59,7 @@ public class ServiceProgressHandler extends Handler {
     public static final String DATA_PROGRESS_MAX = "max";
     public static final String DATA_MESSAGE = "message";
     public static final String DATA_MESSAGE_ID = "message_id";
+    public static final String DATA_INPUT_URI = "input_uri";
 
     // keybase proof specific
     public static final String KEYBASE_PROOF_URL = "keybase_proof_url";
@@ -143,6 +145,10 @@ public class ServiceProgressHandler extends Handler {
                 setPreventCancel(true);
                 break;
 
+            case PARTIAL_RESULT:
+                // only relevant to handlers of batch operations
+                break;
+
             default:
                 Log.e(Constants.TAG, "unknown handler message!");
                 break;
@@ -238,6 +238,50 @@ public class RequiredInputParcel implements Parcelable {
 
     }
 
+    /**
+     * Collects the encrypted session keys of several messages, so a single token session can
+     * decrypt all of them. The decrypted session keys are returned in the crypto data, by
+     * encrypted session key.
+     */
+    public static class SecurityTokenDecryptOperationsBuilder {
+        ArrayList<byte[]> mEncryptedSessionKeys = new ArrayList<>();
+        long mMasterKeyId;
+        long mSubKeyId;
+
+        public SecurityTokenDecryptOperationsBuilder(long masterKeyId, long subKeyId) {
+            mMasterKeyId = masterKeyId;
+            mSubKeyId = subKeyId;
+        }
+
+        public RequiredInputParcel build() {
+            byte[][] encryptedSessionKeys = new byte[mEncryptedSessionKeys.size()][];
+            mEncryptedSessionKeys.toArray(encryptedSessionKeys);
+
+            return new RequiredInputParcel(RequiredInputType.SECURITY_TOKEN_DECRYPT,
+                    encryptedSessionKeys, null, null, mMasterKeyId, mSubKeyId);
+        }
+
+        /** Returns true if the input is a decrypt operation which can be added to this batch. */
+        public boolean canAdd(RequiredInputParcel input) {
+            return input.mType == RequiredInputType.SECURITY_TOKEN_DECRYPT
+                    && input.mMasterKeyId != null && input.mMasterKeyId == mMasterKeyId
+                    && input.mSubKeyId != null && input.mSubKeyId == mSubKeyId;
+        }
+
+        public void addAll(RequiredInputParcel input) {
+            if (!canAdd(input)) {
+                throw new AssertionError("operation types and keys must match, this is a programming error!");
+            }
+
+            Collections.addAll(mEncryptedSessionKeys, input.mInputData);
+        }
+
+        public boolean isEmpty() {
+            return mEncryptedSessionKeys.isEmpty();
+        }
+
+    }
+
     public static class SecurityTokenKeyToCardOperationsBuilder {
         ArrayList<byte[]> mSubkeysToExport = new ArrayList<>();
         Long mMasterKeyId;
@@ -26,12 +26,15 @@ import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v4.app.TaskStackBuilder;
 
+import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.pgp.KeyMaterialGenerator;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.securitytoken.KeyFormat;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.ui.base.BaseSecurityTokenActivity;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Passphrase;
@@ -141,6 +144,13 @@ public class CreateKeyActivity extends BaseSecurityTokenActivity {
             loadFragment(frag, FragAction.START);
         }
 
+        if (!mCreateSecurityToken) {
+            // generate key material for the default keys while the user enters name and passphrase
+            SaveKeyringParcel defaultKeys = new SaveKeyringParcel();
+            Constants.addDefaultSubkeys(defaultKeys);
+            KeyMaterialGenerator.pregenerate(defaultKeys.mAddSubKeys);
+        }
+
         if (mFirstTime) {
             setTitle(R.string.app_name);
             mToolbar.setNavigationIcon(null);
@@ -216,6 +226,16 @@ public class CreateKeyActivity extends BaseSecurityTokenActivity {
         return false;
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // pregenerated key material is of no use once key creation is left
+        if (!isChangingConfigurations()) {
+            KeyMaterialGenerator.clearPool();
+        }
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
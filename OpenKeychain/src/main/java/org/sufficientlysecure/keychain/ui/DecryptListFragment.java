@@ -23,6 +23,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.Manifest;
 import android.annotation.TargetApi;
@@ -79,9 +84,11 @@ import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
 import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
+import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper.PartialResultCallback;
 import org.sufficientlysecure.keychain.ui.base.QueueingCryptoOperationFragment;
 // this import NEEDS to be above the ViewModel AND SubViewHolder one, or it won't compile! (as of 16.09.15)
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils.StatusHolder;
@@ -104,20 +111,25 @@ import org.sufficientlysecure.keychain.util.Preferences;
  * <p/>
  * This class has a complex control flow to manage its input URIs. Each URI
  * which is in mInputUris is also in exactly one of mPendingInputUris,
- * mCancelledInputUris, mCurrentInputUri, or a key in mInputDataResults.
+ * mCancelledInputUris, mCurrentInputUri, mCurrentBatchUris, or a key in
+ * mInputDataResults.
  * <p/>
  * Processing of URIs happens using a looping approach:
- * - There is always exactly one method running which works on mCurrentInputUri
+ * - There is always exactly one method running which works on mCurrentInputUri,
+ * or on the batch in mCurrentBatchUris
  * - Processing starts in cryptoOperation(), which pops a new mCurrentInputUri
- * from the list of mPendingInputUris.
- * - Once a mCurrentInputUri is finished processing, it should be set to null and
- * control handed back to cryptoOperation()
+ * from the list of mPendingInputUris, or all of them as a batch if there is
+ * more than one which can be read without asking for permission.
+ * - Results of a batch arrive one by one in onCryptoOperationPartialResult(),
+ * which removes each URI from mCurrentBatchUris.
+ * - Once a mCurrentInputUri or batch is finished processing, it should be set to
+ * null and control handed back to cryptoOperation()
  * - Control flow can move through asynchronous calls, and resume in callbacks
  * like onActivityResult() or onPermissionRequestResult().
  */
 public class DecryptListFragment
         extends QueueingCryptoOperationFragment<InputDataParcel, InputDataResult>
-        implements OnMenuItemClickListener {
+        implements OnMenuItemClickListener, PartialResultCallback<InputDataResult> {
 
     public static final String ARG_INPUT_URIS = "input_uris";
     public static final String ARG_OUTPUT_URIS = "output_uris";
@@ -128,17 +140,40 @@ public class DecryptListFragment
     private static final int REQUEST_CODE_OUTPUT = 0x00007007;
     private static final int REQUEST_PERMISSION_READ_EXTERNAL_STORAGE = 12;
 
+    private static final int MAX_ICON_THREADS = 2;
+    private static final int MAX_QUEUED_ICON_TASKS = 32;
+
+    /**
+     * Icons and thumbnails are loaded on a small pool of their own, so a large batch neither
+     * holds up other AsyncTasks nor the display of results. If too many are queued, the
+     * oldest are dropped and those items keep their generic icon.
+     */
+    private static final Executor ICON_EXECUTOR;
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_ICON_THREADS, MAX_ICON_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_ICON_TASKS),
+                new ThreadPoolExecutor.DiscardOldestPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        ICON_EXECUTOR = executor;
+    }
+
     private ArrayList<Uri> mInputUris;
     private HashMap<Uri, InputDataResult> mInputDataResults;
     private ArrayList<Uri> mPendingInputUris;
     private ArrayList<Uri> mCancelledInputUris;
 
     private Uri mCurrentInputUri;
+    /** Inputs of the running batch which have no result yet, or null if there is no batch */
+    private ArrayList<Uri> mCurrentBatchUris;
     private boolean mCanDelete;
 
     private DecryptFilesAdapter mAdapter;
     private Uri mCurrentSaveFileUri;
 
+    /** Output files which are displayed, and must not be reclaimed from temporary storage */
+    private ArrayList<Uri> mPinnedOutputUris = new ArrayList<>();
+
     /**
      * Creates new instance of this fragment
      */
@@ -205,7 +240,7 @@ public class DecryptListFragment
         outState.putParcelableArrayList(ARG_CANCELLED_URIS, mCancelledInputUris);
         outState.putBoolean(ARG_CAN_DELETE, mCanDelete);
 
-        // this does not save mCurrentInputUri - if anything is being
+        // this does not save mCurrentInputUri or mCurrentBatchUris - if anything is being
         // processed at fragment recreation time, the operation in
         // progress will be lost!
     }
@@ -327,27 +362,87 @@ public class DecryptListFragment
 
     @Override
     public boolean onCryptoSetProgress(String msg, int progress, int max) {
+        if (mCurrentBatchUris != null) {
+            // progress of a batch is shared by all of its inputs which are still processing
+            for (Uri uri : mCurrentBatchUris) {
+                mAdapter.setProgress(uri, progress, max, msg);
+            }
+            return true;
+        }
         mAdapter.setProgress(mCurrentInputUri, progress, max, msg);
         return true;
     }
 
     @Override
-    public void onQueuedOperationError(InputDataResult result) {
-        final Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
+    public void onCryptoOperationPartialResult(Uri uri, InputDataResult result) {
+        if (mCurrentBatchUris == null || !mCurrentBatchUris.remove(uri)) {
+            return;
+        }
+
+        if (result.isPending()) {
+            // this one needs different input than the rest of the batch, so process it on its own
+            mPendingInputUris.add(uri);
+            return;
+        }
 
+        if (result.success()) {
+            mInputDataResults.put(uri, result);
+            processResult(uri);
+        } else {
+            showResultError(uri, result);
+        }
+    }
+
+    /** Called once all results of a batch are in, or if it failed as a whole. */
+    private void finishBatch(boolean cancelRemaining) {
+        ArrayList<Uri> remainingUris = mCurrentBatchUris;
+        mCurrentBatchUris = null;
+
+        for (Uri uri : remainingUris) {
+            if (cancelRemaining) {
+                mCancelledInputUris.add(uri);
+                mAdapter.setCancelled(uri, true);
+            } else {
+                mPendingInputUris.add(uri);
+            }
+        }
+
+        cryptoOperation();
+    }
+
+    private void showResultError(Uri uri, InputDataResult result) {
         Activity activity = getActivity();
         if (activity != null && "com.fsck.k9.attachmentprovider".equals(uri.getHost())) {
             Toast.makeText(getActivity(), R.string.error_reading_k9, Toast.LENGTH_LONG).show();
         }
 
         mAdapter.addResult(uri, result);
+    }
+
+    @Override
+    public void onQueuedOperationError(InputDataResult result) {
+        if (mCurrentBatchUris != null) {
+            // the batch was cancelled, or failed as a whole
+            finishBatch(true);
+            return;
+        }
+
+        final Uri uri = mCurrentInputUri;
+        mCurrentInputUri = null;
+
+        showResultError(uri, result);
 
         cryptoOperation();
     }
 
     @Override
     public void onQueuedOperationSuccess(InputDataResult result) {
+        if (mCurrentBatchUris != null) {
+            // results of the batch were all delivered as partial results already
+            finishBatch(false);
+            return;
+        }
+
         Uri uri = mCurrentInputUri;
         mCurrentInputUri = null;
 
@@ -384,6 +479,11 @@ public class DecryptListFragment
     public void onCryptoOperationCancelled() {
         super.onCryptoOperationCancelled();
 
+        if (mCurrentBatchUris != null) {
+            finishBatch(true);
+            return;
+        }
+
         final Uri uri = mCurrentInputUri;
         mCurrentInputUri = null;
 
@@ -394,21 +494,27 @@ public class DecryptListFragment
 
     }
 
-    HashMap<Uri, Drawable> mIconCache = new HashMap<>();
+    // accessed from multiple icon loading threads
+    ConcurrentHashMap<Uri, Drawable> mIconCache = new ConcurrentHashMap<>();
 
     private void processResult(final Uri uri) {
 
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
+        // show the result right away, icons are filled in once they are loaded
+        final InputDataResult result = mInputDataResults.get(uri);
+        mAdapter.addResult(uri, result);
+        pinOutputUris(result);
 
-                InputDataResult result = mInputDataResults.get(uri);
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
 
                 Context context = getActivity();
                 if (context == null) {
-                    return null;
+                    return false;
                 }
 
+                boolean loadedIcon = false;
+
                 for (int i = 0; i < result.getOutputUris().size(); i++) {
 
                     Uri outputUri = result.getOutputUris().get(i);
@@ -452,33 +558,74 @@ public class DecryptListFragment
 
                     if (icon != null) {
                         mIconCache.put(outputUri, icon);
+                        loadedIcon = true;
                     }
 
                 }
 
-                return null;
+                return loadedIcon;
 
             }
 
             @Override
-            protected void onPostExecute(Void v) {
-                InputDataResult result = mInputDataResults.get(uri);
-                mAdapter.addResult(uri, result);
+            protected void onPostExecute(Boolean loadedIcon) {
+                if (loadedIcon) {
+                    mAdapter.refreshItem(uri);
+                }
             }
-        }.execute();
+        }.executeOnExecutor(ICON_EXECUTOR);
+
+    }
+
+    private void pinOutputUris(InputDataResult result) {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        for (Uri outputUri : result.getOutputUris()) {
+            TemporaryFileProvider.pin(activity, outputUri);
+            mPinnedOutputUris.add(outputUri);
+        }
+    }
+
+    private void unpinOutputUris(InputDataResult result) {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        for (Uri outputUri : result.getOutputUris()) {
+            if (mPinnedOutputUris.remove(outputUri)) {
+                TemporaryFileProvider.unpin(activity, outputUri);
+            }
+        }
+    }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        Activity activity = getActivity();
+        if (activity != null) {
+            for (Uri outputUri : mPinnedOutputUris) {
+                TemporaryFileProvider.unpin(activity, outputUri);
+            }
+        }
+        mPinnedOutputUris.clear();
     }
 
     public void retryUri(Uri uri) {
 
         // never interrupt running operations!
-        if (mCurrentInputUri != null) {
+        if (mCurrentInputUri != null || mCurrentBatchUris != null) {
             return;
         }
 
         // un-cancel this one
         mCancelledInputUris.remove(uri);
-        mInputDataResults.remove(uri);
+        InputDataResult oldResult = mInputDataResults.remove(uri);
+        if (oldResult != null) {
+            unpinOutputUris(oldResult);
+        }
         mPendingInputUris.add(uri);
         mAdapter.resetItemData(uri);
 
@@ -621,12 +768,21 @@ public class DecryptListFragment
             return null;
         }
 
+        // a batch is restarted with the same inputs after required input was supplied
+        if (mCurrentBatchUris != null) {
+            return createBatchInput();
+        }
+
         if (mCurrentInputUri == null) {
             if (mPendingInputUris.isEmpty()) {
                 // nothing left to do
                 return null;
             }
 
+            if (startBatch(activity)) {
+                return createBatchInput();
+            }
+
             mCurrentInputUri = mPendingInputUris.remove(0);
         }
 
@@ -642,6 +798,37 @@ public class DecryptListFragment
 
     }
 
+    /**
+     * Moves all pending input URIs which can be read without asking for permission into
+     * mCurrentBatchUris, if there are at least two of them. Others stay pending, to be
+     * processed one at a time.
+     */
+    private boolean startBatch(Activity activity) {
+        ArrayList<Uri> batchUris = new ArrayList<>();
+        for (Uri uri : mPendingInputUris) {
+            if (hasReadPermission(activity, uri)) {
+                batchUris.add(uri);
+            }
+        }
+
+        if (batchUris.size() < 2) {
+            return false;
+        }
+
+        mPendingInputUris.removeAll(batchUris);
+        mCurrentBatchUris = batchUris;
+        return true;
+    }
+
+    private InputDataParcel createBatchInput() {
+        Log.d(Constants.TAG, "mCurrentBatchUris=" + mCurrentBatchUris);
+
+        PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel()
+                .setAllowSymmetricDecryption(true);
+        // copy, since mCurrentBatchUris shrinks as results come in
+        return new InputDataParcel(new ArrayList<>(mCurrentBatchUris), decryptInput);
+    }
+
     /**
      * Request READ_EXTERNAL_STORAGE permission on Android >= 6.0 to read content from "file" Uris.
      * <p/>
@@ -652,17 +839,7 @@ public class DecryptListFragment
      * see https://commonsware.com/blog/2015/10/07/runtime-permissions-files-action-send.html
      */
     private boolean checkAndRequestReadPermission(Activity activity, final Uri uri) {
-        if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
-            return true;
-        }
-
-        // Additional check due to https://commonsware.com/blog/2015/11/09/you-cannot-hold-nonexistent-permissions.html
-        if (Build.VERSION.SDK_INT < VERSION_CODES.M) {
-            return true;
-        }
-
-        if (ContextCompat.checkSelfPermission(activity, Manifest.permission.READ_EXTERNAL_STORAGE)
-                == PackageManager.PERMISSION_GRANTED) {
+        if (hasReadPermission(activity, uri)) {
             return true;
         }
 
@@ -674,6 +851,20 @@ public class DecryptListFragment
 
     }
 
+    private static boolean hasReadPermission(Activity activity, Uri uri) {
+        if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return true;
+        }
+
+        // Additional check due to https://commonsware.com/blog/2015/11/09/you-cannot-hold-nonexistent-permissions.html
+        if (Build.VERSION.SDK_INT < VERSION_CODES.M) {
+            return true;
+        }
+
+        return ContextCompat.checkSelfPermission(activity, Manifest.permission.READ_EXTERNAL_STORAGE)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode,
                                            @NonNull String[] permissions,
@@ -811,22 +1002,41 @@ public class DecryptListFragment
     }
 
 
-    private void deleteFile(Activity activity, Uri uri) {
+    private void deleteFile(Activity activity, final Uri uri) {
 
         // we can only ever delete a file once, if we got this far either it's gone or it will never work
         mCanDelete = false;
 
-        try {
-            int deleted = FileHelper.deleteFileSecurely(activity, uri);
-            if (deleted > 0) {
-                Notify.create(activity, R.string.file_delete_ok, Style.OK).show();
-            } else {
-                Notify.create(activity, R.string.file_delete_none, Style.WARN).show();
+        final Context context = activity.getApplicationContext();
+
+        // overwriting large files takes a while, don't block the ui for it
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                try {
+                    return FileHelper.deleteFileSecurely(context, uri);
+                } catch (Exception e) {
+                    Log.e(Constants.TAG, "exception deleting file", e);
+                    return null;
+                }
             }
-        } catch (Exception e) {
-            Log.e(Constants.TAG, "exception deleting file", e);
-            Notify.create(activity, R.string.file_delete_exception, Style.ERROR).show();
-        }
+
+            @Override
+            protected void onPostExecute(Integer deleted) {
+                Activity activity = getActivity();
+                if (activity == null) {
+                    return;
+                }
+
+                if (deleted == null) {
+                    Notify.create(activity, R.string.file_delete_exception, Style.ERROR).show();
+                } else if (deleted > 0) {
+                    Notify.create(activity, R.string.file_delete_ok, Style.OK).show();
+                } else {
+                    Notify.create(activity, R.string.file_delete_none, Style.WARN).show();
+                }
+            }
+        }.execute();
 
     }
 
@@ -1154,6 +1364,13 @@ public class DecryptListFragment
             notifyItemChanged(pos);
         }
 
+        public void refreshItem(Uri uri) {
+            int pos = mDataset.indexOf(new ViewModel(uri));
+            if (pos != -1) {
+                notifyItemChanged(pos);
+            }
+        }
+
         public void resetItemData(Uri uri) {
             ViewModel model = new ViewModel(uri);
             int pos = mDataset.indexOf(model);
@@ -483,15 +483,16 @@ public class EncryptFilesFragment
 
                 @Override
                 public void onDeleted() {
+                    // files are wiped in the background, this fragment may be gone by now
+                    Activity activity = getActivity();
+                    if (activity == null) {
+                        // it's gone, there's nothing we can do here
+                        return;
+                    }
                     if (mAfterEncryptAction == AfterEncryptAction.SHARE) {
                         // Share encrypted message/file
                         startActivity(Intent.createChooser(createSendIntent(), getString(R.string.title_share_file)));
                     } else {
-                        Activity activity = getActivity();
-                        if (activity == null) {
-                            // it's gone, there's nothing we can do here
-                            return;
-                        }
                         // Save encrypted file
                         result.createNotify(activity).show();
                     }
@@ -28,15 +28,18 @@ import android.view.MenuItem;
 
 import com.tonicartos.superslim.LayoutManager;
 
+import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.SubLogEntryParcel;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.ui.adapter.NestedLogAdapter;
+import org.sufficientlysecure.keychain.ui.dialog.CustomAlertDialogBuilder;
 import org.sufficientlysecure.keychain.ui.dialog.ShareLogDialogFragment;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
 import org.sufficientlysecure.keychain.ui.base.RecyclerFragment;
+import org.sufficientlysecure.keychain.util.OperationTimings;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -94,6 +97,7 @@ public class LogDisplayFragment extends RecyclerFragment<NestedLogAdapter>
     @Override
     public void onCreateOptionsMenu(final Menu menu, final MenuInflater inflater) {
         inflater.inflate(R.menu.log_display, menu);
+        menu.findItem(R.id.menu_log_display_timings).setVisible(mResult != null && mResult.getTimings() != null);
 
         super.onCreateOptionsMenu(menu, inflater);
     }
@@ -104,6 +108,9 @@ public class LogDisplayFragment extends RecyclerFragment<NestedLogAdapter>
             case R.id.menu_log_display_export_log:
                 shareLog();
                 break;
+            case R.id.menu_log_display_timings:
+                showTimings();
+                break;
         }
 
         return super.onOptionsItemSelected(item);
@@ -116,6 +123,13 @@ public class LogDisplayFragment extends RecyclerFragment<NestedLogAdapter>
         }
 
         String log = mResult.getLog().getPrintableOperationLog(getResources(), 0);
+        OperationTimings timings = mResult.getTimings();
+        if (timings != null) {
+            log += "\n\n" + timings.getPrintableTimings();
+        }
+        if (Constants.DEBUG) {
+            log += "\n\n" + OperationTimings.dumpRegistry();
+        }
 
         // if there is no log temp file yet, create one
         if (mLogTempFile == null) {
@@ -134,6 +148,19 @@ public class LogDisplayFragment extends RecyclerFragment<NestedLogAdapter>
         shareLogDialog.show(getActivity().getSupportFragmentManager(), "shareLogDialog");
     }
 
+    private void showTimings() {
+        OperationTimings timings = mResult.getTimings();
+        if (timings == null) {
+            return;
+        }
+
+        new CustomAlertDialogBuilder(getActivity())
+                .setTitle(R.string.title_log_timings)
+                .setMessage(timings.getPrintableTimings())
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
     @Override
     public void onSubEntryClicked(SubLogEntryParcel subLogEntryParcel) {
         Intent intent = new Intent(getActivity(), LogDisplayActivity.class);
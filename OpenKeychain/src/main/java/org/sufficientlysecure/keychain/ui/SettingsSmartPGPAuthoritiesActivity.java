@@ -23,6 +23,7 @@ import android.os.Bundle;
 import android.view.MenuItem;
 
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.securitytoken.SecurityTokenHelper;
 import org.sufficientlysecure.keychain.ui.base.BaseActivity;
 
 import java.io.File;
@@ -87,9 +88,13 @@ public class SettingsSmartPGPAuthoritiesActivity extends BaseActivity {
         getSupportFragmentManager().executePendingTransactions();
     }
 
+    public static File getKeystoreFile(final Context ctx) {
+        return new File(ctx.getFilesDir(), KEYSTORE_FILE);
+    }
+
     public static final KeyStore readKeystore(final Context ctx) {
         try {
-            final File kf = new File(ctx.getFilesDir(), KEYSTORE_FILE);
+            final File kf = getKeystoreFile(ctx);
             final KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
 
             ks.load(null, null);
@@ -108,7 +113,7 @@ public class SettingsSmartPGPAuthoritiesActivity extends BaseActivity {
 
     public static final void writeKeystore(final Context ctx, final KeyStore ks) {
         try {
-            final File kf = new File(ctx.getFilesDir(), KEYSTORE_FILE);
+            final File kf = getKeystoreFile(ctx);
 
             if (kf.exists()) {
                 kf.delete();
@@ -119,6 +124,9 @@ public class SettingsSmartPGPAuthoritiesActivity extends BaseActivity {
             fos.flush();
             fos.close();
         } catch (Exception e) {
+        } finally {
+            // also after a failed write, the file may have changed
+            SecurityTokenHelper.invalidateSmartPGPAuthorities();
         }
     }
 }
@@ -24,6 +24,7 @@ import java.util.Date;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Message;
 import android.os.Messenger;
@@ -67,6 +68,14 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
         boolean onCryptoSetProgress(String msg, int progress, int max);
     }
 
+    /**
+     * Optionally implemented by callbacks of batch operations, which deliver results for
+     * single inputs before the operation as a whole is finished.
+     */
+    public interface PartialResultCallback<S extends OperationResult> {
+        void onCryptoOperationPartialResult(Uri inputUri, S result);
+    }
+
     // request codes from CryptoOperationHelper are created essentially
     // a static property, used to identify requestCodes meant for this
     // particular helper. a request code looks as follows:
@@ -297,6 +306,18 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
                             returnData.getParcelable(OperationResult.EXTRA_RESULT);
 
                     onHandleResult(result);
+                } else if (message.arg1 == MessageStatus.PARTIAL_RESULT.ordinal()) {
+
+                    Bundle returnData = message.getData();
+                    if (returnData == null || !(mCallback instanceof PartialResultCallback)) {
+                        return;
+                    }
+
+                    final Uri inputUri = returnData.getParcelable(ServiceProgressHandler.DATA_INPUT_URI);
+                    final OperationResult result =
+                            returnData.getParcelable(OperationResult.EXTRA_RESULT);
+
+                    onHandlePartialResult(inputUri, result);
                 }
             }
 
@@ -326,6 +347,16 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
         cryptoOperation(new CryptoInputParcel(new Date()));
     }
 
+    private void onHandlePartialResult(Uri inputUri, OperationResult result) {
+        try {
+            // noinspection unchecked, because type erasure :(
+            ((PartialResultCallback<S>) mCallback).onCryptoOperationPartialResult(inputUri, (S) result);
+        } catch (ClassCastException e) {
+            throw new AssertionError("bad return class ("
+                    + result.getClass().getSimpleName() + "), this is a programming error!");
+        }
+    }
+
     public void onHandleResult(OperationResult result) {
         Log.d(Constants.TAG, "Handling result in OperationHelper success: " + result.success());
 
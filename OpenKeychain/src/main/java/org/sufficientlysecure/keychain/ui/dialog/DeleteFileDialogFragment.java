@@ -18,11 +18,11 @@
 package org.sufficientlysecure.keychain.ui.dialog;
 
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.net.Uri;
-import android.os.Build;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.provider.DocumentsContract;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.FragmentActivity;
 import android.widget.Toast;
@@ -31,10 +31,12 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.SecureWipe;
+import org.sufficientlysecure.keychain.util.SecureWipe.WipeProgressListener;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 public class DeleteFileDialogFragment extends DialogFragment {
     private static final String ARG_DELETE_URIS = "delete_uris";
@@ -97,55 +99,8 @@ public class DeleteFileDialogFragment extends DialogFragment {
             public void onClick(DialogInterface dialog, int id) {
                 dismiss();
 
-                ArrayList<String> failedFileNameList = new ArrayList<>();
-
-                for (Uri deleteUri : deleteUris) {
-                    // Use DocumentsContract on Android >= 4.4
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                        try {
-                            if (DocumentsContract.deleteDocument(getActivity().getContentResolver(), deleteUri)) {
-                                continue;
-                            }
-                        } catch (Exception e) {
-                            Log.d(Constants.TAG, "Catched Exception, can happen when delete is not supported!", e);
-                        }
-                    }
-
-                    try {
-                        if (getActivity().getContentResolver().delete(deleteUri, null, null) > 0) {
-                            continue;
-                        }
-                    } catch (Exception e) {
-                        Log.d(Constants.TAG, "Catched Exception, can happen when delete is not supported!", e);
-                    }
-
-                    // some Uri's a ContentResolver fails to delete is handled by the java.io.File's delete
-                    // via the path of the Uri
-                    if (new File(deleteUri.getPath()).delete()) {
-                        continue;
-                    }
-
-                    // Note: We can't delete every file...
-                    failedFileNameList.add(deleteFileNameMap.get(deleteUri));
-                }
-
-                StringBuilder failedFileNames = new StringBuilder();
-                if (!failedFileNameList.isEmpty()) {
-                    for (String failedFileName : failedFileNameList) {
-                        failedFileNames.append('\n').append(failedFileName);
-                    }
-                    failedFileNames.append('\n').append(getActivity().getString(R.string.error_file_delete_failed));
-                }
-
-                // NOTE: Use Toasts, not Snackbars. When sharing to another application snackbars
-                // would not show up!
-                Toast.makeText(getActivity(), getActivity().getString(R.string.file_delete_successful,
-                                deleteUris.size() - failedFileNameList.size(), deleteUris.size(), failedFileNames.toString()),
-                        Toast.LENGTH_LONG).show();
-
-                if (onDeletedListener != null) {
-                    onDeletedListener.onDeleted();
-                }
+                // overwriting large files takes a while, don't block the ui for it
+                new WipeTask(activity, deleteUris, deleteFileNameMap, onDeletedListener).execute();
             }
         });
         alert.setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
@@ -162,6 +117,114 @@ public class DeleteFileDialogFragment extends DialogFragment {
         this.onDeletedListener = onDeletedListener;
     }
 
+    /**
+     * Securely wipes the files in the background, showing the progress over all files
+     */
+    private static class WipeTask extends AsyncTask<Void, Integer, List<Uri>>
+            implements WipeProgressListener {
+        private static final String TAG_PROGRESS_DIALOG = "wipeProgressDialog";
+        private static final int PROGRESS_MAX = 100;
+
+        private final FragmentActivity mActivity;
+        private final ArrayList<Uri> mDeleteUris;
+        private final HashMap<Uri, String> mDeleteFileNameMap;
+        private final OnDeletedListener mOnDeletedListener;
+
+        // written by the wiping threads
+        private final HashMap<Uri, Long> mWipedBytes = new HashMap<>();
+        private long mTotalBytes;
+        private volatile Uri mCurrentUri;
+
+        private ProgressDialogFragment mProgressDialog;
+
+        WipeTask(FragmentActivity activity, ArrayList<Uri> deleteUris,
+                HashMap<Uri, String> deleteFileNameMap, OnDeletedListener onDeletedListener) {
+            mActivity = activity;
+            mDeleteUris = deleteUris;
+            mDeleteFileNameMap = deleteFileNameMap;
+            mOnDeletedListener = onDeletedListener;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mProgressDialog = ProgressDialogFragment.newInstance(
+                    getProgressMessage(mDeleteUris.get(0)), ProgressDialog.STYLE_HORIZONTAL, false);
+            mProgressDialog.show(mActivity.getSupportFragmentManager(), TAG_PROGRESS_DIALOG);
+        }
+
+        @Override
+        protected List<Uri> doInBackground(Void... params) {
+            long totalBytes = 0;
+            for (Uri deleteUri : mDeleteUris) {
+                totalBytes += FileHelper.getFileSize(mActivity, deleteUri, 0);
+            }
+            synchronized (mWipedBytes) {
+                mTotalBytes = totalBytes;
+            }
+
+            try {
+                return SecureWipe.wipeAndDeleteAll(mActivity, mDeleteUris, this);
+            } catch (InterruptedException e) {
+                Log.e(Constants.TAG, "interrupted while wiping files", e);
+                return mDeleteUris;
+            }
+        }
+
+        @Override
+        public void onWipeProgress(Uri uri, long wiped, long total) {
+            mCurrentUri = uri;
+            long wipedBytes = 0;
+            long totalBytes;
+            synchronized (mWipedBytes) {
+                mWipedBytes.put(uri, wiped);
+                for (long fileWipedBytes : mWipedBytes.values()) {
+                    wipedBytes += fileWipedBytes;
+                }
+                totalBytes = mTotalBytes;
+            }
+            if (totalBytes > 0) {
+                publishProgress((int) (PROGRESS_MAX * Math.min(wipedBytes, totalBytes) / totalBytes));
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... progress) {
+            Uri currentUri = mCurrentUri;
+            mProgressDialog.setProgress(getProgressMessage(currentUri), progress[0], PROGRESS_MAX);
+        }
+
+        @Override
+        protected void onPostExecute(List<Uri> notDeletedUris) {
+            if (mProgressDialog.isAdded()) {
+                mProgressDialog.dismissAllowingStateLoss();
+            }
+
+            StringBuilder failedFileNames = new StringBuilder();
+            if (!notDeletedUris.isEmpty()) {
+                // Note: We can't delete every file...
+                for (Uri notDeletedUri : notDeletedUris) {
+                    failedFileNames.append('\n').append(mDeleteFileNameMap.get(notDeletedUri));
+                }
+                failedFileNames.append('\n').append(mActivity.getString(R.string.error_file_delete_failed));
+            }
+
+            // NOTE: Use Toasts, not Snackbars. When sharing to another application snackbars
+            // would not show up!
+            Toast.makeText(mActivity.getApplicationContext(), mActivity.getString(R.string.file_delete_successful,
+                            mDeleteUris.size() - notDeletedUris.size(), mDeleteUris.size(),
+                            failedFileNames.toString()),
+                    Toast.LENGTH_LONG).show();
+
+            if (mOnDeletedListener != null) {
+                mOnDeletedListener.onDeleted();
+            }
+        }
+
+        private String getProgressMessage(Uri uri) {
+            return mActivity.getString(R.string.progress_deleting_securely, mDeleteFileNameMap.get(uri));
+        }
+    }
+
     /**
      * Callback for performing tasks after the deletion of files
      */
@@ -18,19 +18,27 @@
 package org.sufficientlysecure.keychain.util;
 
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.security.SecureRandom;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.List;
 
 import android.annotation.TargetApi;
@@ -47,6 +55,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.provider.DocumentsContract;
 import android.provider.OpenableColumns;
 import android.support.v4.app.Fragment;
@@ -83,6 +92,10 @@ public class FileHelper {
 
     private static Boolean hasOpenDocumentIntent;
 
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final ArrayDeque<byte[]> sBufferPool = new ArrayDeque<>();
+
     @TargetApi(VERSION_CODES.KITKAT)
     public static void saveDocument(Fragment fragment, String targetName, int requestCode) {
         saveDocument(fragment, targetName, "*/*", requestCode);
@@ -260,56 +273,107 @@ public class FileHelper {
     public static String readTextFromUri(Context context, Uri outputUri, String charset)
         throws IOException {
 
-        byte[] decryptedMessage;
-        {
-            InputStream in = context.getContentResolver().openInputStream(outputUri);
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            byte[] buf = new byte[256];
-            int read;
-            while ( (read = in.read(buf)) > 0) {
-                out.write(buf, 0, read);
+        Charset decodeCharset = Charset.defaultCharset();
+        if (charset != null) {
+            try {
+                decodeCharset = Charset.forName(charset);
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                // if we can't decode properly, just fall back to the default (utf-8)
             }
-            in.close();
-            out.close();
-            decryptedMessage = out.toByteArray();
         }
+        // replace undecodable input like new String(byte[], charset) does
+        CharsetDecoder decoder = decodeCharset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
 
-        String plaintext;
-        if (charset != null) {
-            try {
-                plaintext = new String(decryptedMessage, charset);
-            } catch (UnsupportedEncodingException e) {
-                // if we can't decode properly, just fall back to utf-8
-                plaintext = new String(decryptedMessage);
+        // for most text, there is about one char per byte
+        long sizeHint = getFileSize(context, outputUri, 0);
+        CharBuffer chars = CharBuffer.allocate((int) Math.min(Math.max(sizeHint, 256), Integer.MAX_VALUE / 2));
+
+        InputStream in = context.getContentResolver().openInputStream(outputUri);
+        if (in == null) {
+            throw new IOException("Error opening file!");
+        }
+        byte[] buf = acquireBuffer();
+        try {
+            ReadableByteChannel channel = Channels.newChannel(in);
+            ByteBuffer bytes = ByteBuffer.wrap(buf);
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                endOfInput = channel.read(bytes) < 0;
+                bytes.flip();
+                while (decoder.decode(bytes, chars, endOfInput).isOverflow()) {
+                    chars = growCharBuffer(chars);
+                }
+                bytes.compact();
             }
-        } else {
-            plaintext = new String(decryptedMessage);
+            while (decoder.flush(chars).isOverflow()) {
+                chars = growCharBuffer(chars);
+            }
+        } finally {
+            releaseBuffer(buf);
+            in.close();
         }
 
-        return plaintext;
+        chars.flip();
+        return chars.toString();
+
+    }
 
+    private static CharBuffer growCharBuffer(CharBuffer chars) {
+        CharBuffer grown = CharBuffer.allocate(chars.capacity() * 2);
+        chars.flip();
+        grown.put(chars);
+        return grown;
     }
 
+    /** Copies data from one uri to another. If both are backed by regular files, the data is
+     * transferred by the kernel without passing through userspace, otherwise it is copied
+     * through a large pooled buffer.
+     */
     public static void copyUriData(Context context, Uri fromUri, Uri toUri) throws IOException {
-        BufferedInputStream bis = null;
-        BufferedOutputStream bos = null;
+        ContentResolver resolver = context.getContentResolver();
+
+        ParcelFileDescriptor fromFd = null;
+        ParcelFileDescriptor toFd = null;
+        try {
+            fromFd = openFileDescriptorIfFile(resolver, fromUri, "r");
+            if (fromFd != null) {
+                toFd = openFileDescriptorIfFile(resolver, toUri, "w");
+            }
+            if (fromFd != null && toFd != null) {
+                // streams on the descriptors are not closed, the descriptors are closed below
+                FileChannel fromChannel = new FileInputStream(fromFd.getFileDescriptor()).getChannel();
+                FileChannel toChannel = new FileOutputStream(toFd.getFileDescriptor()).getChannel();
+                transferFileChannel(fromChannel, toChannel, fromFd.getStatSize());
+                return;
+            }
+        } finally {
+            closeFileDescriptor(fromFd);
+            closeFileDescriptor(toFd);
+        }
 
+        InputStream in = null;
+        OutputStream out = null;
+        byte[] buf = acquireBuffer();
         try {
-            ContentResolver resolver = context.getContentResolver();
-            bis = new BufferedInputStream(resolver.openInputStream(fromUri));
-            bos = new BufferedOutputStream(resolver.openOutputStream(toUri));
-            byte[] buf = new byte[1024];
+            in = resolver.openInputStream(fromUri);
+            out = resolver.openOutputStream(toUri);
+            if (in == null || out == null) {
+                throw new IOException("Error opening file!");
+            }
             int len;
-            while ( (len = bis.read(buf)) > 0) {
-                bos.write(buf, 0, len);
+            while ( (len = in.read(buf)) > 0) {
+                out.write(buf, 0, len);
             }
         } finally {
+            releaseBuffer(buf);
             try {
-                if (bis != null) {
-                    bis.close();
+                if (in != null) {
+                    in.close();
                 }
-                if (bos != null) {
-                    bos.close();
+                if (out != null) {
+                    out.close();
                 }
             } catch (IOException e) {
                 // ignore, it's just stream closin'
@@ -317,42 +381,89 @@ public class FileHelper {
         }
     }
 
-    /**
-     * Deletes data at a URI securely by overwriting it with random data
-     * before deleting it. This method is fail-fast - if we can't securely
-     * delete the file, we don't delete it at all.
+    /** Opens a file descriptor for the uri, if it is backed by a regular file. Returns null
+     * for pipes, sockets, or providers which don't support file descriptors at all.
      */
-    public static int deleteFileSecurely(Context context, Uri uri)
-            throws IOException {
-
-        ContentResolver resolver = context.getContentResolver();
-        long lengthLeft = FileHelper.getFileSize(context, uri);
+    private static ParcelFileDescriptor openFileDescriptorIfFile(ContentResolver resolver, Uri uri, String mode) {
+        ParcelFileDescriptor fd;
+        try {
+            fd = resolver.openFileDescriptor(uri, mode);
+        } catch (FileNotFoundException | SecurityException | UnsupportedOperationException e) {
+            return null;
+        }
+        if (fd != null && fd.getStatSize() < 0) {
+            closeFileDescriptor(fd);
+            return null;
+        }
+        return fd;
+    }
 
-        if (lengthLeft == -1) {
-            throw new IOException("Error opening file!");
+    private static void transferFileChannel(FileChannel from, FileChannel to, long size) throws IOException {
+        long position = 0;
+        while (position < size) {
+            long transferred = from.transferTo(position, size - position, to);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
         }
 
-        SecureRandom random = new SecureRandom();
-        byte[] randomData = new byte[1024];
+        // transferTo may stop early on some file systems, copy the rest manually
+        if (position < size) {
+            from.position(position);
+            byte[] buf = acquireBuffer();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(buf);
+                while (from.read(buffer) > 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        to.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                releaseBuffer(buf);
+            }
+        }
+    }
 
-        OutputStream out = resolver.openOutputStream(uri, "w");
-        if (out == null) {
-            throw new IOException("Error opening file!");
+    private static void closeFileDescriptor(ParcelFileDescriptor fd) {
+        if (fd == null) {
+            return;
+        }
+        try {
+            fd.close();
+        } catch (IOException e) {
+            // ignore, it's just descriptor closin'
         }
-        out = new BufferedOutputStream(out);
-        while (lengthLeft > 0) {
-            random.nextBytes(randomData);
-            out.write(randomData, 0, lengthLeft > randomData.length ? randomData.length : (int) lengthLeft);
-            lengthLeft -= randomData.length;
+    }
+
+    private static byte[] acquireBuffer() {
+        synchronized (sBufferPool) {
+            byte[] buf = sBufferPool.poll();
+            if (buf != null) {
+                return buf;
+            }
         }
-        out.close();
+        return new byte[TRANSFER_BUFFER_SIZE];
+    }
 
-        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
-            return new File(uri.getPath()).delete() ? 1 : 0;
-        } else {
-            return resolver.delete(uri, null, null);
+    private static void releaseBuffer(byte[] buf) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.push(buf);
+            }
         }
+    }
 
+    /**
+     * Deletes data at a URI securely by overwriting it with random data
+     * before deleting it. This method is fail-fast - if we can't securely
+     * delete the file, we don't delete it at all.
+     */
+    public static int deleteFileSecurely(Context context, Uri uri)
+            throws IOException {
+        return SecureWipe.wipeAndDelete(context, uri, null);
     }
 
     /** Checks if external storage is mounted if file is located on external storage. */
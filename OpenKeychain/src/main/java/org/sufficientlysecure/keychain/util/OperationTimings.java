@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/** Lightweight timing instrumentation for operations and their internal phases.
+ *
+ * An operation is timed by begin() and finish(). While it is running, code in
+ * hot paths marks phases with startPhase() and Phase.end(), which are recorded
+ * into the timings of the operation running on the current thread, as well as
+ * into a process wide registry which aggregates over all operations. Tasks
+ * which an operation runs on other threads are attached to its timings
+ * explicitly, with attach() and detach(). Phases outside of an operation, for example
+ * in the API services, are only recorded in the registry.
+ *
+ * The timings of an operation are attached to its OperationResult, the
+ * registry can be exported for debugging via dumpRegistry().
+ */
+public class OperationTimings implements Parcelable {
+
+    public static final String PHASE_CANONICALIZE = "canonicalize";
+    public static final String PHASE_DB_SAVE = "db_save";
+    public static final String PHASE_KEYSERVER_FETCH = "keyserver_fetch";
+    public static final String PHASE_S2K = "s2k";
+
+    /** Not inherited, since pooled threads started during an operation would keep its timings. */
+    private static final ThreadLocal<OperationTimings> sCurrent = new ThreadLocal<>();
+
+    /** Process wide aggregate of all phases, keyed by operation name and phase. */
+    private static final TreeMap<String, PhaseTiming> sRegistry = new TreeMap<>();
+
+    private final String mOperation;
+    private final LinkedHashMap<String, PhaseTiming> mPhases = new LinkedHashMap<>();
+    private long mTotalMillis;
+
+    private long mStartTime;
+    private OperationTimings mParent;
+
+    private OperationTimings(String operation) {
+        mOperation = operation;
+    }
+
+    /** Starts timing an operation on the current thread. If another operation is already
+     * running on this thread, the new one is recorded as a phase of it when finished.
+     */
+    public static OperationTimings begin(String operation) {
+        OperationTimings timings = new OperationTimings(operation);
+        timings.mParent = sCurrent.get();
+        timings.mStartTime = System.currentTimeMillis();
+        sCurrent.set(timings);
+        return timings;
+    }
+
+    /** Finishes timing of this operation, restoring the previously running one. */
+    public OperationTimings finish() {
+        mTotalMillis = System.currentTimeMillis() - mStartTime;
+        sCurrent.set(mParent);
+        if (mParent != null) {
+            mParent.record(mOperation, mTotalMillis, 0);
+        }
+        recordInRegistry(mOperation, "total", mTotalMillis, 0);
+        return this;
+    }
+
+    /** Returns the timings of the operation running on the current thread, or null. */
+    public static OperationTimings getCurrent() {
+        return sCurrent.get();
+    }
+
+    /** Records phases on the current thread into the given timings, which may belong to an
+     * operation on another thread. Returns the previously attached timings, which must be
+     * passed to detach() once the task is done.
+     */
+    public static OperationTimings attach(OperationTimings timings) {
+        OperationTimings previous = sCurrent.get();
+        sCurrent.set(timings);
+        return previous;
+    }
+
+    public static void detach(OperationTimings previous) {
+        sCurrent.set(previous);
+    }
+
+    /** Starts a phase, which is recorded when Phase.end() is called. */
+    public static Phase startPhase(String name) {
+        return new Phase(name, sCurrent.get());
+    }
+
+    public String getOperation() {
+        return mOperation;
+    }
+
+    public long getTotalMillis() {
+        return mTotalMillis;
+    }
+
+    public boolean isEmpty() {
+        synchronized (mPhases) {
+            return mPhases.isEmpty();
+        }
+    }
+
+    private void record(String phase, long millis, long bytes) {
+        synchronized (mPhases) {
+            PhaseTiming timing = mPhases.get(phase);
+            if (timing == null) {
+                timing = new PhaseTiming();
+                mPhases.put(phase, timing);
+            }
+            timing.add(millis, bytes);
+        }
+    }
+
+    private static void recordInRegistry(String operation, String phase, long millis, long bytes) {
+        String key = (operation != null ? operation : "-") + "/" + phase;
+        synchronized (sRegistry) {
+            PhaseTiming timing = sRegistry.get(key);
+            if (timing == null) {
+                timing = new PhaseTiming();
+                sRegistry.put(key, timing);
+            }
+            timing.add(millis, bytes);
+        }
+    }
+
+    /** Returns a printable summary of the phases of this operation. */
+    public String getPrintableTimings() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(mOperation).append(": ").append(mTotalMillis).append("ms");
+        synchronized (mPhases) {
+            for (Entry<String, PhaseTiming> entry : mPhases.entrySet()) {
+                builder.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+        }
+        return builder.toString();
+    }
+
+    /** Returns a printable summary of all phases recorded in this process. */
+    public static String dumpRegistry() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (sRegistry) {
+            for (Entry<String, PhaseTiming> entry : sRegistry.entrySet()) {
+                builder.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    public static void clearRegistry() {
+        synchronized (sRegistry) {
+            sRegistry.clear();
+        }
+    }
+
+    public static class Phase {
+        private final String mName;
+        private final OperationTimings mTimings;
+        private final long mStartTime;
+
+        Phase(String name, OperationTimings timings) {
+            mName = name;
+            mTimings = timings;
+            mStartTime = System.currentTimeMillis();
+        }
+
+        public void end() {
+            end(0);
+        }
+
+        /** Ends this phase, recording the number of bytes processed during it. */
+        public void end(long bytes) {
+            long millis = System.currentTimeMillis() - mStartTime;
+            if (mTimings != null) {
+                mTimings.record(mName, millis, bytes);
+                recordInRegistry(mTimings.mOperation, mName, millis, bytes);
+            } else {
+                recordInRegistry(null, mName, millis, bytes);
+            }
+        }
+    }
+
+    static class PhaseTiming {
+        int mCount;
+        long mMillis;
+        long mBytes;
+
+        void add(long millis, long bytes) {
+            mCount += 1;
+            mMillis += millis;
+            mBytes += bytes;
+        }
+
+        @Override
+        public String toString() {
+            String result = mMillis + "ms in " + mCount + "x";
+            if (mBytes > 0) {
+                result += ", " + mBytes + " bytes";
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mOperation);
+        dest.writeLong(mTotalMillis);
+        synchronized (mPhases) {
+            dest.writeInt(mPhases.size());
+            for (Entry<String, PhaseTiming> entry : mPhases.entrySet()) {
+                dest.writeString(entry.getKey());
+                dest.writeInt(entry.getValue().mCount);
+                dest.writeLong(entry.getValue().mMillis);
+                dest.writeLong(entry.getValue().mBytes);
+            }
+        }
+    }
+
+    public static final Creator<OperationTimings> CREATOR = new Creator<OperationTimings>() {
+        public OperationTimings createFromParcel(final Parcel source) {
+            OperationTimings timings = new OperationTimings(source.readString());
+            timings.mTotalMillis = source.readLong();
+            int size = source.readInt();
+            for (int i = 0; i < size; i++) {
+                PhaseTiming timing = new PhaseTiming();
+                String phase = source.readString();
+                timing.mCount = source.readInt();
+                timing.mMillis = source.readLong();
+                timing.mBytes = source.readLong();
+                timings.mPhases.put(phase, timing);
+            }
+            return timings;
+        }
+
+        public OperationTimings[] newArray(final int size) {
+            return new OperationTimings[size];
+        }
+    };
+
+}
@@ -33,6 +33,7 @@ import org.sufficientlysecure.keychain.Constants.Pref;
 import org.sufficientlysecure.keychain.KeychainApplication;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.ParcelableHkpKeyserver;
+import org.sufficientlysecure.keychain.pgp.CalibrationProfile;
 import org.sufficientlysecure.keychain.service.KeyserverSyncAdapterService;
 
 import java.io.Serializable;
@@ -430,6 +431,18 @@ public class Preferences {
         };
     }
 
+    // calibration
+
+    public CalibrationProfile getCalibrationProfile() {
+        return CalibrationProfile.decode(mSharedPreferences.getString(Pref.CALIBRATION_PROFILE, null));
+    }
+
+    public void setCalibrationProfile(CalibrationProfile profile) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putString(Pref.CALIBRATION_PROFILE, profile.encode());
+        editor.commit();
+    }
+
     // sync preferences
 
     public boolean getWifiOnlySync() {
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.support.annotation.Nullable;
+
+import org.sufficientlysecure.keychain.Constants;
+
+
+/** Overwrites files with random data before deleting them.
+ *
+ * Overwrite data is an AES-CTR keystream under a key drawn once per file from
+ * SecureRandom, which is indistinguishable from SecureRandom output but a lot
+ * cheaper to produce in large blocks. Where possible, files are overwritten in
+ * place through a FileChannel and synced to disk before they are deleted.
+ *
+ * Wiping is fail-fast: if a file can't be overwritten completely, it is not
+ * deleted at all. Wiping large files takes a while, so callers on the main
+ * thread should use wipeAndDeleteAsync(), which wipes on a small pool of
+ * background threads.
+ */
+public class SecureWipe {
+
+    private static final int WIPE_BLOCK_SIZE = 1024 * 1024;
+    private static final int MAX_CONCURRENT_WIPES = 2;
+
+    /** Plaintext for the keystream cipher, never written to. */
+    private static final byte[] ZERO_BLOCK = new byte[WIPE_BLOCK_SIZE];
+
+    private static final ExecutorService sExecutor;
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_WIPES, MAX_CONCURRENT_WIPES, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "SecureWipe");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        sExecutor = executor;
+    }
+
+    public interface WipeProgressListener {
+        /** Called from the wiping thread after each block. */
+        void onWipeProgress(Uri uri, long wiped, long total);
+    }
+
+    /** Overwrites and deletes the file at the uri on the calling thread.
+     *
+     * @return the number of deleted files, as returned by ContentResolver.delete()
+     */
+    public static int wipeAndDelete(Context context, Uri uri, @Nullable WipeProgressListener listener)
+            throws IOException {
+
+        ContentResolver resolver = context.getContentResolver();
+        long length = FileHelper.getFileSize(context, uri);
+
+        if (length == -1) {
+            throw new IOException("Error opening file!");
+        }
+
+        Cipher keystream = createKeystreamCipher();
+        ParcelFileDescriptor fd = openFileDescriptorForOverwrite(resolver, uri);
+        if (fd != null) {
+            try {
+                FileChannel channel = new FileOutputStream(fd.getFileDescriptor()).getChannel();
+                overwrite(channel, keystream, uri, length, listener);
+            } finally {
+                fd.close();
+            }
+        } else {
+            // no file descriptor for this provider, overwrite through its stream instead
+            OutputStream out = resolver.openOutputStream(uri, "w");
+            if (out == null) {
+                throw new IOException("Error opening file!");
+            }
+            try {
+                overwrite(out, keystream, uri, length, listener);
+            } finally {
+                out.close();
+            }
+        }
+
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return new File(uri.getPath()).delete() ? 1 : 0;
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && DocumentsContract.isDocumentUri(context, uri)) {
+            // document providers need not implement delete() for their uris
+            return DocumentsContract.deleteDocument(resolver, uri) ? 1 : 0;
+        } else {
+            return resolver.delete(uri, null, null);
+        }
+
+    }
+
+    /** Overwrites and deletes the file at the uri in the background. */
+    public static Future<Integer> wipeAndDeleteAsync(Context context, final Uri uri,
+            @Nullable final WipeProgressListener listener) {
+        final Context appContext = context.getApplicationContext();
+        return sExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return wipeAndDelete(appContext, uri, listener);
+            }
+        });
+    }
+
+    /** Overwrites and deletes all files concurrently, and waits for them to finish. A failure
+     * to wipe one file does not stop the others.
+     *
+     * @return the uris of all files which were not deleted, in the order they were passed
+     */
+    public static List<Uri> wipeAndDeleteAll(Context context, List<Uri> uris,
+            @Nullable WipeProgressListener listener) throws InterruptedException {
+
+        ArrayList<Future<Integer>> futures = new ArrayList<>(uris.size());
+        for (Uri uri : uris) {
+            futures.add(wipeAndDeleteAsync(context, uri, listener));
+        }
+
+        ArrayList<Uri> notDeleted = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                if (futures.get(i).get() == 0) {
+                    notDeleted.add(uris.get(i));
+                }
+            } catch (ExecutionException e) {
+                Log.e(Constants.TAG, "error wiping file", e.getCause());
+                notDeleted.add(uris.get(i));
+            }
+        }
+        return notDeleted;
+    }
+
+    private static Cipher createKeystreamCipher() throws IOException {
+        try {
+            SecureRandom random = new SecureRandom();
+            byte[] key = new byte[16];
+            byte[] iv = new byte[16];
+            random.nextBytes(key);
+            random.nextBytes(iv);
+
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error initializing keystream!", e);
+        }
+    }
+
+    private static void nextKeystreamBlock(Cipher keystream, byte[] block, int length) throws IOException {
+        try {
+            keystream.update(ZERO_BLOCK, 0, length, block, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error generating keystream!", e);
+        }
+    }
+
+    /** Opens the file for overwriting in place, without truncating it first. Returns null
+     * if the provider doesn't support this.
+     */
+    private static ParcelFileDescriptor openFileDescriptorForOverwrite(ContentResolver resolver, Uri uri) {
+        try {
+            return resolver.openFileDescriptor(uri, "rw");
+        } catch (FileNotFoundException | SecurityException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static void overwrite(FileChannel channel, Cipher keystream, Uri uri, long length,
+            WipeProgressListener listener) throws IOException {
+
+        byte[] block = new byte[WIPE_BLOCK_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+
+        long position = 0;
+        while (position < length) {
+            int blockLength = (int) Math.min(block.length, length - position);
+            nextKeystreamBlock(keystream, block, blockLength);
+
+            buffer.clear();
+            buffer.limit(blockLength);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+
+            if (listener != null) {
+                listener.onWipeProgress(uri, position, length);
+            }
+        }
+
+        // make sure the data actually hits the disk before the file is unlinked
+        channel.force(true);
+    }
+
+    private static void overwrite(OutputStream out, Cipher keystream, Uri uri, long length,
+            WipeProgressListener listener) throws IOException {
+
+        byte[] block = new byte[WIPE_BLOCK_SIZE];
+
+        long position = 0;
+        while (position < length) {
+            int blockLength = (int) Math.min(block.length, length - position);
+            nextKeystreamBlock(keystream, block, blockLength);
+            out.write(block, 0, blockLength);
+            position += blockLength;
+
+            if (listener != null) {
+                listener.onWipeProgress(uri, position, length);
+            }
+        }
+        out.flush();
+    }
+
+}
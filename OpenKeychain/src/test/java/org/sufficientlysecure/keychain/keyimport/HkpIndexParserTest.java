@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+@RunWith(KeychainTestRunner.class)
+public class HkpIndexParserTest {
+
+    static final String INDEX = "info:1:3\n"
+            + "pub:0123456789ABCDEF0123456789ABCDEF01234567:1:2048:1420070400::\n"
+            + "uid:Max Mustermann <max@example.com>:1420070400::\n"
+            + "uid:Universit%C3%A4t <uni@example.com>:1420070400::\n"
+            + "pub:FEDCBA9876543210:17:1024:1420070400:1420070401:r\n"
+            + "uid:Revoked <revoked@example.com>:1420070400::\n"
+            + "pub:0123:1:2048:1420070400::\n"
+            + "uid:Broken key id <broken@example.com>:1420070400::\n"
+            + "pub:89ABCDEF0123456789ABCDEF0123456789ABCDEF:1:4096:1420070400::\n"
+            + "uid:Erika Mustermann <erika@example.com>:1420070400::\n";
+
+    @Test
+    public void testParseIndex() throws Exception {
+        final ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+        HkpIndexParser parser = new HkpIndexParser(new ParcelableHkpKeyserver("hkps://example.com"), "mustermann",
+                new Keyserver.SearchListener() {
+                    @Override
+                    public boolean onSearchResult(ImportKeysListEntry entry) {
+                        results.add(entry);
+                        return true;
+                    }
+                }, 100);
+
+        Assert.assertTrue("index should be parsed completely",
+                parser.parse(new BufferedReader(new StringReader(INDEX))));
+        Assert.assertEquals("keys with broken key id should be skipped", 3, results.size());
+
+        ImportKeysListEntry first = results.get(0);
+        Assert.assertEquals("fingerprint should be parsed",
+                "0123456789abcdef0123456789abcdef01234567", first.getFingerprintHex());
+        Assert.assertEquals("key id should be derived from fingerprint", "0x89abcdef01234567", first.getKeyIdHex());
+        Assert.assertEquals("both user ids should be parsed", 2, first.getUserIds().size());
+        Assert.assertEquals("first user id should be primary",
+                "max@example.com", first.getPrimaryUserId().email);
+        Assert.assertEquals("user ids should be url decoded",
+                "Universität <uni@example.com>", first.getUserIds().get(1));
+        Assert.assertEquals("query should be set", "mustermann", first.getQuery());
+        Assert.assertFalse("key should not be revoked", first.isRevoked());
+
+        ImportKeysListEntry second = results.get(1);
+        Assert.assertEquals("long key id should be parsed", "0xfedcba9876543210", second.getKeyIdHex());
+        Assert.assertTrue("revocation flag should be parsed", second.isRevoked());
+        Assert.assertTrue("key should be expired by date", second.isExpired());
+
+        Assert.assertEquals("last entry should be finished at end of index",
+                "erika@example.com", results.get(2).getPrimaryUserId().email);
+    }
+
+    @Test
+    public void testMaxResults() throws Exception {
+        final ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+        HkpIndexParser parser = new HkpIndexParser(new ParcelableHkpKeyserver("hkps://example.com"), "mustermann",
+                new Keyserver.SearchListener() {
+                    @Override
+                    public boolean onSearchResult(ImportKeysListEntry entry) {
+                        results.add(entry);
+                        return true;
+                    }
+                }, 1);
+
+        Assert.assertFalse("parsing should stop at maximum number of results",
+                parser.parse(new BufferedReader(new StringReader(INDEX))));
+        Assert.assertEquals("only one result should be delivered", 1, results.size());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+        HkpIndexParser parser = new HkpIndexParser(new ParcelableHkpKeyserver("hkps://example.com"), "mustermann",
+                new Keyserver.SearchListener() {
+                    @Override
+                    public boolean onSearchResult(ImportKeysListEntry entry) {
+                        results.add(entry);
+                        return results.size() < 2;
+                    }
+                }, 100);
+
+        Assert.assertFalse("parsing should stop when cancelled by listener",
+                parser.parse(new BufferedReader(new StringReader(INDEX))));
+        Assert.assertEquals("no results should be delivered after cancellation", 2, results.size());
+    }
+
+}
@@ -19,14 +19,19 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
+import org.sufficientlysecure.keychain.pgp.CalibrationProfile;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.BenchmarkInputParcel;
+import org.sufficientlysecure.keychain.util.Preferences;
 
 import java.io.PrintStream;
 import java.security.Security;
@@ -49,7 +54,15 @@ public class BenchmarkOperationTest {
         BenchmarkOperation op = new BenchmarkOperation(RuntimeEnvironment.application,
                 new ProviderHelper(RuntimeEnvironment.application), null);
 
-        op.execute(new BenchmarkInputParcel(), null);
+        BenchmarkResult result = op.execute(new BenchmarkInputParcel(), null);
+        Assert.assertTrue("benchmark should succeed", result.success());
+
+        CalibrationProfile profile = Preferences.getPreferences(RuntimeEnvironment.application)
+                .getCalibrationProfile();
+        Assert.assertTrue("benchmark should persist a calibration profile", profile.isCalibrated());
+        Assert.assertTrue("calibrated s2k count must not be weaker than default",
+                profile.getS2kCountForTargetMillis(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_TARGET_MILLIS)
+                        >= PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT);
     }
 
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogKeyId;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogLevel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+
+
+@RunWith(KeychainTestRunner.class)
+public class OperationLogTest {
+
+    @After
+    public void tearDown() {
+        OperationLog.setSpillDirectory(null);
+    }
+
+    @Test
+    public void testEntriesAreRestored() throws Exception {
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IP, 0, new LogKeyId(0x1234567890abcdefL));
+        log.add(LogType.MSG_IP_FINGERPRINT_OK, 1);
+        log.add(LogType.MSG_IP_BAD_TYPE_SECRET, 2);
+
+        Assert.assertEquals("log should contain all entries", 3, log.size());
+        Assert.assertEquals("type should be restored", LogType.MSG_IP, log.get(0).mType);
+        Assert.assertEquals("indent should be restored", 2, log.get(2).mIndent);
+        Assert.assertEquals("key id should be formatted lazily",
+                "0x1234567890abcdef", log.get(0).mParameters[0].toString());
+        Assert.assertTrue("log should contain type", log.containsType(LogType.MSG_IP_FINGERPRINT_OK));
+        Assert.assertTrue("log should contain warnings", log.containsWarnings());
+        Assert.assertEquals("last entry should be returned", LogType.MSG_IP_BAD_TYPE_SECRET, log.getLast().mType);
+    }
+
+    @Test
+    public void testMinimumLevel() throws Exception {
+        OperationLog log = new OperationLog();
+        log.setMinimumLevel(LogLevel.WARN);
+        log.add(LogType.MSG_IP, 0);
+        log.add(LogType.MSG_IP_FINGERPRINT_OK, 1);
+        log.add(LogType.MSG_IP_INSERT_KEYRING, 1);
+        log.add(LogType.MSG_IP_BAD_TYPE_SECRET, 1);
+
+        Assert.assertEquals("info and debug entries should be dropped", 2, log.size());
+        Assert.assertEquals("start entry should be kept", LogType.MSG_IP, log.getFirst().mType);
+        Assert.assertEquals("warning should be kept", LogType.MSG_IP_BAD_TYPE_SECRET, log.getLast().mType);
+    }
+
+    @Test
+    public void testSpillToDisk() throws Exception {
+        File spillDirectory = new File(RuntimeEnvironment.application.getCacheDir(), "log_spill_test");
+        OperationLog.setSpillDirectory(spillDirectory);
+
+        OperationLog log = new OperationLog();
+        OperationLog inMemoryLog = new OperationLog();
+        log.setSpillToDisk(true);
+        int count = 40000;
+        for (int i = 0; i < count; i++) {
+            log.add(LogType.MSG_IP, i % 8, new LogKeyId(i));
+            inMemoryLog.add(LogType.MSG_IP, i % 8, new LogKeyId(i));
+        }
+
+        String[] spilledFiles = spillDirectory.list();
+        Assert.assertTrue("large log should be spilled", spilledFiles != null && spilledFiles.length > 0);
+        int spilledCount = spilledFiles.length;
+        inMemoryLog.clear();
+        Assert.assertEquals("logs should only spill if allowed to", spilledCount, spillDirectory.list().length);
+
+        Assert.assertEquals("all entries should be counted", count, log.size());
+        int i = 0;
+        for (LogEntryParcel entry : log) {
+            Assert.assertEquals("indent should survive spilling", i % 8, entry.mIndent);
+            Assert.assertEquals("parameters should survive spilling",
+                    new LogKeyId(i).toString(), entry.mParameters[0].toString());
+            i++;
+        }
+        Assert.assertEquals("all entries should be iterated", count, i);
+
+        log.clear();
+        spilledFiles = spillDirectory.list();
+        Assert.assertTrue("spilled chunks should be deleted on clear",
+                spilledFiles == null || spilledFiles.length == 0);
+    }
+
+    @Test
+    public void testUnspill() throws Exception {
+        File spillDirectory = new File(RuntimeEnvironment.application.getCacheDir(), "log_spill_test");
+        OperationLog.setSpillDirectory(spillDirectory);
+
+        OperationLog log = new OperationLog();
+        log.setSpillToDisk(true);
+        int count = 40000;
+        for (int i = 0; i < count; i++) {
+            log.add(LogType.MSG_IP, i % 8, new LogKeyId(i));
+        }
+        String[] spilledFiles = spillDirectory.list();
+        Assert.assertTrue("large log should be spilled", spilledFiles != null && spilledFiles.length > 0);
+
+        log.unspill();
+        spilledFiles = spillDirectory.list();
+        Assert.assertTrue("spilled chunks should be deleted on unspill",
+                spilledFiles == null || spilledFiles.length == 0);
+
+        log.add(LogType.MSG_IP, 0, new LogKeyId(count));
+        for (int i = 0; i < 2 * count; i++) {
+            log.add(LogType.MSG_IP, 0, new LogKeyId(i));
+        }
+        spilledFiles = spillDirectory.list();
+        Assert.assertTrue("unspilled log should not spill again",
+                spilledFiles == null || spilledFiles.length == 0);
+
+        Assert.assertEquals("all entries should be counted", 3 * count + 1, log.size());
+        for (int i = 0; i < count; i++) {
+            LogEntryParcel entry = log.get(i);
+            Assert.assertEquals("indent should survive unspilling", i % 8, entry.mIndent);
+            Assert.assertEquals("parameters should survive unspilling",
+                    new LogKeyId(i).toString(), entry.mParameters[0].toString());
+        }
+    }
+
+}
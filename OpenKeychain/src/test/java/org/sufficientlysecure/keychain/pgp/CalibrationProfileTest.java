@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+@RunWith(KeychainTestRunner.class)
+public class CalibrationProfileTest {
+
+    @Test
+    public void testS2kCountToBytes() throws Exception {
+        Assert.assertEquals("bouncy castle default count should hash 64kb",
+                65536, CalibrationProfile.s2kCountToBytes(0x60));
+        Assert.assertEquals("maximum count should hash about 65mb",
+                31L << 21, CalibrationProfile.s2kCountToBytes(0xff));
+    }
+
+    @Test
+    public void testUncalibratedUsesDefault() throws Exception {
+        CalibrationProfile profile = CalibrationProfile.decode(null);
+        Assert.assertFalse("profile without data must not be calibrated", profile.isCalibrated());
+        Assert.assertEquals("uncalibrated profile must return default s2k count",
+                PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT, profile.getS2kCountForTargetMillis(250));
+        Assert.assertEquals("uncalibrated profile must not give estimates",
+                -1, profile.estimateMillis(SymmetricKeyAlgorithmTags.AES_256, null, 1024));
+    }
+
+    @Test
+    public void testS2kCountForTargetMillis() throws Exception {
+        CalibrationProfile profile = new CalibrationProfile();
+
+        profile.setS2kThroughput(1000);
+        Assert.assertEquals("slow devices must never go below the default s2k count",
+                PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT, profile.getS2kCountForTargetMillis(250));
+
+        profile.setS2kThroughput(100000);
+        int s2kCount = profile.getS2kCountForTargetMillis(250);
+        Assert.assertEquals("fast devices should get the smallest count reaching the target",
+                0xe8, s2kCount);
+        Assert.assertTrue("count must reach target",
+                CalibrationProfile.s2kCountToBytes(s2kCount) >= 250 * 100000);
+        Assert.assertTrue("next smaller count must not reach target",
+                CalibrationProfile.s2kCountToBytes(s2kCount - 1) < 250 * 100000);
+
+        profile.setS2kThroughput(Integer.MAX_VALUE);
+        Assert.assertEquals("s2k count must be capped at maximum",
+                0xff, profile.getS2kCountForTargetMillis(250));
+    }
+
+    @Test
+    public void testEncodeDecode() throws Exception {
+        CalibrationProfile profile = new CalibrationProfile();
+        profile.setS2kThroughput(12345);
+        profile.setCipherThroughput(SymmetricKeyAlgorithmTags.AES_256, 1000);
+        profile.setHashThroughput(HashAlgorithmTags.SHA512, 4000);
+
+        CalibrationProfile decoded = CalibrationProfile.decode(profile.encode());
+        Assert.assertTrue("decoded profile must be calibrated", decoded.isCalibrated());
+        Assert.assertEquals("decoded profile must give same s2k count",
+                profile.getS2kCountForTargetMillis(250), decoded.getS2kCountForTargetMillis(250));
+        Assert.assertEquals("estimate should add up cipher and hash time",
+                1250, decoded.estimateMillis(SymmetricKeyAlgorithmTags.AES_256, HashAlgorithmTags.SHA512, 1000000));
+        Assert.assertEquals("estimate must fail for unknown algorithms",
+                -1, decoded.estimateMillis(SymmetricKeyAlgorithmTags.TWOFISH, null, 1000000));
+    }
+
+    @Test
+    public void testDecodeMalformed() throws Exception {
+        Assert.assertFalse("malformed data must be ignored",
+                CalibrationProfile.decode("1;abc").isCalibrated());
+        Assert.assertFalse("unknown versions must be ignored",
+                CalibrationProfile.decode("999;12345").isCalibrated());
+        Assert.assertFalse("unknown entry types must be ignored",
+                CalibrationProfile.decode("1;12345;x1=2").isCalibrated());
+    }
+
+}
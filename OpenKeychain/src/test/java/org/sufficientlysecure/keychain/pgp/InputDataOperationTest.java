@@ -48,6 +48,9 @@ import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
@@ -284,6 +287,48 @@ public class InputDataOperationTest {
                 result.getOutputUris().get(0), FAKE_CONTENT_INPUT_URI_1);
     }
 
+    @Test
+    public void testBatchProcessing() throws Exception {
+
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        ArrayList<Uri> inputUris = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            Uri inputUri = Uri.parse("content://fake/" + i);
+            inputUris.add(inputUri);
+            when(mockResolver.openInputStream(inputUri)).thenReturn(new ByteArrayInputStream(
+                    ("Some-Header: dummy\n\nsome message text " + i + "\n").getBytes()));
+        }
+
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        InputDataOperation op = new InputDataOperation(spyApplication,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        final Map<Uri, InputDataResult> batchResults =
+                Collections.synchronizedMap(new HashMap<Uri, InputDataResult>());
+        op.setBatchResultListener(new InputDataOperation.BatchResultListener() {
+            @Override
+            public void onBatchResult(Uri inputUri, InputDataResult result) {
+                Assert.assertNull("each input must be reported once", batchResults.put(inputUri, result));
+            }
+        });
+
+        InputDataParcel input = new InputDataParcel(inputUris, null);
+        InputDataResult result = op.execute(input, new CryptoInputParcel());
+
+        Assert.assertTrue(result.success());
+        Assert.assertTrue("batch must be logged",
+                result.getLog().containsType(LogType.MSG_DATA_BATCH_OK));
+        Assert.assertEquals("all inputs must be reported", inputUris.size(), batchResults.size());
+        for (Uri inputUri : inputUris) {
+            InputDataResult itemResult = batchResults.get(inputUri);
+            Assert.assertTrue(itemResult.success());
+            Assert.assertEquals("output uri should simply be passed-through input uri",
+                    inputUri, itemResult.getOutputUris().get(0));
+        }
+    }
+
     private InputDataResult runSimpleDataInputOperation(byte[] mimeContentBytes) throws FileNotFoundException {
         ByteArrayOutputStream outStream1 = new ByteArrayOutputStream();
         ByteArrayOutputStream outStream2 = new ByteArrayOutputStream();
@@ -20,6 +20,7 @@ package org.sufficientlysecure.keychain.pgp;
 
 import org.apache.tools.ant.util.StringUtils;
 import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
 import org.bouncycastle.bcpg.Packet;
 import org.bouncycastle.bcpg.PacketTags;
 import org.bouncycastle.bcpg.PublicKeyEncSessionPacket;
@@ -60,9 +61,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Random;
 
 import static org.hamcrest.core.AnyOf.anyOf;
 import static org.hamcrest.core.Is.is;
@@ -930,6 +933,69 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testPipelinedSignEncryptDecryptVerify() {
+
+        // large enough for stages to run on separate threads, and spanning several chunks
+        byte[] plaintext = new byte[5 * 1024 * 1024 + 123];
+        new Random(42).nextBytes(plaintext);
+        // make part of it compressible
+        Arrays.fill(plaintext, 0, plaintext.length / 2, (byte) 'a');
+        byte[] ciphertext;
+
+        { // sign, compress and encrypt
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+
+            PgpSignEncryptData pgpData = new PgpSignEncryptData();
+            pgpData.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+            pgpData.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            pgpData.setCompressionAlgorithm(CompressionAlgorithmTags.ZLIB);
+            pgpData.setEnableAsciiArmorOutput(true);
+
+            PgpSignEncryptInputParcel b = new PgpSignEncryptInputParcel(pgpData);
+
+            // test runners may have a single core, where pipelining would be skipped
+            PgpSignEncryptOperation.sForcePipelineForTesting = true;
+            PgpSignEncryptResult result;
+            try {
+                result = op.execute(b, new CryptoInputParcel(new Date(), mKeyPhrase1), data, out);
+            } finally {
+                PgpSignEncryptOperation.sForcePipelineForTesting = false;
+            }
+            Assert.assertTrue("encryption must succeed", result.success());
+            Assert.assertTrue("encryption must be pipelined",
+                    result.getLog().containsType(LogType.MSG_PSE_PIPELINED));
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // decrypt and verify
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                    plaintext, out.toByteArray());
+            Assert.assertEquals("signature should be verified and certified",
+                    OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED, result.getSignatureResult().getResult());
+        }
+
+    }
+
     @Test
     public void testForeignEncoding() throws Exception {
         String plaintext = "ウィキペディア";
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowContentResolver.NotifiedUri;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingBlobsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+
+@RunWith(KeychainTestRunner.class)
+public class KeyRingBatchTest {
+
+    ContentResolver mContentResolver;
+    long mMasterKeyId;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+
+        UncachedKeyRing ring = UncachedKeyRing.fromStream(
+                KeyRingBatchTest.class.getResourceAsStream("/test-keys/symantec_public.asc")).next();
+        mMasterKeyId = ring.getMasterKeyId();
+        Assert.assertTrue("import should succeed",
+                new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(ring).success());
+    }
+
+    @Test
+    public void testBundleRoundTrip() throws Exception {
+        ContentValues insertValues = new ContentValues();
+        insertValues.put(Keys.RANK, 5);
+        insertValues.put(Keys.KEY_ID, 123L);
+        ContentValues keyValues = rankValues(1);
+        ContentValues updateValues = new ContentValues();
+        updateValues.put(Keys.IS_REVOKED, true);
+
+        KeyRingBatch batch = new KeyRingBatch(mMasterKeyId);
+        batch.insert(Tables.KEYS, insertValues);
+        batch.update(Tables.KEYS, keyValues, updateValues);
+        batch.delete(Tables.USER_PACKETS, rankValues(2));
+
+        // as passed to the provider from another process
+        Parcel parcel = Parcel.obtain();
+        batch.toBundle().writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        Bundle bundle = Bundle.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+        KeyRingBatch copy = KeyRingBatch.fromBundle(bundle);
+
+        Assert.assertEquals(mMasterKeyId, copy.getMasterKeyId());
+        Assert.assertEquals(3, copy.size());
+        Assert.assertEquals(KeyRingBatch.TYPE_INSERT, copy.getType(0));
+        Assert.assertEquals(KeyRingBatch.TYPE_UPDATE, copy.getType(1));
+        Assert.assertEquals(KeyRingBatch.TYPE_DELETE, copy.getType(2));
+        Assert.assertEquals(Tables.KEYS, copy.getTable(1));
+        Assert.assertEquals(Tables.USER_PACKETS, copy.getTable(2));
+        Assert.assertEquals(insertValues, copy.getValues(0));
+        Assert.assertEquals(keyValues, copy.getKeyValues(1));
+        Assert.assertEquals(updateValues, copy.getValues(1));
+        Assert.assertEquals(rankValues(2), copy.getKeyValues(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedBundle() throws Exception {
+        Bundle bundle = new KeyRingBatch(mMasterKeyId).toBundle();
+        bundle.remove("tables");
+        KeyRingBatch.fromBundle(bundle);
+    }
+
+    @Test
+    public void testApplyThroughCall() throws Exception {
+        KeyRingBatch batch = new KeyRingBatch(mMasterKeyId);
+        batch.update(Tables.KEYS, rankValues(0), revokedValues());
+
+        // apply goes through ContentResolver.call, which Robolectric dispatches to KeychainProvider
+        Assert.assertTrue("batch should be applied", batch.apply(mContentResolver));
+        Assert.assertEquals("update should be written", 1, getMasterKeyRevoked());
+    }
+
+    @Test
+    public void testOutdatedBatchIsRolledBack() throws Exception {
+        KeyRingBatch batch = new KeyRingBatch(mMasterKeyId);
+        batch.update(Tables.KEYS, rankValues(0), revokedValues());
+        // there is no such key, as if it was deleted after the batch was made
+        batch.delete(Tables.KEYS, rankValues(99));
+
+        Assert.assertFalse("batch should fail", batch.apply(mContentResolver));
+        Assert.assertEquals("earlier writes should be rolled back", 0, getMasterKeyRevoked());
+
+        batch = new KeyRingBatch(mMasterKeyId);
+        batch.update(Tables.KEYS, rankValues(99), revokedValues());
+        Assert.assertFalse("update of a missing row should fail", batch.apply(mContentResolver));
+    }
+
+    @Test
+    public void testMalformedBatchIsRolledBack() throws Exception {
+        KeyRingBatch batch = new KeyRingBatch(mMasterKeyId);
+        batch.update(Tables.KEYS, rankValues(0), revokedValues());
+        batch.delete(Tables.API_APPS, new ContentValues());
+
+        try {
+            batch.apply(mContentResolver);
+            Assert.fail("malformed batch should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals("earlier writes should be rolled back", 0, getMasterKeyRevoked());
+    }
+
+    @Test
+    public void testCheckOfChangedKeyRing() throws Exception {
+        ContentValues keyRingValues = new ContentValues();
+        keyRingValues.put(KeyRingBlobsColumns.BLOB_HASH, "outdated");
+
+        KeyRingBatch batch = new KeyRingBatch(mMasterKeyId);
+        batch.check(Tables.KEY_RINGS_PUBLIC, keyRingValues);
+        batch.update(Tables.KEYS, rankValues(0), revokedValues());
+        Assert.assertFalse("batch for another keyring should fail", batch.apply(mContentResolver));
+        Assert.assertEquals("batch should be rolled back", 0, getMasterKeyRevoked());
+
+        keyRingValues.put(KeyRingBlobsColumns.BLOB_HASH, getBlobHash());
+        batch = new KeyRingBatch(mMasterKeyId);
+        batch.check(Tables.KEY_RINGS_PUBLIC, keyRingValues);
+        batch.update(Tables.KEYS, rankValues(0), revokedValues());
+        Assert.assertTrue("batch for the stored keyring should be applied", batch.apply(mContentResolver));
+        Assert.assertEquals("update should be written", 1, getMasterKeyRevoked());
+    }
+
+    @Test
+    public void testRewrite() throws Exception {
+        String blobHash = getBlobHash();
+
+        KeyRingBatch batch = new KeyRingBatch(mMasterKeyId);
+        batch.deleteAll(Tables.CERTS);
+        batch.deleteAll(Tables.USER_PACKETS);
+        batch.deleteAll(Tables.KEYS);
+        ContentValues keyRingValues = new ContentValues();
+        keyRingValues.put(KeyRingData.KEY_RING_DATA, new byte[] { 1, 2, 3 });
+        batch.upsert(Tables.KEY_RINGS_PUBLIC, keyRingValues);
+        ContentValues keyValues = rankValues(0);
+        keyValues.put(Keys.KEY_ID, mMasterKeyId);
+        keyValues.put(Keys.IS_REVOKED, true);
+        batch.insert(Tables.KEYS, keyValues);
+
+        Assert.assertTrue("rewrite should be applied", batch.apply(mContentResolver));
+        Assert.assertEquals("key should be rewritten", 1, getMasterKeyRevoked());
+        Assert.assertFalse("keyring should be updated", blobHash.equals(getBlobHash()));
+        Assert.assertEquals("other rows should be deleted", 1, getRowCount(Tables.KEYS));
+        Assert.assertEquals("other rows should be deleted", 0, getRowCount(Tables.USER_PACKETS));
+        Assert.assertEquals("other rows should be deleted", 0, getRowCount(Tables.CERTS));
+    }
+
+    @Test
+    public void testChangeNotification() throws Exception {
+        ShadowContentResolver shadowResolver = Shadows.shadowOf(mContentResolver);
+        Uri keyRingUri = KeyRings.buildGenericKeyRingUri(mMasterKeyId);
+
+        KeyRingBatch batch = new KeyRingBatch(mMasterKeyId);
+        batch.update(Tables.KEYS, rankValues(0), revokedValues());
+        batch.update(Tables.KEYS, rankValues(0), revokedValues());
+        int notified = shadowResolver.getNotifiedUris().size();
+        Assert.assertTrue("batch should be applied", batch.apply(mContentResolver));
+
+        List<NotifiedUri> notifiedUris = shadowResolver.getNotifiedUris();
+        Assert.assertEquals("a batch should notify once", notified + 1, notifiedUris.size());
+        Assert.assertEquals("the keyring should be notified", keyRingUri, notifiedUris.get(notified).uri);
+
+        batch = new KeyRingBatch(mMasterKeyId);
+        batch.delete(Tables.KEYS, rankValues(99));
+        Assert.assertFalse("batch should fail", batch.apply(mContentResolver));
+        Assert.assertEquals("a rolled back batch should not notify",
+                notified + 1, shadowResolver.getNotifiedUris().size());
+    }
+
+    private static ContentValues rankValues(int rank) {
+        ContentValues values = new ContentValues();
+        values.put(Keys.RANK, rank);
+        return values;
+    }
+
+    private static ContentValues revokedValues() {
+        ContentValues values = new ContentValues();
+        values.put(Keys.IS_REVOKED, true);
+        return values;
+    }
+
+    private String getBlobHash() {
+        Cursor cursor = mContentResolver.query(KeyRingData.buildPublicKeyRingUri(mMasterKeyId),
+                new String[] { KeyRingBlobsColumns.BLOB_HASH }, null, null, null);
+        try {
+            Assert.assertTrue("keyring should be stored", cursor != null && cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private int getRowCount(String table) {
+        Cursor cursor = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase().rawQuery(
+                "SELECT COUNT(*) FROM " + table + " WHERE " + Keys.MASTER_KEY_ID + " = ?",
+                new String[] { Long.toString(mMasterKeyId) });
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int getMasterKeyRevoked() {
+        Cursor cursor = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase().rawQuery(
+                "SELECT " + Keys.IS_REVOKED + " FROM " + Tables.KEYS + " WHERE " + Keys.MASTER_KEY_ID
+                        + " = ? AND " + Keys.RANK + " = 0", new String[] { Long.toString(mMasterKeyId) });
+        try {
+            Assert.assertTrue("master key should be stored", cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
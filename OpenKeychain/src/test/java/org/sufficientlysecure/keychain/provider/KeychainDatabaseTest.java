@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+
+import java.util.Arrays;
+
+
+@RunWith(KeychainTestRunner.class)
+public class KeychainDatabaseTest {
+
+    /** The schema of version 19, the last released one before keyring blobs were moved. */
+    static final String[] SCHEMA_19 = new String[] {
+            "CREATE TABLE keyrings_public (master_key_id INTEGER PRIMARY KEY, key_ring_data BLOB)",
+            "CREATE TABLE keyrings_secret (master_key_id INTEGER PRIMARY KEY, key_ring_data BLOB, "
+                    + "FOREIGN KEY(master_key_id) REFERENCES keyrings_public(master_key_id) ON DELETE CASCADE)",
+            "CREATE TABLE keys (master_key_id INTEGER, rank INTEGER, key_id INTEGER, key_size INTEGER, "
+                    + "key_curve_oid TEXT, algorithm INTEGER, fingerprint BLOB, can_certify INTEGER, "
+                    + "can_sign INTEGER, can_encrypt INTEGER, can_authenticate INTEGER, is_revoked INTEGER, "
+                    + "has_secret INTEGER, is_secure INTEGER, creation INTEGER, expiry INTEGER, "
+                    + "PRIMARY KEY(master_key_id, rank), "
+                    + "FOREIGN KEY(master_key_id) REFERENCES keyrings_public(master_key_id) ON DELETE CASCADE)",
+            "CREATE TABLE user_packets (master_key_id INTEGER, type INT, user_id TEXT, name TEXT, "
+                    + "email TEXT, comment TEXT, attribute_data BLOB, is_primary INTEGER, is_revoked INTEGER, "
+                    + "rank INTEGER, PRIMARY KEY(master_key_id, rank), "
+                    + "FOREIGN KEY(master_key_id) REFERENCES keyrings_public(master_key_id) ON DELETE CASCADE)",
+            "CREATE TABLE certs (master_key_id INTEGER, rank INTEGER, key_id_certifier INTEGER, "
+                    + "type INTEGER, verified INTEGER, creation INTEGER, data BLOB, "
+                    + "PRIMARY KEY(master_key_id, rank, key_id_certifier), "
+                    + "FOREIGN KEY(master_key_id) REFERENCES keyrings_public(master_key_id) ON DELETE CASCADE, "
+                    + "FOREIGN KEY(master_key_id, rank) REFERENCES user_packets(master_key_id, rank) "
+                    + "ON DELETE CASCADE)",
+            "CREATE TABLE updated_keys (master_key_id INTEGER PRIMARY KEY, last_updated INTEGER, "
+                    + "FOREIGN KEY(master_key_id) REFERENCES keyrings_public(master_key_id) ON DELETE CASCADE)",
+            "CREATE TABLE api_apps (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "package_name TEXT NOT NULL UNIQUE, package_signature BLOB)",
+            "CREATE TABLE api_accounts (_id INTEGER PRIMARY KEY AUTOINCREMENT, account_name TEXT NOT NULL, "
+                    + "key_id INTEGER, encryption_algorithm INTEGER, hash_algorithm INTEGER, "
+                    + "compression INTEGER, package_name TEXT NOT NULL, UNIQUE(account_name, package_name), "
+                    + "FOREIGN KEY(package_name) REFERENCES api_apps(package_name) ON DELETE CASCADE)",
+            "CREATE TABLE api_allowed_keys (_id INTEGER PRIMARY KEY AUTOINCREMENT, key_id INTEGER, "
+                    + "package_name TEXT NOT NULL, UNIQUE(key_id, package_name), "
+                    + "FOREIGN KEY(package_name) REFERENCES api_apps(package_name) ON DELETE CASCADE)",
+            "CREATE INDEX keys_by_rank ON keys (rank)",
+            "CREATE INDEX uids_by_rank ON user_packets (rank, user_id, master_key_id)",
+            "CREATE INDEX verified_certs ON certs (verified, master_key_id)"
+    };
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testUpgradeFromVersion19() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = ring.getMasterKeyId();
+        byte[] encoded = ring.getEncoded();
+
+        SQLiteDatabase oldDb = createDatabase(19, SCHEMA_19);
+        try {
+            ContentValues values = new ContentValues();
+            values.put("master_key_id", masterKeyId);
+            values.put("key_ring_data", encoded);
+            oldDb.insertOrThrow("keyrings_public", null, values);
+
+            values = new ContentValues();
+            values.put("master_key_id", masterKeyId);
+            values.put("last_updated", 1000L);
+            oldDb.insertOrThrow("updated_keys", null, values);
+        } finally {
+            oldDb.close();
+        }
+
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT k.blob_hash, k.key_ring_data, b.blob_data FROM keyrings_public k "
+                + "JOIN keyring_blobs b ON k.blob_hash = b.blob_hash WHERE k.master_key_id = ?",
+                new String[] { Long.toString(masterKeyId) });
+        try {
+            Assert.assertTrue("blob should be moved to keyring_blobs", cursor.moveToFirst());
+            Assert.assertEquals("blob should be referenced by its hash",
+                    KeychainDatabase.getBlobHash(encoded), cursor.getString(0));
+            Assert.assertTrue("old column should be cleared", cursor.isNull(1));
+            Assert.assertArrayEquals("blob should be unchanged", encoded, cursor.getBlob(2));
+        } finally {
+            cursor.close();
+        }
+
+        cursor = db.rawQuery("SELECT next_update FROM updated_keys WHERE master_key_id = ?",
+                new String[] { Long.toString(masterKeyId) });
+        try {
+            Assert.assertTrue("update time should be kept", cursor.moveToFirst());
+            Assert.assertFalse("next update should be scheduled", cursor.isNull(0));
+        } finally {
+            cursor.close();
+        }
+
+        // the upgraded keyring can be read and saved again through the provider
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        Assert.assertTrue("import after upgrade should succeed",
+                providerHelper.savePublicKeyRing(ring).success());
+        Assert.assertEquals("keyring should be readable after upgrade", masterKeyId,
+                providerHelper.getCanonicalizedPublicKeyRing(masterKeyId).getMasterKeyId());
+
+    }
+
+    @Test
+    public void testUpgradeFromVersion20() throws Exception {
+
+        // version 20 only added the keyserver sync schedule to version 19
+        String[] schema = Arrays.copyOf(SCHEMA_19, SCHEMA_19.length + 1);
+        schema[SCHEMA_19.length] = "ALTER TABLE updated_keys ADD COLUMN next_update INTEGER";
+        createDatabase(20, schema).close();
+
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+        db.execSQL("INSERT INTO keyring_blobs (blob_hash, blob_data) VALUES ('old', x'01'), ('new', x'02')");
+        db.execSQL("INSERT INTO keyrings_public (master_key_id, blob_hash) VALUES (1, 'old')");
+
+        // keyrings are updated in place, the blob left behind must still be deleted
+        db.execSQL("UPDATE keyrings_public SET blob_hash = 'new' WHERE master_key_id = 1");
+        Cursor cursor = db.rawQuery("SELECT blob_hash FROM keyring_blobs", null);
+        try {
+            Assert.assertEquals("only the referenced blob should be left", 1, cursor.getCount());
+            cursor.moveToFirst();
+            Assert.assertEquals("new", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+
+    }
+
+    /** Creates the keychain database as an older version would have, for onUpgrade to pick up. */
+    static SQLiteDatabase createDatabase(int version, String... statements) {
+        SQLiteDatabase db = RuntimeEnvironment.application.openOrCreateDatabase(
+                "openkeychain.db", Context.MODE_PRIVATE, null);
+        for (String statement : statements) {
+            db.execSQL(statement);
+        }
+        db.setVersion(version);
+        return db;
+    }
+
+    UncachedKeyRing readRingFromResource(String name) throws Exception {
+        return UncachedKeyRing.fromStream(KeychainDatabaseTest.class.getResourceAsStream(name)).next();
+    }
+
+}
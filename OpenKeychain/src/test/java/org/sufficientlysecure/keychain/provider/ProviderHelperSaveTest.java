@@ -18,7 +18,10 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.database.Cursor;
+
 import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -27,18 +30,43 @@ import org.junit.runner.RunWith;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.CertifyOperation;
+import org.sufficientlysecure.keychain.operations.results.CertifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.SubLogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
 
+import java.security.Security;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RunWith(KeychainTestRunner.class)
 public class ProviderHelperSaveTest {
@@ -47,6 +75,7 @@ public class ProviderHelperSaveTest {
 
     @BeforeClass
     public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
         ShadowLog.stream = System.out;
     }
 
@@ -243,6 +272,236 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testKeyRingsVisibleDuringImport() throws Exception {
+
+        final UncachedKeyRing[] rings = new UncachedKeyRing[] {
+                readRingFromResource("/test-keys/symantec_public.asc"),
+                readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc"),
+                readRingFromResource("/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc")
+        };
+        for (UncachedKeyRing ring : rings) {
+            Assert.assertTrue("initial import should succeed", mProviderHelper.savePublicKeyRing(ring).success());
+        }
+
+        // update all keys repeatedly in the background, while reading the key list
+        final AtomicBoolean importSuccess = new AtomicBoolean(true);
+        Thread importThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+                for (int i = 0; i < 5; i++) {
+                    for (UncachedKeyRing ring : rings) {
+                        if (!providerHelper.savePublicKeyRing(ring).success()) {
+                            importSuccess.set(false);
+                        }
+                        providerHelper.clearLog();
+                    }
+                }
+            }
+        });
+        importThread.start();
+
+        do {
+            Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                    KeyRings.buildUnifiedKeyRingsUri(), new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+            Assert.assertNotNull(cursor);
+            int count = cursor.getCount();
+            cursor.close();
+
+            Assert.assertEquals("keyrings must never be missing while they are replaced", rings.length, count);
+        } while (importThread.isAlive());
+        importThread.join();
+
+        Assert.assertTrue("imports should succeed", importSuccess.get());
+
+    }
+
+    @Test public void testSecretImportUpdatesRowsInPlace() throws Exception {
+
+        UncachedKeyRing seckey = readRingFromResource("/test-keys/symantec_secret.asc");
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = pubkey.getMasterKeyId();
+
+        Assert.assertTrue("public keyring import should succeed",
+                mProviderHelper.savePublicKeyRing(pubkey).success());
+
+        SaveKeyringResult result = mProviderHelper.saveSecretKeyRing(seckey, new ProgressScaler());
+        Assert.assertTrue("secret keyring import should succeed", result.success());
+        Assert.assertTrue("changed rows should be logged",
+                result.getLog().containsType(LogType.MSG_IP_DIFF));
+
+        CachedPublicKeyRing ring = mProviderHelper.getCachedPublicKeyRing(masterKeyId);
+        Assert.assertTrue("keyring should have a secret key", ring.hasAnySecret());
+        Assert.assertEquals("self cert should be updated to trusted", Certs.VERIFIED_SECRET, ring.getVerified());
+        Assert.assertNotNull("secret keyring should be stored",
+                mProviderHelper.getCanonicalizedSecretKeyRing(masterKeyId));
+
+    }
+
+    @Test public void testKeyRingBlobStorage() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = pub.getMasterKeyId();
+
+        Assert.assertTrue("import should succeed", mProviderHelper.savePublicKeyRing(pub).success());
+        Assert.assertEquals("keyring blob should be stored", 1, getKeyRingBlobCount());
+
+        // an identical update replaces the keyring, its blob must not be lost or duplicated
+        Assert.assertTrue("re-import should succeed", mProviderHelper.savePublicKeyRing(pub).success());
+        Assert.assertEquals("keyring blob should be stored once", 1, getKeyRingBlobCount());
+
+        CanonicalizedPublicKeyRing ring = mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertEquals("keyring should be loaded from blob storage", masterKeyId, ring.getMasterKeyId());
+
+        RuntimeEnvironment.application.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+        Assert.assertEquals("unreferenced blob should be deleted with its keyring", 0, getKeyRingBlobCount());
+
+    }
+
+    @Test public void testIdenticalImportWritesNothing() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/symantec_public.asc");
+        Assert.assertTrue("initial import should succeed", mProviderHelper.savePublicKeyRing(pub).success());
+
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(pub);
+        Assert.assertTrue("repeated import should succeed", result.success());
+        Object[] diff = getDiffCounts(result.getLog());
+        Assert.assertEquals("no rows should be inserted", 0, diff[0]);
+        Assert.assertEquals("no rows should be updated", 0, diff[1]);
+        Assert.assertEquals("no rows should be deleted", 0, diff[2]);
+        Assert.assertTrue("all rows should be unchanged", (Integer) diff[3] > 0);
+
+    }
+
+    @Test public void testNewCertificationInsertsOneRow() throws Exception {
+
+        Passphrase passphrase = TestingUtils.genPassphrase(true);
+        UncachedKeyRing certifier = createKeyRing(passphrase, "certifier");
+        UncachedKeyRing certified = createKeyRing(TestingUtils.genPassphrase(true), "certified");
+        Assert.assertTrue("secret keyring import should succeed",
+                mProviderHelper.saveSecretKeyRing(certifier, new ProgressScaler()).success());
+        Assert.assertTrue("public keyring import should succeed",
+                mProviderHelper.savePublicKeyRing(certified.extractPublicKeyRing()).success());
+
+        CertifyResult result = certify(certifier.getMasterKeyId(), passphrase,
+                certified.getMasterKeyId(), "certified");
+
+        Object[] diff = getDiffCounts(result.getLog());
+        Assert.assertEquals("only the certification should be inserted", 1, diff[0]);
+        Assert.assertEquals("no rows should be updated", 0, diff[1]);
+        Assert.assertEquals("no rows should be deleted", 0, diff[2]);
+        Assert.assertEquals("certified key should be verified", Certs.VERIFIED_SECRET,
+                mProviderHelper.getCachedPublicKeyRing(certified.getMasterKeyId()).getVerified());
+
+    }
+
+    @Test public void testReorderedUserIdsKeepCerts() throws Exception {
+
+        Passphrase passphrase = TestingUtils.genPassphrase(true);
+        UncachedKeyRing certifier = createKeyRing(passphrase, "certifier");
+        UncachedKeyRing certified = createKeyRing(TestingUtils.genPassphrase(true), "alpha", "beta");
+        long masterKeyId = certified.getMasterKeyId();
+        Assert.assertTrue("secret keyring import should succeed",
+                mProviderHelper.saveSecretKeyRing(certifier, new ProgressScaler()).success());
+        Assert.assertTrue("public keyring import should succeed",
+                mProviderHelper.savePublicKeyRing(certified.extractPublicKeyRing()).success());
+        Assert.assertEquals("primary user id should be first", "alpha", getUserIdByRank(masterKeyId).get(0));
+
+        // user ids with trusted certs are moved to the front, so this swaps the ranks of both
+        certify(certifier.getMasterKeyId(), passphrase, masterKeyId, "beta");
+
+        Assert.assertEquals("certified user id should be first", Arrays.asList("beta", "alpha"),
+                getUserIdByRank(masterKeyId));
+        Cursor cursor = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase().rawQuery(
+                "SELECT u." + UserPackets.USER_ID + ", c." + Certs.KEY_ID_CERTIFIER
+                        + " FROM " + KeychainDatabase.Tables.CERTS + " c JOIN " + KeychainDatabase.Tables.USER_PACKETS
+                        + " u ON c." + Certs.MASTER_KEY_ID + " = u." + UserPackets.MASTER_KEY_ID
+                        + " AND c." + Certs.RANK + " = u." + UserPackets.RANK
+                        + " WHERE c." + Certs.MASTER_KEY_ID + " = ?"
+                        + " ORDER BY u." + UserPackets.USER_ID + ", c." + Certs.KEY_ID_CERTIFIER + " = ?",
+                new String[] { Long.toString(masterKeyId), Long.toString(masterKeyId) });
+        try {
+            Assert.assertEquals("there should be two self certs and one certification", 3, cursor.getCount());
+            cursor.moveToNext();
+            Assert.assertEquals("alpha", cursor.getString(0));
+            Assert.assertEquals("alpha should only be self certified", masterKeyId, cursor.getLong(1));
+            cursor.moveToNext();
+            Assert.assertEquals("beta", cursor.getString(0));
+            Assert.assertEquals("beta should be certified", certifier.getMasterKeyId(), cursor.getLong(1));
+            cursor.moveToNext();
+            Assert.assertEquals("beta", cursor.getString(0));
+            Assert.assertEquals("beta should be self certified", masterKeyId, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+
+    }
+
+    private CertifyResult certify(long certifierId, Passphrase passphrase, long masterKeyId, String userId) {
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application, mProviderHelper, null, null);
+        CertifyActionsParcel actions = new CertifyActionsParcel(certifierId);
+        actions.add(new CertifyAction(masterKeyId, Collections.singletonList(userId), null));
+        CertifyResult result = op.execute(actions, new CryptoInputParcel(new Date(), passphrase));
+        Assert.assertTrue("certification should succeed", result.success());
+        return result;
+    }
+
+    private static UncachedKeyRing createKeyRing(Passphrase passphrase, String... userIds) {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.addAll(Arrays.asList(userIds));
+        parcel.setNewUnlock(new ChangeUnlockParcel(passphrase));
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("test key creation should succeed", result.success());
+        return result.getRing();
+    }
+
+    /** Returns the row counts logged by the public keyring import in this log. */
+    private static Object[] getDiffCounts(OperationLog log) {
+        for (LogEntryParcel entry : log) {
+            if (entry.mType == LogType.MSG_IP_DIFF) {
+                return entry.mParameters;
+            }
+            if (entry instanceof SubLogEntryParcel) {
+                Object[] diff = getDiffCounts(((SubLogEntryParcel) entry).getSubResult().getLog());
+                if (diff != null) {
+                    return diff;
+                }
+            }
+        }
+        return null;
+    }
+
+    private List<String> getUserIdByRank(long masterKeyId) {
+        Cursor cursor = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase().rawQuery(
+                "SELECT " + UserPackets.USER_ID + " FROM " + KeychainDatabase.Tables.USER_PACKETS
+                        + " WHERE " + UserPackets.MASTER_KEY_ID + " = ? ORDER BY " + UserPackets.RANK,
+                new String[] { Long.toString(masterKeyId) });
+        try {
+            List<String> userIds = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                userIds.add(cursor.getString(0));
+            }
+            return userIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int getKeyRingBlobCount() {
+        Cursor cursor = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase()
+                .rawQuery("SELECT COUNT(*) FROM " + KeychainDatabase.Tables.KEY_RING_BLOBS, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(ProviderHelperSaveTest.class.getResourceAsStream(name)).next();
     }
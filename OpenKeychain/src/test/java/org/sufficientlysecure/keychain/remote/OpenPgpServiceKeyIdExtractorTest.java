@@ -4,7 +4,6 @@ package org.sufficientlysecure.keychain.remote;
 import android.app.PendingIntent;
 import android.content.ContentResolver;
 import android.content.Intent;
-import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
 
@@ -14,10 +13,14 @@ import org.junit.runner.RunWith;
 import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.util.OpenPgpApi;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.pgp.RecipientKeyCache;
+import org.sufficientlysecure.keychain.pgp.RecipientKeyCache.EmailResolution;
 import org.sufficientlysecure.keychain.remote.OpenPgpServiceKeyIdExtractor.KeyIdResult;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -25,6 +28,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SuppressWarnings("unchecked")
@@ -33,17 +38,20 @@ public class OpenPgpServiceKeyIdExtractorTest {
 
     private static final long[] KEY_IDS = new long[] { 123L, 234L };
     private static final String[] USER_IDS = new String[] { "user1@example.org", "User 2 <user2@example.org>" };
+    private static final String[] USER_ID_EMAILS = new String[] { "user1@example.org", "user2@example.org" };
     private OpenPgpServiceKeyIdExtractor openPgpServiceKeyIdExtractor;
     private ContentResolver contentResolver;
     private ApiPendingIntentFactory apiPendingIntentFactory;
+    private RecipientKeyCache recipientKeyCache;
 
     @Before
     public void setUp() throws Exception {
         contentResolver = mock(ContentResolver.class);
         apiPendingIntentFactory = mock(ApiPendingIntentFactory.class);
+        recipientKeyCache = mock(RecipientKeyCache.class);
 
         openPgpServiceKeyIdExtractor = OpenPgpServiceKeyIdExtractor.getInstance(contentResolver,
-                apiPendingIntentFactory);
+                recipientKeyCache, apiPendingIntentFactory);
     }
 
     @Test
@@ -229,6 +237,24 @@ public class OpenPgpServiceKeyIdExtractorTest {
         assertEquals(pendingIntent, resultIntent.getParcelableExtra(OpenPgpApi.RESULT_INTENT));
     }
 
+    @Test
+    public void returnKeyIdsFromIntent__withUserIds__withCachedResolution() throws Exception {
+        Intent intent = new Intent();
+        intent.putExtra(OpenPgpApi.EXTRA_USER_IDS, USER_IDS);
+
+        when(recipientKeyCache.getEmailResolution(any(Collection.class))).thenReturn(new EmailResolution(
+                new HashSet<>(Arrays.asList(123L, 234L)), new ArrayList<String>(), new ArrayList<String>()));
+
+
+        KeyIdResult keyIdResult = openPgpServiceKeyIdExtractor.returnKeyIdsFromIntent(intent, false);
+
+
+        assertFalse(keyIdResult.hasResultIntent());
+        assertArrayEqualsSorted(KEY_IDS, keyIdResult.getKeyIds());
+        verify(contentResolver, never()).query(
+                any(Uri.class), any(String[].class), any(String.class), any(String[].class), any(String.class));
+    }
+
     private void setupContentResolverResult() {
         MatrixCursor resultCursor = new MatrixCursor(OpenPgpServiceKeyIdExtractor.KEY_SEARCH_PROJECTION);
         when(contentResolver.query(
@@ -236,20 +262,18 @@ public class OpenPgpServiceKeyIdExtractorTest {
                 .thenReturn(resultCursor);
     }
 
+    /** Sets up a single query result, with the keys found for each of USER_IDS. */
     private void setupContentResolverResult(long[][] resultKeyIds) {
-        Cursor[] resultCursors = new MatrixCursor[resultKeyIds.length];
+        MatrixCursor resultCursor = new MatrixCursor(OpenPgpServiceKeyIdExtractor.KEY_SEARCH_PROJECTION);
         for (int i = 0; i < resultKeyIds.length; i++) {
-            MatrixCursor resultCursor = new MatrixCursor(OpenPgpServiceKeyIdExtractor.KEY_SEARCH_PROJECTION);
             for (long keyId : resultKeyIds[i]) {
-                resultCursor.addRow(new Object[] { keyId, keyId, 0L, 0L });
+                resultCursor.addRow(new Object[] { keyId, keyId, 0L, 0L, USER_ID_EMAILS[i] });
             }
-
-            resultCursors[i] = resultCursor;
         }
 
         when(contentResolver.query(
                 any(Uri.class), any(String[].class), any(String.class), any(String[].class), any(String.class)))
-                .thenReturn(resultCursors[0], Arrays.copyOfRange(resultCursors, 1, resultCursors.length));
+                .thenReturn(resultCursor);
     }
 
     private void setupPendingIntentFactoryResult(PendingIntent pendingIntent) {
@@ -0,0 +1,947 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.securitytoken;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
+import org.bouncycastle.jce.spec.ECPublicKeySpec;
+import org.bouncycastle.util.encoders.Hex;
+
+
+/** An in-process Transport which emulates an OpenPGP card, for tests of the security token
+ * code on a plain JVM.
+ *
+ * It implements the commands used by SecurityTokenHelper: SELECT, GET DATA, PUT DATA, VERIFY,
+ * CHANGE REFERENCE DATA, PUT KEY, GENERATE ASYMMETRIC KEY PAIR, PSO:CDS and PSO:DECIPHER for
+ * RSA keys, TERMINATE/ACTIVATE, and optionally SCP11b secure messaging. Command chaining,
+ * extended length, the maximum command length and the size of responses before GET RESPONSE
+ * is needed can be configured.
+ * All round trips and transferred bytes are counted.
+ *
+ * This is not a complete or strict card implementation, it only needs to be good enough to
+ * exercise the host side.
+ */
+public class OpenPgpCardEmulator implements Transport {
+
+    public static final String DEFAULT_PIN = "123456";
+    public static final String DEFAULT_ADMIN_PIN = "12345678";
+
+    private static final byte[] OPENPGP_AID_PREFIX = Hex.decode("D27600012401");
+    private static final int DEFAULT_RETRIES = 3;
+    private static final int SHORT_MAX_NE = 256;
+
+    private static final int SW_SUCCESS = 0x9000;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+    private static final int SW_CHAINING_NOT_SUPPORTED = 0x6884;
+    private static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+    private static final int SW_AUTH_METHOD_BLOCKED = 0x6983;
+    private static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    private static final int SW_WRONG_DATA = 0x6A80;
+    private static final int SW_FILE_NOT_FOUND = 0x6A82;
+    private static final int SW_DATA_NOT_FOUND = 0x6A88;
+    private static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+
+    private static final String SM_CURVE = "secp256r1";
+    private static final byte[] SM_CURVE_OID = Hex.decode("2A8648CE3D030107");
+    private static final int SM_BLOCK_SIZE = 16;
+    private static final int SM_MAC_LENGTH = 8;
+
+    private final SecureRandom mRandom = new SecureRandom();
+    private final byte[] mAid;
+
+    // configuration
+    private boolean mExtendedLengthSupported = true;
+    private boolean mCommandChainingSupported = true;
+    private int mMaxCommandLength = 2048;
+    private int mMaxResponseLength = 65536;
+    private boolean mPersistentConnectionAllowed;
+    private boolean mSecureMessagingSupported;
+    private boolean mPw1ValidForMultipleSignatures;
+
+    // persistent card state
+    private final HashMap<Integer, byte[]> mDataObjects = new HashMap<>();
+    private final EnumMap<KeyType, KeyPair> mKeys = new EnumMap<>(KeyType.class);
+    private String mPin = DEFAULT_PIN;
+    private String mAdminPin = DEFAULT_ADMIN_PIN;
+    private int mPinRetries = DEFAULT_RETRIES;
+    private int mAdminPinRetries = DEFAULT_RETRIES;
+    private boolean mTerminated;
+    private KeyPair mSecureMessagingKey;
+
+    // volatile card state, reset on connect
+    private boolean mConnected;
+    private boolean mSelected;
+    private boolean mPw1Signature;
+    private boolean mPw1Other;
+    private boolean mPw3;
+    private ByteArrayOutputStream mChainedData;
+    private byte[] mPendingResponse;
+    private int mPendingResponseOffset;
+    private SecretKeySpec mSEnc;
+    private SecretKeySpec mSMac;
+    private SecretKeySpec mSRMac;
+    private byte[] mMacChaining;
+    private int mEncryptionCounter;
+
+    // statistics
+    private int mRoundTrips;
+    private long mBytesSent;
+    private long mBytesReceived;
+    private int mSecureMessagingCommands;
+
+    public OpenPgpCardEmulator() {
+        // a random serial number, so tokens are distinct in caches keyed by AID
+        byte[] serial = new byte[4];
+        mRandom.nextBytes(serial);
+        mAid = ByteBuffer.allocate(16)
+                .put(OPENPGP_AID_PREFIX)
+                .put(new byte[] { 0x03, 0x04 }) // version 3.4
+                .put(new byte[] { (byte) 0xFF, (byte) 0xFE }) // manufacturer: test
+                .put(serial)
+                .put(new byte[] { 0x00, 0x00 })
+                .array();
+        resetDataObjects();
+    }
+
+    public OpenPgpCardEmulator setExtendedLengthSupported(boolean extendedLengthSupported) {
+        mExtendedLengthSupported = extendedLengthSupported;
+        return this;
+    }
+
+    public OpenPgpCardEmulator setCommandChainingSupported(boolean commandChainingSupported) {
+        mCommandChainingSupported = commandChainingSupported;
+        return this;
+    }
+
+    /** Maximum number of command bytes per APDU, as stated in the extended length information. */
+    public OpenPgpCardEmulator setMaxCommandLength(int maxCommandLength) {
+        mMaxCommandLength = maxCommandLength;
+        return this;
+    }
+
+    /** Maximum number of response bytes per round trip, the rest is left for GET RESPONSE. */
+    public OpenPgpCardEmulator setMaxResponseLength(int maxResponseLength) {
+        mMaxResponseLength = maxResponseLength;
+        return this;
+    }
+
+    public OpenPgpCardEmulator setPersistentConnectionAllowed(boolean persistentConnectionAllowed) {
+        mPersistentConnectionAllowed = persistentConnectionAllowed;
+        return this;
+    }
+
+    public OpenPgpCardEmulator setSecureMessagingSupported(boolean secureMessagingSupported)
+            throws GeneralSecurityException {
+        mSecureMessagingSupported = secureMessagingSupported;
+        if (secureMessagingSupported && mSecureMessagingKey == null) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC", "BC");
+            generator.initialize(ECNamedCurveTable.getParameterSpec(SM_CURVE), mRandom);
+            mSecureMessagingKey = generator.generateKeyPair();
+        }
+        return this;
+    }
+
+    public OpenPgpCardEmulator setPw1ValidForMultipleSignatures(boolean pw1ValidForMultipleSignatures) {
+        mPw1ValidForMultipleSignatures = pw1ValidForMultipleSignatures;
+        return this;
+    }
+
+    /** Puts an RSA key into a slot, along with its fingerprint, as if imported before. */
+    public void setKey(KeyType keyType, KeyPair keyPair, byte[] fingerprint) {
+        mKeys.put(keyType, keyPair);
+        int modulusLength = ((RSAPublicKey) keyPair.getPublic()).getModulus().bitLength();
+        mDataObjects.put(getAttributesObjectId(keyType), rsaAttributes(modulusLength));
+        mDataObjects.put(keyType.getFingerprintObjectId(), fingerprint);
+    }
+
+    public byte[] getAid() {
+        return mAid.clone();
+    }
+
+    public int getRoundTrips() {
+        return mRoundTrips;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public int getSecureMessagingCommands() {
+        return mSecureMessagingCommands;
+    }
+
+    public void resetStatistics() {
+        mRoundTrips = 0;
+        mBytesSent = 0;
+        mBytesReceived = 0;
+        mSecureMessagingCommands = 0;
+    }
+
+    @Override
+    public ResponseAPDU transceive(CommandAPDU command) throws IOException {
+        if (!mConnected) {
+            throw new IOException("card is not connected");
+        }
+
+        byte[] commandBytes = command.getBytes();
+        mRoundTrips += 1;
+        mBytesSent += commandBytes.length;
+
+        ResponseAPDU response = process(command, commandBytes);
+        mBytesReceived += response.getBytes().length;
+        return response;
+    }
+
+    @Override
+    public void release() {
+        mConnected = false;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public boolean isPersistentConnectionAllowed() {
+        return mPersistentConnectionAllowed;
+    }
+
+    /** A connect resets all volatile state, as a power cycle of the card does. */
+    @Override
+    public void connect() throws IOException {
+        mConnected = true;
+        mSelected = false;
+        mPw1Signature = false;
+        mPw1Other = false;
+        mPw3 = false;
+        mChainedData = null;
+        mPendingResponse = null;
+        clearSecureMessaging();
+    }
+
+    private ResponseAPDU process(CommandAPDU command, byte[] commandBytes) {
+        int ins = command.getINS();
+
+        if (ins == 0xC0) {
+            return getResponse(command.getNe());
+        }
+        mPendingResponse = null;
+
+        if (!mExtendedLengthSupported && isExtended(commandBytes)) {
+            return status(SW_WRONG_LENGTH);
+        }
+        if (command.getNc() > mMaxCommandLength) {
+            return status(SW_WRONG_LENGTH);
+        }
+
+        int cla = command.getCLA();
+        if ((cla & 0x10) != 0) {
+            if (!mCommandChainingSupported) {
+                return status(SW_CHAINING_NOT_SUPPORTED);
+            }
+            if (mChainedData == null) {
+                mChainedData = new ByteArrayOutputStream();
+            }
+            mChainedData.write(command.getData(), 0, command.getNc());
+            return status(SW_SUCCESS);
+        }
+
+        byte[] data = command.getData();
+        if (mChainedData != null) {
+            mChainedData.write(data, 0, data.length);
+            data = mChainedData.toByteArray();
+            mChainedData = null;
+        }
+
+        int ne = command.getNe();
+        byte[] response;
+        if ((cla & 0x04) != 0) {
+            mSecureMessagingCommands += 1;
+            response = processSecureMessaging(cla, command, data);
+        } else {
+            // a plain command ends any secure messaging session
+            clearSecureMessaging();
+            response = processCommand(ins, command.getP1(), command.getP2(), data);
+        }
+
+        return limitResponse(response, ne);
+    }
+
+    /** Returns as much of the response as fits, and keeps the rest for GET RESPONSE. */
+    private ResponseAPDU limitResponse(byte[] response, int ne) {
+        int dataLength = response.length - 2;
+        int limit = Math.min(ne == 0 ? SHORT_MAX_NE : ne, mMaxResponseLength);
+        if (!mExtendedLengthSupported) {
+            limit = Math.min(limit, SHORT_MAX_NE);
+        }
+        if (dataLength <= limit) {
+            return new ResponseAPDU(response);
+        }
+
+        mPendingResponse = response;
+        mPendingResponseOffset = limit;
+        return responseChunk(Arrays.copyOfRange(response, 0, limit));
+    }
+
+    private ResponseAPDU getResponse(int ne) {
+        if (mPendingResponse == null) {
+            return new ResponseAPDU(status(SW_CONDITIONS_NOT_SATISFIED));
+        }
+        int limit = Math.min(ne == 0 ? SHORT_MAX_NE : ne, mMaxResponseLength);
+        int remaining = mPendingResponse.length - 2 - mPendingResponseOffset;
+        if (remaining <= limit) {
+            byte[] response = Arrays.copyOfRange(mPendingResponse, mPendingResponseOffset, mPendingResponse.length);
+            mPendingResponse = null;
+            return new ResponseAPDU(response);
+        }
+
+        byte[] chunk = Arrays.copyOfRange(mPendingResponse, mPendingResponseOffset, mPendingResponseOffset + limit);
+        mPendingResponseOffset += limit;
+        return responseChunk(chunk);
+    }
+
+    private ResponseAPDU responseChunk(byte[] chunk) {
+        int remaining = mPendingResponse.length - 2 - mPendingResponseOffset;
+        byte[] response = Arrays.copyOf(chunk, chunk.length + 2);
+        response[chunk.length] = 0x61;
+        response[chunk.length + 1] = (byte) (remaining > 0xFF ? 0x00 : remaining);
+        return new ResponseAPDU(response);
+    }
+
+    private byte[] processCommand(int ins, int p1, int p2, byte[] data) {
+        if (ins == 0xA4) {
+            return select(data);
+        }
+        if (!mSelected) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (mTerminated && ins != 0x44) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        try {
+            switch (ins) {
+                case 0xCA:
+                    return getData((p1 << 8) | p2);
+                case 0xDA:
+                    return putData((p1 << 8) | p2, data);
+                case 0x20:
+                    return verify(p2, data);
+                case 0x24:
+                    return changeReferenceData(p2, data);
+                case 0x2A:
+                    return performSecurityOperation((p1 << 8) | p2, data);
+                case 0xDB:
+                    return putKey(data);
+                case 0x47:
+                    return generateKeyPair(p1, data);
+                case 0x88:
+                    return internalAuthenticate(data);
+                case 0xE6:
+                    return terminate();
+                case 0x44:
+                    return activate();
+                default:
+                    return status(SW_INS_NOT_SUPPORTED);
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            return status(SW_WRONG_DATA);
+        }
+    }
+
+    private byte[] select(byte[] aid) {
+        mSelected = Arrays.equals(aid, OPENPGP_AID_PREFIX)
+                || Arrays.equals(aid, Arrays.copyOf(mAid, aid.length));
+        return status(mSelected ? SW_SUCCESS : SW_FILE_NOT_FOUND);
+    }
+
+    private byte[] getData(int dataObject) throws IOException {
+        switch (dataObject) {
+            case 0x4F:
+                return success(mAid);
+            case 0x65:
+                return success(tlv(0x65, cardholderData()));
+            case 0x6E:
+                return success(applicationRelatedData());
+            case 0xC4:
+                return success(pwStatusBytes());
+            case 0xD4:
+                if (!mSecureMessagingSupported) {
+                    return status(SW_DATA_NOT_FOUND);
+                }
+                return success(tlv(0xD4, smAttributes()));
+        }
+
+        byte[] value = mDataObjects.get(dataObject);
+        if (value == null) {
+            return status(SW_DATA_NOT_FOUND);
+        }
+        return success(value);
+    }
+
+    private byte[] putData(int dataObject, byte[] data) {
+        boolean allowed = (dataObject == 0x0101 || dataObject == 0x0103) ? mPw1Other : mPw3;
+        if (!allowed) {
+            return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        mDataObjects.put(dataObject, data.clone());
+        return status(SW_SUCCESS);
+    }
+
+    private byte[] verify(int mode, byte[] pin) {
+        boolean admin = mode == 0x83;
+        int retries = admin ? mAdminPinRetries : mPinRetries;
+        if (retries == 0) {
+            return status(SW_AUTH_METHOD_BLOCKED);
+        }
+
+        String expected = admin ? mAdminPin : mPin;
+        if (!Arrays.equals(expected.getBytes(), pin)) {
+            if (admin) {
+                mAdminPinRetries -= 1;
+            } else {
+                mPinRetries -= 1;
+            }
+            return status(0x63C0 | (retries - 1));
+        }
+
+        if (admin) {
+            mAdminPinRetries = DEFAULT_RETRIES;
+            mPw3 = true;
+        } else {
+            mPinRetries = DEFAULT_RETRIES;
+            if (mode == 0x81) {
+                mPw1Signature = true;
+            } else {
+                mPw1Other = true;
+            }
+        }
+        return status(SW_SUCCESS);
+    }
+
+    private byte[] changeReferenceData(int mode, byte[] data) {
+        boolean admin = mode == 0x83;
+        String current = admin ? mAdminPin : mPin;
+        byte[] currentBytes = current.getBytes();
+        if (data.length <= currentBytes.length
+                || !Arrays.equals(currentBytes, Arrays.copyOf(data, currentBytes.length))) {
+            return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+
+        String newPin = new String(Arrays.copyOfRange(data, currentBytes.length, data.length));
+        if (admin) {
+            mAdminPin = newPin;
+        } else {
+            mPin = newPin;
+        }
+        return status(SW_SUCCESS);
+    }
+
+    private byte[] performSecurityOperation(int operation, byte[] data) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding", "BC");
+        switch (operation) {
+            case 0x9E9A: { // COMPUTE DIGITAL SIGNATURE
+                if (!mPw1Signature) {
+                    return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                KeyPair key = mKeys.get(KeyType.SIGN);
+                if (key == null) {
+                    return status(SW_DATA_NOT_FOUND);
+                }
+                if (!mPw1ValidForMultipleSignatures) {
+                    mPw1Signature = false;
+                }
+                // signing is encryption of the DigestInfo with the private key, with type 1 padding
+                cipher.init(Cipher.ENCRYPT_MODE, key.getPrivate());
+                return success(cipher.doFinal(data));
+            }
+            case 0x8086: { // DECIPHER
+                if (!mPw1Other) {
+                    return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                KeyPair key = mKeys.get(KeyType.ENCRYPT);
+                if (key == null) {
+                    return status(SW_DATA_NOT_FOUND);
+                }
+                if (data.length < 2 || data[0] != 0x00) {
+                    // only RSA is supported, where the first byte is the padding indicator
+                    return status(SW_WRONG_DATA);
+                }
+                cipher.init(Cipher.DECRYPT_MODE, key.getPrivate());
+                return success(cipher.doFinal(data, 1, data.length - 1));
+            }
+            default:
+                return status(SW_WRONG_DATA);
+        }
+    }
+
+    /** Imports an RSA key from an extended header list, as created by SecurityTokenUtils. */
+    private byte[] putKey(byte[] data) throws IOException, GeneralSecurityException {
+        if (!mPw3) {
+            return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+
+        Iso7816TLV headerList = Iso7816TLV.readSingle(data, false);
+        if (headerList.mT != 0x4D) {
+            return status(SW_WRONG_DATA);
+        }
+        Iso7816TLV[] tlvs = Iso7816TLV.readList(headerList.mV, false);
+        if (tlvs.length != 3 || tlvs[1].mT != 0x7F48 || tlvs[2].mT != 0x5F48) {
+            return status(SW_WRONG_DATA);
+        }
+        KeyType keyType = getKeyTypeForSlot(tlvs[0].mT);
+        if (keyType == null) {
+            return status(SW_WRONG_DATA);
+        }
+
+        // the template lists tags and lengths, the values are concatenated in 5F48
+        HashMap<Integer, BigInteger> values = new HashMap<>();
+        ByteBuffer template = ByteBuffer.wrap(tlvs[1].mV);
+        int offset = 0;
+        while (template.hasRemaining()) {
+            int tag = template.get() & 0xff;
+            int length = readBerLength(template);
+            values.put(tag, new BigInteger(1, Arrays.copyOfRange(tlvs[2].mV, offset, offset + length)));
+            offset += length;
+        }
+
+        BigInteger e = values.get(0x91);
+        BigInteger p = values.get(0x92);
+        BigInteger q = values.get(0x93);
+        if (e == null || p == null || q == null) {
+            return status(SW_WRONG_DATA);
+        }
+        BigInteger n = p.multiply(q);
+        BigInteger d = e.modInverse(p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE)));
+
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA", "BC");
+        PublicKey publicKey = keyFactory.generatePublic(new RSAPublicKeySpec(n, e));
+        PrivateKey privateKey = keyFactory.generatePrivate(new RSAPrivateCrtKeySpec(n, e, d, p, q,
+                d.mod(p.subtract(BigInteger.ONE)), d.mod(q.subtract(BigInteger.ONE)), q.modInverse(p)));
+
+        mKeys.put(keyType, new KeyPair(publicKey, privateKey));
+        return status(SW_SUCCESS);
+    }
+
+    private byte[] generateKeyPair(int mode, byte[] data) throws IOException, GeneralSecurityException {
+        if (mode == 0x81 && Arrays.equals(data, new byte[] { (byte) 0xA6, 0x00 })) {
+            // public key for secure messaging
+            if (!mSecureMessagingSupported) {
+                return status(SW_DATA_NOT_FOUND);
+            }
+            return success(tlv(0x7F49, tlv(0x86, encodePoint(mSecureMessagingKey.getPublic()))));
+        }
+
+        KeyType keyType = data.length == 2 ? getKeyTypeForSlot(data[0] & 0xff) : null;
+        if (keyType == null) {
+            return status(SW_WRONG_DATA);
+        }
+
+        if (mode == 0x80) {
+            if (!mPw3) {
+                return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+            }
+            byte[] attributes = mDataObjects.get(getAttributesObjectId(keyType));
+            int modulusLength = ((attributes[1] & 0xff) << 8) | (attributes[2] & 0xff);
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA", "BC");
+            generator.initialize(modulusLength, mRandom);
+            mKeys.put(keyType, generator.generateKeyPair());
+        }
+
+        KeyPair keyPair = mKeys.get(keyType);
+        if (keyPair == null) {
+            return status(SW_DATA_NOT_FOUND);
+        }
+        RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+        return success(tlv(0x7F49,
+                tlv(0x81, unsigned(publicKey.getModulus())),
+                tlv(0x82, unsigned(publicKey.getPublicExponent()))));
+    }
+
+    private byte[] terminate() {
+        if (!mPw3 && mAdminPinRetries > 0) {
+            return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        mTerminated = true;
+        return status(SW_SUCCESS);
+    }
+
+    private byte[] activate() {
+        if (mTerminated) {
+            mKeys.clear();
+            resetDataObjects();
+            mPin = DEFAULT_PIN;
+            mAdminPin = DEFAULT_ADMIN_PIN;
+            mPinRetries = DEFAULT_RETRIES;
+            mAdminPinRetries = DEFAULT_RETRIES;
+            mPw1Signature = false;
+            mPw1Other = false;
+            mPw3 = false;
+            mTerminated = false;
+        }
+        return status(SW_SUCCESS);
+    }
+
+    /** Card side of the SCP11b key agreement, see SCP11bSecureMessaging.establish */
+    private byte[] internalAuthenticate(byte[] data) throws IOException, GeneralSecurityException {
+        if (!mSecureMessagingSupported) {
+            return status(SW_INS_NOT_SUPPORTED);
+        }
+
+        // control reference template, followed by the ephemeral public key of the host
+        int keySize = data[14];
+        ByteBuffer buffer = ByteBuffer.wrap(data, 17, data.length - 17);
+        int pointLength = readBerLength(buffer);
+        byte[] hostPoint = new byte[pointLength];
+        buffer.get(hostPoint);
+        PublicKey hostKey = decodePoint(hostPoint);
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC", "BC");
+        generator.initialize(ECNamedCurveTable.getParameterSpec(SM_CURVE), mRandom);
+        KeyPair ephemeralKey = generator.generateKeyPair();
+
+        ByteArrayOutputStream sharedSecrets = new ByteArrayOutputStream();
+        KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH", "BC");
+        keyAgreement.init(ephemeralKey.getPrivate());
+        keyAgreement.doPhase(hostKey, true);
+        sharedSecrets.write(keyAgreement.generateSecret());
+        keyAgreement.init(mSecureMessagingKey.getPrivate());
+        keyAgreement.doPhase(hostKey, true);
+        sharedSecrets.write(keyAgreement.generateSecret());
+
+        int counterIndex = sharedSecrets.size() + 3;
+        sharedSecrets.write(new byte[] { 0, 0, 0, 0, data[8], data[11], (byte) keySize });
+        byte[] shs = sharedSecrets.toByteArray();
+
+        MessageDigest digest = MessageDigest.getInstance("SHA256", "BC");
+        ByteArrayOutputStream keys = new ByteArrayOutputStream();
+        while (keys.size() < 4 * keySize) {
+            ++shs[counterIndex];
+            keys.write(digest.digest(shs));
+        }
+        byte[] keyData = keys.toByteArray();
+
+        byte[] ephemeralKeyTlv = tlv(0x5F49, encodePoint(ephemeralKey.getPublic()));
+        Mac mac = Mac.getInstance("AESCMAC", "BC");
+        mac.init(new SecretKeySpec(keyData, 0, keySize, "AES"));
+        mac.update(data);
+        mac.update(ephemeralKeyTlv);
+        byte[] receipt = mac.doFinal();
+
+        mSEnc = new SecretKeySpec(keyData, keySize, keySize, "AES");
+        mSMac = new SecretKeySpec(keyData, 2 * keySize, keySize, "AES");
+        mSRMac = new SecretKeySpec(keyData, 3 * keySize, keySize, "AES");
+        mMacChaining = receipt;
+        mEncryptionCounter = 0;
+
+        return success(concat(ephemeralKeyTlv, tlv(0x86, receipt)));
+    }
+
+    private byte[] processSecureMessaging(int cla, CommandAPDU command, byte[] data) {
+        if (mMacChaining == null || data.length < SM_MAC_LENGTH) {
+            clearSecureMessaging();
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        try {
+            mEncryptionCounter += 1;
+
+            // the MAC covers the header as sent, with the length of the complete data
+            int lc = data.length;
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            header.write(new byte[] { (byte) (cla & ~0x10), (byte) command.getINS(),
+                    (byte) command.getP1(), (byte) command.getP2() });
+            if (lc > 0xff) {
+                header.write(new byte[] { 0, (byte) (lc >> 8), (byte) lc });
+            } else {
+                header.write(lc);
+            }
+
+            Mac mac = Mac.getInstance("AESCMAC", "BC");
+            mac.init(mSMac);
+            mac.update(mMacChaining);
+            mac.update(header.toByteArray());
+            mac.update(data, 0, data.length - SM_MAC_LENGTH);
+            byte[] commandMac = mac.doFinal();
+            if (!Arrays.equals(Arrays.copyOf(commandMac, SM_MAC_LENGTH),
+                    Arrays.copyOfRange(data, data.length - SM_MAC_LENGTH, data.length))) {
+                clearSecureMessaging();
+                return status(SW_CONDITIONS_NOT_SATISFIED);
+            }
+            mMacChaining = commandMac;
+
+            byte[] plainData = new byte[0];
+            if (data.length > SM_MAC_LENGTH) {
+                plainData = unpad(smCipher(Cipher.DECRYPT_MODE, (byte) 0x00)
+                        .doFinal(data, 0, data.length - SM_MAC_LENGTH));
+            }
+
+            byte[] response = processCommand(command.getINS(), command.getP1(), command.getP2(), plainData);
+            return wrapResponse(response);
+        } catch (IOException | GeneralSecurityException e) {
+            clearSecureMessaging();
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+    }
+
+    private byte[] wrapResponse(byte[] response) throws IOException, GeneralSecurityException {
+        int sw1 = response[response.length - 2] & 0xff;
+        int dataLength = response.length - 2;
+        if (dataLength == 0 && sw1 != 0x90 && sw1 != 0x62 && sw1 != 0x63) {
+            return response;
+        }
+
+        byte[] encryptedData = new byte[0];
+        if (dataLength > 0) {
+            encryptedData = smCipher(Cipher.ENCRYPT_MODE, (byte) 0x80)
+                    .doFinal(pad(Arrays.copyOf(response, dataLength)));
+        }
+
+        Mac mac = Mac.getInstance("AESCMAC", "BC");
+        mac.init(mSRMac);
+        mac.update(mMacChaining);
+        mac.update(encryptedData);
+        mac.update(response, dataLength, 2);
+        byte[] responseMac = mac.doFinal();
+
+        return concat(encryptedData, Arrays.copyOf(responseMac, SM_MAC_LENGTH),
+                Arrays.copyOfRange(response, dataLength, response.length));
+    }
+
+    private Cipher smCipher(int mode, byte ivPrefix) throws GeneralSecurityException {
+        byte[] iv = new byte[SM_BLOCK_SIZE];
+        iv[0] = ivPrefix;
+        iv[SM_BLOCK_SIZE - 2] = (byte) (mEncryptionCounter >> 8);
+        iv[SM_BLOCK_SIZE - 1] = (byte) mEncryptionCounter;
+
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, mSEnc, new IvParameterSpec(new byte[SM_BLOCK_SIZE]));
+        iv = cipher.doFinal(iv);
+
+        cipher.init(mode, mSEnc, new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    private void clearSecureMessaging() {
+        mSEnc = null;
+        mSMac = null;
+        mSRMac = null;
+        mMacChaining = null;
+        mEncryptionCounter = 0;
+    }
+
+    private byte[] applicationRelatedData() throws IOException {
+        byte[] fingerprints = concat(
+                getDataObject(KeyType.SIGN.getFingerprintObjectId(), 20),
+                getDataObject(KeyType.ENCRYPT.getFingerprintObjectId(), 20),
+                getDataObject(KeyType.AUTH.getFingerprintObjectId(), 20));
+        byte[] timestamps = concat(
+                getDataObject(KeyType.SIGN.getTimestampObjectId(), 4),
+                getDataObject(KeyType.ENCRYPT.getTimestampObjectId(), 4),
+                getDataObject(KeyType.AUTH.getTimestampObjectId(), 4));
+
+        byte[] discretionaryData = concat(
+                tlv(0xC0, extendedCapabilities()),
+                tlv(0xC1, mDataObjects.get(0xC1)),
+                tlv(0xC2, mDataObjects.get(0xC2)),
+                tlv(0xC3, mDataObjects.get(0xC3)),
+                tlv(0xC4, pwStatusBytes()),
+                tlv(0xC5, fingerprints),
+                tlv(0xC6, new byte[60]),
+                tlv(0xCD, timestamps));
+
+        return tlv(0x6E,
+                tlv(0x4F, mAid),
+                tlv(0x5F52, historicalBytes()),
+                tlv(0x7F66, extendedLengthInfo()),
+                tlv(0x73, discretionaryData));
+    }
+
+    private byte[] historicalBytes() {
+        int capabilities = (mCommandChainingSupported ? 0x80 : 0) | (mExtendedLengthSupported ? 0x40 : 0);
+        return new byte[] { 0x00, 0x31, (byte) 0xC5, 0x73, (byte) 0xC0, 0x01, (byte) capabilities,
+                0x05, (byte) 0x90, 0x00 };
+    }
+
+    private byte[] extendedCapabilities() {
+        // secure messaging, key import, changeable attributes; AES-128 for secure messaging. as of
+        // version 3.0, followed by the maximum challenge, certificate and special DO lengths,
+        // and the PIN block 2 and MSE support bytes, which must not be taken for APDU limits
+        int flags = (mSecureMessagingSupported ? 0x80 : 0) | 0x20 | 0x04;
+        return new byte[] { (byte) flags, 0x01, 0x00, 0x00, 0x08, 0x00, 0x00, (byte) 0xFF, 0x00, 0x01 };
+    }
+
+    private byte[] extendedLengthInfo() throws IOException {
+        return concat(
+                tlv(0x02, new byte[] { (byte) (mMaxCommandLength >> 8), (byte) mMaxCommandLength }),
+                tlv(0x02, new byte[] { 0x08, 0x00 }));
+    }
+
+    private byte[] pwStatusBytes() {
+        return new byte[] { (byte) (mPw1ValidForMultipleSignatures ? 1 : 0), 0x7F, 0x7F, 0x7F,
+                (byte) mPinRetries, 0x00, (byte) mAdminPinRetries };
+    }
+
+    private byte[] smAttributes() {
+        return concat(new byte[] { 18 }, SM_CURVE_OID);
+    }
+
+    private byte[] cardholderData() throws IOException {
+        return concat(tlv(0x5B, "Test<<Card".getBytes()), tlv(0x5F2D, "en".getBytes()), tlv(0x5F35, "9".getBytes()));
+    }
+
+    private void resetDataObjects() {
+        mDataObjects.clear();
+        for (KeyType keyType : KeyType.values()) {
+            mDataObjects.put(getAttributesObjectId(keyType), rsaAttributes(2048));
+        }
+    }
+
+    private byte[] getDataObject(int dataObject, int length) {
+        byte[] value = mDataObjects.get(dataObject);
+        return value != null ? Arrays.copyOf(value, length) : new byte[length];
+    }
+
+    private static byte[] rsaAttributes(int modulusLength) {
+        return new byte[] { 0x01, (byte) (modulusLength >> 8), (byte) modulusLength, 0x00, 0x20, 0x00 };
+    }
+
+    private static int getAttributesObjectId(KeyType keyType) {
+        return 0xC1 + keyType.getIdx();
+    }
+
+    private static KeyType getKeyTypeForSlot(int slot) {
+        for (KeyType keyType : KeyType.values()) {
+            if (keyType.getSlot() == slot) {
+                return keyType;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isExtended(byte[] commandBytes) {
+        return commandBytes.length >= 7 && commandBytes[4] == 0;
+    }
+
+    private static int readBerLength(ByteBuffer buffer) {
+        int length = buffer.get() & 0xff;
+        if (length == 0x81) {
+            length = buffer.get() & 0xff;
+        } else if (length == 0x82) {
+            length = ((buffer.get() & 0xff) << 8) | (buffer.get() & 0xff);
+        }
+        return length;
+    }
+
+    private static PublicKey decodePoint(byte[] point) throws GeneralSecurityException {
+        ECNamedCurveParameterSpec spec = ECNamedCurveTable.getParameterSpec(SM_CURVE);
+        return KeyFactory.getInstance("EC", "BC").generatePublic(
+                new ECPublicKeySpec(spec.getCurve().decodePoint(point), spec));
+    }
+
+    private static byte[] encodePoint(PublicKey publicKey) {
+        return ((org.bouncycastle.jce.interfaces.ECPublicKey) publicKey).getQ().getEncoded(false);
+    }
+
+    private static byte[] pad(byte[] data) {
+        byte[] padded = Arrays.copyOf(data, data.length + SM_BLOCK_SIZE - (data.length % SM_BLOCK_SIZE));
+        padded[data.length] = (byte) 0x80;
+        return padded;
+    }
+
+    private static byte[] unpad(byte[] data) throws IOException {
+        int i = data.length - 1;
+        while (i > 0 && data[i] == 0) {
+            --i;
+        }
+        if (i < 0 || data[i] != (byte) 0x80) {
+            throw new IOException("invalid padding");
+        }
+        return Arrays.copyOf(data, i);
+    }
+
+    private static byte[] unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        return bytes[0] == 0 ? Arrays.copyOfRange(bytes, 1, bytes.length) : bytes;
+    }
+
+    private static byte[] tlv(int tag, byte[]... values) throws IOException {
+        byte[] value = concat(values);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (tag > 0xff) {
+            out.write(tag >> 8);
+        }
+        out.write(tag & 0xff);
+        out.write(SecurityTokenUtils.encodeLength(value.length));
+        out.write(value);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] success(byte[] data) {
+        byte[] response = Arrays.copyOf(data, data.length + 2);
+        response[data.length] = (byte) 0x90;
+        response[data.length + 1] = 0x00;
+        return response;
+    }
+
+    private static byte[] status(int sw) {
+        return new byte[] { (byte) (sw >> 8), (byte) sw };
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.securitytoken;
+
+
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+@RunWith(KeychainTestRunner.class)
+public class SecurityTokenHelperTest {
+
+    static PrintStream oldShadowStream;
+    static KeyPair signKey;
+    static KeyPair encryptKey;
+    static byte[] signFingerprint;
+    static byte[] encryptFingerprint;
+
+    SecurityTokenHelper helper;
+    OpenPgpCardEmulator card;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        oldShadowStream = ShadowLog.stream;
+        ShadowLog.stream = System.out;
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA", "BC");
+        generator.initialize(2048);
+        signKey = generator.generateKeyPair();
+        encryptKey = generator.generateKeyPair();
+
+        SecureRandom random = new SecureRandom();
+        signFingerprint = new byte[20];
+        random.nextBytes(signFingerprint);
+        encryptFingerprint = new byte[20];
+        random.nextBytes(encryptFingerprint);
+    }
+
+    @AfterClass
+    public static void tearDownOnce() {
+        ShadowLog.stream = oldShadowStream;
+    }
+
+    @Before
+    public void setUp() {
+        card = new OpenPgpCardEmulator();
+        card.setKey(KeyType.SIGN, signKey, signFingerprint);
+        card.setKey(KeyType.ENCRYPT, encryptKey, encryptFingerprint);
+
+        helper = SecurityTokenHelper.getInstance();
+        helper.clearSecureMessaging();
+        helper.setTransport(card);
+        helper.setPin(new Passphrase(OpenPgpCardEmulator.DEFAULT_PIN));
+    }
+
+    @Test
+    public void testConnect() throws Exception {
+        helper.connectToDevice(RuntimeEnvironment.application);
+        Assert.assertEquals("connect should select, then read aid and application related data",
+                3, card.getRoundTrips());
+
+        Assert.assertArrayEquals(card.getAid(), helper.getAid());
+        Assert.assertArrayEquals(signFingerprint, helper.getKeyFingerprint(KeyType.SIGN));
+        Assert.assertArrayEquals(encryptFingerprint, helper.getKeyFingerprint(KeyType.ENCRYPT));
+        Assert.assertEquals("Test  Card", helper.getUserId());
+
+        card.resetStatistics();
+        helper.connectToDevice(RuntimeEnvironment.application);
+        Assert.assertEquals("reconnect should take application related data from the session cache",
+                2, card.getRoundTrips());
+        Assert.assertArrayEquals(signFingerprint, helper.getKeyFingerprint(KeyType.SIGN));
+    }
+
+    @Test
+    public void testSignAndDecrypt() throws Exception {
+        helper.connectToDevice(RuntimeEnvironment.application);
+        assertSignature();
+
+        card.resetStatistics();
+        int roundTrips = helper.getRoundTripCount();
+        assertDecryption();
+        // verify, then 257 bytes of ciphertext in a single extended length command
+        Assert.assertEquals(2, card.getRoundTrips());
+        Assert.assertEquals(2, helper.getRoundTripCount() - roundTrips);
+    }
+
+    @Test
+    public void testResponseChaining() throws Exception {
+        card.setMaxResponseLength(32);
+        helper.connectToDevice(RuntimeEnvironment.application);
+
+        card.resetStatistics();
+        assertSignature();
+        // verify, then the 256 byte signature in chunks of 32 bytes
+        Assert.assertEquals(1 + 256 / 32, card.getRoundTrips());
+    }
+
+    @Test
+    public void testCommandChainingWithoutExtendedLength() throws Exception {
+        card.setExtendedLengthSupported(false);
+        helper.connectToDevice(RuntimeEnvironment.application);
+
+        card.resetStatistics();
+        assertDecryption();
+        // verify, then 257 bytes of ciphertext in two chained commands
+        Assert.assertEquals(3, card.getRoundTrips());
+    }
+
+    @Test
+    public void testCommandLengthFromExtendedLengthInfo() throws Exception {
+        // a version 3 token states its limits in DO 7F66, the extended capabilities hold other data
+        card.setMaxCommandLength(128);
+        helper.connectToDevice(RuntimeEnvironment.application);
+
+        card.resetStatistics();
+        assertDecryption();
+        // verify, then 257 bytes of ciphertext in chained commands of 128 bytes
+        Assert.assertEquals(1 + 3, card.getRoundTrips());
+    }
+
+    @Test
+    public void testSecureMessaging() throws Exception {
+        card.setSecureMessagingSupported(true);
+        helper.connectToDevice(RuntimeEnvironment.application);
+        Assert.assertTrue("secure messaging should be established", helper.getOpenPgpCapabilities().isHasSM());
+
+        card.resetStatistics();
+        assertSignature();
+        assertDecryption();
+        Assert.assertEquals("all commands should be sent with secure messaging",
+                card.getRoundTrips(), card.getSecureMessagingCommands());
+    }
+
+    @Test
+    public void testRepeatedOperations() throws Exception {
+        helper.connectToDevice(RuntimeEnvironment.application);
+        // the first decryption also verifies the pin for the session
+        assertSignature();
+        assertDecryption();
+
+        card.resetStatistics();
+        assertSignature();
+        assertDecryption();
+        long bytesSentPerPair = card.getBytesSent();
+        // verify status word, 256 byte signature and 35 byte session key, each with status word
+        Assert.assertEquals(2 + 258 + 37, card.getBytesReceived());
+        // at least the digest info of the signature and the 257 byte ciphertext
+        Assert.assertTrue(bytesSentPerPair > 51 + 257);
+
+        int operations = 10;
+        card.resetStatistics();
+        for (int i = 0; i < operations; i++) {
+            assertSignature();
+            assertDecryption();
+        }
+
+        // the decryption pin is verified once per session, the signature pin once per signature
+        Assert.assertEquals(operations * 3, card.getRoundTrips());
+        Assert.assertEquals(operations * bytesSentPerPair, card.getBytesSent());
+        Assert.assertEquals(operations * (2 + 258 + 37), card.getBytesReceived());
+    }
+
+    private void assertSignature() throws Exception {
+        byte[] data = new byte[128];
+        new SecureRandom().nextBytes(data);
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+
+        byte[] signature = helper.calculateSignature(hash, HashAlgorithmTags.SHA256);
+
+        Signature verifier = Signature.getInstance("SHA256withRSA", "BC");
+        verifier.initVerify(signKey.getPublic());
+        verifier.update(data);
+        Assert.assertTrue("signature from token must verify", verifier.verify(signature));
+    }
+
+    private void assertDecryption() throws Exception {
+        byte[] sessionKey = new byte[35];
+        new SecureRandom().nextBytes(sessionKey);
+
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding", "BC");
+        cipher.init(Cipher.ENCRYPT_MODE, encryptKey.getPublic());
+        byte[] encrypted = cipher.doFinal(sessionKey);
+
+        // the session key as mpi, with its length in bits
+        int bitLength = new BigInteger(1, encrypted).bitLength();
+        byte[] mpi = new byte[encrypted.length + 2];
+        mpi[0] = (byte) (bitLength >> 8);
+        mpi[1] = (byte) bitLength;
+        System.arraycopy(encrypted, 0, mpi, 2, encrypted.length);
+
+        byte[] decrypted = helper.decryptSessionKey(mpi, null);
+        Assert.assertTrue("session key from token must match", Arrays.equals(sessionKey, decrypted));
+    }
+
+}
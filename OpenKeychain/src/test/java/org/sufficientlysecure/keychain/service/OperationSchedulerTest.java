@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.service.OperationScheduler.OperationMetrics;
+import org.sufficientlysecure.keychain.service.OperationScheduler.Priority;
+import org.sufficientlysecure.keychain.service.OperationScheduler.ScheduledOperation;
+
+
+@RunWith(KeychainTestRunner.class)
+public class OperationSchedulerTest {
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        OperationScheduler scheduler = new OperationScheduler(1);
+
+        final CountDownLatch blockWorker = new CountDownLatch(1);
+        final CountDownLatch allDone = new CountDownLatch(4);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        // occupy the only worker, so everything else is queued
+        scheduler.schedule("blocker", Priority.INTERACTIVE, new ScheduledOperation() {
+            @Override
+            public void run(AtomicBoolean cancelled) {
+                try {
+                    blockWorker.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                allDone.countDown();
+            }
+        });
+
+        scheduler.schedule("maintenance", Priority.MAINTENANCE, recordingOperation("maintenance", order, allDone));
+        scheduler.schedule("background", Priority.BACKGROUND, recordingOperation("background", order, allDone));
+        scheduler.schedule("interactive", Priority.INTERACTIVE, recordingOperation("interactive", order, allDone));
+
+        Assert.assertEquals("queued operations should be counted",
+                1, scheduler.getMetrics().get("background").getQueueDepth());
+
+        blockWorker.countDown();
+        Assert.assertTrue("all operations should finish", allDone.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+
+        Assert.assertEquals("operations should run in order of priority",
+                "[interactive, background, maintenance]", order.toString());
+
+        OperationMetrics metrics = scheduler.getMetrics().get("background");
+        Assert.assertEquals("queue should be empty", 0, metrics.getQueueDepth());
+        Assert.assertEquals("operation should be counted as completed", 1, metrics.getCompletedCount());
+    }
+
+    @Test
+    public void testCancelAll() throws Exception {
+        OperationScheduler scheduler = new OperationScheduler(1);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean sawCancel = new AtomicBoolean(false);
+
+        AtomicBoolean cancelled = scheduler.schedule("op", Priority.INTERACTIVE, new ScheduledOperation() {
+            @Override
+            public void run(AtomicBoolean cancelled) {
+                started.countDown();
+                while (!cancelled.get()) {
+                    Thread.yield();
+                }
+                sawCancel.set(true);
+                done.countDown();
+            }
+        });
+
+        Assert.assertTrue("operation should start", started.await(5, TimeUnit.SECONDS));
+        scheduler.cancelAll();
+
+        Assert.assertTrue("operation should finish after cancel", done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue("cancel flag should be set", cancelled.get());
+        Assert.assertTrue("operation should observe cancel flag", sawCancel.get());
+        scheduler.shutdown();
+    }
+
+    private static ScheduledOperation recordingOperation(
+            final String name, final List<String> order, final CountDownLatch done) {
+        return new ScheduledOperation() {
+            @Override
+            public void run(AtomicBoolean cancelled) {
+                order.add(name);
+                done.countDown();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import android.os.Parcel;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class OperationTimingsTest {
+
+    @Before
+    public void setUp() {
+        OperationTimings.clearRegistry();
+    }
+
+    @Test
+    public void testPhasesAreRecorded() throws Exception {
+        OperationTimings timings = OperationTimings.begin("TestOperation");
+        OperationTimings.startPhase(OperationTimings.PHASE_KEYSERVER_FETCH).end(100);
+        OperationTimings.startPhase(OperationTimings.PHASE_KEYSERVER_FETCH).end(50);
+        OperationTimings.startPhase(OperationTimings.PHASE_DB_SAVE).end();
+        timings.finish();
+
+        String printable = timings.getPrintableTimings();
+        Assert.assertTrue("fetch phase should be aggregated",
+                printable.contains(OperationTimings.PHASE_KEYSERVER_FETCH + ": ") && printable.contains("in 2x, 150 bytes"));
+        Assert.assertTrue("db phase should be recorded",
+                printable.contains(OperationTimings.PHASE_DB_SAVE + ": "));
+
+        String registry = OperationTimings.dumpRegistry();
+        Assert.assertTrue("registry should contain phases by operation",
+                registry.contains("TestOperation/" + OperationTimings.PHASE_KEYSERVER_FETCH));
+        Assert.assertTrue("registry should contain total time of operation",
+                registry.contains("TestOperation/total"));
+    }
+
+    @Test
+    public void testPhaseOutsideOfOperation() throws Exception {
+        OperationTimings.startPhase(OperationTimings.PHASE_S2K).end();
+
+        Assert.assertTrue("phase outside of operation should be recorded in registry",
+                OperationTimings.dumpRegistry().contains("-/" + OperationTimings.PHASE_S2K));
+    }
+
+    @Test
+    public void testNestedOperation() throws Exception {
+        OperationTimings outer = OperationTimings.begin("Outer");
+        OperationTimings inner = OperationTimings.begin("Inner");
+        OperationTimings.startPhase(OperationTimings.PHASE_CANONICALIZE).end();
+        inner.finish();
+        OperationTimings.startPhase(OperationTimings.PHASE_DB_SAVE).end();
+        outer.finish();
+
+        Assert.assertTrue("inner phase should be recorded in inner operation",
+                inner.getPrintableTimings().contains(OperationTimings.PHASE_CANONICALIZE));
+        Assert.assertFalse("inner phase should not be recorded in outer operation",
+                outer.getPrintableTimings().contains(OperationTimings.PHASE_CANONICALIZE));
+        Assert.assertTrue("inner operation should be recorded as phase of outer operation",
+                outer.getPrintableTimings().contains("Inner: "));
+        Assert.assertTrue("outer phase should be recorded after inner operation finished",
+                outer.getPrintableTimings().contains(OperationTimings.PHASE_DB_SAVE));
+    }
+
+    @Test
+    public void testOtherThreadsAttachExplicitly() throws Exception {
+        final OperationTimings timings = OperationTimings.begin("TestOperation");
+
+        final OperationTimings[] seenByThread = new OperationTimings[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                seenByThread[0] = OperationTimings.getCurrent();
+                OperationTimings previous = OperationTimings.attach(timings);
+                OperationTimings.startPhase(OperationTimings.PHASE_DB_SAVE).end();
+                OperationTimings.detach(previous);
+            }
+        });
+        thread.start();
+        thread.join();
+        timings.finish();
+
+        Assert.assertNull("threads started during an operation should not inherit its timings", seenByThread[0]);
+        Assert.assertTrue("phase of attached thread should be recorded in operation",
+                timings.getPrintableTimings().contains(OperationTimings.PHASE_DB_SAVE));
+    }
+
+    @Test
+    public void testParcel() throws Exception {
+        OperationTimings timings = OperationTimings.begin("TestOperation");
+        OperationTimings.startPhase(OperationTimings.PHASE_KEYSERVER_FETCH).end(100);
+        timings.finish();
+
+        Parcel parcel = Parcel.obtain();
+        timings.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        OperationTimings restored = OperationTimings.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        Assert.assertEquals("timings should be equal after parcelling",
+                timings.getPrintableTimings(), restored.getPrintableTimings());
+    }
+
+}